@@ -0,0 +1,84 @@
+package com.gignorie.fldist;
+
+import java.util.Locale;
+
+/**
+* Необязательное итоговое усиление перед OutputStage: выход цепочки приводится к целевой
+* интегральной громкости — заданной в LUFS или к громкости исходника (A/B без разницы
+* в уровне: драйв и сатурация сильно меняют громкость, а громче — почти всегда «лучше» на слух).
+*
+* Усиление считается по анализу LoudnessMeter исходника и выхода цепочки до усиления.
+* Оба анализа лежат в RenderCache, поэтому повторный рендер той же цепочки сразу
+* пишет результат с нужным усилением без лишних проходов декодирования.
+*
+* Подъем ограничен так, чтобы истинный пик не превышал CEILING_DBTP.
+*/
+public final class AutoGain {
+
+	public static final AutoGain OFF = new AutoGain(Double.NaN, false);
+	public static final AutoGain MATCH_SOURCE = new AutoGain(Double.NaN, true);
+
+	// Потолок истинного пика после усиления и предел самого усиления
+	static final double CEILING_DBTP = -1.0;
+	static final double MAX_GAIN_DB = 24.0;
+
+	private final double targetLufs;
+	private final boolean matchSource;
+
+	private AutoGain(double targetLufs, boolean matchSource) {
+		this.targetLufs = targetLufs;
+		this.matchSource = matchSource;
+	}
+
+	public static AutoGain toLufs(double targetLufs) {
+		if (Double.isNaN(targetLufs) || Double.isInfinite(targetLufs)) throw new IllegalArgumentException("Bad loudness target: " + targetLufs);
+		return new AutoGain(targetLufs, false);
+	}
+
+	/**
+	* "off", "source" или число LUFS (например, "-14").
+	* @throws NumberFormatException для другой строки.
+	*/
+	public static AutoGain parse(String text) {
+		String value = text.trim().toLowerCase(Locale.US);
+		if (value.equals("off")) return OFF;
+		if (value.equals("source")) return MATCH_SOURCE;
+		return toLufs(Double.parseDouble(value));
+	}
+
+	public boolean isEnabled() {
+		return this != OFF;
+	}
+
+	public boolean needsSource() {
+		return matchSource;
+	}
+
+	/**
+	* Часть ключа кеша рендера (пусто без усиления: ключи прежних рендеров не меняются).
+	*/
+	public String signature() {
+		if (!isEnabled()) return "";
+		return matchSource ? "|gain:source" : "|gain:" + targetLufs;
+	}
+
+	/**
+	* Усиление в дБ для выхода output (анализ до усиления); source нужен только для MATCH_SOURCE.
+	* 0, если громкость не определена (тишина).
+	*/
+	public double gainDb(LoudnessMeter.Result source, LoudnessMeter.Result output) {
+		if (!isEnabled()) return 0;
+		double target = matchSource ? source.integratedLufs : targetLufs;
+		if (Double.isInfinite(target) || Double.isInfinite(output.integratedLufs)) return 0;
+		double gain = Math.max(-MAX_GAIN_DB, Math.min(MAX_GAIN_DB, target - output.integratedLufs));
+		double peak = Double.isNaN(output.truePeak) ? output.samplePeak : output.truePeak;
+		if (peak > 0) gain = Math.min(gain, Math.max(0, CEILING_DBTP - LoudnessMeter.Result.toDb(peak)));
+		return gain;
+	}
+
+	@Override
+	public String toString() {
+		if (!isEnabled()) return "off";
+		return matchSource ? "source" : String.format(Locale.US, "%.1f LUFS", targetLufs);
+	}
+}
@@ -0,0 +1,229 @@
+package com.gignorie.fldist;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+* Пакетное применение одной цепочки ко многим WAV-файлам.
+* Файлы распределяются между рабочими (число ограничено ядрами и свободной памятью),
+* каждый шаг записывается в BatchJournal, так что прерванный пакет продолжается
+* с того же места, и ни один файл не обрабатывается дважды.
+*
+* Как именно файл заменяется, решает FileProcessor: process() должен либо заменить
+* результат целиком, либо оставить его прежним, и быть безопасным для повтора —
+* сбой между process() и отметкой DONE приводит к повторному вызову для того же файла.
+* На устройстве записи меняются через EditStore, как и из редактора (см. editStoreProcessor).
+*/
+public final class BatchApply implements PriorityScheduler.Job<BatchApply.Progress> {
+
+	/**
+	* Операции с файлами; на устройстве — через EditStore (см. editStoreProcessor).
+	*/
+	public interface FileProcessor {
+		Map<String, Long> fileSizes(List<String> wavPaths) throws Exception;
+		/**
+		* Применяет цепочку к файлу номер index: результат появляется целиком или не появляется.
+		* Может быть вызван повторно для уже обработанного файла (сбой до отметки DONE).
+		*/
+		void process(String wavPath, int index, EffectChain chain, PriorityScheduler.Handle handle) throws Exception;
+	}
+
+	/**
+	* Ход пакета. Вызывается из рабочих потоков.
+	*/
+	public interface Listener {
+		void onFileStarted(String wavPath);
+		void onFileFinished(String wavPath, boolean success, long fileNanos, Progress progress);
+	}
+
+	/**
+	* Снимок прогресса.
+	*/
+	public static final class Progress {
+		public final int total;
+		public final int done;      // Включая завершенные до продолжения
+		public final int failed;
+		public final int workers;
+		public final long bytesProcessed;
+		public final long elapsedNanos;
+
+		Progress(int total, int done, int failed, int workers, long bytesProcessed, long elapsedNanos) {
+			this.total = total;
+			this.done = done;
+			this.failed = failed;
+			this.workers = workers;
+			this.bytesProcessed = bytesProcessed;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		public double getMegabytesPerSecond() {
+			return elapsedNanos == 0 ? 0 : bytesProcessed / 1e6 / (elapsedNanos / 1e9);
+		}
+
+		public double getFilesPerSecond() {
+			return elapsedNanos == 0 ? 0 : (done + failed) / (elapsedNanos / 1e9);
+		}
+	}
+
+	/**
+	* Обработка через EditStore: каждый файл — новая версия в его истории, рендер из
+	* сохраненного оригинала (файл с прежней правкой не получает цепочку поверх нее),
+	* а оригинал остается доступен для отката из редактора.
+	*/
+	public static FileProcessor editStoreProcessor(EditStore store) {
+		return new FileProcessor() {
+			@Override
+			public Map<String, Long> fileSizes(List<String> wavPaths) throws Exception {
+				StringBuilder command = new StringBuilder("stat -c '%s %Y %n'");
+				for (String path : wavPaths) command.append(' ').append(ShellLauncher.quote(path));
+				// Несуществующие файлы просто не попадут в листинг: их ошибка всплывет при рендере
+				RootShell.Result result = RootShell.getInstance().run(command.toString());
+				Map<String, Long> sizes = new HashMap<>();
+				for (ProjectIndex.FileStat stat : ProjectIndex.parseStatListing(result.stdout)) sizes.put(stat.path, stat.size);
+				return sizes;
+			}
+
+			@Override
+			public void process(String wavPath, int index, EffectChain chain, PriorityScheduler.Handle handle) throws Exception {
+				// Продолжение после сбоя между записью файла и отметкой в журнале: версия уже в истории
+				if (store.isCurrent(wavPath, chain)) return;
+				store.apply(wavPath, chain, handle);
+			}
+		};
+	}
+
+	// Доля свободной кучи, которую пакет может занять одновременными рендерами
+	private static final double HEAP_BUDGET = 0.5;
+
+	private final BatchJournal journal;
+	private final FileProcessor processor;
+	private final Executor helperExecutor;
+	private final int maxWorkers;
+	private final Listener listener;
+
+	private long startNanos;
+	private int workers;
+	private int doneCount;
+	private int failedCount;
+	private long bytesProcessed;
+	private Map<String, Long> sizes;
+
+	/**
+	* @param helperExecutor пул для дополнительных рабочих (первый работает в потоке задачи).
+	*/
+	public BatchApply(BatchJournal journal, FileProcessor processor,
+	Executor helperExecutor, int maxWorkers, Listener listener) {
+		this.journal = journal;
+		this.processor = processor;
+		this.helperExecutor = helperExecutor;
+		this.maxWorkers = maxWorkers;
+		this.listener = listener;
+	}
+
+	/**
+	* Сколько файлов рендерить одновременно: не больше ядер и столько, чтобы
+	* рендер самого большого файла в каждом рабочем уместился в половину свободной кучи
+	* (длинные сигналы держатся вне кучи, см. RenderPlanner).
+	*/
+	public static int workerCount(int cores, long freeHeapBytes, long largestFileBytes) {
+		long perWorker = Math.max(1, WavRenderer.estimateRenderMemory(largestFileBytes));
+		long byMemory = (long) (freeHeapBytes * HEAP_BUDGET) / perWorker;
+		return (int) Math.max(1, Math.min(cores, byMemory));
+	}
+
+	@Override
+	public Progress run(PriorityScheduler.Handle handle) throws Exception {
+		startNanos = System.nanoTime();
+		List<String> files = journal.getFiles();
+
+		ConcurrentLinkedQueue<Integer> work = new ConcurrentLinkedQueue<>();
+		for (int i = 0; i < files.size(); i++) {
+			if (!journal.isDone(i)) work.add(i);
+		}
+		synchronized (this) {
+			doneCount = files.size() - work.size();
+		}
+
+		sizes = processor.fileSizes(files);
+		long largest = 0;
+		for (int i : work) largest = Math.max(largest, sizeOf(files.get(i)));
+		Runtime runtime = Runtime.getRuntime();
+		long freeHeap = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+		workers = Math.min(Math.max(1, work.size()), workerCount(maxWorkers, freeHeap, largest));
+
+		// Та же схема, что и при сканировании: задача сама работает и ждет только взятые помощниками файлы
+		CountDownLatch remaining = new CountDownLatch(work.size());
+		for (int i = 1; i < workers; i++) {
+			helperExecutor.execute(() -> drain(work, remaining, handle));
+		}
+		drain(work, remaining, handle);
+		remaining.await();
+
+		journal.close();
+		handle.throwIfCancelled();
+		if (journal.isComplete()) {
+			journal.delete();
+		}
+		return snapshot();
+	}
+
+	private void drain(ConcurrentLinkedQueue<Integer> work, CountDownLatch remaining, PriorityScheduler.Handle handle) {
+		Integer index;
+		while ((index = work.poll()) != null) {
+			try {
+				// После отмены очередь вычерпывается без обработки: файлы остаются в журнале
+				if (!handle.isCancelled()) processFile(index, handle);
+				} finally {
+				remaining.countDown();
+			}
+		}
+	}
+
+	private void processFile(int index, PriorityScheduler.Handle handle) {
+		String wavPath = journal.getFiles().get(index);
+		long fileStart = System.nanoTime();
+		if (listener != null) listener.onFileStarted(wavPath);
+
+		boolean success = false;
+		try {
+			processor.process(wavPath, index, journal.getChain(), handle);
+			journal.markDone(index);
+			success = true;
+			} catch (CancellationException e) {
+			// Отмена — не ошибка: файл будет обработан при продолжении
+			return;
+			} catch (Exception e) {
+			try {
+				journal.markFailed(index);
+				} catch (IOException ignored) { /* Файл и так будет повторен */ }
+		}
+
+		Progress progress;
+		synchronized (this) {
+			if (success) {
+				doneCount++;
+				bytesProcessed += sizeOf(wavPath);
+				} else {
+				failedCount++;
+			}
+			progress = snapshot();
+		}
+		if (listener != null) listener.onFileFinished(wavPath, success, System.nanoTime() - fileStart, progress);
+	}
+
+	private long sizeOf(String wavPath) {
+		Long size = sizes.get(wavPath);
+		return size == null ? 0 : size;
+	}
+
+	private synchronized Progress snapshot() {
+		return new Progress(journal.getFiles().size(), doneCount, failedCount, workers,
+		bytesProcessed, System.nanoTime() - startNanos);
+	}
+}
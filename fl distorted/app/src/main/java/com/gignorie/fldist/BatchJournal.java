@@ -0,0 +1,169 @@
+package com.gignorie.fldist;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+* Журнал пакетной обработки: цепочка, список файлов и состояние каждого файла.
+* Текстовый файл только с дописыванием, каждая запись сбрасывается на диск (fsync),
+* поэтому после обрыва пакет продолжается с того же места.
+*
+* Формат:
+*   FLDIST-BATCH 1
+*   CHAIN порядок;параметры;микс
+*   FILE путь             (по строке на файл, номер = порядок строк)
+*   DONE номер            (файл обработан)
+*   FAIL номер            (ошибка; при продолжении файл пробуется снова)
+*/
+public final class BatchJournal {
+
+	private static final String HEADER = "FLDIST-BATCH 1";
+
+	private final File file;
+	private final EffectChain chain;
+	private final List<String> files;
+	private final BitSet done = new BitSet();
+	private final BitSet failed = new BitSet();
+	private FileOutputStream appendStream;
+	private Writer appendWriter;
+
+	private BatchJournal(File file, EffectChain chain, List<String> files) {
+		this.file = file;
+		this.chain = chain;
+		this.files = Collections.unmodifiableList(new ArrayList<>(files));
+	}
+
+	/**
+	* Создает новый журнал, заменяя старый.
+	*/
+	public static BatchJournal create(File file, EffectChain chain, List<String> wavPaths) throws IOException {
+		BatchJournal journal = new BatchJournal(file, chain, wavPaths);
+		File tmp = new File(file.getPath() + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(tmp)) {
+			Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+			writer.write(HEADER + "\n");
+			writer.write("CHAIN " + chain.toSignature() + "\n");
+			for (String path : wavPaths) writer.write("FILE " + path + "\n");
+			writer.flush();
+			out.getFD().sync();
+		}
+		if (!tmp.renameTo(file)) throw new IOException("Could not create batch journal " + file);
+		return journal;
+	}
+
+	/**
+	* Читает журнал. Возвращает null, если журнала нет или он не распознан.
+	* Оборванная последняя строка (сбой во время записи) игнорируется.
+	*/
+	public static BatchJournal load(File file) throws IOException {
+		if (!file.exists()) return null;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			if (!HEADER.equals(reader.readLine())) return null;
+			String chainLine = reader.readLine();
+			if (chainLine == null || !chainLine.startsWith("CHAIN ")) return null;
+			EffectChain chain;
+			try {
+				chain = EffectChain.fromSignature(chainLine.substring("CHAIN ".length()));
+				} catch (IllegalArgumentException e) {
+				return null;
+			}
+
+			List<String> files = new ArrayList<>();
+			List<String> statusLines = new ArrayList<>();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("FILE ")) files.add(line.substring("FILE ".length()));
+				else statusLines.add(line);
+			}
+
+			BatchJournal journal = new BatchJournal(file, chain, files);
+			for (String status : statusLines) journal.applyStatus(status);
+			return journal;
+		}
+	}
+
+	private void applyStatus(String line) {
+		int space = line.indexOf(' ');
+		if (space < 0) return;
+		int index;
+		try {
+			index = Integer.parseInt(line.substring(space + 1));
+			} catch (NumberFormatException e) {
+			return;
+		}
+		if (index < 0 || index >= files.size()) return;
+		switch (line.substring(0, space)) {
+			case "DONE": done.set(index); failed.clear(index); break;
+			case "FAIL": failed.set(index); break;
+		}
+	}
+
+	public EffectChain getChain() {
+		return chain;
+	}
+
+	public List<String> getFiles() {
+		return files;
+	}
+
+	public synchronized boolean isDone(int index) {
+		return done.get(index);
+	}
+
+	public synchronized int getDoneCount() {
+		return done.cardinality();
+	}
+
+	public synchronized boolean isComplete() {
+		return done.cardinality() == files.size();
+	}
+
+	public synchronized void markDone(int index) throws IOException {
+		append("DONE " + index);
+		done.set(index);
+		failed.clear(index);
+	}
+
+	public synchronized void markFailed(int index) throws IOException {
+		append("FAIL " + index);
+		failed.set(index);
+	}
+
+	private void append(String line) throws IOException {
+		if (appendWriter == null) {
+			appendStream = new FileOutputStream(file, true);
+			appendWriter = new OutputStreamWriter(appendStream, StandardCharsets.UTF_8);
+		}
+		appendWriter.write(line + "\n");
+		appendWriter.flush();
+		appendStream.getFD().sync();
+	}
+
+	public synchronized void close() {
+		if (appendWriter == null) return;
+		try {
+			appendWriter.close();
+			} catch (IOException e) { /* Ignored */ }
+		appendWriter = null;
+		appendStream = null;
+	}
+
+	/**
+	* Закрывает и удаляет журнал (пакет завершен или отброшен).
+	*/
+	public synchronized void delete() {
+		close();
+		file.delete();
+	}
+}
@@ -0,0 +1,187 @@
+package com.gignorie.fldist;
+
+import java.io.Closeable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+* Пул массивов double для рендера: блоки, сухие и рабочие буферы шагов, короткие сигналы.
+* Размеры округляются вверх до степени двойки (класса), массивы класса переиспользуются,
+* поэтому повторные предпросмотры после прогрева почти не выделяют память.
+*
+* Массив выдается арендой (Lease) и возвращается в close(); содержимое выданного массива
+* не определено, длина может быть больше запрошенной. Пул держит не больше maxPooledBytes,
+* лишнее отдается сборщику; trim() освобождает все (нехватка памяти у системы).
+*
+* В отладке можно включить поиск утечек: аренда, собранная сборщиком без close(),
+* пишется в лог вместе со стеком места, где ее взяли.
+*/
+public final class BufferPool {
+
+	// Классы 2^10 .. 2^21 отсчетов (8 КБ .. 16 МБ); длиннее — без пула
+	static final int MIN_CLASS_SHIFT = 10;
+	static final int MAX_CLASS_SHIFT = 21;
+
+	// Пул без хранения: каждая аренда — новый массив (тесты, бенчмарки, разовые вызовы)
+	public static final BufferPool NONE = new BufferPool(0);
+
+	private static final Logger LOG = Logger.getLogger("BufferPool");
+
+	private final long maxPooledBytes;
+	// Свободные массивы по классам размеров, от 2^MIN_CLASS_SHIFT
+	private final List<ArrayDeque<double[]>> free;
+	private long pooledBytes;
+	private long hits;
+	private long misses;
+	private long allocatedBytes;
+	private int outstanding;
+
+	private volatile boolean leakDetection = Boolean.getBoolean("fldist.bufferLeakDetection");
+	private final ReferenceQueue<Lease> leakQueue = new ReferenceQueue<>();
+	private final Set<LeakRef> tracked = Collections.newSetFromMap(new IdentityHashMap<>());
+	private long leaks;
+
+	public BufferPool(long maxPooledBytes) {
+		this.maxPooledBytes = maxPooledBytes;
+		free = new ArrayList<>(MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1);
+		for (int shift = MIN_CLASS_SHIFT; shift <= MAX_CLASS_SHIFT; shift++) free.add(new ArrayDeque<>());
+	}
+
+	/**
+	* Включает учет аренд со стеком вызова (дорого: только для отладочных сборок).
+	*/
+	public void setLeakDetection(boolean enabled) {
+		leakDetection = enabled;
+	}
+
+	/**
+	* Массив не короче length.
+	*/
+	public Lease lease(int length) {
+		int shift = classShift(length);
+		double[] array = null;
+		synchronized (this) {
+			pollLeaks();
+			if (shift <= MAX_CLASS_SHIFT) array = free.get(shift - MIN_CLASS_SHIFT).pollLast();
+			if (array != null) {
+				pooledBytes -= array.length * 8L;
+				hits++;
+				outstanding++;
+			}
+		}
+		if (array == null) {
+			// Вне блокировки; OutOfMemoryError уходит вызывающему, счетчики не тронуты
+			array = new double[shift <= MAX_CLASS_SHIFT ? 1 << shift : length];
+			synchronized (this) {
+				misses++;
+				allocatedBytes += array.length * 8L;
+				outstanding++;
+			}
+		}
+		Lease lease = new Lease(array);
+		if (leakDetection) lease.leak = track(lease, array.length);
+		return lease;
+	}
+
+	/**
+	* Отдает сборщику все хранимые массивы.
+	*/
+	public synchronized void trim() {
+		for (ArrayDeque<double[]> arrays : free) arrays.clear();
+		pooledBytes = 0;
+	}
+
+	public synchronized int getOutstanding() {
+		return outstanding;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(Locale.US, "buffers: %d hits, %d misses, %.1f MB allocated, %.1f MB pooled, %d leased, %d leaked",
+		hits, misses, allocatedBytes / 1e6, pooledBytes / 1e6, outstanding, leaks);
+	}
+
+	private void release(double[] array, LeakRef leak) {
+		synchronized (this) {
+			outstanding--;
+			if (leak != null) {
+				tracked.remove(leak);
+				leak.clear();
+			}
+			int shift = classShift(array.length);
+			if (shift > MAX_CLASS_SHIFT || (1 << shift) != array.length) return;
+			if (pooledBytes + array.length * 8L > maxPooledBytes) return;
+			free.get(shift - MIN_CLASS_SHIFT).addLast(array);
+			pooledBytes += array.length * 8L;
+		}
+	}
+
+	private static int classShift(int length) {
+		return Math.max(MIN_CLASS_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(length, 1) - 1));
+	}
+
+	private synchronized LeakRef track(Lease lease, int length) {
+		LeakRef leak = new LeakRef(lease, leakQueue, length);
+		tracked.add(leak);
+		return leak;
+	}
+
+	/**
+	* Аренды, собранные без close(): массив уже потерян, остается сообщить, где его взяли.
+	*/
+	private void pollLeaks() {
+		Reference<? extends Lease> reference;
+		while ((reference = leakQueue.poll()) != null) {
+			LeakRef leak = (LeakRef) reference;
+			if (!tracked.remove(leak)) continue;
+			outstanding--;
+			leaks++;
+			LOG.log(Level.WARNING, "Buffer of " + leak.length + " samples was never released; leased at:", leak.origin);
+		}
+	}
+
+	private static final class LeakRef extends WeakReference<Lease> {
+		final int length;
+		final Throwable origin = new Throwable("Buffer lease");
+
+		LeakRef(Lease lease, ReferenceQueue<Lease> queue, int length) {
+			super(lease, queue);
+			this.length = length;
+		}
+	}
+
+	/**
+	* Аренда одного массива. Повторный close() ничего не делает.
+	*/
+	public final class Lease implements Closeable {
+		private double[] array;
+		private LeakRef leak;
+
+		private Lease(double[] array) {
+			this.array = array;
+		}
+
+		public double[] array() {
+			if (array == null) throw new IllegalStateException("Buffer lease already released");
+			return array;
+		}
+
+		@Override
+		public void close() {
+			if (array == null) return;
+			double[] released = array;
+			array = null;
+			release(released, leak);
+		}
+	}
+}
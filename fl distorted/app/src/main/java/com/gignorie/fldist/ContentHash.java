@@ -0,0 +1,170 @@
+package com.gignorie.fldist;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+* Хеш звука WAV-файла: формат (каналы, разрядность, частота) плюс байты чанка data.
+* Прочие чанки (LIST, метки FLM) не учитываются, поэтому одинаковые записи
+* с разными метаданными дают один хеш и один рендер.
+*
+* Два способа посчитать одно и то же значение:
+* ofFile — по отображенному в память файлу, если он доступен приложению напрямую;
+* HashingInputStream — попутно с декодированием из root-канала, без второго чтения.
+*/
+public final class ContentHash {
+
+	// Окно отображения: не держим весь файл в адресном пространстве сразу
+	private static final long MAP_WINDOW = 64L * 1024 * 1024;
+
+	private static final int RIFF_CHUNK_ID = 0x46464952;
+	private static final int RIFF_TYPE_ID = 0x45564157;
+	private static final int FMT_CHUNK_ID = 0x20746D66;
+	private static final int DATA_CHUNK_ID = 0x61746164;
+
+	private ContentHash() { }
+
+	/**
+	* Хеш файла, читаемого напрямую: заголовок разбирается позиционным чтением,
+	* чанк data хешируется из отображенной памяти окнами по MAP_WINDOW.
+	*/
+	public static long ofFile(File file) throws IOException, WavFileException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long fileSize = channel.size();
+			ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+			readAt(channel, header, 0, 12);
+			if (header.getInt(0) != RIFF_CHUNK_ID) throw new WavFileException("Invalid Wav Header data, incorrect riff chunk ID");
+			if (header.getInt(8) != RIFF_TYPE_ID) throw new WavFileException("Invalid Wav Header data, incorrect riff type ID");
+
+			long position = 12;
+			int numChannels = 0;
+			int validBits = 0;
+			int blockAlign = 0;
+			long sampleRate = 0;
+			boolean foundFormat = false;
+			while (position + 8 <= fileSize) {
+				readAt(channel, header, position, 8);
+				int chunkId = header.getInt(0);
+				long chunkSize = header.getInt(4) & 0xFFFFFFFFL;
+				long chunkStart = position + 8;
+
+				if (chunkId == FMT_CHUNK_ID) {
+					readAt(channel, header, chunkStart, 16);
+					if ((header.getShort(0) & 0xFFFF) != 1) throw new WavFileException("Compression Code " + (header.getShort(0) & 0xFFFF) + " not supported");
+					numChannels = header.getShort(2) & 0xFFFF;
+					sampleRate = header.getInt(4) & 0xFFFFFFFFL;
+					blockAlign = header.getShort(12) & 0xFFFF;
+					validBits = header.getShort(14) & 0xFFFF;
+					if (blockAlign == 0) throw new WavFileException("Block Align specified in header is equal to zero");
+					foundFormat = true;
+					} else if (chunkId == DATA_CHUNK_ID) {
+					if (!foundFormat) throw new WavFileException("Data chunk found before Format chunk");
+					if (chunkSize % blockAlign != 0) throw new WavFileException("Data Chunk size is not multiple of Block Align");
+					if (chunkStart + chunkSize > fileSize) throw new WavFileException("Data chunk is truncated");
+
+					XxHash64 hash = newDataHash(numChannels, validBits, sampleRate);
+					for (long offset = 0; offset < chunkSize; offset += MAP_WINDOW) {
+						long length = Math.min(MAP_WINDOW, chunkSize - offset);
+						hash.update(channel.map(FileChannel.MapMode.READ_ONLY, chunkStart + offset, length));
+					}
+					return hash.digest();
+				}
+				position = chunkStart + chunkSize + (chunkSize % 2);
+			}
+			throw new WavFileException("Did not find a data chunk");
+		}
+	}
+
+	private static void readAt(FileChannel channel, ByteBuffer buffer, long position, int length) throws IOException, WavFileException {
+		buffer.clear().limit(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) throw new WavFileException("Unexpected end of file");
+		}
+	}
+
+	/**
+	* Хеш, уже получивший формат: остается подать байты чанка data.
+	*/
+	static XxHash64 newDataHash(int numChannels, int validBits, long sampleRate) {
+		XxHash64 hash = new XxHash64();
+		ByteBuffer format = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+		format.putInt(numChannels).putInt(validBits).putLong(sampleRate);
+		hash.update(format.array(), 0, 16);
+		return hash;
+	}
+
+	public static String toHex(long hash) {
+		String hex = Long.toHexString(hash);
+		return "0000000000000000".substring(hex.length()) + hex;
+	}
+
+	/**
+	* Поток, хеширующий чанк data по мере чтения. WavFile.openWavFile читает ровно
+	* до начала данных, после чего вызывается begin(); дальше readFrames() сам
+	* прогоняет через хеш все байты звука.
+	*/
+	public static final class HashingInputStream extends FilterInputStream {
+		private XxHash64 hash;
+		private long remaining;
+
+		public HashingInputStream(InputStream in) {
+			super(in);
+		}
+
+		/**
+		* Начинает хеширование с текущей позиции: WavFile только что открыт.
+		*/
+		public void begin(WavFile wav) {
+			hash = newDataHash(wav.getNumChannels(), wav.getValidBits(), wav.getSampleRate());
+			long bytesPerFrame = (long) ((wav.getValidBits() + 7) / 8) * wav.getNumChannels();
+			remaining = wav.getNumFrames() * bytesPerFrame;
+		}
+
+		/**
+		* Хеш после того, как прочитаны все кадры.
+		* @throws IOException если чанк data прочитан не целиком.
+		*/
+		public long digest() throws IOException {
+			if (hash == null) throw new IOException("Hashing was not started");
+			if (remaining > 0) throw new IOException("Data chunk was not read completely: " + remaining + " bytes left");
+			return hash.digest();
+		}
+
+		@Override
+		public int read() throws IOException {
+			int value = in.read();
+			if (value >= 0 && hash != null && remaining > 0) {
+				hash.update(new byte[] { (byte) value }, 0, 1);
+				remaining--;
+			}
+			return value;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = in.read(b, off, len);
+			if (read > 0 && hash != null && remaining > 0) {
+				// Буфер WavFile может захватить и чанки после data — они в хеш не идут
+				int hashed = (int) Math.min(read, remaining);
+				hash.update(b, off, hashed);
+				remaining -= hashed;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			if (hash == null || remaining == 0) return in.skip(n);
+			// Пропуск внутри данных все равно должен попасть в хеш
+			byte[] chunk = new byte[(int) Math.min(n, 8192)];
+			int read = read(chunk, 0, chunk.length);
+			return Math.max(read, 0);
+		}
+	}
+}
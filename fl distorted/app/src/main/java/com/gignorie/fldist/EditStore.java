@@ -0,0 +1,372 @@
+package com.gignorie.fldist;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+* Недеструктивное редактирование записей. Оригинал копируется в хранилище
+* приложения один раз, перед первым применением; каждое применение сохраняется
+* как рецепт (версия + подпись цепочки: порядок, параметры, микс). Файл по
+* исходному пути — всегда рендер одного рецепта из сохраненного оригинала, поэтому
+* эффекты не накладываются друг на друга, а откат — это копирование оригинала
+* без всякого рендера. Рендеры идут через RenderCache: повторное применение
+* уже встречавшегося рецепта — просто копия из кеша.
+*
+* Если запись изменили снаружи (FLM перезаписал ее), история сбрасывается
+* и оригиналом становится новое содержимое.
+*
+* Оригинал хранится сжатым без потерь (LosslessCodec), откат восстанавливает его
+* побайтно. Рендер читает его прямо из распаковки, если рецепта нет в кеше.
+*
+* Файлы в каталоге хранилища, на запись по id (хеш пути):
+*   id.fldc   сохраненный оригинал
+*   id.edits  текстовая история:
+*     FLDIST-EDITS 1
+*     PATH путь
+*     STAT размер mtime     (состояние файла после нашей последней записи)
+*     CURRENT версия        (0 — оригинал)
+*     PENDING версия        (запись этой версии начата; снимается после нее)
+*     EDIT версия время подпись
+*/
+public final class EditStore {
+
+	public static final String DIR_NAME = "edits";
+
+	private static final String HEADER = "FLDIST-EDITS 1";
+	private static final String RECORD_SUFFIX = ".edits";
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	* Один рецепт из истории.
+	*/
+	public static final class Edit {
+		public final int version;
+		public final long timeMillis;
+		public final EffectChain chain;
+
+		Edit(int version, long timeMillis, EffectChain chain) {
+			this.version = version;
+			this.timeMillis = timeMillis;
+			this.chain = chain;
+		}
+	}
+
+	/**
+	* История одной записи.
+	*/
+	public static final class Record {
+		public final String wavPath;
+		private long size;
+		private long mtime;
+		private int current;
+		// Версия, запись которой начата и еще не подтверждена; -1 — нет
+		private int pending = -1;
+		private final List<Edit> edits = new ArrayList<>();
+
+		Record(String wavPath) {
+			this.wavPath = wavPath;
+		}
+
+		public List<Edit> getEdits() {
+			return Collections.unmodifiableList(edits);
+		}
+
+		/** Версия, которая сейчас лежит по пути записи; 0 — оригинал. */
+		public int getCurrentVersion() {
+			return current;
+		}
+
+		public Edit getEdit(int version) {
+			for (Edit edit : edits) {
+				if (edit.version == version) return edit;
+			}
+			return null;
+		}
+
+		int nextVersion() {
+			return edits.isEmpty() ? 1 : edits.get(edits.size() - 1).version + 1;
+		}
+	}
+
+	private final File dir;
+	private final SafeOverwrite overwrite;
+	private final RenderCache cache;
+	private final ShellLauncher launcher;
+	private final RootShell shell;
+	private final Executor codecHelpers;
+	private final int codecParallelism;
+
+	public EditStore(File dir, SafeOverwrite overwrite, RenderCache cache, ShellLauncher launcher, RootShell shell,
+	Executor codecHelpers, int codecParallelism) {
+		this.dir = dir;
+		this.overwrite = overwrite;
+		this.cache = cache;
+		this.launcher = launcher;
+		this.shell = shell;
+		this.codecHelpers = codecHelpers;
+		this.codecParallelism = codecParallelism;
+	}
+
+	/**
+	* Хранилище на root; сжатие и распаковка оригиналов — на пуле пакетной обработки.
+	*/
+	public static EditStore withRoot(File dir, File overwriteJournalDir, RenderCache cache) {
+		PriorityScheduler scheduler = PriorityScheduler.getInstance();
+		return new EditStore(dir, SafeOverwrite.withRoot(overwriteJournalDir), cache,
+		ShellLauncher.SU, RootShell.getInstance(),
+		scheduler.executor(PriorityScheduler.Priority.BATCH),
+		scheduler.getParallelism(PriorityScheduler.Priority.BATCH));
+	}
+
+	/**
+	* История записи или null, если ее еще не редактировали через хранилище.
+	* Не проверяет, менялся ли файл снаружи (это делают apply/restore).
+	*/
+	public synchronized Record getRecord(String wavPath) throws IOException {
+		return loadRecord(wavPath);
+	}
+
+	/**
+	* Рендерит новую цепочку из оригинала в путь записи и добавляет ее в историю.
+	* Возвращает номер новой версии.
+	*/
+	public int apply(String wavPath, EffectChain chain, PriorityScheduler.Handle handle) throws Exception {
+		Record record = prepare(wavPath);
+		Edit edit;
+		synchronized (this) {
+			edit = new Edit(record.nextVersion(), System.currentTimeMillis(), chain);
+			record.edits.add(edit);
+			begin(record, edit.version);
+		}
+		try {
+			renderVersion(record, chain, handle);
+			} catch (Exception e) {
+			// SafeOverwrite не тронул файл: рецепт, который так и не лег на диск, не нужен
+			synchronized (this) {
+				record.edits.remove(edit);
+				rollback(record);
+			}
+			throw e;
+		}
+		synchronized (this) {
+			finish(record, edit.version);
+		}
+		return edit.version;
+	}
+
+	/**
+	* true, если запись не меняли снаружи и ее текущая версия — рендер chain.
+	*/
+	public boolean isCurrent(String wavPath, EffectChain chain) throws Exception {
+		ProjectIndex.FileStat stat = statFile(wavPath);
+		synchronized (this) {
+			Record record = loadRecord(wavPath);
+			if (record == null || record.pending >= 0 || record.size != stat.size || record.mtime != stat.mtime) return false;
+			Edit edit = record.getEdit(record.current);
+			return edit != null && edit.chain.toSignature().equals(chain.toSignature());
+		}
+	}
+
+	/**
+	* Возвращает запись к версии из истории: 0 — копия оригинала, иначе рендер рецепта.
+	*/
+	public void restore(String wavPath, int version, PriorityScheduler.Handle handle) throws Exception {
+		Record record = prepare(wavPath);
+		Edit edit = version == 0 ? null : record.getEdit(version);
+		if (version != 0 && edit == null) throw new IllegalArgumentException("No version " + version + " for " + wavPath);
+		synchronized (this) {
+			begin(record, version);
+		}
+		try {
+			if (edit == null) {
+				// Побайтная распаковка прямо в временный файл рядом с записью
+				overwrite.overwrite(wavPath, out -> {
+					try (InputStream in = new BufferedInputStream(new FileInputStream(originalFile(wavPath)));
+					OutputStream target = new BufferedOutputStream(out)) {
+						LosslessCodec.decode(in, target, codecHelpers, codecParallelism);
+					}
+				});
+				} else {
+				renderVersion(record, edit.chain, handle);
+			}
+			} catch (Exception e) {
+			synchronized (this) {
+				rollback(record);
+			}
+			throw e;
+		}
+		synchronized (this) {
+			finish(record, version);
+		}
+	}
+
+	/**
+	* Забывает оригинал и историю: текущее содержимое записи становится окончательным.
+	*/
+	public synchronized void forget(String wavPath) {
+		recordFile(wavPath).delete();
+		originalFile(wavPath).delete();
+	}
+
+	private void renderVersion(Record record, EffectChain chain, PriorityScheduler.Handle handle) throws Exception {
+		File original = originalFile(record.wavPath);
+		// Хеш звука записан в конце сжатого оригинала: попадание в кеш без распаковки,
+		// а при промахе оригинал распаковывается прямо в рендер, без временного WAV
+		long contentHash = LosslessCodec.readContentHash(original);
+		overwrite.overwrite(record.wavPath, out -> WavRenderer.renderToStream(
+		LosslessCodec.openDecoded(new BufferedInputStream(new FileInputStream(original), COPY_BUFFER_SIZE), codecHelpers, codecParallelism),
+		contentHash, new File(record.wavPath).getName(), out, chain, handle, cache));
+	}
+
+	/**
+	* Загружает историю и проверяет, что файл не менялся снаружи с нашей последней
+	* записи. Если менялся или истории нет — сохраняет текущее содержимое как оригинал.
+	* Исключение — начатая нами запись (PENDING): после сбоя файл отличается из-за нас,
+	* и считать его оригиналом нельзя.
+	*/
+	private Record prepare(String wavPath) throws Exception {
+		ProjectIndex.FileStat stat = statFile(wavPath);
+		synchronized (this) {
+			Record record = loadRecord(wavPath);
+			File original = originalFile(wavPath);
+			boolean unchanged = record != null && record.size == stat.size && record.mtime == stat.mtime;
+			if (record != null && original.isFile() && (unchanged || record.pending >= 0)) {
+				return record;
+			}
+		}
+		// Копирование вне блокировки: это полное чтение файла через root
+		captureOriginal(wavPath);
+		synchronized (this) {
+			Record record = new Record(wavPath);
+			record.size = stat.size;
+			record.mtime = stat.mtime;
+			saveRecord(record);
+			return record;
+		}
+	}
+
+	private void begin(Record record, int version) throws IOException {
+		record.pending = version;
+		saveRecord(record);
+	}
+
+	private void rollback(Record record) {
+		record.pending = -1;
+		try {
+			saveRecord(record);
+			} catch (IOException ignored) { /* PENDING останется: оригинал все равно не потеряется */ }
+	}
+
+	private void finish(Record record, int version) throws Exception {
+		ProjectIndex.FileStat stat = statFile(record.wavPath);
+		record.size = stat.size;
+		record.mtime = stat.mtime;
+		record.current = version;
+		record.pending = -1;
+		saveRecord(record);
+	}
+
+	private void captureOriginal(String wavPath) throws IOException {
+		ensureDir();
+		File original = originalFile(wavPath);
+		File part = new File(original.getPath() + ".part");
+		try (InputStream in = new BufferedInputStream(RootFileStream.open(launcher, wavPath), COPY_BUFFER_SIZE);
+		FileOutputStream out = new FileOutputStream(part)) {
+			BufferedOutputStream buffered = new BufferedOutputStream(out, COPY_BUFFER_SIZE);
+			LosslessCodec.encode(in, buffered, codecHelpers, codecParallelism);
+			buffered.flush();
+			out.getFD().sync();
+			} catch (IOException e) {
+			part.delete();
+			throw e;
+		}
+		if (!part.renameTo(original)) {
+			part.delete();
+			throw new IOException("Could not store original of " + wavPath);
+		}
+	}
+
+	private ProjectIndex.FileStat statFile(String wavPath) throws IOException, InterruptedException {
+		return ProjectIndex.statFile(shell, wavPath);
+	}
+
+	private Record loadRecord(String wavPath) throws IOException {
+		File file = recordFile(wavPath);
+		if (!file.exists()) return null;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			if (!HEADER.equals(reader.readLine())) return null;
+			Record record = new Record(wavPath);
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split(" ", 4);
+				try {
+					if (parts[0].equals("STAT")) {
+						record.size = Long.parseLong(parts[1]);
+						record.mtime = Long.parseLong(parts[2]);
+						} else if (parts[0].equals("CURRENT")) {
+						record.current = Integer.parseInt(parts[1]);
+						} else if (parts[0].equals("PENDING")) {
+						record.pending = Integer.parseInt(parts[1]);
+						} else if (parts[0].equals("EDIT")) {
+						record.edits.add(new Edit(Integer.parseInt(parts[1]), Long.parseLong(parts[2]),
+						EffectChain.fromSignature(parts[3])));
+					}
+					} catch (RuntimeException e) {
+					// Поврежденная строка: история без нее все равно полезна
+				}
+			}
+			return record;
+		}
+	}
+
+	private void saveRecord(Record record) throws IOException {
+		ensureDir();
+		File file = recordFile(record.wavPath);
+		File tmp = new File(file.getPath() + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(tmp)) {
+			Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+			writer.write(HEADER + "\n");
+			writer.write("PATH " + record.wavPath + "\n");
+			writer.write("STAT " + record.size + " " + record.mtime + "\n");
+			writer.write("CURRENT " + record.current + "\n");
+			if (record.pending >= 0) writer.write("PENDING " + record.pending + "\n");
+			for (Edit edit : record.edits) {
+				writer.write("EDIT " + edit.version + " " + edit.timeMillis + " " + edit.chain.toSignature() + "\n");
+			}
+			writer.flush();
+			out.getFD().sync();
+		}
+		if (!tmp.renameTo(file)) throw new IOException("Could not save edit history " + file);
+	}
+
+	private void ensureDir() throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Could not create edit store " + dir);
+	}
+
+	private File originalFile(String wavPath) {
+		return new File(dir, idOf(wavPath) + LosslessCodec.FILE_SUFFIX);
+	}
+
+	private File recordFile(String wavPath) {
+		return new File(dir, idOf(wavPath) + RECORD_SUFFIX);
+	}
+
+	private static String idOf(String wavPath) {
+		return ContentHash.toHex(XxHash64.hash(wavPath));
+	}
+}
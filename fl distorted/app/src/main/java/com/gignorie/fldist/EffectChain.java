@@ -0,0 +1,329 @@
+package com.gignorie.fldist;
+
+import java.io.Closeable;
+import java.nio.DoubleBuffer;
+
+/**
+* DSP-цепочка эффектов: порядок, параметры и микс, зафиксированные на момент создания.
+* Не зависит от Android, поэтому используется и предпросмотром, и перезаписью.
+*/
+public final class EffectChain {
+
+	// --- КОНСТАНТЫ ID ЭФФЕКТОВ (Индексы массивов) ---
+	public static final int FX_LPF_CUTOFF = 0;
+	public static final int FX_RING_MOD = 1;
+	public static final int FX_CLIP_DECAY = 2;
+	public static final int FX_REAL_BITCRUSH = 3;
+	public static final int FX_REAL_DRIVE = 4;
+	public static final int FX_REAL_SATURATION = 5;
+	public static final int NUM_EFFECTS = 6;
+
+	private final int[] effectOrder;
+	private final int[] paramLevels;
+	private final int[] mixLevels;
+
+	/**
+	* Создает снимок цепочки. Массивы копируются, поэтому дальнейшие
+	* изменения ползунков не влияют на уже запущенную обработку.
+	*/
+	public EffectChain(int[] effectOrder, int[] paramLevels, int[] mixLevels) {
+		this.effectOrder = effectOrder.clone();
+		this.paramLevels = paramLevels.clone();
+		this.mixLevels = mixLevels.clone();
+	}
+
+	/**
+	* Компактная запись цепочки "порядок;параметры;микс" (списки через запятую,
+	* тот же формат, что и у пресета). Одинаковые цепочки дают одинаковую строку.
+	*/
+	public String toSignature() {
+		return join(effectOrder) + ";" + join(paramLevels) + ";" + join(mixLevels);
+	}
+
+	/**
+	* Восстанавливает цепочку из toSignature().
+	* @throws IllegalArgumentException если строка повреждена.
+	*/
+	public static EffectChain fromSignature(String signature) {
+		String[] parts = signature.split(";", -1);
+		if (parts.length != 3) throw new IllegalArgumentException("Bad chain signature: " + signature);
+		return new EffectChain(split(parts[0]), split(parts[1]), split(parts[2]));
+	}
+
+	private static String join(int[] values) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) sb.append(',');
+			sb.append(values[i]);
+		}
+		return sb.toString();
+	}
+
+	private static int[] split(String list) {
+		String[] items = list.split(",");
+		if (items.length != NUM_EFFECTS) throw new IllegalArgumentException("Bad chain list: " + list);
+		int[] values = new int[items.length];
+		for (int i = 0; i < items.length; i++) values[i] = Integer.parseInt(items[i].trim());
+		return values;
+	}
+
+	public int getStageCount() {
+		return effectOrder.length;
+	}
+
+	public int getEffectId(int stage) {
+		return effectOrder[stage];
+	}
+
+	/**
+	* Все эффекты причинные: выход в точке i зависит только от входа до i включительно,
+	* состояния (фильтр, фаза модулятора) и позиции в сигнале. Поэтому сигнал можно
+	* обрабатывать блоками подряд — результат совпадает с обработкой целиком.
+	* Эффект, которому нужен весь сигнал сразу, должен вернуть здесь false.
+	*/
+	public boolean isStreamable() {
+		return true;
+	}
+
+	/**
+	* Применяет всю цепочку к буферу.
+	*/
+	public void process(double[] buffer, long sampleRate) {
+		try (BlockProcessor processor = newBlockProcessor(buffer.length, sampleRate)) {
+			processor.process(buffer, 0, buffer.length);
+		}
+	}
+
+	/**
+	* Применяет один шаг цепочки (позволяет проверять отмену между эффектами).
+	*/
+	public void processStage(int stage, double[] buffer, long sampleRate) {
+		try (BlockProcessor processor = newBlockProcessor(buffer.length, sampleRate)) {
+			processor.processStage(stage, buffer, 0, buffer.length);
+		}
+	}
+
+	/**
+	* Обработчик одного сигнала длиной totalSamples (отсчеты всех каналов подряд, как в буфере WavFile).
+	*/
+	public BlockProcessor newBlockProcessor(long totalSamples, long sampleRate) {
+		return new BlockProcessor(totalSamples, sampleRate, BufferPool.NONE);
+	}
+
+	/**
+	* То же с рабочими буферами из пула; вернуть их — close() обработчика.
+	*/
+	public BlockProcessor newBlockProcessor(long totalSamples, long sampleRate, BufferPool pool) {
+		return new BlockProcessor(totalSamples, sampleRate, pool);
+	}
+
+	/**
+	* Обработка сигнала блоками. Каждый шаг цепочки хранит свою позицию и состояние,
+	* поэтому шаги можно вызывать и "блок за блоком через всю цепочку", и "шаг за шагом
+	* через весь буфер" — важно лишь, чтобы каждый шаг получал блоки по порядку.
+	* Вместо двух полных копий буфера на шаг используется один сухой буфер размером с блок.
+	*/
+	public final class BlockProcessor implements Closeable {
+		private final long totalSamples;
+		private final long sampleRate;
+		private final long[] positions = new long[effectOrder.length];
+		// Состояние шага между блоками: выход фильтра или фаза модулятора
+		private final double[] states = new double[effectOrder.length];
+		private final BufferPool pool;
+		private BufferPool.Lease dry;
+		// Рабочий блок в куче для буферов вне ее (SampleBuffer.direct/mapped)
+		private BufferPool.Lease scratch;
+
+		private BlockProcessor(long totalSamples, long sampleRate, BufferPool pool) {
+			this.totalSamples = totalSamples;
+			this.sampleRate = sampleRate;
+			this.pool = pool;
+		}
+
+		/**
+		* Возвращает рабочие буферы в пул.
+		*/
+		@Override
+		public void close() {
+			if (dry != null) dry.close();
+			if (scratch != null) scratch.close();
+			dry = null;
+			scratch = null;
+		}
+
+		/**
+		* Следующий блок через все шаги цепочки.
+		*/
+		public void process(double[] block, int offset, int length) {
+			for (int stage = 0; stage < effectOrder.length; stage++) {
+				processStage(stage, block, offset, length);
+			}
+		}
+
+		/**
+		* Следующий блок одного шага, на месте.
+		*/
+		public void processStage(int stage, double[] block, int offset, int length) {
+			int effectId = effectOrder[stage];
+			int mixLevel = mixLevels[effectId];
+			long position = positions[stage];
+			positions[stage] = position + length;
+			if (mixLevel <= 0) return;
+
+			boolean mixed = mixLevel < 100;
+			double[] dryBuffer = null;
+			if (mixed) {
+				dry = ensure(dry, length);
+				dryBuffer = dry.array();
+				System.arraycopy(block, offset, dryBuffer, 0, length);
+			}
+			states[stage] = applyEffect(effectId, paramLevels[effectId], block, offset, length,
+			position, states[stage]);
+			if (mixed) mixSignal(dryBuffer, block, offset, length, mixLevel);
+		}
+
+		/**
+		* То же для отсчетов [position, limit) буфера NIO; позиция не меняется.
+		* Буфер на массиве обрабатывается на месте, внекучевой — через рабочий блок в куче,
+		* чтобы ядра оставались простыми циклами по double[].
+		*/
+		public void process(DoubleBuffer block) {
+			if (block.hasArray()) {
+				process(block.array(), block.arrayOffset() + block.position(), block.remaining());
+				return;
+			}
+			int length = load(block);
+			process(scratch.array(), 0, length);
+			store(block, length);
+		}
+
+		public void processStage(int stage, DoubleBuffer block) {
+			if (block.hasArray()) {
+				processStage(stage, block.array(), block.arrayOffset() + block.position(), block.remaining());
+				return;
+			}
+			int length = load(block);
+			processStage(stage, scratch.array(), 0, length);
+			store(block, length);
+		}
+
+		private int load(DoubleBuffer block) {
+			int length = block.remaining();
+			scratch = ensure(scratch, length);
+			int position = block.position();
+			block.get(scratch.array(), 0, length);
+			block.position(position);
+			return length;
+		}
+
+		private void store(DoubleBuffer block, int length) {
+			int position = block.position();
+			block.put(scratch.array(), 0, length);
+			block.position(position);
+		}
+
+		private BufferPool.Lease ensure(BufferPool.Lease lease, int length) {
+			if (lease != null && lease.array().length >= length) return lease;
+			if (lease != null) lease.close();
+			return pool.lease(length);
+		}
+
+		/**
+		* Универсальный метод для применения одного DSP-эффекта к блоку
+		* [offset, offset + length), начинающемуся с отсчета position сигнала.
+		* Возвращает новое состояние шага.
+		*/
+		private double applyEffect(int effectId, int paramLevel, double[] wetBuffer, int offset, int length,
+		long position, double state) {
+			int end = offset + length;
+
+			// --- Логика DSP-эффектов ---
+			switch (effectId) {
+				case FX_LPF_CUTOFF:
+				// 1. Low-Pass Filter
+				double minCutoff = 100.0; double maxCutoff = 3000.0;
+				double cutoffFreq = minCutoff + (maxCutoff - minCutoff) * (paramLevel / 100.0);
+				double RC = 1.0 / (cutoffFreq * 2.0 * Math.PI);
+				double alpha = 1.0 / (RC * sampleRate + 1.0);
+				double lastOutput = state;
+				for (int i = offset; i < end; i++) {
+					lastOutput = alpha * wetBuffer[i] + (1.0 - alpha) * lastOutput;
+					wetBuffer[i] = lastOutput;
+				}
+				return lastOutput;
+
+				case FX_RING_MOD:
+				// 2. Ring Modulation
+				double minModFreq = 50.0; double maxModFreq = 500.0;
+				double modFreq = minModFreq + (maxModFreq - minModFreq) * (paramLevel / 100.0);
+				double modPhase = state;
+				double modIncrement = 2.0 * Math.PI * modFreq / sampleRate;
+				for (int i = offset; i < end; i++) {
+					wetBuffer[i] *= Math.sin(modPhase);
+					modPhase += modIncrement;
+					if (modPhase >= 2.0 * Math.PI) modPhase -= 2.0 * Math.PI;
+				}
+				return modPhase;
+
+				case FX_CLIP_DECAY:
+				// 3. Hard Clipping и Envelope (огибающая — по позиции во всем сигнале)
+				double minHardDrive = 1.0; double maxHardDrive = 5.0;
+				double hardDrive = minHardDrive + (maxHardDrive - minHardDrive) * (paramLevel / 100.0);
+				double threshold = 1.0 / hardDrive;
+				double attackTime = 0.05; double minDecayTime = 0.1; double maxDecayTime = 0.5;
+				double decayTime = maxDecayTime - (maxDecayTime - minDecayTime) * (paramLevel / 100.0);
+				int attackSamples = (int) (attackTime * sampleRate);
+				int decaySamples = (int) (decayTime * sampleRate);
+				long startDecay = Math.min(attackSamples, totalSamples / 4);
+				for (int i = offset; i < end; i++) {
+					double x = wetBuffer[i];
+					if (x > threshold) x = threshold; else if (x < -threshold) x = -threshold;
+					long n = position + (i - offset);
+					double env = 1.0;
+					if (n < attackSamples) env = (double) n / attackSamples;
+					else if (n < startDecay + decaySamples) env = 1.0 - (double) (n - startDecay) / decaySamples;
+					else env = 0.05;
+					if (env < 0) env = 0;
+					wetBuffer[i] = x * env;
+				}
+				return state;
+
+				case FX_REAL_DRIVE:
+				// 4. Real Drive (Усиление)
+				double overallDrive = 1.0 + paramLevel / 50.0;
+				for (int i = offset; i < end; i++) {
+					wetBuffer[i] *= overallDrive;
+				}
+				return state;
+
+				case FX_REAL_SATURATION:
+				// 5. Real Saturation (Soft Clipping через Tanh)
+				double satAmount = 1.0 + paramLevel / 20.0;
+				for (int i = offset; i < end; i++) {
+					wetBuffer[i] = Math.tanh(wetBuffer[i] * satAmount);
+				}
+				return state;
+
+				case FX_REAL_BITCRUSH:
+				// 6. Real Bitcrush (Квантование)
+				int effectiveBitDepth = Math.max(1, 16 - paramLevel / 6);
+				double maxQuantization = Math.pow(2, effectiveBitDepth) - 1;
+				for (int i = offset; i < end; i++) {
+					double normalizedSample = wetBuffer[i];
+					wetBuffer[i] = Math.round(normalizedSample * maxQuantization) / maxQuantization;
+				}
+				return state;
+			}
+			return state;
+		}
+	}
+
+	private static void mixSignal(double[] original, double[] processed, int offset, int length, int mixLevel) {
+		double wet = mixLevel / 100.0;
+		double dry = 1.0 - wet;
+
+		for (int i = 0; i < length; i++) {
+			processed[offset + i] = (processed[offset + i] * wet) + (original[i] * dry);
+		}
+	}
+}
@@ -7,24 +7,38 @@ import androidx.recyclerview.widget.ItemTouchHelper;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.os.AsyncTask;
+import android.content.pm.ApplicationInfo;
 import android.os.Bundle;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
+import android.view.View;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.SeekBar;
 import android.widget.TextView;
 import android.widget.Toast;
 import android.media.MediaPlayer;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.lang.ref.WeakReference;
+import java.text.DateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 // Предполагается, что класс WavFile доступен
@@ -36,13 +50,13 @@ public class EffectEditorActivity extends AppCompatActivity {
 	private String wavFilePath;
 	
 	// --- КОНСТАНТЫ ID ЭФФЕКТОВ (Индексы массивов) ---
-	public static final int FX_LPF_CUTOFF = 0;
-	public static final int FX_RING_MOD = 1;
-	public static final int FX_CLIP_DECAY = 2;
-	public static final int FX_REAL_BITCRUSH = 3;
-	public static final int FX_REAL_DRIVE = 4;
-	public static final int FX_REAL_SATURATION = 5;
-	public static final int NUM_EFFECTS = 6;
+	public static final int FX_LPF_CUTOFF = EffectChain.FX_LPF_CUTOFF;
+	public static final int FX_RING_MOD = EffectChain.FX_RING_MOD;
+	public static final int FX_CLIP_DECAY = EffectChain.FX_CLIP_DECAY;
+	public static final int FX_REAL_BITCRUSH = EffectChain.FX_REAL_BITCRUSH;
+	public static final int FX_REAL_DRIVE = EffectChain.FX_REAL_DRIVE;
+	public static final int FX_REAL_SATURATION = EffectChain.FX_REAL_SATURATION;
+	public static final int NUM_EFFECTS = EffectChain.NUM_EFFECTS;
 	
 	// --- ГЛОБАЛЬНЫЕ МАССИВЫ (Обновляются адаптером, считываются DSP) ---
 	public final int[] paramLevels = new int[NUM_EFFECTS];
@@ -58,6 +72,8 @@ public class EffectEditorActivity extends AppCompatActivity {
 	private Button previewButton;
 	private Button savePresetButton;
 	private Button applyEffectsButton;
+	private Button revertButton;
+	private TextView statsOverlay;
 	private RecyclerView recyclerView;
 	private EffectAdapter effectAdapter;
 	
@@ -66,13 +82,49 @@ public class EffectEditorActivity extends AppCompatActivity {
 	private boolean isPlaying = false;
 	private String tempAudioPath = null;
 	private PreviewTask currentPreviewTask;
+	// Громкость последнего предпросмотра и выравнивание по оригиналу
+	private CheckBox levelMatchCheckBox;
+	private TextView loudnessTextView;
+	// Огибающие исходника и последнего предпросмотра
+	private WaveformView waveformView;
+	private PriorityScheduler.Handle waveformHandle;
+	// Спектры предпросмотра следуют за позицией плеера
+	private static final long SPECTRUM_REFRESH_MS = 33;
+	private SpectrumView spectrumView;
 	private ApplyEffectsTask currentApplyTask;
 	
+	// Отладочный оверлей замеров рендера (долгое нажатие на имя файла)
+	private static final long STATS_REFRESH_MS = 1000;
+	private static final String STATS_DUMP_NAME = "render_stats.json";
+	private final Handler statsHandler = new Handler(Looper.getMainLooper());
+	private final Runnable statsRefresh = new Runnable() {
+		@Override
+		public void run() {
+			// Под таблицей — пул буферов: после прогрева промахов почти не прибавляется
+			statsOverlay.setText(RenderStats.get().formatTable() + "\n" + WavRenderer.getBufferPool());
+			statsHandler.postDelayed(this, STATS_REFRESH_MS);
+		}
+	};
+	private final Runnable spectrumRefresh = new Runnable() {
+		@Override
+		public void run() {
+			if (mediaPlayer == null || !isPlaying) return;
+			spectrumView.setTime(mediaPlayer.getCurrentPosition());
+			statsHandler.postDelayed(this, SPECTRUM_REFRESH_MS);
+		}
+	};
+	
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.activity_effect_editor);
 		
+		// План рендера: выгрузка в кеш приложения, экономные блоки на слабых устройствах
+		ActivityManager activityManager = getSystemService(ActivityManager.class);
+		RenderPlanner.configure(getCacheDir(), activityManager != null && activityManager.isLowRamDevice());
+		// Аренды буферов, не вернувшиеся в пул, — в лог (только в отладочной сборке)
+		WavRenderer.getBufferPool().setLeakDetection((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
+		
 		// Получаем полный путь
 		String fullWavPath = getIntent().getStringExtra("WAV_PATH");
 		
@@ -88,6 +140,12 @@ public class EffectEditorActivity extends AppCompatActivity {
 		previewButton = findViewById(R.id.button_preview);
 		savePresetButton = findViewById(R.id.button_save_settings);
 		applyEffectsButton = findViewById(R.id.button_apply_effects);
+		revertButton = findViewById(R.id.button_revert_history);
+		statsOverlay = findViewById(R.id.render_stats_overlay);
+		levelMatchCheckBox = findViewById(R.id.checkbox_level_match);
+		loudnessTextView = findViewById(R.id.loudness_text);
+		waveformView = findViewById(R.id.waveform_view);
+		spectrumView = findViewById(R.id.spectrum_view);
 		
 		if (wavFilePath != null) {
 			pathTextView.setText("Editing: " + getFileName(wavFilePath));
@@ -109,10 +167,19 @@ public class EffectEditorActivity extends AppCompatActivity {
 		previewButton.setOnClickListener(v -> togglePreview());
 		savePresetButton.setOnClickListener(v -> saveEffectPreset());
 		applyEffectsButton.setOnClickListener(v -> applyEffectsAndOverwrite());
+		revertButton.setOnClickListener(v -> showEditHistory());
+		pathTextView.setOnLongClickListener(v -> {
+			toggleStatsOverlay();
+			return true;
+		});
+		statsOverlay.setOnClickListener(v -> dumpRenderStats());
 		
 		updatePreviewButtonText(); // Обновление текста кнопки
 		
 		mediaPlayer = new MediaPlayer();
+		
+		// Огибающая исходника: при повторном открытии файла — из кеша
+		loadWaveform();
 	}
 	
 	/**
@@ -206,15 +273,26 @@ public class EffectEditorActivity extends AppCompatActivity {
 		}
 	}
 	
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		// Системе не хватает памяти: буферы рендера отдаются сборщику
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) WavRenderer.getBufferPool().trim();
+	}
+	
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
+		if (statsOverlay.getVisibility() == View.VISIBLE) toggleStatsOverlay();
 		stopPlayback();
 		if (currentPreviewTask != null) {
-			currentPreviewTask.cancel(true);
+			currentPreviewTask.handle.cancel();
 		}
 		if (currentApplyTask != null) {
-			currentApplyTask.cancel(true);
+			currentApplyTask.handle.cancel();
+		}
+		if (waveformHandle != null) {
+			waveformHandle.cancel();
 		}
 		if (mediaPlayer != null) {
 			mediaPlayer.release();
@@ -235,57 +313,64 @@ public class EffectEditorActivity extends AppCompatActivity {
 	* Выполнение Root-команд (su)
 	*/
 	private String executeRootCommand(String command) {
-		Process process = null;
-		DataOutputStream os = null;
-		StringBuilder output = new StringBuilder();
 		try {
-			process = Runtime.getRuntime().exec("su");
-			os = new DataOutputStream(process.getOutputStream());
-			
-			os.writeBytes(command + "\n");
-			os.writeBytes("exit\n");
-			os.flush();
+			// Общая долгоживущая root-оболочка: без запуска нового `su` на каждую команду
+			RootShell.Result result = RootShell.getInstance().run(command);
 			
-			BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-			String line;
-			while ((line = reader.readLine()) != null) {
-				output.append(line).append("\n");
+			if (!result.stderr.isEmpty()) {
+				Log.e(TAG, "Root Error Stream: " + result.stderr.trim());
 			}
 			
-			BufferedReader errorReader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
-			while ((line = errorReader.readLine()) != null) {
-				Log.e(TAG, "Root Error Stream: " + line + "\n ");
-			}
-			
-			process.waitFor();
-			if (process.exitValue() != 0) {
-				return "ERROR: Command failed with code " + process.exitValue() + "\n" + output.toString();
+			if (result.exitCode != 0) {
+				return "ERROR: Command failed with code " + result.exitCode + "\n" + result.stdout;
 			}
+			return result.stdout.trim();
 			
 			} catch (Exception e) {
 			Log.e(TAG, "Failed to execute root command: " + e.getMessage(), e);
 			return "ERROR: Exception executing command: " + e.getMessage();
-			} finally {
-			try {
-				if (os != null) os.close();
-				if (process != null) process.destroy();
-			} catch (Exception e) { /* Ignored */ }
 		}
-		return output.toString().trim();
+	}
+	
+	/**
+	* Громкость предпросмотра и оригинала под кнопкой предпросмотра.
+	*/
+	private void showLoudness(WavRenderer.Analysis analysis) {
+		if (analysis == null || analysis.output == null) {
+			loudnessTextView.setVisibility(View.GONE);
+			return;
+		}
+		LoudnessMeter.Result rendered = analysis.getRendered();
+		StringBuilder text = new StringBuilder(String.format(Locale.US, "Preview: %.1f LUFS, peak %.1f dBFS",
+		rendered.integratedLufs, LoudnessMeter.Result.toDb(rendered.samplePeak)));
+		if (!Double.isNaN(rendered.truePeak)) {
+			text.append(String.format(Locale.US, " (true %.1f dBTP)", LoudnessMeter.Result.toDb(rendered.truePeak)));
+		}
+		if (analysis.source != null) {
+			text.append(String.format(Locale.US, "\nOriginal: %.1f LUFS", analysis.source.integratedLufs));
+		}
+		if (analysis.gainDb != 0) {
+			text.append(String.format(Locale.US, "  |  gain %+.1f dB", analysis.gainDb));
+		}
+		loudnessTextView.setText(text);
+		loudnessTextView.setVisibility(View.VISIBLE);
 	}
 	
 	private void togglePreview() {
 		if (isPlaying) {
 			stopPlayback();
 			} else {
-			if (currentPreviewTask != null && currentPreviewTask.getStatus() == AsyncTask.Status.RUNNING) {
-				currentPreviewTask.cancel(true);
-			}
-			// Важно: передаем КОПИЮ текущего порядка в задачу
-			currentPreviewTask = new PreviewTask(this, Arrays.copyOf(effectOrder, effectOrder.length));
-			currentPreviewTask.execute(wavFilePath);
-			previewButton.setText("🔄 Processing...");
-			previewButton.setEnabled(false);
+			// Важно: передаем СНИМОК текущей цепочки в задачу.
+			// Предыдущий предпросмотр с тем же ключом отменяется планировщиком,
+			// поэтому повторные нажатия не копят в очереди устаревшие рендеры.
+			PreviewTask task = new PreviewTask(this, wavFilePath,
+			new EffectChain(effectOrder, paramLevels, mixLevels),
+			levelMatchCheckBox.isChecked() ? AutoGain.MATCH_SOURCE : AutoGain.OFF);
+			currentPreviewTask = task;
+			task.handle = PriorityScheduler.getInstance().submit(
+			PriorityScheduler.Priority.PREVIEW, PREVIEW_JOB_KEY, task, getMainExecutor(), task);
+			// Кнопка остается активной: повторное нажатие перезапускает рендер с актуальной цепочкой
+			previewButton.setText("🔄 Processing... (tap to restart)");
 		}
 	}
 	
@@ -296,16 +381,24 @@ public class EffectEditorActivity extends AppCompatActivity {
 			return;
 		}
 		
+		// Предыдущий файл предпросмотра больше не нужен
+		if (tempAudioPath != null && !tempAudioPath.equals(path)) {
+			new File(tempAudioPath).delete();
+		}
 		tempAudioPath = path;
 		
 		try {
 			mediaPlayer.reset();
 			mediaPlayer.setDataSource(tempAudioPath);
+			long preparing = System.nanoTime();
 			mediaPlayer.prepare();
+			RenderStats.get().record(RenderStats.STAGE_PLAYER_PREPARE, System.nanoTime() - preparing, 0, -1);
 			mediaPlayer.start();
 			
 			isPlaying = true;
 			updatePreviewButtonText(); // Обновит на "STOP"
+			statsHandler.removeCallbacks(spectrumRefresh);
+			statsHandler.post(spectrumRefresh);
 			
 			mediaPlayer.setOnCompletionListener(mp -> stopPlayback());
 			
@@ -323,9 +416,70 @@ public class EffectEditorActivity extends AppCompatActivity {
 			mediaPlayer.stop();
 		}
 		isPlaying = false;
+		statsHandler.removeCallbacks(spectrumRefresh);
 		updatePreviewButtonText(); // Обновит на "PREVIEW"
 	}
 	
+	// =====================================================================
+	// ОТЛАДОЧНЫЙ ОВЕРЛЕЙ ЗАМЕРОВ РЕНДЕРА
+	// =====================================================================
+	
+	/**
+	* Показывает/прячет таблицу RenderStats поверх редактора. Пока оверлей открыт,
+	* включен подсчет выделений ART — он замедляет аллокации, поэтому только на это время.
+	*/
+	private void toggleStatsOverlay() {
+		if (statsOverlay.getVisibility() == View.VISIBLE) {
+			statsHandler.removeCallbacks(statsRefresh);
+			statsOverlay.setVisibility(View.GONE);
+			RenderStats.get().setAllocationMeter(null);
+			Debug.stopAllocCounting();
+			} else {
+			Debug.startAllocCounting();
+			RenderStats.get().setAllocationMeter(new DebugAllocationMeter());
+			statsOverlay.setVisibility(View.VISIBLE);
+			statsRefresh.run();
+		}
+	}
+	
+	/**
+	* Сохраняет снимок замеров в JSON (adb pull из каталога приложения) и дублирует в logcat.
+	*/
+	private void dumpRenderStats() {
+		String json = RenderStats.get().toJson();
+		Log.i(TAG, "Render stats: " + json);
+		File dir = getExternalFilesDir(null);
+		File dump = new File(dir != null ? dir : getFilesDir(), STATS_DUMP_NAME);
+		try (OutputStream out = new FileOutputStream(dump)) {
+			out.write(json.getBytes(StandardCharsets.UTF_8));
+			Toast.makeText(this, "Render stats saved: " + dump.getAbsolutePath(), Toast.LENGTH_LONG).show();
+			} catch (IOException e) {
+			Log.e(TAG, "Failed to save render stats: " + e.getMessage(), e);
+			Toast.makeText(this, "Failed to save render stats.", Toast.LENGTH_SHORT).show();
+		}
+	}
+	
+	/**
+	* Байты, выделенные потоком, по счетчику ART. Он 32-битный, поэтому приращения
+	* накапливаются в long для каждого потока отдельно.
+	*/
+	private static class DebugAllocationMeter implements RenderStats.AllocationMeter {
+		private final ThreadLocal<long[]> state = new ThreadLocal<>();
+		
+		@Override
+		public long currentThreadAllocatedBytes() {
+			long now = Debug.getThreadAllocSize() & 0xFFFFFFFFL;
+			long[] lastAndTotal = state.get();
+			if (lastAndTotal == null) {
+				lastAndTotal = new long[] { now, 0 };
+				state.set(lastAndTotal);
+			}
+			lastAndTotal[1] += (now - lastAndTotal[0]) & 0xFFFFFFFFL;
+			lastAndTotal[0] = now;
+			return lastAndTotal[1];
+		}
+	}
+	
 	private String getFileName(String fullPath) {
 		if (fullPath == null) return "N/A";
 		return new File(fullPath).getName();
@@ -412,6 +566,47 @@ public class EffectEditorActivity extends AppCompatActivity {
 		}
 	}
 	
+	/**
+	* Сохраненный пресет как цепочка (для пакетной обработки вне редактора).
+	* Возвращает null, если пресет еще не сохранялся или поврежден.
+	*/
+	static EffectChain loadSavedChain(Context context) {
+		String presetName = "DefaultChainPreset";
+		SharedPreferences prefs = context.getSharedPreferences("EffectPresets", MODE_PRIVATE);
+		
+		String orderStr = prefs.getString(presetName + "_ORDER", null);
+		String paramStr = prefs.getString(presetName + "_PARAM", null);
+		String mixStr = prefs.getString(presetName + "_MIX", null);
+		if (orderStr == null || paramStr == null || mixStr == null) return null;
+		
+		try {
+			return EffectChain.fromSignature(orderStr + ";" + paramStr + ";" + mixStr);
+			} catch (IllegalArgumentException e) {
+			Log.e(TAG, "Error parsing preset data: " + e.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	* Огибающая исходника в фоне: из кеша сразу, иначе одно чтение файла без DSP.
+	*/
+	private void loadWaveform() {
+		if (wavFilePath == null) return;
+		if (waveformHandle != null) waveformHandle.cancel();
+		WaveformTask task = new WaveformTask(this, wavFilePath);
+		waveformHandle = PriorityScheduler.getInstance().submit(
+		PriorityScheduler.Priority.PREVIEW, WAVEFORM_JOB_KEY, task, getMainExecutor(), task);
+	}
+	
+	private RenderCache getRenderCache() {
+		return RenderCache.getInstance(new File(getCacheDir(), RenderCache.DIR_NAME));
+	}
+	
+	private EditStore getEditStore() {
+		return EditStore.withRoot(new File(getFilesDir(), EditStore.DIR_NAME),
+		new File(getFilesDir(), OVERWRITE_JOURNAL_DIR), getRenderCache());
+	}
+	
 	/**
 	* Запускает фоновую задачу для окончательного применения эффектов и перезаписи файла.
 	*/
@@ -423,10 +618,10 @@ public class EffectEditorActivity extends AppCompatActivity {
 		
 		// Останавливаем любое текущее воспроизведение/предварительный просмотр
 		stopPlayback();
-		if (currentPreviewTask != null && currentPreviewTask.getStatus() == AsyncTask.Status.RUNNING) {
-			currentPreviewTask.cancel(true);
+		if (currentPreviewTask != null) {
+			currentPreviewTask.handle.cancel();
 		}
-		if (currentApplyTask != null && currentApplyTask.getStatus() == AsyncTask.Status.RUNNING) {
+		if (currentApplyTask != null) {
 			Toast.makeText(this, "Processing is already running.", Toast.LENGTH_SHORT).show();
 			return;
 		}
@@ -434,486 +629,323 @@ public class EffectEditorActivity extends AppCompatActivity {
 		// Предупреждение пользователю
 		new AlertDialog.Builder(this)
 		.setTitle("Apply and Overwrite")
-		.setMessage("This will permanently overwrite the original file:\n" + getFileName(wavFilePath) + "\nAre you sure?")
+		.setMessage("This will overwrite the file:\n" + getFileName(wavFilePath)
+		+ describeSharedUsages(wavFilePath)
+		+ "\nThe original is kept: use REVERT / EDIT HISTORY to go back.\nAre you sure?")
 		.setPositiveButton("YES", (dialog, which) -> {
-			// Важно: передаем КОПИИ текущего порядка и уровней
-			int[] effectOrderCopy = Arrays.copyOf(effectOrder, effectOrder.length);
-			int[] paramLevelsCopy = Arrays.copyOf(paramLevels, paramLevels.length);
-			int[] mixLevelsCopy = Arrays.copyOf(mixLevels, mixLevels.length);
-			
-			currentApplyTask = new ApplyEffectsTask(
+			// Важно: передаем СНИМОК текущего порядка и уровней
+			startApplyTask(new ApplyEffectsTask(
 			this,
-			effectOrderCopy,
-			paramLevelsCopy,
-			mixLevelsCopy
-			);
-			currentApplyTask.execute(wavFilePath); // Передаем ПУТЬ К ОРИГИНАЛЬНОМУ ФАЙЛУ
-			
-			applyEffectsButton.setText("🔄 APPLYING...");
-			applyEffectsButton.setEnabled(false);
-			savePresetButton.setEnabled(false);
+			wavFilePath, // Передаем ПУТЬ К ОРИГИНАЛЬНОМУ ФАЙЛУ
+			new EffectChain(effectOrder, paramLevels, mixLevels)
+			));
 		})
 		.setNegativeButton("NO", null)
 		.show();
 	}
 	
-	// =====================================================================
-	// ВНУТРЕННИЙ КЛАСС ДЛЯ ФОНОВОЙ ОБРАБОТКИ (Динамический DSP-Цепочка PREVIEW)
-	// =====================================================================
+	private void startApplyTask(ApplyEffectsTask task) {
+		currentApplyTask = task;
+		task.handle = PriorityScheduler.getInstance().submit(
+		PriorityScheduler.Priority.APPLY, task, getMainExecutor(), task);
+		
+		applyEffectsButton.setText("🔄 APPLYING...");
+		applyEffectsButton.setEnabled(false);
+		savePresetButton.setEnabled(false);
+		revertButton.setEnabled(false);
+	}
 	
-	private static class PreviewTask extends AsyncTask<String, Void, String> {
-		private final WeakReference<EffectEditorActivity> activityReference;
-		// Порядок эффектов, который был активен на момент запуска задачи
-		private final int[] currentEffectOrder;
-		
-		PreviewTask(EffectEditorActivity context, int[] effectOrder) {
-			activityReference = new WeakReference<>(context);
-			this.currentEffectOrder = effectOrder;
+	/**
+	* История правок файла: оригинал и все примененные рецепты.
+	* Выбор пункта кладет эту версию на место файла (оригинал — копией, рецепт — рендером).
+	*/
+	private void showEditHistory() {
+		if (wavFilePath == null) return;
+		if (currentApplyTask != null) {
+			Toast.makeText(this, "Processing is already running.", Toast.LENGTH_SHORT).show();
+			return;
 		}
 		
-		private void mixSignal(double[] original, double[] processed, int mixLevel) {
-			if (mixLevel >= 100) return;
-			
-			double wet = mixLevel / 100.0;
-			double dry = 1.0 - wet;
-			
-			for (int i = 0; i < original.length; i++) {
-				processed[i] = (processed[i] * wet) + (original[i] * dry);
-			}
+		EditStore.Record record;
+		try {
+			record = getEditStore().getRecord(wavFilePath);
+			} catch (IOException e) {
+			Log.e(TAG, "Error reading edit history: " + e.getMessage(), e);
+			record = null;
+		}
+		if (record == null) {
+			Toast.makeText(this, "No edits yet: the original is saved on the first APPLY.", Toast.LENGTH_LONG).show();
+			return;
 		}
 		
-		private double[] copyBuffer(double[] source) {
-			double[] destination = new double[source.length];
-			System.arraycopy(source, 0, destination, 0, source.length);
-			return destination;
+		List<EditStore.Edit> edits = record.getEdits();
+		String[] items = new String[edits.size() + 1];
+		int[] versions = new int[items.length];
+		items[0] = (record.getCurrentVersion() == 0 ? "✓ " : "") + "Original";
+		DateFormat timeFormat = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
+		// Новые правки сверху
+		for (int i = 0; i < edits.size(); i++) {
+			EditStore.Edit edit = edits.get(edits.size() - 1 - i);
+			versions[i + 1] = edit.version;
+			items[i + 1] = (record.getCurrentVersion() == edit.version ? "✓ " : "")
+			+ "v" + edit.version + "  " + timeFormat.format(new Date(edit.timeMillis))
+			+ "  (Chain: " + edit.chain.toSignature().split(";")[0].replace(',', '-') + ")";
 		}
 		
-		/**
-		* Универсальный метод для применения одного DSP-эффекта.
-		*/
-		private void applySingleEffect(double[] buffer, double[] dryBuffer,
-		int effectId, int paramLevel, int mixLevel,
-		long sampleRate) {
-			
-			if (mixLevel <= 0) return;
-			
-			double[] wetBuffer = copyBuffer(buffer);
-			
-			// --- Логика DSP-эффектов ---
-			switch (effectId) {
-				case FX_LPF_CUTOFF:
-				// 1. Low-Pass Filter
-				double minCutoff = 100.0; double maxCutoff = 3000.0;
-				double cutoffFreq = minCutoff + (maxCutoff - minCutoff) * (paramLevel / 100.0);
-				double RC = 1.0 / (cutoffFreq * 2.0 * Math.PI);
-				double alpha = 1.0 / (RC * sampleRate + 1.0);
-				double lastOutput = 0.0;
-				for (int i = 0; i < wetBuffer.length; i++) {
-					lastOutput = alpha * wetBuffer[i] + (1.0 - alpha) * lastOutput;
-					wetBuffer[i] = lastOutput;
-				}
-				break;
-				
-				case FX_RING_MOD:
-				// 2. Ring Modulation
-				double minModFreq = 50.0; double maxModFreq = 500.0;
-				double modFreq = minModFreq + (maxModFreq - minModFreq) * (paramLevel / 100.0);
-				double modPhase = 0.0;
-				double modIncrement = 2.0 * Math.PI * modFreq / sampleRate;
-				for (int i = 0; i < wetBuffer.length; i++) {
-					wetBuffer[i] *= Math.sin(modPhase);
-					modPhase += modIncrement;
-					if (modPhase >= 2.0 * Math.PI) modPhase -= 2.0 * Math.PI;
-				}
-				break;
-				
-				case FX_CLIP_DECAY:
-				// 3. Hard Clipping и Envelope
-				// Hard Clipping
-				double minHardDrive = 1.0; double maxHardDrive = 5.0;
-				double hardDrive = minHardDrive + (maxHardDrive - minHardDrive) * (paramLevel / 100.0);
-				double threshold = 1.0 / hardDrive;
-				for (int i = 0; i < wetBuffer.length; i++) {
-					double x = wetBuffer[i];
-					if (x > threshold) wetBuffer[i] = threshold; else if (x < -threshold) wetBuffer[i] = -threshold;
-				}
-				// Envelope
-				double attackTime = 0.05; double minDecayTime = 0.1; double maxDecayTime = 0.5;
-				double decayTime = maxDecayTime - (maxDecayTime - minDecayTime) * (paramLevel / 100.0);
-				int attackSamples = (int) (attackTime * sampleRate);
-				int decaySamples = (int) (decayTime * sampleRate);
-				int startDecay = Math.min(attackSamples, wetBuffer.length / 4);
-				for (int i = 0; i < wetBuffer.length; i++) {
-					double env = 1.0;
-					if (i < attackSamples) env = (double) i / attackSamples;
-					else if (i < startDecay + decaySamples) env = 1.0 - (double) (i - startDecay) / decaySamples;
-					else env = 0.05;
-					if (env < 0) env = 0;
-					wetBuffer[i] *= env;
-				}
-				break;
-				
-				case FX_REAL_DRIVE:
-				// 4. Real Drive (Усиление)
-				double overallDrive = 1.0 + paramLevel / 50.0;
-				for (int i = 0; i < wetBuffer.length; i++) {
-					wetBuffer[i] *= overallDrive;
-				}
-				break;
-				
-				case FX_REAL_SATURATION:
-				// 5. Real Saturation (Soft Clipping через Tanh)
-				double satAmount = 1.0 + paramLevel / 20.0;
-				for (int i = 0; i < wetBuffer.length; i++) {
-					wetBuffer[i] = Math.tanh(wetBuffer[i] * satAmount);
-				}
-				break;
-				
-				case FX_REAL_BITCRUSH:
-				// 6. Real Bitcrush (Квантование)
-				int effectiveBitDepth = Math.max(1, 16 - paramLevel / 6);
-				double maxQuantization = Math.pow(2, effectiveBitDepth) - 1;
-				for (int i = 0; i < wetBuffer.length; i++) {
-					double normalizedSample = wetBuffer[i];
-					wetBuffer[i] = Math.round(normalizedSample * maxQuantization) / maxQuantization;
-				}
-				break;
+		new AlertDialog.Builder(this)
+		.setTitle("Edit history: " + getFileName(wavFilePath))
+		.setItems(items, (dialog, which) -> {
+			stopPlayback();
+			startApplyTask(new ApplyEffectsTask(this, wavFilePath, versions[which]));
+		})
+		.setNeutralButton("FORGET ORIGINAL", (dialog, which) -> {
+			// Текущее состояние файла становится окончательным, копия оригинала удаляется
+			getEditStore().forget(wavFilePath);
+			Toast.makeText(this, "Edit history cleared.", Toast.LENGTH_SHORT).show();
+		})
+		.setNegativeButton("CLOSE", null)
+		.show();
+	}
+	
+	/**
+	* Перечисляет песни, которые тоже изменятся при перезаписи (из обратного индекса).
+	*/
+	private String describeSharedUsages(String wavPath) {
+		ProjectIndex index = ProjectIndex.getInstance(new File(getFilesDir(), ProjectIndex.FILE_NAME));
+		Map<String, List<String>> groupsBySong = new LinkedHashMap<>();
+		for (ProjectIndex.WavUsage usage : index.getUsages(wavPath)) {
+			List<String> groups = groupsBySong.get(usage.flmPath);
+			if (groups == null) {
+				groups = new ArrayList<>();
+				groupsBySong.put(usage.flmPath, groups);
 			}
-			
-			// Смешивание и копирование обратно в основной буфер
-			mixSignal(dryBuffer, wetBuffer, mixLevel);
-			System.arraycopy(wetBuffer, 0, buffer, 0, buffer.length);
+			groups.add(usage.pthKey);
+		}
+		if (groupsBySong.isEmpty()) return "";
+		
+		StringBuilder sb = new StringBuilder("\n\nUsed by " + groupsBySong.size() + " song(s):");
+		for (Map.Entry<String, List<String>> song : groupsBySong.entrySet()) {
+			String songName = getFileName(song.getKey()).replace(".flm", "");
+			sb.append("\n• ").append(songName).append(" (").append(String.join(", ", song.getValue())).append(")");
+		}
+		return sb.append("\n").toString();
+	}
+	
+	// =====================================================================
+	// ФОНОВАЯ ОБРАБОТКА (Общий конвейер для PREVIEW и перезаписи)
+	// =====================================================================
+	
+	private static final String PREVIEW_JOB_KEY = "preview";
+	private static final String WAVEFORM_JOB_KEY = "waveform";
+	// Журнал незавершенных перезаписей (см. SafeOverwrite.recover)
+	static final String OVERWRITE_JOURNAL_DIR = "overwrite_journal";
+	
+	// =====================================================================
+	// ЗАДАЧА PREVIEW (Динамическая DSP-Цепочка)
+	// =====================================================================
+	
+	private static class PreviewTask implements PriorityScheduler.Job<String>, PriorityScheduler.Callback<String> {
+		private final WeakReference<EffectEditorActivity> activityReference;
+		private final String originalPath;
+		// Снимок цепочки на момент нажатия
+		private final EffectChain chain;
+		private final AutoGain gain;
+		private PriorityScheduler.Handle handle;
+		private volatile File tempFile;
+		private volatile WavRenderer.Analysis analysis;
+		
+		PreviewTask(EffectEditorActivity context, String originalPath, EffectChain chain, AutoGain gain) {
+			activityReference = new WeakReference<>(context);
+			this.originalPath = originalPath;
+			this.chain = chain;
+			this.gain = gain;
 		}
 		
 		@Override
-		protected String doInBackground(String... params) {
+		public String run(PriorityScheduler.Handle handle) throws Exception {
 			EffectEditorActivity activity = activityReference.get();
 			if (activity == null || activity.isFinishing()) return null;
 			
-			String originalPath = params[0];
-			File tempFile = null;
-			
+			tempFile = new File(activity.getCacheDir(), WavRenderer.newTempName("temp_preview_"));
 			try {
-				// --- 1. Создание и копирование временного файла в КЕШ приложения (Root) ---
-				String timestamp = new java.text.SimpleDateFormat("yyyyMMdd_HHmmss", java.util.Locale.US).format(new java.util.Date());
-				tempFile = new File(activity.getCacheDir(), "temp_preview_" + timestamp + ".wav");
-				String tempPath = tempFile.getAbsolutePath();
-				
-				// Экранирование пути для shell
-				String escapedOriginalPath = originalPath.replace("'", "'\\''");
-				String escapedTempPath = tempPath.replace("'", "'\\''");
-				
-				// Копирование оригинала во временный файл в кеше (Root)
-				String command = "cp -f '" + escapedOriginalPath + "' '" + escapedTempPath + "' && chmod 666 '" + escapedTempPath + "'";
-				String result = activity.executeRootCommand(command);
-				if (result.startsWith("ERROR")) {
-					Log.e(TAG, "Root copy failed for preview: " + result);
-					return null;
-				}
-				
-				// --- 2. Загрузка WAV (теперь файл в кеше, доступен Java IO) ---
-				WavFile wav = WavFile.openWavFile(tempFile);
-				int numFrames = (int) wav.getNumFrames();
-				long sampleRate = wav.getSampleRate();
-				int numChannels = wav.getNumChannels();
-				int validBits = wav.getValidBits();
-				
-				double[] buffer = new double[numFrames * numChannels];
-				wav.readFrames(buffer, numFrames);
-				wav.close();
-				
-				// --- 3. Динамическая DSP-ЦЕПОЧКА ---
-				for (int effectId : currentEffectOrder) {
-					// Читаем уровни из глобальных массивов Activity
-					int paramLevel = activity.paramLevels[effectId];
-					int mixLevel = activity.mixLevels[effectId];
-					
-					double[] dryBuffer = copyBuffer(buffer);
-					
-					applySingleEffect(
-					buffer,
-					dryBuffer,
-					effectId,
-					paramLevel,
-					mixLevel,
-					sampleRate
-					);
-				}
-				
-				// --- 4. Сохранение обратно во временный WAV ---
-				WavFile outWav = WavFile.newWavFile(tempFile, numChannels, buffer.length, validBits, sampleRate);
-				outWav.writeFrames(buffer, buffer.length);
-				outWav.close();
-				
-				return tempPath;
-				
+				analysis = WavRenderer.renderToFile(originalPath, tempFile, chain, handle, activity.getRenderCache(), gain);
+				return tempFile.getAbsolutePath();
 				} catch (Exception e) {
-				Log.e(TAG, "Error in background copy/processing: " + e.getMessage(), e);
-				// Удаляем tempFile, если он был создан
-				if (tempFile != null && tempFile.exists()) tempFile.delete();
-				return null;
+				deleteTempFile();
+				throw e;
 			}
 		}
 		
+		private void deleteTempFile() {
+			File file = tempFile;
+			if (file != null && file.exists()) file.delete();
+		}
+		
+		private boolean isCurrent(EffectEditorActivity activity) {
+			return activity != null && !activity.isFinishing() && activity.currentPreviewTask == this;
+		}
+		
 		@Override
-		protected void onPostExecute(String tempPath) {
+		public void onSuccess(String tempPath) {
 			EffectEditorActivity activity = activityReference.get();
-			if (activity == null || activity.isFinishing()) return;
+			if (!isCurrent(activity)) {
+				deleteTempFile();
+				return;
+			}
+			activity.currentPreviewTask = null;
 			
 			if (tempPath != null) {
+				activity.showLoudness(analysis);
+				if (analysis != null) {
+					activity.waveformView.setAfter(analysis.waveform, analysis.gainDb);
+					activity.spectrumView.setTracks(analysis.sourceSpectrum, analysis.spectrum, analysis.gainDb);
+				}
 				activity.startPlayback(tempPath);
 				} else {
 				activity.stopPlayback();
-				Toast.makeText(activity, "File processing failed. Check Root status and WavFile class.", Toast.LENGTH_LONG).show();
 			}
 			activity.previewButton.setEnabled(true);
 		}
 		
 		@Override
-		protected void onCancelled() {
-			super.onCancelled();
+		public void onFailure(Exception e) {
+			Log.e(TAG, "Error in background copy/processing: " + e.getMessage(), e);
 			EffectEditorActivity activity = activityReference.get();
-			if (activity != null && !activity.isFinishing()) {
-				activity.stopPlayback();
-				activity.previewButton.setEnabled(true);
-			}
+			if (!isCurrent(activity)) return;
+			activity.currentPreviewTask = null;
+			
+			activity.stopPlayback();
+			Toast.makeText(activity, "File processing failed. Check Root status and WavFile class.", Toast.LENGTH_LONG).show();
+			activity.previewButton.setEnabled(true);
+		}
+		
+		@Override
+		public void onCancelled() {
+			deleteTempFile();
+			// Отмененная задача, замененная более новой, не трогает UI
+			EffectEditorActivity activity = activityReference.get();
+			if (!isCurrent(activity)) return;
+			activity.currentPreviewTask = null;
+			
+			activity.stopPlayback();
+			activity.previewButton.setEnabled(true);
 		}
 	}
 	
 	// =====================================================================
-	// ВНУТРЕННИЙ КЛАСС ДЛЯ ОКОНЧАТЕЛЬНОЙ ОБРАБОТКИ (ПЕРЕЗАПИСЬ)
+	// ЗАДАЧА ОГИБАЮЩЕЙ ИСХОДНИКА
 	// =====================================================================
 	
-	private static class ApplyEffectsTask extends AsyncTask<String, Void, Boolean> {
+	private static class WaveformTask implements PriorityScheduler.Job<WaveformPyramid>, PriorityScheduler.Callback<WaveformPyramid> {
 		private final WeakReference<EffectEditorActivity> activityReference;
-		private final int[] currentEffectOrder;
-		private final int[] currentParamLevels;
-		private final int[] currentMixLevels;
+		private final String originalPath;
 		
-		ApplyEffectsTask(EffectEditorActivity context, int[] effectOrder, int[] paramLevels, int[] mixLevels) {
+		WaveformTask(EffectEditorActivity context, String originalPath) {
 			activityReference = new WeakReference<>(context);
-			this.currentEffectOrder = effectOrder;
-			this.currentParamLevels = paramLevels;
-			this.currentMixLevels = mixLevels;
+			this.originalPath = originalPath;
+		}
+		
+		@Override
+		public WaveformPyramid run(PriorityScheduler.Handle handle) throws Exception {
+			EffectEditorActivity activity = activityReference.get();
+			if (activity == null || activity.isFinishing()) return null;
+			return WavRenderer.sourceWaveform(originalPath, handle, activity.getRenderCache());
 		}
 		
-		// --- DSP-методы (для автономной работы) ---
+		@Override
+		public void onSuccess(WaveformPyramid waveform) {
+			EffectEditorActivity activity = activityReference.get();
+			if (activity == null || activity.isFinishing() || waveform == null) return;
+			activity.waveformView.setBefore(waveform);
+		}
 		
-		private void mixSignal(double[] original, double[] processed, int mixLevel) {
-			if (mixLevel >= 100) return;
-			
-			double wet = mixLevel / 100.0;
-			double dry = 1.0 - wet;
-			
-			for (int i = 0; i < original.length; i++) {
-				processed[i] = (processed[i] * wet) + (original[i] * dry);
-			}
+		@Override
+		public void onFailure(Exception e) {
+			// Без огибающей редактор работает как раньше
+			Log.w(TAG, "Waveform unavailable: " + e.getMessage(), e);
 		}
+	}
+	
+	// =====================================================================
+	// ЗАДАЧА ОКОНЧАТЕЛЬНОЙ ОБРАБОТКИ (ПЕРЕЗАПИСЬ)
+	// =====================================================================
+	
+	private static class ApplyEffectsTask implements PriorityScheduler.Job<Boolean>, PriorityScheduler.Callback<Boolean> {
+		private final WeakReference<EffectEditorActivity> activityReference;
+		private final String originalPath;
+		// Новая цепочка или null, если возвращается версия из истории
+		private final EffectChain chain;
+		private final int restoreVersion;
+		private PriorityScheduler.Handle handle;
 		
-		private double[] copyBuffer(double[] source) {
-			double[] destination = new double[source.length];
-			System.arraycopy(source, 0, destination, 0, source.length);
-			return destination;
+		ApplyEffectsTask(EffectEditorActivity context, String originalPath, EffectChain chain) {
+			activityReference = new WeakReference<>(context);
+			this.originalPath = originalPath;
+			this.chain = chain;
+			this.restoreVersion = -1;
 		}
 		
-		/**
-		* Универсальный метод для применения одного DSP-эффекта.
-		*/
-		private void applySingleEffect(double[] buffer, double[] dryBuffer,
-		int effectId, int paramLevel, int mixLevel,
-		long sampleRate) {
-			
-			if (mixLevel <= 0) return;
-			
-			double[] wetBuffer = copyBuffer(buffer);
-			
-			// --- Логика DSP-эффектов ---
-			switch (effectId) {
-				case FX_LPF_CUTOFF:
-				// 1. Low-Pass Filter
-				double minCutoff = 100.0; double maxCutoff = 3000.0;
-				double cutoffFreq = minCutoff + (maxCutoff - minCutoff) * (paramLevel / 100.0);
-				double RC = 1.0 / (cutoffFreq * 2.0 * Math.PI);
-				double alpha = 1.0 / (RC * sampleRate + 1.0);
-				double lastOutput = 0.0;
-				for (int i = 0; i < wetBuffer.length; i++) {
-					lastOutput = alpha * wetBuffer[i] + (1.0 - alpha) * lastOutput;
-					wetBuffer[i] = lastOutput;
-				}
-				break;
-				
-				case FX_RING_MOD:
-				// 2. Ring Modulation
-				double minModFreq = 50.0; double maxModFreq = 500.0;
-				double modFreq = minModFreq + (maxModFreq - minModFreq) * (paramLevel / 100.0);
-				double modPhase = 0.0;
-				double modIncrement = 2.0 * Math.PI * modFreq / sampleRate;
-				for (int i = 0; i < wetBuffer.length; i++) {
-					wetBuffer[i] *= Math.sin(modPhase);
-					modPhase += modIncrement;
-					if (modPhase >= 2.0 * Math.PI) modPhase -= 2.0 * Math.PI;
-				}
-				break;
-				
-				case FX_CLIP_DECAY:
-				// 3. Hard Clipping и Envelope
-				// Hard Clipping
-				double minHardDrive = 1.0; double maxHardDrive = 5.0;
-				double hardDrive = minHardDrive + (maxHardDrive - minHardDrive) * (paramLevel / 100.0);
-				double threshold = 1.0 / hardDrive;
-				for (int i = 0; i < wetBuffer.length; i++) {
-					double x = wetBuffer[i];
-					if (x > threshold) wetBuffer[i] = threshold; else if (x < -threshold) wetBuffer[i] = -threshold;
-				}
-				// Envelope
-				double attackTime = 0.05; double minDecayTime = 0.1; double maxDecayTime = 0.5;
-				double decayTime = maxDecayTime - (maxDecayTime - minDecayTime) * (paramLevel / 100.0);
-				int attackSamples = (int) (attackTime * sampleRate);
-				int decaySamples = (int) (decayTime * sampleRate);
-				int startDecay = Math.min(attackSamples, wetBuffer.length / 4);
-				for (int i = 0; i < wetBuffer.length; i++) {
-					double env = 1.0;
-					if (i < attackSamples) env = (double) i / attackSamples;
-					else if (i < startDecay + decaySamples) env = 1.0 - (double) (i - startDecay) / decaySamples;
-					else env = 0.05;
-					if (env < 0) env = 0;
-					wetBuffer[i] *= env;
-				}
-				break;
-				
-				case FX_REAL_DRIVE:
-				// 4. Real Drive (Усиление)
-				double overallDrive = 1.0 + paramLevel / 50.0;
-				for (int i = 0; i < wetBuffer.length; i++) {
-					wetBuffer[i] *= overallDrive;
-				}
-				break;
-				
-				case FX_REAL_SATURATION:
-				// 5. Real Saturation (Soft Clipping через Tanh)
-				double satAmount = 1.0 + paramLevel / 20.0;
-				for (int i = 0; i < wetBuffer.length; i++) {
-					wetBuffer[i] = Math.tanh(wetBuffer[i] * satAmount);
-				}
-				break;
-				
-				case FX_REAL_BITCRUSH:
-				// 6. Real Bitcrush (Квантование)
-				int effectiveBitDepth = Math.max(1, 16 - paramLevel / 6);
-				double maxQuantization = Math.pow(2, effectiveBitDepth) - 1;
-				for (int i = 0; i < wetBuffer.length; i++) {
-					double normalizedSample = wetBuffer[i];
-					wetBuffer[i] = Math.round(normalizedSample * maxQuantization) / maxQuantization;
-				}
-				break;
-			}
-			
-			// Смешивание и копирование обратно в основной буфер
-			mixSignal(dryBuffer, wetBuffer, mixLevel);
-			System.arraycopy(wetBuffer, 0, buffer, 0, buffer.length);
+		ApplyEffectsTask(EffectEditorActivity context, String originalPath, int restoreVersion) {
+			activityReference = new WeakReference<>(context);
+			this.originalPath = originalPath;
+			this.chain = null;
+			this.restoreVersion = restoreVersion;
 		}
 		
 		@Override
-		protected Boolean doInBackground(String... params) {
+		public Boolean run(PriorityScheduler.Handle handle) throws Exception {
 			EffectEditorActivity activity = activityReference.get();
 			if (activity == null || activity.isFinishing()) return false;
 			
-			String originalPath = params[0];
-			File tempFile = null;
-			
-			try {
-				// --- 1. Создание временного файла в КЕШЕ приложения ---
-				// Генерируем уникальное имя файла в папке кеша (доступ гарантирован)
-				String timestamp = new java.text.SimpleDateFormat("yyyyMMdd_HHmmss", java.util.Locale.US).format(new java.util.Date());
-				tempFile = new File(activity.getCacheDir(), "applied_" + timestamp + ".wav");
-				String tempPath = tempFile.getAbsolutePath();
-				
-				// Экранирование путей для shell
-				String escapedOriginalPath = originalPath.replace("'", "'\\''");
-				String escapedTempPath = tempPath.replace("'", "'\\''");
-				
-				// --- 2. Копирование оригинала в кеш (ИСПОЛЬЗУЯ ROOT) ---
-				String copyCommand = "cp -f '" + escapedOriginalPath + "' '" + escapedTempPath + "' && chmod 666 '" + escapedTempPath + "'";
-				String result = activity.executeRootCommand(copyCommand);
-				if (result.startsWith("ERROR")) {
-					Log.e(TAG, "Root copy command failed: " + result);
-					return false;
-				}
-				
-				// --- 3. Загрузка WAV из временного файла (теперь доступен Java IO) ---
-				WavFile wav = WavFile.openWavFile(tempFile);
-				int numFrames = (int) wav.getNumFrames();
-				long sampleRate = wav.getSampleRate();
-				int numChannels = wav.getNumChannels();
-				int validBits = wav.getValidBits();
-				
-				double[] buffer = new double[numFrames * numChannels];
-				wav.readFrames(buffer, numFrames);
-				wav.close();
-				
-				// --- 4. Динамическая DSP-ЦЕПОЧКА ---
-				for (int effectId : currentEffectOrder) {
-					int paramLevel = currentParamLevels[effectId];
-					int mixLevel = currentMixLevels[effectId];
-					
-					double[] dryBuffer = copyBuffer(buffer);
-					
-					applySingleEffect(buffer, dryBuffer, effectId, paramLevel, mixLevel, sampleRate);
-				}
-				
-				// --- 5. Сохранение обработанного WAV обратно во временный файл ---
-				WavFile outWav = WavFile.newWavFile(tempFile, numChannels, buffer.length, validBits, sampleRate);
-				outWav.writeFrames(buffer, buffer.length);
-				outWav.close();
-				
-				// --- 6. Перезапись оригинала обработанным файлом (ИСПОЛЬЗУЯ ROOT) ---
-				// Перемещаем (заменяем) обработанный файл обратно на место оригинала
-				String overwriteCommand = "mv -f '" + escapedTempPath + "' '" + escapedOriginalPath + "' && chmod 666 '" + escapedOriginalPath + "'";
-				result = activity.executeRootCommand(overwriteCommand);
-				if (result.startsWith("ERROR")) {
-					Log.e(TAG, "Root overwrite command failed: " + result);
-					return false;
-				}
-				
-				return true;
-				
-				} catch (Exception e) {
-				Log.e(TAG, "Error in final applying/overwriting: " + e.getMessage(), e);
-				return false;
-				} finally {
-				// Удаляем временный файл, если он существует
-				if (tempFile != null && tempFile.exists()) {
-					if (!tempFile.delete()) {
-						Log.w(TAG, "Failed to delete temporary file: " + tempFile.getName());
-					}
-				}
+			// Рендер всегда из сохраненного оригинала (он копируется при первом применении),
+			// запись — через временный файл рядом с целью и атомарное переименование
+			EditStore store = activity.getEditStore();
+			if (chain != null) {
+				store.apply(originalPath, chain, handle);
+				} else {
+				store.restore(originalPath, restoreVersion, handle);
 			}
+			return true;
+		}
+		
+		private void resetButtons(EffectEditorActivity activity) {
+			activity.currentApplyTask = null;
+			activity.applyEffectsButton.setEnabled(true);
+			activity.savePresetButton.setEnabled(true);
+			activity.revertButton.setEnabled(true);
+			activity.applyEffectsButton.setText("🔥 APPLY EFFECTS AND OVERWRITE FILE");
 		}
 		
 		@Override
-		protected void onPostExecute(Boolean success) {
+		public void onSuccess(Boolean success) {
 			EffectEditorActivity activity = activityReference.get();
 			if (activity == null || activity.isFinishing()) return;
 			
-			activity.applyEffectsButton.setEnabled(true);
-			activity.savePresetButton.setEnabled(true);
-			activity.applyEffectsButton.setText("🔥 APPLY EFFECTS AND OVERWRITE FILE");
+			resetButtons(activity);
 			
 			if (success) {
-				Toast.makeText(activity, "Effects applied successfully! File overwritten.", Toast.LENGTH_LONG).show();
+				// Файл перезаписан: у него новая огибающая, прежний предпросмотр к нему не относится
+				activity.waveformView.setAfter(null, 0);
+				activity.spectrumView.setTracks(null, null, 0);
+				activity.loadWaveform();
+				Toast.makeText(activity, chain != null ? "Effects applied successfully! File overwritten."
+				: restoreVersion == 0 ? "Original restored." : "Version v" + restoreVersion + " restored.", Toast.LENGTH_LONG).show();
 				} else {
 				Toast.makeText(activity, "Failed to apply effects and overwrite file. Check permissions/Root.", Toast.LENGTH_LONG).show();
 			}
 		}
 		
 		@Override
-		protected void onCancelled() {
-			super.onCancelled();
+		public void onFailure(Exception e) {
+			Log.e(TAG, "Error in final applying/overwriting: " + e.getMessage(), e);
+			onSuccess(false);
+		}
+		
+		@Override
+		public void onCancelled() {
 			EffectEditorActivity activity = activityReference.get();
 			if (activity != null && !activity.isFinishing()) {
-				activity.applyEffectsButton.setEnabled(true);
-				activity.savePresetButton.setEnabled(true);
-				activity.applyEffectsButton.setText("🔥 APPLY EFFECTS AND OVERWRITE FILE");
+				resetButtons(activity);
 				Toast.makeText(activity, "File application cancelled.", Toast.LENGTH_SHORT).show();
 			}
 		}
@@ -0,0 +1,263 @@
+package com.gignorie.fldist;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+* Потоковый поиск ссылок на WAV-файлы в бинарном .flm прямо по байтам.
+* Ищет то же, что и прежний regex `(PTH\d+.*?)(My Recordings\/.*?\.wav)`, но без
+* строки в памяти и без откатов: маркеры `PTH`, `My Recordings/` и `.wav` находит
+* один автомат Ахо–Корасик, а путь ограничен MAX_PATH_BYTES байтами.
+* Память постоянна и не зависит от размера файла.
+*
+* Сканер — это OutputStream, поэтому в него можно напрямую направить вывод `cat`.
+*/
+public final class FlmReferenceScanner extends OutputStream {
+
+	/**
+	* Найденная ссылка с точными смещениями в файле.
+	*/
+	public static final class Reference {
+		public final String pthKey;      // Например "PTH12"
+		public final String wavPath;     // "My Recordings/....wav"
+		public final long pthOffset;     // Смещение "PTH"
+		public final long pathOffset;    // Смещение "My Recordings/"
+		public final int pathLength;     // Длина пути в байтах
+
+		Reference(String pthKey, String wavPath, long pthOffset, long pathOffset, int pathLength) {
+			this.pthKey = pthKey;
+			this.wavPath = wavPath;
+			this.pthOffset = pthOffset;
+			this.pathOffset = pathOffset;
+			this.pathLength = pathLength;
+		}
+	}
+
+	public interface Listener {
+		void onReference(Reference reference);
+	}
+
+	// Длиннее путь не ищем: после этого ".wav" считается ненайденным
+	public static final int MAX_PATH_BYTES = 1024;
+	private static final int MAX_PTH_DIGITS = 18;
+
+	private static final byte[][] PATTERNS = {
+		"PTH".getBytes(StandardCharsets.US_ASCII),
+		"My Recordings/".getBytes(StandardCharsets.US_ASCII),
+		".wav".getBytes(StandardCharsets.US_ASCII)
+	};
+	private static final int MATCH_PTH = 1;
+	private static final int MATCH_RECORDINGS = 1 << 1;
+	private static final int MATCH_WAV = 1 << 2;
+
+	// Плотная таблица переходов автомата: [состояние * 256 + байт]
+	private static final int[] DELTA;
+	// Битовая маска шаблонов, заканчивающихся в состоянии
+	private static final int[] OUTPUT;
+
+	static {
+		int maxStates = 1;
+		for (byte[] p : PATTERNS) maxStates += p.length;
+		int[] delta = new int[maxStates * 256];
+		int[] output = new int[maxStates];
+		java.util.Arrays.fill(delta, -1);
+
+		// 1. Бор
+		int stateCount = 1;
+		for (int id = 0; id < PATTERNS.length; id++) {
+			int state = 0;
+			for (byte b : PATTERNS[id]) {
+				int idx = state * 256 + (b & 0xFF);
+				if (delta[idx] == -1) delta[idx] = stateCount++;
+				state = delta[idx];
+			}
+			output[state] |= 1 << id;
+		}
+
+		// 2. Суффиксные ссылки обходом в ширину, сразу сворачиваемые в полную таблицу
+		int[] fail = new int[stateCount];
+		int[] queue = new int[stateCount];
+		int head = 0, tail = 0;
+		for (int c = 0; c < 256; c++) {
+			int next = delta[c];
+			if (next == -1) {
+				delta[c] = 0;
+				} else {
+				fail[next] = 0;
+				queue[tail++] = next;
+			}
+		}
+		while (head < tail) {
+			int state = queue[head++];
+			output[state] |= output[fail[state]];
+			for (int c = 0; c < 256; c++) {
+				int idx = state * 256 + c;
+				int next = delta[idx];
+				if (next == -1) {
+					delta[idx] = delta[fail[state] * 256 + c];
+					} else {
+					fail[next] = delta[fail[state] * 256 + c];
+					queue[tail++] = next;
+				}
+			}
+		}
+
+		DELTA = java.util.Arrays.copyOf(delta, stateCount * 256);
+		OUTPUT = java.util.Arrays.copyOf(output, stateCount);
+	}
+
+	// Фазы разбора одной строки (как и в regex, '.' не проходит через перевод строки)
+	private static final int SEEK_PTH = 0;   // Ищем PTH
+	private static final int PTH_DIGITS = 1; // Читаем цифры после PTH
+	private static final int HAVE_PTH = 2;   // Есть PTH, ищем "My Recordings/"
+	private static final int IN_PATH = 3;    // Читаем путь до ".wav"
+
+	private final Listener listener;
+	private int state = 0;
+	private int phase = SEEK_PTH;
+	private long offset = 0;
+
+	private final StringBuilder digits = new StringBuilder(MAX_PTH_DIGITS);
+	private String pthKey;
+	private long pthOffset;
+
+	private final byte[] path = new byte[MAX_PATH_BYTES];
+	private int pathLength;
+	private long pathOffset;
+
+	private int referenceCount = 0;
+
+	public FlmReferenceScanner(Listener listener) {
+		this.listener = listener;
+	}
+
+	public int getReferenceCount() {
+		return referenceCount;
+	}
+
+	@Override
+	public void write(int b) {
+		step((byte) b);
+	}
+
+	@Override
+	public void write(byte[] data, int off, int len) {
+		int end = off + len;
+		for (int i = off; i < end; i++) {
+			step(data[i]);
+		}
+	}
+
+	private void step(byte b) {
+		int c = b & 0xFF;
+		state = DELTA[(state << 8) | c];
+		int matches = OUTPUT[state];
+		long position = offset++;
+
+		if (c == '\n' || c == '\r') {
+			// Перевод строки обрывает любое незавершенное совпадение
+			phase = SEEK_PTH;
+			return;
+		}
+
+		switch (phase) {
+			case SEEK_PTH:
+			if ((matches & MATCH_PTH) != 0) startPth(position);
+			break;
+
+			case PTH_DIGITS:
+			if (c >= '0' && c <= '9') {
+				if (digits.length() < MAX_PTH_DIGITS) digits.append((char) c);
+				break;
+			}
+			if (digits.length() == 0) {
+				// "PTH" без цифр не считается
+				phase = SEEK_PTH;
+				if ((matches & MATCH_PTH) != 0) startPth(position);
+				break;
+			}
+			pthKey = "PTH" + digits;
+			phase = HAVE_PTH;
+			// Текущий байт уже не цифра: он может начинать "My Recordings/", автомат его учел
+			break;
+
+			case HAVE_PTH:
+			// Более поздние PTH игнорируем: regex берет самое левое совпадение
+			if ((matches & MATCH_RECORDINGS) != 0) startPath(position);
+			break;
+
+			case IN_PATH:
+			if (pathLength == MAX_PATH_BYTES) {
+				// Слишком длинный путь: ищем следующий "My Recordings/" для того же PTH
+				phase = HAVE_PTH;
+				if ((matches & MATCH_RECORDINGS) != 0) startPath(position);
+				break;
+			}
+			path[pathLength++] = b;
+			if ((matches & MATCH_WAV) != 0) {
+				emit();
+				phase = SEEK_PTH;
+			}
+			break;
+		}
+	}
+
+	private void startPth(long position) {
+		pthOffset = position - PATTERNS[0].length + 1;
+		digits.setLength(0);
+		phase = PTH_DIGITS;
+	}
+
+	private void startPath(long position) {
+		int markerLength = PATTERNS[1].length;
+		System.arraycopy(PATTERNS[1], 0, path, 0, markerLength);
+		pathLength = markerLength;
+		pathOffset = position - markerLength + 1;
+		phase = IN_PATH;
+	}
+
+	private void emit() {
+		referenceCount++;
+		if (listener == null) return;
+		String wavPath = new String(path, 0, pathLength, StandardCharsets.UTF_8);
+		listener.onReference(new Reference(pthKey, wavPath, pthOffset, pathOffset, pathLength));
+	}
+
+	// =====================================================================
+	// Удобные методы
+	// =====================================================================
+
+	/**
+	* Сканирует поток целиком и группирует пути по PTH-ключу в порядке появления.
+	*/
+	public static Map<String, List<String>> scanToTree(InputStream stream) throws IOException {
+		Map<String, List<String>> tree = new LinkedHashMap<>();
+		FlmReferenceScanner scanner = new FlmReferenceScanner(treeCollector(tree));
+		byte[] chunk = new byte[16384];
+		int read;
+		while ((read = stream.read(chunk)) != -1) {
+			scanner.write(chunk, 0, read);
+		}
+		return tree;
+	}
+
+	/**
+	* Listener, раскладывающий ссылки в дерево "PTH -> список WAV".
+	*/
+	public static Listener treeCollector(Map<String, List<String>> tree) {
+		return reference -> {
+			List<String> wavPaths = tree.get(reference.pthKey);
+			if (wavPaths == null) {
+				wavPaths = new ArrayList<>();
+				tree.put(reference.pthKey, wavPaths);
+			}
+			wavPaths.add(reference.wavPath);
+		};
+	}
+}
@@ -0,0 +1,738 @@
+package com.gignorie.fldist;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+* Сжатие WAV без потерь для хранимых оригиналов (см. EditStore).
+* Схема как у FLAC, но проще: фиксированные предсказатели порядка 0-4, остатки
+* кодом Райса с параметром на каждые PARTITION_SIZE отсчетов, для стерео —
+* выбор между L/R и mid/side на каждый блок. Блоки по BLOCK_FRAMES кадров
+* кодируются и декодируются параллельно.
+*
+* Все байты файла вне звука (заголовок, LIST и прочие чанки) хранятся как есть,
+* поэтому восстановленный файл совпадает с оригиналом побайтно. Каждый блок
+* после кодирования сразу декодируется и сверяется; в конце потока хранится
+* хеш звука (как у ContentHash), который проверяется при распаковке.
+*
+* Формат (DataOutputStream, big-endian):
+*   "FLDC" версия(1)
+*   int длина заголовка, байты заголовка (все до данных чанка data)
+*   short каналы, byte байт на отсчет, short validBits, int sampleRate
+*   блоки: int кадров (0 — конец), int длина, данные блока
+*   int длина хвоста, байты хвоста (все после целых кадров)
+*   long хеш звука
+*/
+public final class LosslessCodec {
+
+	public static final String FILE_SUFFIX = ".fldc";
+
+	private static final int MAGIC = 0x464C4443;
+	private static final int VERSION = 1;
+
+	private static final int BLOCK_FRAMES = 4096;
+	private static final int PARTITION_SIZE = 256;
+	private static final int MAX_ORDER = 4;
+	// Частное кода Райса длиннее — остаток пишется как есть (длина + биты)
+	private static final int ESCAPE_QUOTIENT = 32;
+
+	private static final int MODE_VERBATIM = 0;
+	private static final int MODE_INDEPENDENT = 1;
+	private static final int MODE_MID_SIDE = 2;
+
+	private static final int RIFF_CHUNK_ID = 0x46464952;
+	private static final int FMT_CHUNK_ID = 0x20746D66;
+	private static final int DATA_CHUNK_ID = 0x61746164;
+
+	private LosslessCodec() { }
+
+	/**
+	* Сжимает WAV из in в out (потоки не закрываются). Возвращает хеш звука,
+	* равный ContentHash.ofFile для того же файла.
+	* @param helpers пул для дополнительных потоков (вызывающий поток работает сам).
+	*/
+	public static long encode(InputStream in, OutputStream out, Executor helpers, int parallelism) throws IOException {
+		DataInputStream input = new DataInputStream(in);
+		DataOutputStream output = new DataOutputStream(out);
+
+		// --- Заголовок: все до данных чанка data ---
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		byte[] chunkHeader = new byte[12];
+		input.readFully(chunkHeader, 0, 12);
+		if (getLE(chunkHeader, 0, 4) != RIFF_CHUNK_ID) throw new IOException("Not a RIFF file");
+		header.write(chunkHeader, 0, 12);
+
+		int numChannels = 0;
+		int blockAlign = 0;
+		int validBits = 0;
+		long sampleRate = 0;
+		long dataSize;
+		while (true) {
+			input.readFully(chunkHeader, 0, 8);
+			header.write(chunkHeader, 0, 8);
+			int chunkId = getLE(chunkHeader, 0, 4);
+			long chunkSize = getLE(chunkHeader, 4, 4) & 0xFFFFFFFFL;
+			if (chunkId == DATA_CHUNK_ID) {
+				dataSize = chunkSize;
+				break;
+			}
+			byte[] body = new byte[(int) (chunkSize + (chunkSize % 2))];
+			input.readFully(body);
+			header.write(body, 0, body.length);
+			if (chunkId == FMT_CHUNK_ID) {
+				if (getLE(body, 0, 2) != 1) throw new IOException("Only PCM WAV can be compressed");
+				numChannels = getLE(body, 2, 2);
+				sampleRate = getLE(body, 4, 4) & 0xFFFFFFFFL;
+				blockAlign = getLE(body, 12, 2);
+				validBits = getLE(body, 14, 2);
+			}
+		}
+		if (numChannels == 0 || blockAlign == 0 || blockAlign % numChannels != 0) {
+			throw new IOException("Missing or invalid format chunk");
+		}
+		int bytesPerSample = blockAlign / numChannels;
+
+		output.writeInt(MAGIC);
+		output.writeByte(VERSION);
+		output.writeInt(header.size());
+		header.writeTo(output);
+		output.writeShort(numChannels);
+		output.writeByte(bytesPerSample);
+		output.writeShort(validBits);
+		output.writeInt((int) sampleRate);
+
+		// --- Блоки: группами по числу потоков, запись по порядку ---
+		XxHash64 hash = ContentHash.newDataHash(numChannels, validBits, sampleRate);
+		Format format = new Format(numChannels, bytesPerSample);
+		int group = Math.max(1, parallelism) * 2;
+		byte[][] raw = new byte[group][];
+		int[] frames = new int[group];
+		byte[][] encoded = new byte[group][];
+		long framesLeft = dataSize / blockAlign;
+		boolean truncated = false;
+		byte[] partialFrame = new byte[0];
+
+		while (framesLeft > 0 && !truncated) {
+			int count = 0;
+			while (count < group && framesLeft > 0 && !truncated) {
+				int wanted = (int) Math.min(BLOCK_FRAMES, framesLeft);
+				byte[] block = new byte[wanted * blockAlign];
+				int read = readUpTo(input, block);
+				int whole = read / blockAlign;
+				if (whole < wanted) {
+					// Обрезанный файл: неполный кадр уходит в хвост как есть
+					truncated = true;
+					partialFrame = Arrays.copyOfRange(block, whole * blockAlign, read);
+				}
+				if (whole == 0) break;
+				raw[count] = whole == wanted ? block : Arrays.copyOf(block, whole * blockAlign);
+				frames[count] = whole;
+				framesLeft -= whole;
+				count++;
+			}
+
+			final int blocks = count;
+			forEachParallel(blocks, helpers, parallelism, i -> encoded[i] = encodeBlock(raw[i], frames[i], format));
+			for (int i = 0; i < blocks; i++) {
+				output.writeInt(frames[i]);
+				output.writeInt(encoded[i].length);
+				output.write(encoded[i]);
+				hash.update(raw[i], 0, raw[i].length);
+				raw[i] = null;
+				encoded[i] = null;
+			}
+		}
+		output.writeInt(0);
+
+		// --- Хвост: неполный кадр, выравнивание и чанки после data ---
+		ByteArrayOutputStream trailer = new ByteArrayOutputStream();
+		trailer.write(partialFrame, 0, partialFrame.length);
+		byte[] copy = new byte[8192];
+		int read;
+		while ((read = input.read(copy)) != -1) trailer.write(copy, 0, read);
+		output.writeInt(trailer.size());
+		trailer.writeTo(output);
+
+		long contentHash = hash.digest();
+		output.writeLong(contentHash);
+		output.flush();
+		return contentHash;
+	}
+
+	/**
+	* Восстанавливает исходный WAV побайтно (потоки не закрываются).
+	* @throws IOException если данные повреждены или хеш звука не совпал.
+	*/
+	public static long decode(InputStream in, OutputStream out, Executor helpers, int parallelism) throws IOException {
+		Decoder decoder = new Decoder(in, helpers, parallelism);
+		byte[] chunk;
+		while ((chunk = decoder.nextChunk()) != null) out.write(chunk);
+		out.flush();
+		return decoder.contentHash;
+	}
+
+	/**
+	* Исходный WAV как поток, распаковываемый по мере чтения (группами блоков параллельно):
+	* рендер читает оригинал прямо из сжатого файла, без распакованной копии на диске.
+	* Хеш звука сверяется, как только распакован последний блок, — до того как отданы
+	* его байты. close() закрывает и in.
+	*/
+	public static InputStream openDecoded(InputStream in, Executor helpers, int parallelism) {
+		return new Decoder(in, helpers, parallelism);
+	}
+
+	/**
+	* Распаковка по частям: заголовок, группа блоков, хвост. Ничего не читает до первого запроса.
+	*/
+	private static final class Decoder extends InputStream {
+		private final DataInputStream input;
+		private final Executor helpers;
+		private final int parallelism;
+		private Format format;
+		private XxHash64 hash;
+		private byte[][] encoded;
+		private int[] frames;
+		private byte[][] raw;
+		// Готовые части по порядку; хвост добавляется после сверки хеша
+		private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+		private byte[] current;
+		private int position;
+		private boolean started;
+		private boolean finished;
+		private long contentHash;
+
+		Decoder(InputStream in, Executor helpers, int parallelism) {
+			this.input = new DataInputStream(in);
+			this.helpers = helpers;
+			this.parallelism = parallelism;
+		}
+
+		/**
+		* Следующая часть исходного файла или null в конце.
+		*/
+		byte[] nextChunk() throws IOException {
+			while (pending.isEmpty() && !finished) fill();
+			return pending.poll();
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (length == 0) return 0;
+			while (current == null || position == current.length) {
+				current = nextChunk();
+				position = 0;
+				if (current == null) return -1;
+			}
+			int count = Math.min(length, current.length - position);
+			System.arraycopy(current, position, buffer, offset, count);
+			position += count;
+			return count;
+		}
+
+		@Override
+		public void close() throws IOException {
+			input.close();
+		}
+
+		private void fill() throws IOException {
+			if (!started) {
+				readHeader();
+				started = true;
+				return;
+			}
+			int count = 0;
+			boolean end = false;
+			while (count < encoded.length) {
+				int blockFrames = input.readInt();
+				if (blockFrames == 0) {
+					end = true;
+					break;
+				}
+				if (blockFrames < 0 || blockFrames > BLOCK_FRAMES) throw new IOException("Corrupt block header");
+				byte[] block = new byte[input.readInt()];
+				input.readFully(block);
+				encoded[count] = block;
+				frames[count] = blockFrames;
+				count++;
+			}
+
+			final int blocks = count;
+			forEachParallel(blocks, helpers, parallelism, i -> raw[i] = decodeBlock(encoded[i], frames[i], format));
+			for (int i = 0; i < blocks; i++) {
+				hash.update(raw[i], 0, raw[i].length);
+				pending.add(raw[i]);
+				raw[i] = null;
+				encoded[i] = null;
+			}
+			if (end) readTrailer();
+		}
+
+		private void readHeader() throws IOException {
+			if (input.readInt() != MAGIC) throw new IOException("Not a compressed original");
+			int version = input.readUnsignedByte();
+			if (version != VERSION) throw new IOException("Unsupported codec version " + version);
+
+			byte[] header = new byte[input.readInt()];
+			input.readFully(header);
+			pending.add(header);
+			int numChannels = input.readUnsignedShort();
+			int bytesPerSample = input.readUnsignedByte();
+			int validBits = input.readUnsignedShort();
+			long sampleRate = input.readInt() & 0xFFFFFFFFL;
+
+			hash = ContentHash.newDataHash(numChannels, validBits, sampleRate);
+			format = new Format(numChannels, bytesPerSample);
+			int group = Math.max(1, parallelism) * 2;
+			encoded = new byte[group][];
+			frames = new int[group];
+			raw = new byte[group][];
+		}
+
+		private void readTrailer() throws IOException {
+			byte[] trailer = new byte[input.readInt()];
+			input.readFully(trailer);
+			long expected = input.readLong();
+			long actual = hash.digest();
+			if (actual != expected) {
+				// Поврежденный звук не должен дойти до читателя
+				pending.clear();
+				throw new IOException("Decoded audio does not match the stored hash");
+			}
+			pending.add(trailer);
+			contentHash = actual;
+			finished = true;
+		}
+	}
+
+	/**
+	* Хеш звука из конца сжатого файла, без распаковки (ключ для RenderCache).
+	*/
+	public static long readContentHash(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			if (raf.length() < 8) throw new EOFException("Compressed original is truncated");
+			raf.seek(raf.length() - 8);
+			return raf.readLong();
+		}
+	}
+
+	// =====================================================================
+	// БЛОК
+	// =====================================================================
+
+	private static final class Format {
+		final int numChannels;
+		final int bytesPerSample;
+
+		Format(int numChannels, int bytesPerSample) {
+			this.numChannels = numChannels;
+			this.bytesPerSample = bytesPerSample;
+		}
+
+		// Отсчеты шире 32 бит не сжимаются: блоки пишутся как есть
+		boolean isCodable() {
+			return bytesPerSample >= 1 && bytesPerSample <= 4;
+		}
+	}
+
+	private static byte[] encodeBlock(byte[] raw, int frames, Format format) throws IOException {
+		if (!format.isCodable()) return verbatim(raw);
+
+		long[][] channels = deinterleave(raw, frames, format);
+		int mode = MODE_INDEPENDENT;
+		if (format.numChannels == 2) {
+			long[] mid = new long[frames];
+			long[] side = new long[frames];
+			for (int i = 0; i < frames; i++) {
+				mid[i] = (channels[0][i] + channels[1][i]) >> 1;
+				side[i] = channels[0][i] - channels[1][i];
+			}
+			long independentCost = bestOrderCost(channels[0]) + bestOrderCost(channels[1]);
+			long midSideCost = bestOrderCost(mid) + bestOrderCost(side);
+			if (midSideCost < independentCost) {
+				mode = MODE_MID_SIDE;
+				channels = new long[][] { mid, side };
+			}
+		}
+
+		BitWriter writer = new BitWriter(raw.length / 2 + 64);
+		writer.writeBits(mode, 8);
+		for (long[] channel : channels) encodeChannel(writer, channel);
+		byte[] coded = writer.toByteArray();
+		if (coded.length >= raw.length + 1) return verbatim(raw);
+
+		// Сверка сразу после кодирования: ошибка кодека не должна дойти до хранимой копии
+		try {
+			if (Arrays.equals(decodeBlock(coded, frames, format), raw)) return coded;
+			} catch (IOException e) {
+			// Падаем в копию как есть
+		}
+		return verbatim(raw);
+	}
+
+	private static byte[] decodeBlock(byte[] block, int frames, Format format) throws IOException {
+		if (block.length == 0) throw new IOException("Empty block");
+		int mode = block[0] & 0xFF;
+		if (mode == MODE_VERBATIM) {
+			int expected = frames * format.numChannels * format.bytesPerSample;
+			if (block.length - 1 != expected) throw new IOException("Corrupt verbatim block");
+			return Arrays.copyOfRange(block, 1, block.length);
+		}
+		if (!format.isCodable()) throw new IOException("Corrupt block mode");
+
+		BitReader reader = new BitReader(block, 1);
+		long[][] channels = new long[format.numChannels][];
+		for (int c = 0; c < format.numChannels; c++) channels[c] = decodeChannel(reader, frames);
+		if (mode == MODE_MID_SIDE) {
+			if (format.numChannels != 2) throw new IOException("Corrupt block mode");
+			long[] mid = channels[0];
+			long[] side = channels[1];
+			for (int i = 0; i < frames; i++) {
+				long m = (mid[i] << 1) | (side[i] & 1);
+				channels[0][i] = (m + side[i]) >> 1;
+				channels[1][i] = (m - side[i]) >> 1;
+			}
+			} else if (mode != MODE_INDEPENDENT) {
+			throw new IOException("Corrupt block mode");
+		}
+		return interleave(channels, frames, format);
+	}
+
+	private static byte[] verbatim(byte[] raw) {
+		byte[] block = new byte[raw.length + 1];
+		block[0] = MODE_VERBATIM;
+		System.arraycopy(raw, 0, block, 1, raw.length);
+		return block;
+	}
+
+	private static long[][] deinterleave(byte[] raw, int frames, Format format) {
+		long[][] channels = new long[format.numChannels][frames];
+		int bytes = format.bytesPerSample;
+		int pos = 0;
+		for (int i = 0; i < frames; i++) {
+			for (int c = 0; c < format.numChannels; c++) {
+				long value = 0;
+				for (int b = 0; b < bytes; b++) value |= (raw[pos + b] & 0xFFL) << (8 * b);
+				pos += bytes;
+				if (bytes == 1) {
+					// 8-битный PCM беззнаковый
+					value -= 128;
+					} else {
+					int shift = 64 - 8 * bytes;
+					value = (value << shift) >> shift;
+				}
+				channels[c][i] = value;
+			}
+		}
+		return channels;
+	}
+
+	private static byte[] interleave(long[][] channels, int frames, Format format) {
+		int bytes = format.bytesPerSample;
+		byte[] raw = new byte[frames * format.numChannels * bytes];
+		int pos = 0;
+		for (int i = 0; i < frames; i++) {
+			for (int c = 0; c < format.numChannels; c++) {
+				long value = channels[c][i];
+				if (bytes == 1) value += 128;
+				for (int b = 0; b < bytes; b++) raw[pos + b] = (byte) (value >> (8 * b));
+				pos += bytes;
+			}
+		}
+		return raw;
+	}
+
+	// =====================================================================
+	// КАНАЛ: ПРЕДСКАЗАНИЕ И КОД РАЙСА
+	// =====================================================================
+
+	/**
+	* Остаток фиксированного предсказателя порядка order (первые отсчеты — меньшим порядком).
+	*/
+	private static long residual(long[] x, int i, int order) {
+		switch (Math.min(order, i)) {
+			case 0: return x[i];
+			case 1: return x[i] - x[i - 1];
+			case 2: return x[i] - 2 * x[i - 1] + x[i - 2];
+			case 3: return x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+			default: return x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4];
+		}
+	}
+
+	private static long prediction(long[] x, int i, int order) {
+		switch (Math.min(order, i)) {
+			case 0: return 0;
+			case 1: return x[i - 1];
+			case 2: return 2 * x[i - 1] - x[i - 2];
+			case 3: return 3 * x[i - 1] - 3 * x[i - 2] + x[i - 3];
+			default: return 4 * x[i - 1] - 6 * x[i - 2] + 4 * x[i - 3] - x[i - 4];
+		}
+	}
+
+	private static int bestOrder(long[] x, long[] costOut) {
+		long[] sums = new long[MAX_ORDER + 1];
+		for (int i = 0; i < x.length; i++) {
+			for (int order = 0; order <= MAX_ORDER; order++) sums[order] += Math.abs(residual(x, i, order));
+		}
+		int best = 0;
+		for (int order = 1; order <= MAX_ORDER; order++) {
+			if (sums[order] < sums[best]) best = order;
+		}
+		if (costOut != null) costOut[0] = sums[best];
+		return best;
+	}
+
+	private static long bestOrderCost(long[] x) {
+		long[] cost = new long[1];
+		bestOrder(x, cost);
+		return cost[0];
+	}
+
+	private static void encodeChannel(BitWriter writer, long[] x) {
+		int order = bestOrder(x, null);
+		writer.writeBits(order, 3);
+		long[] u = new long[x.length];
+		for (int i = 0; i < x.length; i++) {
+			long e = residual(x, i, order);
+			u[i] = (e << 1) ^ (e >> 63);
+		}
+		for (int start = 0; start < u.length; start += PARTITION_SIZE) {
+			int end = Math.min(u.length, start + PARTITION_SIZE);
+			int k = riceParameter(u, start, end);
+			writer.writeBits(k, 6);
+			for (int i = start; i < end; i++) {
+				long q = u[i] >>> k;
+				if (q < ESCAPE_QUOTIENT) {
+					// q единиц и ноль
+					writer.writeBits(((1L << q) - 1) << 1, (int) q + 1);
+					if (k > 0) writer.writeLong(u[i] & ((1L << k) - 1), k);
+					} else {
+					writer.writeBits((1L << ESCAPE_QUOTIENT) - 1, ESCAPE_QUOTIENT);
+					int length = 64 - Long.numberOfLeadingZeros(u[i]);
+					writer.writeBits(length, 7);
+					writer.writeLong(u[i], length);
+				}
+			}
+		}
+	}
+
+	private static long[] decodeChannel(BitReader reader, int frames) throws IOException {
+		int order = (int) reader.readBits(3);
+		if (order > MAX_ORDER) throw new IOException("Corrupt predictor order");
+		long[] x = new long[frames];
+		for (int start = 0; start < frames; start += PARTITION_SIZE) {
+			int end = Math.min(frames, start + PARTITION_SIZE);
+			int k = (int) reader.readBits(6);
+			for (int i = start; i < end; i++) {
+				int q = reader.readUnary(ESCAPE_QUOTIENT);
+				long u;
+				if (q < ESCAPE_QUOTIENT) {
+					u = ((long) q << k) | (k > 0 ? reader.readLong(k) : 0);
+					} else {
+					u = reader.readLong((int) reader.readBits(7));
+				}
+				long e = (u >>> 1) ^ -(u & 1);
+				x[i] = prediction(x, i, order) + e;
+			}
+		}
+		return x;
+	}
+
+	/**
+	* Параметр Райса для отрезка: оценка по среднему и выбор лучшего из соседних.
+	*/
+	private static int riceParameter(long[] u, int start, int end) {
+		long sum = 0;
+		for (int i = start; i < end; i++) sum += u[i];
+		long mean = sum / (end - start);
+		int estimate = mean == 0 ? 0 : 63 - Long.numberOfLeadingZeros(mean);
+		int best = estimate;
+		long bestCost = Long.MAX_VALUE;
+		for (int k = Math.max(0, estimate - 1); k <= Math.min(62, estimate + 1); k++) {
+			long cost = 0;
+			for (int i = start; i < end; i++) {
+				long q = u[i] >>> k;
+				cost += q < ESCAPE_QUOTIENT ? q + 1 + k : ESCAPE_QUOTIENT + 7 + 64;
+			}
+			if (cost < bestCost) {
+				bestCost = cost;
+				best = k;
+			}
+		}
+		return best;
+	}
+
+	// =====================================================================
+	// БИТОВЫЕ ПОТОКИ И ПАРАЛЛЕЛЬНОСТЬ
+	// =====================================================================
+
+	private static final class BitWriter {
+		private byte[] buffer;
+		private int size;
+		private long acc;
+		private int accBits;
+
+		BitWriter(int capacity) {
+			buffer = new byte[Math.max(16, capacity)];
+		}
+
+		/** До 56 бит за раз, старшим битом вперед. */
+		void writeBits(long value, int bits) {
+			acc = (acc << bits) | (value & ((1L << bits) - 1));
+			accBits += bits;
+			while (accBits >= 8) {
+				accBits -= 8;
+				if (size == buffer.length) buffer = Arrays.copyOf(buffer, size * 2);
+				buffer[size++] = (byte) (acc >>> accBits);
+			}
+		}
+
+		void writeLong(long value, int bits) {
+			if (bits > 32) {
+				writeBits(value >>> 32, bits - 32);
+				writeBits(value & 0xFFFFFFFFL, 32);
+				} else if (bits > 0) {
+				writeBits(value, bits);
+			}
+		}
+
+		byte[] toByteArray() {
+			if (accBits > 0) writeBits(0, 8 - accBits);
+			return Arrays.copyOf(buffer, size);
+		}
+	}
+
+	private static final class BitReader {
+		private final byte[] buffer;
+		private int pos;
+		private long acc;      // Выровнен по старшему биту
+		private int accBits;
+
+		BitReader(byte[] buffer, int offset) {
+			this.buffer = buffer;
+			this.pos = offset;
+		}
+
+		private void refill() {
+			while (accBits <= 56 && pos < buffer.length) {
+				acc |= (buffer[pos++] & 0xFFL) << (56 - accBits);
+				accBits += 8;
+			}
+		}
+
+		private void consume(int bits) {
+			acc = bits == 64 ? 0 : acc << bits;
+			accBits -= bits;
+		}
+
+		long readBits(int bits) throws IOException {
+			if (bits == 0) return 0;
+			refill();
+			if (accBits < bits) throw new IOException("Unexpected end of block");
+			long value = acc >>> (64 - bits);
+			consume(bits);
+			return value;
+		}
+
+		long readLong(int bits) throws IOException {
+			if (bits > 32) {
+				long high = readBits(bits - 32);
+				return (high << 32) | readBits(32);
+			}
+			return readBits(bits);
+		}
+
+		/** Число единиц до нуля (ноль поглощается); на limit — без нуля. */
+		int readUnary(int limit) throws IOException {
+			int count = 0;
+			while (true) {
+				refill();
+				if (accBits == 0) throw new IOException("Unexpected end of block");
+				int ones = Math.min(Long.numberOfLeadingZeros(~acc), accBits);
+				if (count + ones >= limit) {
+					consume(limit - count);
+					return limit;
+				}
+				if (ones < accBits) {
+					consume(ones + 1);
+					return count + ones;
+				}
+				count += ones;
+				consume(ones);
+			}
+		}
+	}
+
+	private interface BlockTask {
+		void run(int index) throws IOException;
+	}
+
+	/**
+	* Та же схема, что в ProjectIndex.refresh и BatchApply: вызывающий поток сам
+	* разбирает очередь, помощники подключаются, если пул свободен, а ждать
+	* приходится только блоки, уже взятые помощниками.
+	*/
+	private static void forEachParallel(int count, Executor helpers, int parallelism, BlockTask task) throws IOException {
+		if (count == 0) return;
+		AtomicInteger next = new AtomicInteger();
+		CountDownLatch remaining = new CountDownLatch(count);
+		IOException[] failure = new IOException[1];
+		Runnable drain = () -> {
+			int index;
+			while ((index = next.getAndIncrement()) < count) {
+				try {
+					task.run(index);
+					} catch (IOException | RuntimeException e) {
+					synchronized (failure) {
+						if (failure[0] == null) failure[0] = e instanceof IOException ? (IOException) e : new IOException(e);
+					}
+					} finally {
+					remaining.countDown();
+				}
+			}
+		};
+		int workers = helpers == null ? 1 : Math.min(count, Math.max(1, parallelism));
+		for (int i = 1; i < workers; i++) helpers.execute(drain);
+		drain.run();
+		try {
+			remaining.await();
+			} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while coding blocks", e);
+		}
+		if (failure[0] != null) throw failure[0];
+	}
+
+	private static int readUpTo(InputStream in, byte[] buffer) throws IOException {
+		int total = 0;
+		while (total < buffer.length) {
+			int read = in.read(buffer, total, buffer.length - total);
+			if (read == -1) break;
+			total += read;
+		}
+		return total;
+	}
+
+	private static int getLE(byte[] buffer, int pos, int numBytes) {
+		int value = 0;
+		for (int b = 0; b < numBytes; b++) value |= (buffer[pos + b] & 0xFF) << (8 * b);
+		return value;
+	}
+}
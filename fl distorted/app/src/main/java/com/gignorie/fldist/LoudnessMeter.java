@@ -0,0 +1,358 @@
+package com.gignorie.fldist;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+* Громкость по ITU-R BS.1770-4 / EBU R128 прямо в проходе рендера: взвешивание K
+* (полка +4 дБ и срез ниже ~38 Гц), интегральная громкость с абсолютным (-70 LUFS) и
+* относительным (-10 LU) порогами по блокам 400 мс с шагом 100 мс, наибольшая
+* кратковременная (окно 3 с), пиковый отсчет и истинный пик с передискретизацией x4.
+*
+* Память не зависит от длины сигнала, кроме энергий блоков для порога (8 байт на 100 мс).
+* Истинный пик считается только там, где он может превысить уже найденный:
+* межотсчетный выброс не больше суммы модулей коэффициентов интерполятора, умноженной
+* на пиковый отсчет окна, поэтому тихие и обычные блоки фильтр не проходят.
+*
+* Каналы взвешиваются одинаково: раскладку каналов WAV из FLM не сообщает.
+*/
+public final class LoudnessMeter {
+
+	// Блок громкости — 4 шага по 100 мс, кратковременное окно — 30 шагов
+	private static final double HOP_SECONDS = 0.1;
+	private static final int BLOCK_HOPS = 4;
+	private static final int SHORT_TERM_HOPS = 30;
+	private static final double ABSOLUTE_GATE_LUFS = -70;
+	private static final double RELATIVE_GATE_LU = -10;
+
+	// Интерполятор истинного пика: 4 фазы по 12 отводов (как фильтр из приложения 2 BS.1770)
+	private static final int OVERSAMPLING = 4;
+	private static final int TAPS = 12;
+	private static final double[][] PHASES = new double[OVERSAMPLING][TAPS];
+	// Наибольшее усиление интерполятора для любого сигнала (сумма модулей отводов фазы)
+	private static final double INTERPOLATOR_BOUND;
+	private static final int PEAK_CHUNK_FRAMES = 256;
+
+	static {
+		double bound = 1;
+		for (int p = 1; p < OVERSAMPLING; p++) {
+			double sum = 0;
+			double abs = 0;
+			for (int j = 0; j < TAPS; j++) {
+				// Отвод j умножает x[n - TAPS + 1 + j]; точка интерполяции — n - TAPS/2 + p/4
+				double u = (double) p / OVERSAMPLING + TAPS / 2 - 1 - j;
+				double window = 0.42 + 0.5 * Math.cos(Math.PI * u / (TAPS / 2)) + 0.08 * Math.cos(2 * Math.PI * u / (TAPS / 2));
+				PHASES[p][j] = Math.sin(Math.PI * u) / (Math.PI * u) * window;
+				sum += PHASES[p][j];
+			}
+			// Постоянная составляющая проходит без изменений
+			for (int j = 0; j < TAPS; j++) {
+				PHASES[p][j] /= sum;
+				abs += Math.abs(PHASES[p][j]);
+			}
+			bound = Math.max(bound, abs);
+		}
+		INTERPOLATOR_BOUND = bound;
+	}
+
+	private final int numChannels;
+	private final boolean measureTruePeak;
+	private final int hopFrames;
+
+	// Взвешивание K: два биквада на канал (полка, затем срез), состояние транспонированной формы II
+	private final double shelfB0, shelfB1, shelfB2, shelfA1, shelfA2;
+	// Числитель среза — 1, -2, 1
+	private final double highA1, highA2;
+	private final double[] state;
+
+	private int hopRemaining;
+	private double hopEnergy;
+	// Последние SHORT_TERM_HOPS энергий шагов (кольцо)
+	private final double[] recentHops = new double[SHORT_TERM_HOPS];
+	private long hopCount;
+	// Средний квадрат каждого блока 400 мс — для порогов интегральной громкости
+	private double[] blocks = new double[256];
+	private int blockCount;
+	private double maxShortTerm = Double.NEGATIVE_INFINITY;
+
+	private double samplePeak;
+	private double truePeak;
+	// Хвост предыдущего куска по каналам и рабочая линия для интерполятора
+	private final double[] history;
+	private final double[] line = new double[TAPS - 1 + PEAK_CHUNK_FRAMES];
+
+	/**
+	* @param measureTruePeak false — только громкость и пиковый отсчет (анализ исходника).
+	*/
+	public LoudnessMeter(int numChannels, double sampleRate, boolean measureTruePeak) {
+		this.numChannels = numChannels;
+		this.measureTruePeak = measureTruePeak;
+		hopFrames = Math.max(1, (int) Math.round(sampleRate * HOP_SECONDS));
+		hopRemaining = hopFrames;
+		state = new double[numChannels * 4];
+		history = new double[numChannels * (TAPS - 1)];
+
+		// Коэффициенты BS.1770 для любой частоты дискретизации (через билинейное преобразование)
+		double f0 = 1681.974450955533;
+		double gain = 3.999843853973347;
+		double q = 0.7071752369554196;
+		double k = Math.tan(Math.PI * f0 / sampleRate);
+		double vh = Math.pow(10, gain / 20);
+		double vb = Math.pow(vh, 0.4996667741545416);
+		double a0 = 1 + k / q + k * k;
+		shelfB0 = (vh + vb * k / q + k * k) / a0;
+		shelfB1 = 2 * (k * k - vh) / a0;
+		shelfB2 = (vh - vb * k / q + k * k) / a0;
+		shelfA1 = 2 * (k * k - 1) / a0;
+		shelfA2 = (1 - k / q + k * k) / a0;
+
+		f0 = 38.13547087602444;
+		q = 0.5003270373238773;
+		k = Math.tan(Math.PI * f0 / sampleRate);
+		a0 = 1 + k / q + k * k;
+		highA1 = 2 * (k * k - 1) / a0;
+		highA2 = (1 - k / q + k * k) / a0;
+	}
+
+	/**
+	* Добавляет length отсчетов (целые кадры, каналы подряд) из samples[offset...].
+	*/
+	public void process(double[] samples, int offset, int length) {
+		int frames = length / numChannels;
+		int frame = 0;
+		while (frame < frames) {
+			int n = Math.min(frames - frame, hopRemaining);
+			int start = offset + frame * numChannels;
+			if (numChannels == 2) {
+				hopEnergy += weighStereo(samples, start, n);
+				} else {
+				for (int c = 0; c < numChannels; c++) hopEnergy += weigh(samples, start + c, n, c);
+			}
+			hopRemaining -= n;
+			frame += n;
+			if (hopRemaining == 0) finishHop();
+		}
+		if (measureTruePeak) {
+			for (int c = 0; c < numChannels; c++) {
+				for (int f = 0; f < frames; f += PEAK_CHUNK_FRAMES) {
+					truePeak(samples, offset + f * numChannels + c, Math.min(PEAK_CHUNK_FRAMES, frames - f), c);
+				}
+			}
+			} else {
+			for (int i = offset; i < offset + frames * numChannels; i++) samplePeak = Math.max(samplePeak, Math.abs(samples[i]));
+		}
+	}
+
+	/**
+	* Взвешивание K одного канала (шаг numChannels) и сумма квадратов.
+	*/
+	private double weigh(double[] samples, int start, int frames, int channel) {
+		int s = channel * 4;
+		double z1 = state[s], z2 = state[s + 1], w1 = state[s + 2], w2 = state[s + 3];
+		double sum = 0;
+		int end = start + frames * numChannels;
+		for (int i = start; i < end; i += numChannels) {
+			double x = samples[i];
+			double y = shelfB0 * x + z1;
+			z1 = shelfB1 * x - shelfA1 * y + z2;
+			z2 = shelfB2 * x - shelfA2 * y;
+			double v = y + w1;
+			w1 = -2 * y - highA1 * v + w2;
+			w2 = y - highA2 * v;
+			sum += v * v;
+		}
+		state[s] = z1;
+		state[s + 1] = z2;
+		state[s + 2] = w1;
+		state[s + 3] = w2;
+		return sum;
+	}
+
+	/**
+	* То же для стерео: два канала в одном цикле. Рекурсия биквада ограничена задержкой,
+	* независимые цепочки каналов выполняются процессором параллельно.
+	*/
+	private double weighStereo(double[] samples, int start, int frames) {
+		double lz1 = state[0], lz2 = state[1], lw1 = state[2], lw2 = state[3];
+		double rz1 = state[4], rz2 = state[5], rw1 = state[6], rw2 = state[7];
+		double left = 0;
+		double right = 0;
+		int end = start + frames * 2;
+		for (int i = start; i < end; i += 2) {
+			double xl = samples[i];
+			double xr = samples[i + 1];
+			double yl = shelfB0 * xl + lz1;
+			double yr = shelfB0 * xr + rz1;
+			lz1 = shelfB1 * xl - shelfA1 * yl + lz2;
+			rz1 = shelfB1 * xr - shelfA1 * yr + rz2;
+			lz2 = shelfB2 * xl - shelfA2 * yl;
+			rz2 = shelfB2 * xr - shelfA2 * yr;
+			double vl = yl + lw1;
+			double vr = yr + rw1;
+			lw1 = -2 * yl - highA1 * vl + lw2;
+			rw1 = -2 * yr - highA1 * vr + rw2;
+			lw2 = yl - highA2 * vl;
+			rw2 = yr - highA2 * vr;
+			left += vl * vl;
+			right += vr * vr;
+		}
+		state[0] = lz1;
+		state[1] = lz2;
+		state[2] = lw1;
+		state[3] = lw2;
+		state[4] = rz1;
+		state[5] = rz2;
+		state[6] = rw1;
+		state[7] = rw2;
+		return left + right;
+	}
+
+	private void finishHop() {
+		recentHops[(int) (hopCount % SHORT_TERM_HOPS)] = hopEnergy;
+		hopCount++;
+		hopEnergy = 0;
+		hopRemaining = hopFrames;
+		if (hopCount >= BLOCK_HOPS) {
+			if (blockCount == blocks.length) blocks = Arrays.copyOf(blocks, blockCount * 2);
+			blocks[blockCount++] = meanSquare(BLOCK_HOPS);
+		}
+		if (hopCount >= SHORT_TERM_HOPS) maxShortTerm = Math.max(maxShortTerm, lufs(meanSquare(SHORT_TERM_HOPS)));
+	}
+
+	/**
+	* Средний квадрат последних hops шагов (сумма по каналам).
+	*/
+	private double meanSquare(int hops) {
+		double sum = 0;
+		for (int h = 1; h <= hops; h++) sum += recentHops[(int) ((hopCount - h) % SHORT_TERM_HOPS)];
+		return sum / ((long) hops * hopFrames);
+	}
+
+	private static double lufs(double meanSquare) {
+		return -0.691 + 10 * Math.log10(meanSquare);
+	}
+
+	/**
+	* Пиковый отсчет и, если выброс между отсчетами может превысить найденный
+	* истинный пик, интерполяция x4 по линии [хвост предыдущего куска, кусок].
+	*/
+	private void truePeak(double[] samples, int start, int frames, int channel) {
+		int tail = TAPS - 1;
+		int h = channel * tail;
+		System.arraycopy(history, h, line, 0, tail);
+		double chunkPeak = 0;
+		for (int f = 0; f < frames; f++) {
+			double x = samples[start + f * numChannels];
+			line[tail + f] = x;
+			chunkPeak = Math.max(chunkPeak, Math.abs(x));
+		}
+		double historyPeak = 0;
+		for (int j = 0; j < tail; j++) historyPeak = Math.max(historyPeak, Math.abs(line[j]));
+		samplePeak = Math.max(samplePeak, chunkPeak);
+		truePeak = Math.max(truePeak, chunkPeak);
+
+		if (Math.max(chunkPeak, historyPeak) * INTERPOLATOR_BOUND > truePeak) {
+			double peak = truePeak;
+			for (int f = 0; f < frames; f++) {
+				for (int p = 1; p < OVERSAMPLING; p++) {
+					double[] taps = PHASES[p];
+					double y = 0;
+					for (int j = 0; j < TAPS; j++) y += taps[j] * line[f + j];
+					peak = Math.max(peak, Math.abs(y));
+				}
+			}
+			truePeak = peak;
+		}
+		// Хвост для следующего куска
+		System.arraycopy(line, frames, history, h, tail);
+	}
+
+	/**
+	* Итог по всему поданному сигналу.
+	*/
+	public Result getResult() {
+		double integrated = Double.NEGATIVE_INFINITY;
+		double absoluteSum = 0;
+		int absoluteCount = 0;
+		double absoluteGate = Math.pow(10, (ABSOLUTE_GATE_LUFS + 0.691) / 10);
+		for (int i = 0; i < blockCount; i++) {
+			if (blocks[i] > absoluteGate) {
+				absoluteSum += blocks[i];
+				absoluteCount++;
+			}
+		}
+		if (absoluteCount > 0) {
+			double relativeGate = absoluteSum / absoluteCount * Math.pow(10, RELATIVE_GATE_LU / 10);
+			double gate = Math.max(absoluteGate, relativeGate);
+			double sum = 0;
+			int count = 0;
+			for (int i = 0; i < blockCount; i++) {
+				if (blocks[i] > gate) {
+					sum += blocks[i];
+					count++;
+				}
+			}
+			if (count > 0) integrated = lufs(sum / count);
+		}
+		double shortTerm = maxShortTerm;
+		if (hopCount < SHORT_TERM_HOPS) {
+			// Сигнал короче окна: одно окно на весь сигнал, включая недописанный шаг
+			long frames = hopCount * hopFrames + (hopFrames - hopRemaining);
+			double sum = hopEnergy;
+			for (int h = 0; h < hopCount; h++) sum += recentHops[h];
+			if (frames > 0 && sum > 0) shortTerm = lufs(sum / frames);
+		}
+		return new Result(integrated, shortTerm, samplePeak, measureTruePeak ? truePeak : Double.NaN);
+	}
+
+	/**
+	* Результат анализа. Пики — линейные (1.0 — полная шкала), NaN — не измерялось.
+	*/
+	public static final class Result {
+		public final double integratedLufs;
+		public final double maxShortTermLufs;
+		public final double samplePeak;
+		public final double truePeak;
+
+		public Result(double integratedLufs, double maxShortTermLufs, double samplePeak, double truePeak) {
+			this.integratedLufs = integratedLufs;
+			this.maxShortTermLufs = maxShortTermLufs;
+			this.samplePeak = samplePeak;
+			this.truePeak = truePeak;
+		}
+
+		/**
+		* Тот же сигнал с усилением gainDb.
+		*/
+		public Result withGain(double gainDb) {
+			double linear = Math.pow(10, gainDb / 20);
+			return new Result(integratedLufs + gainDb, maxShortTermLufs + gainDb, samplePeak * linear, truePeak * linear);
+		}
+
+		public static double toDb(double linear) {
+			return 20 * Math.log10(linear);
+		}
+
+		/**
+		* Строка для кеша; parse() читает ее обратно без потерь.
+		*/
+		public String serialize() {
+			return "v1 " + integratedLufs + " " + maxShortTermLufs + " " + samplePeak + " " + truePeak;
+		}
+
+		public static Result parse(String line) {
+			String[] parts = line.trim().split(" ");
+			if (parts.length != 5 || !parts[0].equals("v1")) throw new IllegalArgumentException("Bad loudness record: " + line);
+			return new Result(Double.parseDouble(parts[1]), Double.parseDouble(parts[2]),
+			Double.parseDouble(parts[3]), Double.parseDouble(parts[4]));
+		}
+
+		@Override
+		public String toString() {
+			String text = String.format(Locale.US, "%.1f LUFS (short-term max %.1f), peak %.1f dBFS",
+			integratedLufs, maxShortTermLufs, toDb(samplePeak));
+			if (!Double.isNaN(truePeak)) text += String.format(Locale.US, ", true peak %.1f dBTP", toDb(truePeak));
+			return text;
+		}
+	}
+}
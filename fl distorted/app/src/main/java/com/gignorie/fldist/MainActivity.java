@@ -1,8 +1,12 @@
 package com.gignorie.fldist;
 
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Intent;
+import android.content.pm.ApplicationInfo;
 import androidx.appcompat.app.AppCompatActivity;
 import android.app.Dialog;
+import androidx.appcompat.app.AlertDialog;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
@@ -13,16 +17,17 @@ import android.widget.ExpandableListView;
 import android.widget.ListView;
 import android.widget.Toast;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.InputStreamReader;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 // Реализуем интерфейс для обработки кликов из кастомного адаптера
 public class MainActivity extends AppCompatActivity implements CustomExpandableListAdapter.OnChildClickListener {
@@ -35,15 +40,52 @@ public class MainActivity extends AppCompatActivity implements CustomExpandableL
 	private Button scanButton;
 	
 	// Данные
-	private List<String> songNames = new ArrayList<>();
-	private Map<String, String> songPathMap = new HashMap<>(); // Название песни -> Полный путь .flm
+	private List<String> songNames = new ArrayList<>(); // Подписи в списке: название и число ссылок
+	private List<String> songPaths = new ArrayList<>(); // Полные пути .flm в том же порядке
+	private Map<String, Integer> songPositions = new HashMap<>(); // Полный путь .flm -> позиция в списке
 	private ArrayAdapter<String> songListAdapter;
+	private ProjectIndex projectIndex;
+	
+	// Обновления песен из рабочих потоков, сливаемые в одну перерисовку списка
+	private final ConcurrentLinkedQueue<ProjectIndex.SongEntry> pendingSongUpdates = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean songUpdatePosted = new AtomicBoolean(false);
+	
+	// Изменения индекса (полное обновление и наблюдатель) приходят из фоновых потоков
+	private final ProjectIndex.Listener indexListener = new ProjectIndex.Listener() {
+		@Override
+		public void onListing(List<String> flmPaths) {
+			getMainExecutor().execute(() -> {
+				if (!isFinishing()) showSongList(flmPaths);
+			});
+		}
+		
+		@Override
+		public void onSongUpdated(ProjectIndex.SongEntry entry) {
+			postSongUpdate(entry);
+		}
+	};
+	private ProjectWatcher projectWatcher;
+	private boolean isStarted = false;
+	
+	// Открытый диалог ссылок (для обновления на месте)
+	private Dialog treeDialog;
+	private String treeDialogPath;
+	private ExpandableListView treeListView;
+	private CustomExpandableListAdapter treeAdapter;
+	private List<String> treeGroups;
+	private Map<String, List<String>> treeChildren;
 	
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.activity_main);
 		
+		// План рендера: выгрузка в кеш приложения, экономные блоки на слабых устройствах
+		ActivityManager activityManager = getSystemService(ActivityManager.class);
+		RenderPlanner.configure(getCacheDir(), activityManager != null && activityManager.isLowRamDevice());
+		// Аренды буферов, не вернувшиеся в пул, — в лог (только в отладочной сборке)
+		WavRenderer.getBufferPool().setLeakDetection((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
+		
 		// Инициализация UI элементов
 		songListView = findViewById(R.id.song_list_view);
 		scanButton = findViewById(R.id.scan_button);
@@ -55,23 +97,54 @@ public class MainActivity extends AppCompatActivity implements CustomExpandableL
 		songListView.setAdapter(songListAdapter);
 		
 		// Обработчик нажатия на кнопку "Scan"
-		scanButton.setOnClickListener(v -> loadSongList());
+		scanButton.setOnClickListener(v -> refreshSongList(true));
 		
 		// Обработчик нажатия на элемент списка (песню)
 		songListView.setOnItemClickListener((parent, view, position, id) -> {
-			String selectedSongName = songNames.get(position);
-			String fullPath = songPathMap.get(selectedSongName);
+			String fullPath = songPaths.get(position);
 			
 			Toast.makeText(MainActivity.this,
-			"Scanning: " + selectedSongName,
+			"Scanning: " + songNameOf(fullPath),
 			Toast.LENGTH_SHORT).show();
 			
 			// Запуск сканирования выбранного файла .flm
 			scanFileForWavReferences(fullPath);
 		});
 		
-		// Первая попытка загрузки при старте
-		loadSongList();
+		// Долгое нажатие: пакетная обработка песни или всей библиотеки
+		songListView.setOnItemLongClickListener((parent, view, position, id) -> {
+			showSongBatchOptions(songPaths.get(position));
+			return true;
+		});
+		
+		// Список сразу из индекса, затем тихое обновление
+		loadIndexedSongs();
+		// Прерванный пакет предлагается продолжить
+		checkUnfinishedBatch();
+		// Недописанные временные файлы прерванной перезаписи удаляются
+		recoverInterruptedOverwrites();
+	}
+	
+	@Override
+	protected void onStart() {
+		super.onStart();
+		isStarted = true;
+		// Пока экран виден, изменения в папке песен попадают в индекс сами
+		if (projectWatcher != null) projectWatcher.start();
+	}
+	
+	@Override
+	protected void onStop() {
+		super.onStop();
+		isStarted = false;
+		if (projectWatcher != null) projectWatcher.stop();
+	}
+	
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		// Системе не хватает памяти: буферы рендера отдаются сборщику
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) WavRenderer.getBufferPool().trim();
 	}
 	
 	// --- 1. Root Command Execution ---
@@ -80,139 +153,259 @@ public class MainActivity extends AppCompatActivity implements CustomExpandableL
 	* Выполняет команду через 'su' для получения root-доступа.
 	*/
 	private String executeRootCommand(String command) {
-		Process process = null;
-		DataOutputStream os = null;
-		StringBuilder output = new StringBuilder();
 		try {
-			process = Runtime.getRuntime().exec("su");
-			os = new DataOutputStream(process.getOutputStream());
-			
-			os.writeBytes(command + "\n");
-			os.writeBytes("exit\n");
-			os.flush();
+			// Общая долгоживущая root-оболочка: без запуска нового `su` на каждую команду
+			RootShell.Result result = RootShell.getInstance().run(command);
 			
-			BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-			String line;
-			while ((line = reader.readLine()) != null) {
-				output.append(line).append("\n");
+			if (!result.stderr.isEmpty()) {
+				Log.e(TAG, "Root Error Stream: " + result.stderr.trim());
 			}
 			
-			BufferedReader errorReader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
-			while ((line = errorReader.readLine()) != null) {
-				Log.e(TAG, "Root Error Stream: " + line);
-			}
-			
-			process.waitFor();
-			if (process.exitValue() != 0) {
-				return "ERROR: Command failed with code " + process.exitValue() + "\n" + output.toString();
+			if (result.exitCode != 0) {
+				return "ERROR: Command failed with code " + result.exitCode + "\n" + result.stdout;
 			}
+			return result.stdout.trim();
 			
 			} catch (Exception e) {
 			Log.e(TAG, "Failed to execute root command: " + e.getMessage(), e);
 			return "ERROR: Exception executing command: " + e.getMessage();
-			} finally {
-			try {
-				if (os != null) os.close();
-				if (process != null) process.destroy();
-			} catch (Exception e) { /* Ignored */ }
 		}
-		return output.toString().trim();
 	}
 	
 	// --- 2. Load Song List ---
 	
-	private void loadSongList() {
-		songNames.clear();
-		songPathMap.clear();
-		songListAdapter.notifyDataSetChanged();
-		
-		Toast.makeText(this, "Scanning for .flm files...", Toast.LENGTH_SHORT).show();
-		
-		String fileListResult = executeRootCommand("find \"" + SONGS_DIR + "\" -name \"*.flm\"");
+	private static final String SONG_LIST_JOB_KEY = "song_list";
+	private static final String FLM_SCAN_JOB_KEY = "flm_scan";
+	
+	/**
+	* Показывает песни из индекса на диске и сразу запускает тихое обновление в фоне.
+	*/
+	private void loadIndexedSongs() {
+		File indexFile = new File(getFilesDir(), ProjectIndex.FILE_NAME);
+		PriorityScheduler.getInstance().submit(
+		PriorityScheduler.Priority.SCAN,
+		SONG_LIST_JOB_KEY,
+		handle -> ProjectIndex.getInstance(indexFile),
+		getMainExecutor(),
+		new PriorityScheduler.Callback<ProjectIndex>() {
+			@Override
+			public void onSuccess(ProjectIndex index) {
+				if (isFinishing()) return;
+				projectIndex = index;
+				showSongList();
+				refreshSongList(index.isEmpty());
+				
+				projectWatcher = new ProjectWatcher(new File(SONGS_DIR), index,
+				path -> readWavReferences(RootShell.getInstance(), path), indexListener);
+				if (isStarted) projectWatcher.start();
+			}
+			
+			@Override
+			public void onFailure(Exception e) {
+				Log.e(TAG, "Project index load failed: " + e.getMessage(), e);
+			}
+		});
+	}
+	
+	/**
+	* Инкрементально обновляет индекс: листинг size/mtime одной командой,
+	* изменившиеся .flm разбираются параллельно на нескольких root-оболочках.
+	* Песни и числа ссылок появляются в списке по мере разбора.
+	*/
+	private void refreshSongList(boolean showProgress) {
+		if (projectIndex == null) return;
+		final ProjectIndex index = projectIndex;
 		
-		if (fileListResult.startsWith("ERROR")) {
-			Toast.makeText(this, "Root Error or Filesystem access failed.", Toast.LENGTH_LONG).show();
-			Log.e(TAG, "Could not get file list (Root Error): " + fileListResult);
-			return;
+		if (showProgress) {
+			Toast.makeText(this, "Scanning for .flm files...", Toast.LENGTH_SHORT).show();
 		}
 		
-		String[] filePaths = fileListResult.split("\n");
-		int foundCount = 0;
-		
-		for (String fullPath : filePaths) {
-			if (!fullPath.isEmpty() && fullPath.endsWith(".flm")) {
-				File file = new File(fullPath);
-				String fileName = file.getName();
-				
-				String songName = fileName.substring(0, fileName.lastIndexOf(".flm"));
-				songNames.add(songName);
-				songPathMap.put(songName, fullPath);
-				foundCount++;
+		final PriorityScheduler scheduler = PriorityScheduler.getInstance();
+		scheduler.submit(
+		PriorityScheduler.Priority.SCAN,
+		SONG_LIST_JOB_KEY,
+		handle -> {
+			RootShell.Result listing = RootShell.getInstance().run(ProjectIndex.statListingCommand(SONGS_DIR));
+			if (!listing.isSuccess()) {
+				// Индекс не трогаем: пустой листинг из-за ошибки не должен стирать песни
+				throw new IOException("Listing failed with code " + listing.exitCode + ": " + listing.stderr.trim());
+			}
+			
+			// По оболочке на рабочего: одна оболочка выполняет команды только по очереди
+			int workers = Math.min(RootShell.MAX_WORKERS, scheduler.getParallelism(PriorityScheduler.Priority.SCAN));
+			ProjectIndex.ReferenceReader[] readers = new ProjectIndex.ReferenceReader[workers];
+			for (int i = 0; i < workers; i++) {
+				final RootShell shell = RootShell.getWorker(i);
+				readers[i] = path -> readWavReferences(shell, path);
 			}
+			
+			try {
+				ProjectIndex.RefreshResult result = index.refresh(ProjectIndex.parseStatListing(listing.stdout),
+				readers, scheduler.executor(PriorityScheduler.Priority.SCAN), indexListener, handle);
+				if (result.hasChanges()) index.save();
+				return result;
+				} finally {
+				RootShell.closeWorkers();
+			}
+		},
+		getMainExecutor(),
+		new PriorityScheduler.Callback<ProjectIndex.RefreshResult>() {
+			@Override
+			public void onSuccess(ProjectIndex.RefreshResult result) {
+				Log.d(TAG, "Index refresh: " + result.parsed + " parsed, " + result.unchanged
+				+ " unchanged, " + result.removed + " removed, " + result.failed + " failed");
+			}
+			
+			@Override
+			public void onFailure(Exception e) {
+				if (isFinishing()) return;
+				Toast.makeText(MainActivity.this, "Root Error or Filesystem access failed.", Toast.LENGTH_LONG).show();
+				Log.e(TAG, "Could not refresh song index: " + e.getMessage(), e);
+			}
+		});
+	}
+	
+	private void showSongList() {
+		List<String> flmPaths = new ArrayList<>();
+		for (ProjectIndex.SongEntry entry : projectIndex.getSongs()) flmPaths.add(entry.flmPath);
+		showSongList(flmPaths);
+	}
+	
+	/**
+	* Перестраивает список по путям. Песни, еще не разобранные, показываются без числа ссылок.
+	*/
+	private void showSongList(List<String> flmPaths) {
+		songNames.clear();
+		songPaths.clear();
+		songPositions.clear();
+		for (String flmPath : flmPaths) {
+			songPositions.put(flmPath, songPaths.size());
+			songPaths.add(flmPath);
+			songNames.add(songLabel(flmPath, projectIndex.getSong(flmPath)));
 		}
-		
 		songListAdapter.notifyDataSetChanged();
-		//Toast.makeText(this, "Found " + foundCount + " songs.", Toast.LENGTH_SHORT).show();
+	}
+	
+	/**
+	* Ставит обновление песни в очередь; на главный поток уходит не больше одной перерисовки за раз.
+	*/
+	private void postSongUpdate(ProjectIndex.SongEntry entry) {
+		pendingSongUpdates.add(entry);
+		if (songUpdatePosted.compareAndSet(false, true)) {
+			getMainExecutor().execute(this::flushSongUpdates);
+		}
+	}
+	
+	private void flushSongUpdates() {
+		songUpdatePosted.set(false);
+		boolean changed = false;
+		ProjectIndex.SongEntry entry;
+		while ((entry = pendingSongUpdates.poll()) != null) {
+			Integer position = songPositions.get(entry.flmPath);
+			if (position == null) continue;
+			songNames.set(position, songLabel(entry.flmPath, entry));
+			changed = true;
+		}
+		if (changed && !isFinishing()) songListAdapter.notifyDataSetChanged();
+	}
+	
+	private static String songNameOf(String flmPath) {
+		String fileName = new File(flmPath).getName();
+		int dot = fileName.lastIndexOf(".flm");
+		return dot >= 0 ? fileName.substring(0, dot) : fileName;
+	}
+	
+	private static String songLabel(String flmPath, ProjectIndex.SongEntry entry) {
+		if (entry == null) return songNameOf(flmPath) + "  (…)";
+		return entry.getSongName() + "  (" + entry.getReferenceCount() + " WAV)";
 	}
 	
 	// --- 3. Scan and TreeList ---
 	
 	/**
-	* Читает .flm файл и ищет ссылки на WAV-файлы по заданному паттерну.
+	* Показывает ссылки из индекса сразу, затем в фоне проверяет size/mtime файла
+	* и перечитывает его только если он изменился.
+	* Повторное нажатие на другую песню отменяет еще не завершенную проверку.
 	*/
 	private void scanFileForWavReferences(String fullFlmPath) {
-		String fileContent = executeRootCommand("cat \"" + fullFlmPath + "\"");
-		
-		if (fileContent.startsWith("ERROR")) {
-			Toast.makeText(this, "Error reading FLM file content.", Toast.LENGTH_LONG).show();
-			Log.e(TAG, "Error reading FLM file: " + fileContent);
-			return;
+		if (projectIndex == null) return;
+		final ProjectIndex index = projectIndex;
+		final ProjectIndex.SongEntry cached = index.getSong(fullFlmPath);
+		if (cached != null) {
+			showReferences(cached);
 		}
 		
-		// Внимание: Этот Regex ОЧЕНЬ ненадёжен для бинарных файлов.
-		// Ищем: (PTH + цифры + любые символы) + (My Recordings/ + любые символы + .wav)
-		Pattern pattern = Pattern.compile("(PTH\\d+.*?)(My Recordings\\/.*?\\.wav)");
-		Matcher matcher = pattern.matcher(fileContent);
-		
-		Map<String, List<String>> treeData = new HashMap<>();
-		
-		int matchCount = 0;
-		
-		while (matcher.find()) {
-			matchCount++;
-			String pthRaw = matcher.group(1);
-			String wavPath = matcher.group(2);
-			
-			String pthKey = "PTH_" + matchCount;
-			// Пытаемся извлечь чистый PTH-номер
-			try {
-				Pattern pthNumPattern = Pattern.compile("(PTH\\d+)");
-				Matcher pthNumMatcher = pthNumPattern.matcher(pthRaw);
-				if (pthNumMatcher.find()) {
-					pthKey = pthNumMatcher.group(1);
+		PriorityScheduler.getInstance().submit(
+		PriorityScheduler.Priority.SCAN,
+		FLM_SCAN_JOB_KEY,
+		handle -> {
+			RootShell.Result stat = RootShell.getInstance().run("stat -c '%s %Y %n' " + ShellLauncher.quote(fullFlmPath));
+			List<ProjectIndex.FileStat> stats = ProjectIndex.parseStatListing(stat.stdout);
+			if (!stat.isSuccess() || stats.isEmpty()) {
+				throw new IOException("stat failed with code " + stat.exitCode + ": " + stat.stderr.trim());
+			}
+			ProjectIndex.SongEntry entry = index.refreshSong(stats.get(0),
+			path -> readWavReferences(RootShell.getInstance(), path));
+			if (entry == null) throw new IOException("Could not read " + fullFlmPath);
+			if (entry != cached) index.save();
+			return entry;
+		},
+		getMainExecutor(),
+		new PriorityScheduler.Callback<ProjectIndex.SongEntry>() {
+			@Override
+			public void onSuccess(ProjectIndex.SongEntry entry) {
+				if (isFinishing() || entry == cached) return;
+				postSongUpdate(entry);
+				if (treeDialog != null && treeDialog.isShowing() && fullFlmPath.equals(treeDialogPath)) {
+					// Диалог уже открыт из индекса: тихо подменяем данные
+					updateTreeList(entry.references);
+					} else {
+					showReferences(entry);
 				}
-				} catch (Exception e) {
-				// Остается PTH_matchCount
 			}
 			
-			if (!treeData.containsKey(pthKey)) {
-				treeData.put(pthKey, new ArrayList<>());
+			@Override
+			public void onFailure(Exception e) {
+				if (isFinishing() || cached != null) return;
+				Toast.makeText(MainActivity.this, "Error reading FLM file content.", Toast.LENGTH_LONG).show();
+				Log.e(TAG, "Error reading FLM file: " + e.getMessage());
 			}
-			treeData.get(pthKey).add(wavPath);
-		}
-		
+		});
+	}
+	
+	private void showReferences(ProjectIndex.SongEntry entry) {
+		int matchCount = entry.getReferenceCount();
 		if (matchCount > 0) {
 			Toast.makeText(this, "Found " + matchCount + " references.", Toast.LENGTH_SHORT).show();
-			displayTreeList(treeData);
+			displayTreeList(entry.flmPath, entry.references);
 			} else {
 			Toast.makeText(this, "No references found in file.", Toast.LENGTH_SHORT).show();
 		}
 	}
 	
+	/**
+	* Читает .flm потоком через root-оболочку прямо в байтовый сканер (выполняется в фоновом потоке).
+	* Файл не собирается в строку, память не зависит от размера проекта.
+	*/
+	private static Map<String, List<String>> readWavReferences(RootShell shell, String fullFlmPath) throws IOException, InterruptedException {
+		Map<String, List<String>> treeData = new LinkedHashMap<>();
+		FlmReferenceScanner scanner = new FlmReferenceScanner(FlmReferenceScanner.treeCollector(treeData));
+		ByteArrayOutputStream errors = new ByteArrayOutputStream();
+		
+		int exitCode = shell
+		.submit("cat " + ShellLauncher.quote(fullFlmPath), scanner, errors)
+		.waitFor();
+		if (exitCode != 0) {
+			throw new IOException("cat failed with code " + exitCode + ": " + errors.toString().trim());
+		}
+		return treeData;
+	}
+	
 	/**
 	* Отображает найденные ссылки на WAV-файлы в кастомном диалоговом окне с ExpandableListView.
 	*/
-	private void displayTreeList(Map<String, List<String>> tree) {
+	private void displayTreeList(String flmPath, Map<String, List<String>> tree) {
+		if (treeDialog != null) treeDialog.dismiss();
 		final Dialog dialog = new Dialog(this);
 		// Используем макет dialog_tree_list.xml
 		dialog.setContentView(R.layout.dialog_tree_list);
@@ -220,18 +413,31 @@ public class MainActivity extends AppCompatActivity implements CustomExpandableL
 		
 		ExpandableListView expandableListView = dialog.findViewById(R.id.tree_list_view);
 		
-		// Подготовка данных для адаптера
-		final List<String> groupList = new ArrayList<>(tree.keySet());
+		// Подготовка данных для адаптера (копии, чтобы их можно было обновить на месте)
+		treeGroups = new ArrayList<>(tree.keySet());
+		treeChildren = new LinkedHashMap<>(tree);
 		
 		// Создание и установка кастомного адаптера
 		CustomExpandableListAdapter adapter = new CustomExpandableListAdapter(
 		this,
-		groupList,
-		tree,
+		treeGroups,
+		treeChildren,
 		this // MainActivity выступает в роли обработчика кликов
 		);
 		expandableListView.setAdapter(adapter);
 		
+		// Долгое нажатие на PTH-группу: пакетная обработка всех ее записей
+		expandableListView.setOnItemLongClickListener((parent, view, position, id) -> {
+			long packed = expandableListView.getExpandableListPosition(position);
+			if (ExpandableListView.getPackedPositionType(packed) != ExpandableListView.PACKED_POSITION_TYPE_GROUP) {
+				return false;
+			}
+			String pthKey = treeGroups.get(ExpandableListView.getPackedPositionGroup(packed));
+			List<String> wavPaths = new ArrayList<>(new LinkedHashSet<>(treeChildren.get(pthKey)));
+			confirmBatch(songNameOf(flmPath) + " / " + pthKey, wavPaths);
+			return true;
+		});
+		
 		// Расширяем все группы по умолчанию
 		for (int i = 0; i < adapter.getGroupCount(); i++) {
 			expandableListView.expandGroup(i);
@@ -243,10 +449,233 @@ public class MainActivity extends AppCompatActivity implements CustomExpandableL
 		getResources().getDisplayMetrics().heightPixels * 8/10
 		);
 		
+		treeDialog = dialog;
+		treeDialogPath = flmPath;
+		treeListView = expandableListView;
+		treeAdapter = adapter;
 		dialog.show();
 	}
 	
-	// --- 4. Effect Editor / OnChildClickListener Implementation ---
+	/**
+	* Подменяет данные открытого диалога после фонового обновления индекса.
+	*/
+	private void updateTreeList(Map<String, List<String>> tree) {
+		treeGroups.clear();
+		treeGroups.addAll(tree.keySet());
+		treeChildren.clear();
+		treeChildren.putAll(tree);
+		treeAdapter.notifyDataSetChanged();
+		for (int i = 0; i < treeAdapter.getGroupCount(); i++) {
+			treeListView.expandGroup(i);
+		}
+	}
+	
+	// --- 4. Batch Apply ---
+	
+	private static final String BATCH_JOURNAL_NAME = "batch_journal.txt";
+	private static final String BATCH_JOB_KEY = "batch_apply";
+	
+	private AlertDialog batchDialog;
+	private PriorityScheduler.Handle batchHandle;
+	
+	private void showSongBatchOptions(String flmPath) {
+		if (projectIndex == null) return;
+		String songName = songNameOf(flmPath);
+		new AlertDialog.Builder(this)
+		.setTitle(songName)
+		.setItems(new CharSequence[] {
+			"Apply saved chain to all WAVs of this song",
+			"Apply saved chain to all songs"
+			}, (dialog, which) -> {
+			List<String> flmPaths = which == 0
+			? java.util.Collections.singletonList(flmPath)
+			: projectIndex.getSongPaths();
+			// Общие записи попадают в пакет один раз
+			List<String> wavPaths = new ArrayList<>(projectIndex.getDistinctWavPaths(flmPaths));
+			confirmBatch(which == 0 ? songName : "All songs", wavPaths);
+		})
+		.show();
+	}
+	
+	/**
+	* Подтверждение и запуск пакета. wavPaths — относительные пути из .flm.
+	*/
+	private void confirmBatch(String selectionName, List<String> wavPaths) {
+		if (batchHandle != null) {
+			Toast.makeText(this, "A batch is already running.", Toast.LENGTH_SHORT).show();
+			return;
+		}
+		EffectChain chain = EffectEditorActivity.loadSavedChain(this);
+		if (chain == null) {
+			Toast.makeText(this, "Save a preset in the effect editor first.", Toast.LENGTH_LONG).show();
+			return;
+		}
+		if (wavPaths.isEmpty()) {
+			Toast.makeText(this, "No references found.", Toast.LENGTH_SHORT).show();
+			return;
+		}
+		
+		List<String> absolutePaths = new ArrayList<>();
+		for (String wavPath : wavPaths) absolutePaths.add(absoluteWavPath(wavPath));
+		
+		new AlertDialog.Builder(this)
+		.setTitle("Batch Apply: " + selectionName)
+		.setMessage("This will apply the saved effect chain to " + absolutePaths.size()
+		+ " file(s). Each file keeps its original and edit history, so it can be restored from the effect editor.\nContinue?")
+		.setPositiveButton("YES", (dialog, which) -> {
+			File journalFile = new File(getFilesDir(), BATCH_JOURNAL_NAME);
+			try {
+				startBatch(BatchJournal.create(journalFile, chain, absolutePaths));
+				} catch (IOException e) {
+				Log.e(TAG, "Could not create batch journal: " + e.getMessage(), e);
+				Toast.makeText(this, "Could not start batch.", Toast.LENGTH_LONG).show();
+			}
+		})
+		.setNegativeButton("NO", null)
+		.show();
+	}
+	
+	private void recoverInterruptedOverwrites() {
+		File journalDir = new File(getFilesDir(), EffectEditorActivity.OVERWRITE_JOURNAL_DIR);
+		PriorityScheduler.getInstance().submit(
+		PriorityScheduler.Priority.SCAN,
+		handle -> SafeOverwrite.withRoot(journalDir).recover(),
+		getMainExecutor(),
+		new PriorityScheduler.Callback<Integer>() {
+			@Override
+			public void onSuccess(Integer recovered) {
+				if (recovered > 0) Log.w(TAG, "Cleaned up " + recovered + " interrupted overwrite(s)");
+			}
+			
+			@Override
+			public void onFailure(Exception e) {
+				Log.e(TAG, "Overwrite recovery failed: " + e.getMessage(), e);
+			}
+		});
+	}
+	
+	private void checkUnfinishedBatch() {
+		File journalFile = new File(getFilesDir(), BATCH_JOURNAL_NAME);
+		PriorityScheduler.getInstance().submit(
+		PriorityScheduler.Priority.SCAN,
+		handle -> BatchJournal.load(journalFile),
+		getMainExecutor(),
+		new PriorityScheduler.Callback<BatchJournal>() {
+			@Override
+			public void onSuccess(BatchJournal journal) {
+				if (journal == null || isFinishing() || batchHandle != null) return;
+				new AlertDialog.Builder(MainActivity.this)
+				.setTitle("Unfinished Batch")
+				.setMessage("A batch was interrupted after " + journal.getDoneCount() + " of "
+				+ journal.getFiles().size() + " files. Continue where it stopped?")
+				.setPositiveButton("CONTINUE", (dialog, which) -> startBatch(journal))
+				.setNegativeButton("DISCARD", (dialog, which) -> PriorityScheduler.getInstance().submit(
+				PriorityScheduler.Priority.SCAN,
+				handle -> {
+					// Незавершенные файлы не тронуты: EditStore заменяет запись только целиком
+					journal.delete();
+					return null;
+				},
+				getMainExecutor(), null))
+				.show();
+			}
+			
+			@Override
+			public void onFailure(Exception e) {
+				Log.e(TAG, "Could not read batch journal: " + e.getMessage(), e);
+			}
+		});
+	}
+	
+	private void startBatch(BatchJournal journal) {
+		PriorityScheduler scheduler = PriorityScheduler.getInstance();
+		batchDialog = new AlertDialog.Builder(this)
+		.setTitle("Batch Apply")
+		.setMessage("Starting...")
+		.setCancelable(false)
+		.setNegativeButton("STOP", (dialog, which) -> {
+			// Журнал остается: пакет можно продолжить позже
+			if (batchHandle != null) batchHandle.cancel();
+		})
+		.show();
+		
+		BatchApply.Listener batchListener = new BatchApply.Listener() {
+			@Override
+			public void onFileStarted(String wavPath) {
+				Log.d(TAG, "Batch: processing " + wavPath);
+			}
+			
+			@Override
+			public void onFileFinished(String wavPath, boolean success, long fileNanos, BatchApply.Progress progress) {
+				Log.d(TAG, "Batch: " + (success ? "done " : "FAILED ") + wavPath + " in " + fileNanos / 1000000 + " ms");
+				getMainExecutor().execute(() -> showBatchProgress(new File(wavPath).getName(), progress));
+			}
+		};
+		
+		BatchApply batch = new BatchApply(journal, newBatchProcessor(),
+		scheduler.executor(PriorityScheduler.Priority.BATCH),
+		scheduler.getParallelism(PriorityScheduler.Priority.BATCH), batchListener);
+		
+		batchHandle = scheduler.submit(
+		PriorityScheduler.Priority.BATCH,
+		BATCH_JOB_KEY,
+		batch,
+		getMainExecutor(),
+		new PriorityScheduler.Callback<BatchApply.Progress>() {
+			@Override
+			public void onSuccess(BatchApply.Progress progress) {
+				finishBatch();
+				Toast.makeText(MainActivity.this, "Batch finished: " + progress.done + " done, "
+				+ progress.failed + " failed (" + String.format(java.util.Locale.US, "%.1f", progress.getMegabytesPerSecond())
+				+ " MB/s).", Toast.LENGTH_LONG).show();
+			}
+			
+			@Override
+			public void onFailure(Exception e) {
+				Log.e(TAG, "Batch failed: " + e.getMessage(), e);
+				finishBatch();
+				Toast.makeText(MainActivity.this, "Batch stopped with an error. It can be continued later.", Toast.LENGTH_LONG).show();
+			}
+			
+			@Override
+			public void onCancelled() {
+				finishBatch();
+				Toast.makeText(MainActivity.this, "Batch paused. It can be continued later.", Toast.LENGTH_LONG).show();
+			}
+		});
+	}
+	
+	private void showBatchProgress(String lastFile, BatchApply.Progress progress) {
+		if (batchDialog == null || isFinishing()) return;
+		batchDialog.setMessage(progress.done + " / " + progress.total + " files"
+		+ (progress.failed > 0 ? " (" + progress.failed + " failed)" : "")
+		+ "\nLast: " + lastFile
+		+ "\nWorkers: " + progress.workers
+		+ String.format(java.util.Locale.US, "\nThroughput: %.1f MB/s, %.2f files/s",
+		progress.getMegabytesPerSecond(), progress.getFilesPerSecond()));
+	}
+	
+	private void finishBatch() {
+		batchHandle = null;
+		if (batchDialog != null && !isFinishing()) batchDialog.dismiss();
+		batchDialog = null;
+	}
+	
+	private BatchApply.FileProcessor newBatchProcessor() {
+		// То же хранилище правок, что и у редактора: пакет не теряет оригиналы
+		return BatchApply.editStoreProcessor(EditStore.withRoot(new File(getFilesDir(), EditStore.DIR_NAME),
+		new File(getFilesDir(), EffectEditorActivity.OVERWRITE_JOURNAL_DIR),
+		RenderCache.getInstance(new File(getCacheDir(), RenderCache.DIR_NAME))));
+	}
+	
+	/**
+	* Полный путь записи, как его строит редактор: путь из .flm лежит рядом с "My Songs".
+	*/
+	private static String absoluteWavPath(String wavPath) {
+		return (SONGS_DIR + wavPath).replace("/My Songs", "");
+	}
+	
+	// --- 5. Effect Editor / OnChildClickListener Implementation ---
 	
 	/**
 	* Обрабатывает нажатие на WAV-файл внутри ExpandableListView (вызывается из адаптера).
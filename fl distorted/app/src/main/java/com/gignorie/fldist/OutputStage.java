@@ -0,0 +1,235 @@
+package com.gignorie.fldist;
+
+import java.io.IOException;
+
+/**
+* Последний шаг рендера: double -> PCM целевой разрядности с округлением, подмешиванием
+* (dither) и насыщением. Без него WavFile.writeFrames(double[]) отбрасывает дробную часть,
+* а отсчеты за пределами [-1, 1] (частые после FX_REAL_DRIVE) переполняются и
+* заворачиваются в противоположный знак — громкий щелчок вместо клиппинга.
+*
+* Циклы отдельные для каждого числа байт на отсчет и почти без ветвлений:
+* насыщение — min/max, счет клиппинга — сравнение, запись — сдвиги в байтовый блок,
+* который уходит в WavFile.writeRawFrames одним вызовом.
+*
+* Шум подмешивания детерминирован (генератор с постоянным зерном на каждый рендер):
+* один и тот же вход дает одинаковые байты, поэтому кеш рендеров остается корректным.
+*/
+public final class OutputStage {
+
+	public enum Dither {
+		// TPDF для 16 бит и меньше, для большей разрядности — только округление
+		AUTO,
+		// Округление к ближайшему
+		NONE,
+		// Треугольный шум +-1 LSB: ошибка квантования не коррелирует с сигналом
+		TPDF,
+		// TPDF и обратная связь по ошибке второго порядка: шум уходит к высоким частотам
+		SHAPED
+	}
+
+	// Байтовый блок записи: несколько страниц, чтобы один вызов write на канал был дешевым
+	private static final int CHUNK_BYTES = 16 * 1024;
+	private static final long SEED = 0x9E3779B97F4A7C15L;
+	// Ошибка для обратной связи ограничена: при клиппинге она не должна раскачивать фильтр
+	private static final double MAX_SHAPING_ERROR = 1.5;
+
+	private static volatile Dither configured = Dither.AUTO;
+
+	private final int numChannels;
+	private final int bytesPerSample;
+	private final Dither dither;
+	private final double scale;
+	private final double bias;
+	private final long min;
+	private final long max;
+	private final byte[] chunk;
+	private final double[] shapingErrors;
+	private double gain = 1;
+	private long random = SEED;
+	private long clippedSamples;
+	private double peak;
+
+	public OutputStage(int numChannels, int validBits, Dither dither) {
+		this.numChannels = numChannels;
+		bytesPerSample = (validBits + 7) / 8;
+		this.dither = resolve(dither, validBits);
+		// Шкала как в WavFile: со знаком при разрядности больше 8, иначе без знака со смещением
+		if (validBits > 8) {
+			scale = Long.MAX_VALUE >> (64 - validBits);
+			bias = 0;
+			min = -(long) scale - 1;
+			max = (long) scale;
+			} else {
+			scale = 0.5 * ((1 << validBits) - 1);
+			bias = scale;
+			min = 0;
+			max = (1 << validBits) - 1;
+		}
+		int frameBytes = numChannels * bytesPerSample;
+		chunk = new byte[Math.max(frameBytes, CHUNK_BYTES / frameBytes * frameBytes)];
+		shapingErrors = new double[numChannels * 2];
+	}
+
+	/**
+	* Режим подмешивания для всех рендеров (по умолчанию AUTO); входит в ключ кеша.
+	*/
+	public static void setDither(Dither dither) {
+		configured = dither;
+	}
+
+	public static Dither getDither() {
+		return configured;
+	}
+
+	public static Dither resolve(Dither dither, int validBits) {
+		if (dither != Dither.AUTO) return dither;
+		return validBits <= 16 ? Dither.TPDF : Dither.NONE;
+	}
+
+	/**
+	* Линейный множитель перед квантованием (AutoGain); задается до первой записи.
+	*/
+	public void setGain(double gain) {
+		this.gain = gain;
+	}
+
+	public Dither getResolvedDither() {
+		return dither;
+	}
+
+	/**
+	* Отсчеты, упершиеся в границу шкалы.
+	*/
+	public long getClippedSamples() {
+		return clippedSamples;
+	}
+
+	/**
+	* Наибольшая абсолютная величина входа после усиления (1.0 — полная шкала).
+	*/
+	public double getPeak() {
+		return peak * gain;
+	}
+
+	/**
+	* Пишет length отсчетов (целые кадры) из samples[offset...] в wav.
+	*/
+	public void write(WavFile wav, double[] samples, int offset, int length) throws IOException, WavFileException {
+		int chunkSamples = chunk.length / bytesPerSample;
+		while (length > 0) {
+			int n = Math.min(length, chunkSamples);
+			int bytes = convert(samples, offset, n, chunk, 0);
+			wav.writeRawFrames(chunk, 0, bytes / (numChannels * bytesPerSample));
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	* Переводит length отсчетов в PCM little-endian в out[outOffset...]; возвращает число байт.
+	*/
+	public int convert(double[] samples, int offset, int length, byte[] out, int outOffset) {
+		int end = offset + length;
+		// Усиление входит в шкалу: одно умножение на отсчет, как и без него
+		double k = scale * gain;
+		long clipped = 0;
+		double localPeak = peak;
+		int o = outOffset;
+		if (dither == Dither.SHAPED) {
+			// Кадр за кадром: у каждого канала своя история ошибки
+			for (int i = offset; i < end; i += numChannels) {
+				for (int c = 0; c < numChannels; c++) {
+					double x = samples[i + c];
+					localPeak = Math.max(localPeak, Math.abs(x));
+					double e1 = shapingErrors[2 * c];
+					double e2 = shapingErrors[2 * c + 1];
+					double wanted = x * k + bias - (2 * e1 - e2);
+					long q = Math.round(wanted + nextTriangular());
+					long s = Math.max(min, Math.min(max, q));
+					clipped += s != q ? 1 : 0;
+					shapingErrors[2 * c + 1] = e1;
+					shapingErrors[2 * c] = Math.max(-MAX_SHAPING_ERROR, Math.min(MAX_SHAPING_ERROR, s - wanted));
+					o = put(out, o, s);
+				}
+			}
+			} else {
+			boolean tpdf = dither == Dither.TPDF;
+			switch (bytesPerSample) {
+				case 1:
+				for (int i = offset; i < end; i++) {
+					double x = samples[i];
+					localPeak = Math.max(localPeak, Math.abs(x));
+					long q = Math.round(x * k + bias + (tpdf ? nextTriangular() : 0));
+					long s = Math.max(min, Math.min(max, q));
+					clipped += s != q ? 1 : 0;
+					out[o++] = (byte) s;
+				}
+				break;
+
+				case 2:
+				for (int i = offset; i < end; i++) {
+					double x = samples[i];
+					localPeak = Math.max(localPeak, Math.abs(x));
+					long q = Math.round(x * k + (tpdf ? nextTriangular() : 0));
+					long s = Math.max(min, Math.min(max, q));
+					clipped += s != q ? 1 : 0;
+					out[o] = (byte) s;
+					out[o + 1] = (byte) (s >> 8);
+					o += 2;
+				}
+				break;
+
+				case 3:
+				for (int i = offset; i < end; i++) {
+					double x = samples[i];
+					localPeak = Math.max(localPeak, Math.abs(x));
+					long q = Math.round(x * k + (tpdf ? nextTriangular() : 0));
+					long s = Math.max(min, Math.min(max, q));
+					clipped += s != q ? 1 : 0;
+					out[o] = (byte) s;
+					out[o + 1] = (byte) (s >> 8);
+					out[o + 2] = (byte) (s >> 16);
+					o += 3;
+				}
+				break;
+
+				default:
+				for (int i = offset; i < end; i++) {
+					double x = samples[i];
+					localPeak = Math.max(localPeak, Math.abs(x));
+					long q = Math.round(x * k + bias + (tpdf ? nextTriangular() : 0));
+					long s = Math.max(min, Math.min(max, q));
+					clipped += s != q ? 1 : 0;
+					o = put(out, o, s);
+				}
+				break;
+			}
+		}
+		clippedSamples += clipped;
+		peak = localPeak;
+		return o - outOffset;
+	}
+
+	private int put(byte[] out, int o, long value) {
+		for (int b = 0; b < bytesPerSample; b++) {
+			out[o++] = (byte) value;
+			value >>= 8;
+		}
+		return o;
+	}
+
+	/**
+	* Разность двух равномерных величин из одного 64-битного числа: треугольное
+	* распределение на (-1, 1) LSB. xorshift64* — без выделений и синхронизации.
+	*/
+	private double nextTriangular() {
+		long x = random;
+		x ^= x >>> 12;
+		x ^= x << 25;
+		x ^= x >>> 27;
+		random = x;
+		long r = x * 0x2545F4914F6CDD1DL;
+		return ((r >>> 32) - (r & 0xFFFFFFFFL)) * 0x1p-32;
+	}
+}
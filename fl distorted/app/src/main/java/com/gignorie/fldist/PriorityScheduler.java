@@ -0,0 +1,219 @@
+package com.gignorie.fldist;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+* Планировщик фоновых задач с приоритетами (замена устаревшего AsyncTask).
+* Для каждого приоритета свой ограниченный пул потоков, поэтому
+* сканирование библиотеки никогда не задерживает предпросмотр.
+* Задачи с одинаковым ключом объединяются: новая задача отменяет предыдущую,
+* и результат устаревшей задачи никогда не доставляется.
+*/
+public final class PriorityScheduler {
+
+	/**
+	* Приоритеты в порядке убывания важности.
+	*/
+	public enum Priority {
+		PREVIEW, // Интерактивный предпросмотр
+		APPLY,   // Применение эффектов и перезапись
+		BATCH,   // Пакетное применение к множеству файлов
+		SCAN     // Фоновое сканирование / индексация
+	}
+
+	/**
+	* Фоновая работа. Долгие задачи должны периодически вызывать handle.throwIfCancelled().
+	*/
+	public interface Job<T> {
+		T run(Handle handle) throws Exception;
+	}
+
+	/**
+	* Результат задачи. Методы вызываются на executor'е, переданном в submit().
+	* Error из задачи приходит в onFailure обернутым в ExecutionException.
+	*/
+	public interface Callback<T> {
+		void onSuccess(T result);
+		void onFailure(Exception e);
+		default void onCancelled() { }
+	}
+
+	/**
+	* Управление запущенной задачей.
+	*/
+	public interface Handle {
+		boolean isCancelled();
+		void cancel();
+
+		default void throwIfCancelled() {
+			if (isCancelled()) throw new CancellationException();
+		}
+	}
+
+	private static final int KEEP_ALIVE_SECONDS = 30;
+
+	private static PriorityScheduler instance;
+
+	private final ThreadPoolExecutor[] pools = new ThreadPoolExecutor[Priority.values().length];
+	// Ключ объединения -> последняя поставленная задача
+	private final ConcurrentHashMap<String, Task<?>> latestByKey = new ConcurrentHashMap<>();
+
+	public static synchronized PriorityScheduler getInstance() {
+		if (instance == null) {
+			instance = new PriorityScheduler(Runtime.getRuntime().availableProcessors());
+		}
+		return instance;
+	}
+
+	PriorityScheduler(int cores) {
+		// Предпросмотр: один поток — важен только последний запрос
+		pools[Priority.PREVIEW.ordinal()] = newPool("preview", 1, Thread.NORM_PRIORITY);
+		// Перезапись: один поток, чтобы две записи не пересекались
+		pools[Priority.APPLY.ordinal()] = newPool("apply", 1, Thread.NORM_PRIORITY - 1);
+		// Пакет: до потока на ядро; сколько из них реально работает, решает BatchApply по памяти
+		pools[Priority.BATCH.ordinal()] = newPool("batch", Math.max(1, cores), Thread.NORM_PRIORITY - 2);
+		// Сканирование: оставляем одно ядро под UI и предпросмотр
+		int scanThreads = Math.max(1, Math.min(4, cores - 1));
+		pools[Priority.SCAN.ordinal()] = newPool("scan", scanThreads, Thread.MIN_PRIORITY);
+	}
+
+	private static ThreadPoolExecutor newPool(String name, int threads, int threadPriority) {
+		AtomicInteger counter = new AtomicInteger();
+		ThreadFactory factory = r -> {
+			Thread t = new Thread(r, "fldist-" + name + "-" + counter.incrementAndGet());
+			t.setPriority(threadPriority);
+			t.setDaemon(true);
+			return t;
+		};
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+		KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), factory);
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	* Сколько задач данного приоритета может выполняться одновременно.
+	*/
+	public int getParallelism(Priority priority) {
+		return pools[priority.ordinal()].getMaximumPoolSize();
+	}
+
+	/**
+	* Пул приоритета как Executor — для вспомогательных задач без обратного вызова.
+	*/
+	public Executor executor(Priority priority) {
+		return pools[priority.ordinal()];
+	}
+
+	/**
+	* Ставит задачу в очередь без объединения.
+	*/
+	public <T> Handle submit(Priority priority, Job<T> job, Executor callbackExecutor, Callback<T> callback) {
+		return submit(priority, null, job, callbackExecutor, callback);
+	}
+
+	/**
+	* Ставит задачу в очередь. Если coalesceKey не null, предыдущая задача с тем же
+	* ключом (ожидающая или выполняющаяся) отменяется.
+	*/
+	public <T> Handle submit(Priority priority, String coalesceKey, Job<T> job,
+	Executor callbackExecutor, Callback<T> callback) {
+		Task<T> task = new Task<>(coalesceKey, job, callbackExecutor, callback);
+		if (coalesceKey != null) {
+			Task<?> previous = latestByKey.put(coalesceKey, task);
+			if (previous != null) previous.cancel();
+		}
+		pools[priority.ordinal()].execute(task);
+		return task;
+	}
+
+	/**
+	* Отменяет последнюю задачу с данным ключом, если она есть.
+	*/
+	public void cancel(String coalesceKey) {
+		Task<?> task = latestByKey.get(coalesceKey);
+		if (task != null) task.cancel();
+	}
+
+	private final class Task<T> implements Runnable, Handle {
+		private final String key;
+		private final Job<T> job;
+		private final Executor callbackExecutor;
+		private final Callback<T> callback;
+		private volatile boolean cancelled;
+
+		Task(String key, Job<T> job, Executor callbackExecutor, Callback<T> callback) {
+			this.key = key;
+			this.job = job;
+			this.callbackExecutor = callbackExecutor;
+			this.callback = callback;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+		}
+
+		@Override
+		public void run() {
+			try {
+				// Задача отменена, пока ждала в очереди: не тратим время на устаревшую работу
+				if (cancelled) {
+					deliverCancelled();
+					return;
+				}
+
+				T result;
+				try {
+					result = job.run(this);
+					} catch (CancellationException e) {
+					deliverCancelled();
+					return;
+					} catch (Exception e) {
+					if (cancelled) deliverCancelled(); else deliverFailure(e);
+					return;
+					} catch (Error e) {
+					// OutOfMemoryError и т.п.: вызывающий все равно должен выйти из состояния ожидания,
+					// а сама ошибка уходит дальше в пул
+					if (cancelled) deliverCancelled(); else deliverFailure(new ExecutionException(e));
+					throw e;
+				}
+
+				// Результат устаревшей задачи не доставляем
+				if (cancelled) deliverCancelled(); else deliverSuccess(result);
+				} finally {
+				if (key != null) latestByKey.remove(key, this);
+			}
+		}
+
+		private void deliverSuccess(T result) {
+			if (callback == null) return;
+			callbackExecutor.execute(() -> {
+				if (cancelled) callback.onCancelled(); else callback.onSuccess(result);
+			});
+		}
+
+		private void deliverFailure(Exception e) {
+			if (callback == null) return;
+			callbackExecutor.execute(() -> callback.onFailure(e));
+		}
+
+		private void deliverCancelled() {
+			if (callback == null) return;
+			callbackExecutor.execute(callback::onCancelled);
+		}
+	}
+}
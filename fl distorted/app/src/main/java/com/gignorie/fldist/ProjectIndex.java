@@ -0,0 +1,462 @@
+package com.gignorie.fldist;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+* Индекс проектов на диске: .flm-файлы, их размер и время изменения,
+* и найденные в них ссылки PTH -> WAV.
+* Обновление инкрементальное: заново разбираются только изменившиеся файлы.
+*/
+public final class ProjectIndex {
+
+	public static final String FILE_NAME = "project_index.bin";
+
+	private static final int MAGIC = 0x464C4449; // "FLDI"
+	private static final int VERSION = 1;
+	private static final String RECORDINGS_PREFIX = "My Recordings/";
+
+	/**
+	* Размер и время изменения файла из листинга `stat`.
+	*/
+	public static final class FileStat {
+		public final String path;
+		public final long size;
+		public final long mtime;
+
+		public FileStat(String path, long size, long mtime) {
+			this.path = path;
+			this.size = size;
+			this.mtime = mtime;
+		}
+	}
+
+	/**
+	* Одна песня в индексе. Неизменяема: при обновлении заменяется целиком.
+	*/
+	public static final class SongEntry {
+		public final String flmPath;
+		public final long size;
+		public final long mtime;
+		// PTH-ключ -> WAV-пути в порядке появления в файле
+		public final Map<String, List<String>> references;
+
+		SongEntry(String flmPath, long size, long mtime, Map<String, List<String>> references) {
+			this.flmPath = flmPath;
+			this.size = size;
+			this.mtime = mtime;
+			this.references = Collections.unmodifiableMap(references);
+		}
+
+		public String getSongName() {
+			String fileName = new File(flmPath).getName();
+			int dot = fileName.lastIndexOf(".flm");
+			return dot >= 0 ? fileName.substring(0, dot) : fileName;
+		}
+
+		public int getReferenceCount() {
+			int count = 0;
+			for (List<String> wavPaths : references.values()) count += wavPaths.size();
+			return count;
+		}
+
+		boolean matches(FileStat stat) {
+			return stat.size == size && stat.mtime == mtime;
+		}
+	}
+
+	/**
+	* Одно использование записи: песня и PTH-группа, в которой она встречается.
+	*/
+	public static final class WavUsage {
+		public final String flmPath;
+		public final String pthKey;
+
+		WavUsage(String flmPath, String pthKey) {
+			this.flmPath = flmPath;
+			this.pthKey = pthKey;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof WavUsage)) return false;
+			WavUsage other = (WavUsage) o;
+			return flmPath.equals(other.flmPath) && pthKey.equals(other.pthKey);
+		}
+
+		@Override
+		public int hashCode() {
+			return flmPath.hashCode() * 31 + pthKey.hashCode();
+		}
+	}
+
+	/**
+	* Источник ссылок для изменившегося файла (на устройстве — `cat` через root).
+	*/
+	public interface ReferenceReader {
+		Map<String, List<String>> read(String flmPath) throws Exception;
+	}
+
+	/**
+	* Итог обновления.
+	*/
+	public static final class RefreshResult {
+		public int unchanged;
+		public int parsed;
+		public int removed;
+		public int failed;
+
+		public boolean hasChanges() {
+			return parsed > 0 || removed > 0;
+		}
+	}
+
+	private static ProjectIndex instance;
+
+	private final File indexFile;
+	// Отсортировано по пути, чтобы список песен был стабильным
+	private final TreeMap<String, SongEntry> songs = new TreeMap<>();
+	// Обратный индекс: ключ записи -> все песни и PTH-группы, которые на нее ссылаются.
+	// Не хранится на диске, строится заново при загрузке и меняется вместе с songs.
+	private final HashMap<String, Set<WavUsage>> usagesByWav = new HashMap<>();
+
+	private ProjectIndex(File indexFile) {
+		this.indexFile = indexFile;
+	}
+
+	/**
+	* Общий индекс приложения. При первом вызове читается с диска.
+	*/
+	public static synchronized ProjectIndex getInstance(File indexFile) {
+		if (instance == null || !instance.indexFile.equals(indexFile)) {
+			instance = load(indexFile);
+		}
+		return instance;
+	}
+
+	/**
+	* Читает индекс. Отсутствующий или поврежденный файл дает пустой индекс.
+	*/
+	public static ProjectIndex load(File indexFile) {
+		ProjectIndex index = new ProjectIndex(indexFile);
+		if (!indexFile.exists()) return index;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) return index;
+			int songCount = in.readInt();
+			for (int s = 0; s < songCount; s++) {
+				String path = in.readUTF();
+				long size = in.readLong();
+				long mtime = in.readLong();
+				int groupCount = in.readInt();
+				Map<String, List<String>> references = new LinkedHashMap<>();
+				for (int g = 0; g < groupCount; g++) {
+					String pthKey = in.readUTF();
+					int wavCount = in.readInt();
+					List<String> wavPaths = new ArrayList<>(wavCount);
+					for (int w = 0; w < wavCount; w++) wavPaths.add(in.readUTF());
+					references.put(pthKey, wavPaths);
+				}
+				index.putSong(new SongEntry(path, size, mtime, references));
+			}
+			} catch (IOException e) {
+			// Поврежденный индекс просто перестраивается при следующем обновлении
+			index.songs.clear();
+			index.usagesByWav.clear();
+		}
+		return index;
+	}
+
+	/**
+	* Сохраняет индекс атомарно: запись во временный файл и переименование.
+	*/
+	public synchronized void save() throws IOException {
+		File tmp = new File(indexFile.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(songs.size());
+			for (SongEntry entry : songs.values()) {
+				out.writeUTF(entry.flmPath);
+				out.writeLong(entry.size);
+				out.writeLong(entry.mtime);
+				out.writeInt(entry.references.size());
+				for (Map.Entry<String, List<String>> group : entry.references.entrySet()) {
+					out.writeUTF(group.getKey());
+					out.writeInt(group.getValue().size());
+					for (String wavPath : group.getValue()) out.writeUTF(wavPath);
+				}
+			}
+		}
+		if (!tmp.renameTo(indexFile)) {
+			throw new IOException("Could not replace index file " + indexFile);
+		}
+	}
+
+	public synchronized List<SongEntry> getSongs() {
+		return new ArrayList<>(songs.values());
+	}
+
+	public synchronized SongEntry getSong(String flmPath) {
+		return songs.get(flmPath);
+	}
+
+	public synchronized List<String> getSongPaths() {
+		return new ArrayList<>(songs.keySet());
+	}
+
+	/**
+	* Удаляет песню (файл исчез). Возвращает false, если ее и не было в индексе.
+	*/
+	public synchronized boolean forget(String flmPath) {
+		if (!songs.containsKey(flmPath)) return false;
+		removeSong(flmPath);
+		return true;
+	}
+
+	public synchronized boolean isEmpty() {
+		return songs.isEmpty();
+	}
+
+	/**
+	* Наблюдатель за ходом обновления. Вызывается из рабочих потоков.
+	*/
+	public interface Listener {
+		// Листинг применен: актуальный список путей, исчезнувшие уже удалены
+		void onListing(List<String> flmPaths);
+		// Песня разобрана заново
+		void onSongUpdated(SongEntry entry);
+	}
+
+	/**
+	* Инкрементальное обновление по свежему листингу: неизменившиеся файлы
+	* (тот же размер и mtime) не читаются, исчезнувшие удаляются из индекса.
+	* Изменившиеся файлы разбираются параллельно — по одному рабочему на reader:
+	* первый работает в вызывающем потоке, остальные запускаются на helperExecutor.
+	* Ожидание никогда не зависит от того, успел ли стартовать помощник,
+	* поэтому общий пул с вызывающей задачей не может зависнуть.
+	*/
+	public RefreshResult refresh(List<FileStat> listing, ReferenceReader[] readers, Executor helperExecutor,
+	Listener listener, PriorityScheduler.Handle handle) throws InterruptedException {
+		RefreshResult result = new RefreshResult();
+		Map<String, FileStat> current = new TreeMap<>();
+		for (FileStat stat : listing) current.put(stat.path, stat);
+
+		synchronized (this) {
+			List<String> gone = new ArrayList<>();
+			for (String path : songs.keySet()) {
+				if (!current.containsKey(path)) gone.add(path);
+			}
+			for (String path : gone) removeSong(path);
+			result.removed = gone.size();
+		}
+		if (listener != null) listener.onListing(new ArrayList<>(current.keySet()));
+
+		final ConcurrentLinkedQueue<FileStat> work = new ConcurrentLinkedQueue<>();
+		for (FileStat stat : current.values()) {
+			SongEntry existing = getSong(stat.path);
+			if (existing != null && existing.matches(stat)) {
+				result.unchanged++;
+				} else {
+				work.add(stat);
+			}
+		}
+		if (work.isEmpty()) return result;
+
+		final CountDownLatch remaining = new CountDownLatch(work.size());
+		final AtomicInteger parsed = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		int helpers = Math.min(readers.length, work.size()) - 1;
+		for (int i = 1; i <= helpers; i++) {
+			final ReferenceReader reader = readers[i];
+			helperExecutor.execute(() -> drain(work, reader, remaining, parsed, failed, listener, handle));
+		}
+		drain(work, readers[0], remaining, parsed, failed, listener, handle);
+		// Ждем только файлы, уже взятые помощниками
+		remaining.await();
+
+		result.parsed = parsed.get();
+		result.failed = failed.get();
+		if (handle != null) handle.throwIfCancelled();
+		return result;
+	}
+
+	private void drain(ConcurrentLinkedQueue<FileStat> work, ReferenceReader reader, CountDownLatch remaining,
+	AtomicInteger parsed, AtomicInteger failed, Listener listener, PriorityScheduler.Handle handle) {
+		FileStat stat;
+		while ((stat = work.poll()) != null) {
+			try {
+				// После отмены очередь просто вычерпывается без чтения файлов
+				if (handle != null && handle.isCancelled()) continue;
+				if (update(stat, reader)) {
+					parsed.incrementAndGet();
+					if (listener != null) listener.onSongUpdated(getSong(stat.path));
+					} else {
+					failed.incrementAndGet();
+				}
+				} finally {
+				remaining.countDown();
+			}
+		}
+	}
+
+	/**
+	* Перечитывает один файл, если он изменился. Возвращает актуальную запись.
+	*/
+	public SongEntry refreshSong(FileStat stat, ReferenceReader reader) {
+		SongEntry existing = getSong(stat.path);
+		if (existing != null && existing.matches(stat)) return existing;
+		update(stat, reader);
+		return getSong(stat.path);
+	}
+
+	private boolean update(FileStat stat, ReferenceReader reader) {
+		try {
+			Map<String, List<String>> references = reader.read(stat.path);
+			SongEntry entry = new SongEntry(stat.path, stat.size, stat.mtime, references);
+			synchronized (this) {
+				putSong(entry);
+			}
+			return true;
+			} catch (Exception e) {
+			return false;
+		}
+	}
+
+	// Все изменения songs идут через эти два метода, чтобы обратный индекс не расходился с прямым
+
+	private void putSong(SongEntry entry) {
+		removeSong(entry.flmPath);
+		songs.put(entry.flmPath, entry);
+		for (Map.Entry<String, List<String>> group : entry.references.entrySet()) {
+			WavUsage usage = new WavUsage(entry.flmPath, group.getKey());
+			for (String wavPath : group.getValue()) {
+				String key = wavKey(wavPath);
+				Set<WavUsage> usages = usagesByWav.get(key);
+				if (usages == null) {
+					usages = new LinkedHashSet<>();
+					usagesByWav.put(key, usages);
+				}
+				usages.add(usage);
+			}
+		}
+	}
+
+	private void removeSong(String flmPath) {
+		SongEntry old = songs.remove(flmPath);
+		if (old == null) return;
+		for (List<String> wavPaths : old.references.values()) {
+			for (String wavPath : wavPaths) {
+				String key = wavKey(wavPath);
+				Set<WavUsage> usages = usagesByWav.get(key);
+				if (usages == null) continue;
+				Iterator<WavUsage> it = usages.iterator();
+				while (it.hasNext()) {
+					if (it.next().flmPath.equals(flmPath)) it.remove();
+				}
+				if (usages.isEmpty()) usagesByWav.remove(key);
+			}
+		}
+	}
+
+	/**
+	* Все песни и PTH-группы, ссылающиеся на запись. Принимает и относительный путь
+	* из .flm ("My Recordings/x.wav"), и полный путь на диске.
+	*/
+	public synchronized List<WavUsage> getUsages(String wavPath) {
+		Set<WavUsage> usages = usagesByWav.get(wavKey(wavPath));
+		return usages == null ? Collections.<WavUsage>emptyList() : new ArrayList<>(usages);
+	}
+
+	/**
+	* Различные песни, ссылающиеся на запись, в порядке обнаружения.
+	*/
+	public synchronized Set<String> getSongsUsing(String wavPath) {
+		Set<String> flmPaths = new LinkedHashSet<>();
+		for (WavUsage usage : getUsages(wavPath)) flmPaths.add(usage.flmPath);
+		return flmPaths;
+	}
+
+	/**
+	* Различные записи нескольких песен: общая запись попадает в результат один раз,
+	* поэтому пакетная обработка не применит цепочку к одному файлу дважды.
+	*/
+	public synchronized Set<String> getDistinctWavPaths(Iterable<String> flmPaths) {
+		Set<String> seen = new LinkedHashSet<>();
+		Set<String> wavPaths = new LinkedHashSet<>();
+		for (String flmPath : flmPaths) {
+			SongEntry entry = songs.get(flmPath);
+			if (entry == null) continue;
+			for (List<String> group : entry.references.values()) {
+				for (String wavPath : group) {
+					if (seen.add(wavKey(wavPath))) wavPaths.add(wavPath);
+				}
+			}
+		}
+		return wavPaths;
+	}
+
+	/**
+	* Ключ обратного индекса: путь, начиная с "My Recordings/".
+	* Так относительный путь из .flm и полный путь в папке FLM совпадают.
+	*/
+	public static String wavKey(String wavPath) {
+		int start = wavPath.indexOf(RECORDINGS_PREFIX);
+		return start >= 0 ? wavPath.substring(start) : wavPath;
+	}
+
+	/**
+	* Разбирает вывод `stat -c '%s %Y %n'` (по строке на файл, путь может содержать пробелы).
+	*/
+	public static List<FileStat> parseStatListing(String output) {
+		List<FileStat> stats = new ArrayList<>();
+		for (String line : output.split("\n")) {
+			String[] parts = line.trim().split(" ", 3);
+			if (parts.length < 3) continue;
+			try {
+				stats.add(new FileStat(parts[2], Long.parseLong(parts[0]), Long.parseLong(parts[1])));
+				} catch (NumberFormatException e) {
+				// Строка не из stat (например, предупреждение find) — пропускаем
+			}
+		}
+		return stats;
+	}
+
+	/**
+	* Размер и mtime одного файла через root-оболочку.
+	*/
+	public static FileStat statFile(RootShell shell, String path) throws IOException, InterruptedException {
+		RootShell.Result result = shell.run("stat -c '%s %Y %n' " + ShellLauncher.quote(path));
+		List<FileStat> stats = parseStatListing(result.stdout);
+		if (!result.isSuccess() || stats.isEmpty()) {
+			throw new IOException("Could not stat " + path + ": " + result.stderr.trim());
+		}
+		return stats.get(0);
+	}
+
+	/**
+	* Команда листинга для root-оболочки: размер, mtime и путь каждого .flm.
+	*/
+	public static String statListingCommand(String songsDir) {
+		return "find " + ShellLauncher.quote(songsDir) + " -name '*.flm' -exec stat -c '%s %Y %n' {} +";
+	}
+}
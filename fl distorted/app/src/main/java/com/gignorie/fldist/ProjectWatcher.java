@@ -0,0 +1,231 @@
+package com.gignorie.fldist;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+* Следит за папкой песен и передает изменения в ProjectIndex по одному файлу.
+* Если папка доступна напрямую, используются FileObserver'ы (по одному на каталог,
+* так как FileObserver не рекурсивен). Если прямой доступ закрыт (Android/data чужого
+* приложения), папка опрашивается через root: листинг size/mtime сравнивается с
+* предыдущим, и при совпадении ничего не читается и не разбирается.
+*/
+public final class ProjectWatcher {
+
+	private static final String TAG = "FLDistRootApp";
+	private static final long POLL_INTERVAL_MS = 5000;
+	private static final String POLL_JOB_KEY = "watch_poll";
+	private static final String EVENT_JOB_KEY_PREFIX = "watch_event:";
+
+	private static final int DIR_EVENTS = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO | FileObserver.CREATE
+	| FileObserver.DELETE | FileObserver.MOVED_FROM | FileObserver.DELETE_SELF;
+
+	private final File songsDir;
+	private final ProjectIndex index;
+	private final ProjectIndex.ReferenceReader rootReader;
+	private final ProjectIndex.Listener listener;
+	private final Handler handler = new Handler(Looper.getMainLooper());
+
+	// Каталог -> его наблюдатель (только в режиме прямого доступа)
+	private final Map<String, FileObserver> observers = new HashMap<>();
+	private boolean running = false;
+	// Листинг последнего опроса; null — опроса еще не было
+	private volatile String lastListing;
+
+	private final Runnable pollRunnable = new Runnable() {
+		@Override
+		public void run() {
+			if (!running) return;
+			poll();
+			handler.postDelayed(this, POLL_INTERVAL_MS);
+		}
+	};
+
+	/**
+	* @param rootReader чтение .flm через root для режима опроса.
+	* @param listener получает изменения из фоновых потоков, как и при полном обновлении.
+	*/
+	public ProjectWatcher(File songsDir, ProjectIndex index,
+	ProjectIndex.ReferenceReader rootReader, ProjectIndex.Listener listener) {
+		this.songsDir = songsDir;
+		this.index = index;
+		this.rootReader = rootReader;
+		this.listener = listener;
+	}
+
+	/**
+	* Запускает наблюдение (вызывать с главного потока).
+	*/
+	public void start() {
+		if (running) return;
+		running = true;
+		if (songsDir.isDirectory() && songsDir.canRead() && songsDir.listFiles() != null) {
+			Log.d(TAG, "Watching songs directly via FileObserver");
+			watchTree(songsDir);
+			} else {
+			Log.d(TAG, "No direct access to songs, polling via root every " + POLL_INTERVAL_MS + " ms");
+			handler.postDelayed(pollRunnable, POLL_INTERVAL_MS);
+		}
+	}
+
+	public void stop() {
+		running = false;
+		handler.removeCallbacks(pollRunnable);
+		synchronized (observers) {
+			for (FileObserver observer : observers.values()) observer.stopWatching();
+			observers.clear();
+		}
+		PriorityScheduler.getInstance().cancel(POLL_JOB_KEY);
+	}
+
+	// =====================================================================
+	// Прямой доступ: FileObserver
+	// =====================================================================
+
+	private void watchTree(File dir) {
+		File[] children = dir.listFiles();
+		synchronized (observers) {
+			if (!running || observers.containsKey(dir.getPath())) return;
+			FileObserver observer = new FileObserver(dir, DIR_EVENTS) {
+				@Override
+				public void onEvent(int event, String name) {
+					onDirectoryEvent(dir, event & FileObserver.ALL_EVENTS, name);
+				}
+			};
+			observers.put(dir.getPath(), observer);
+			observer.startWatching();
+		}
+		if (children == null) return;
+		for (File child : children) {
+			if (child.isDirectory()) watchTree(child);
+		}
+	}
+
+	private void onDirectoryEvent(File dir, int event, String name) {
+		if ((event & FileObserver.DELETE_SELF) != 0) {
+			synchronized (observers) {
+				FileObserver observer = observers.remove(dir.getPath());
+				if (observer != null) observer.stopWatching();
+			}
+			return;
+		}
+		if (name == null) return;
+		File file = new File(dir, name);
+
+		if ((event & (FileObserver.CREATE | FileObserver.MOVED_TO)) != 0 && file.isDirectory()) {
+			// Новый каталог: наблюдаем и его, и уже успевшие появиться в нем файлы
+			watchTree(file);
+			for (File child : listFlmFiles(file)) submitFileUpdate(child);
+			return;
+		}
+		if (!name.endsWith(".flm")) return;
+
+		// CREATE без CLOSE_WRITE означает, что файл еще пишется: ждем закрытия
+		if ((event & (FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO | FileObserver.DELETE | FileObserver.MOVED_FROM)) != 0) {
+			submitFileUpdate(file);
+		}
+	}
+
+	/**
+	* Обновляет одну песню. Ключ объединения — путь, поэтому серия событий
+	* от одного сохранения разбирает файл один раз.
+	*/
+	private void submitFileUpdate(File file) {
+		final String path = file.getPath();
+		PriorityScheduler.getInstance().submit(
+		PriorityScheduler.Priority.SCAN,
+		EVENT_JOB_KEY_PREFIX + path,
+		handle -> {
+			if (file.isFile()) {
+				ProjectIndex.SongEntry before = index.getSong(path);
+				ProjectIndex.SongEntry after = index.refreshSong(
+				new ProjectIndex.FileStat(path, file.length(), file.lastModified() / 1000), ProjectWatcher::readDirect);
+				if (after == null || after == before) return null;
+				// Новая песня меняет состав списка, измененная — только свою строку
+				if (before == null) listener.onListing(index.getSongPaths()); else listener.onSongUpdated(after);
+				} else {
+				if (!index.forget(path)) return null;
+				listener.onListing(index.getSongPaths());
+			}
+			index.save();
+			return null;
+		},
+		Runnable::run,
+		new PriorityScheduler.Callback<Void>() {
+			@Override
+			public void onSuccess(Void result) { }
+
+			@Override
+			public void onFailure(Exception e) {
+				Log.e(TAG, "Watcher update failed for " + path + ": " + e.getMessage());
+			}
+		});
+	}
+
+	private static List<File> listFlmFiles(File dir) {
+		List<File> result = new ArrayList<>();
+		File[] children = dir.listFiles();
+		if (children == null) return result;
+		for (File child : children) {
+			if (child.isDirectory()) result.addAll(listFlmFiles(child));
+			else if (child.getName().endsWith(".flm")) result.add(child);
+		}
+		return result;
+	}
+
+	private static Map<String, List<String>> readDirect(String flmPath) throws Exception {
+		try (InputStream in = new FileInputStream(flmPath)) {
+			return FlmReferenceScanner.scanToTree(in);
+		}
+	}
+
+	// =====================================================================
+	// Без прямого доступа: опрос через root
+	// =====================================================================
+
+	/**
+	* Один опрос: листинг size/mtime одной root-командой. Совпал с прошлым —
+	* на этом все. Иначе обычное инкрементальное обновление: разбираются
+	* только изменившиеся файлы, исчезнувшие удаляются.
+	*/
+	private void poll() {
+		PriorityScheduler.getInstance().submit(
+		PriorityScheduler.Priority.SCAN,
+		POLL_JOB_KEY,
+		handle -> {
+			RootShell.Result listing = RootShell.getInstance().run(ProjectIndex.statListingCommand(songsDir.getPath()));
+			if (!listing.isSuccess()) {
+				throw new IOException("Listing failed with code " + listing.exitCode + ": " + listing.stderr.trim());
+			}
+			if (listing.stdout.equals(lastListing)) return null;
+
+			ProjectIndex.RefreshResult result = index.refresh(ProjectIndex.parseStatListing(listing.stdout),
+			new ProjectIndex.ReferenceReader[] { rootReader }, Runnable::run, listener, handle);
+			if (result.hasChanges()) index.save();
+			// Запоминаем только удачный листинг: иначе упавший разбор не повторится
+			if (result.failed == 0) lastListing = listing.stdout;
+			return null;
+		},
+		Runnable::run,
+		new PriorityScheduler.Callback<Void>() {
+			@Override
+			public void onSuccess(Void result) { }
+
+			@Override
+			public void onFailure(Exception e) {
+				Log.e(TAG, "Watcher poll failed: " + e.getMessage());
+			}
+		});
+	}
+}
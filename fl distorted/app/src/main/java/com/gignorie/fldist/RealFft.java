@@ -0,0 +1,179 @@
+package com.gignorie.fldist;
+
+/**
+* Прямое БПФ вещественного сигнала длины N (степень двойки) на месте.
+* Сигнал упаковывается в комплексный длины N/2 (четные отсчеты — действительная часть,
+* нечетные — мнимая), преобразуется по основанию 4 (плюс один шаг по основанию 2 при
+* нечетной степени) и разделяется на спектр вещественного сигнала.
+* Поворотные множители и перестановка считаются один раз в конструкторе; forward()
+* ничего не выделяет. Экземпляр не потокобезопасен: один на поток.
+*/
+public final class RealFft {
+
+	private final int size;
+	private final int half;
+	// exp(-2πi m / half): множители комплексного БПФ
+	private final double[] cos;
+	private final double[] sin;
+	// exp(-πi k / half), k <= half / 2: разделение на вещественный спектр
+	private final double[] splitCos;
+	private final double[] splitSin;
+	private final int[] reversed;
+	private final boolean radix2First;
+
+	public RealFft(int size) {
+		if (size < 4 || Integer.bitCount(size) != 1) throw new IllegalArgumentException("FFT size must be a power of two >= 4: " + size);
+		this.size = size;
+		this.half = size / 2;
+		cos = new double[half];
+		sin = new double[half];
+		for (int m = 0; m < half; m++) {
+			double angle = 2 * Math.PI * m / half;
+			cos[m] = Math.cos(angle);
+			sin[m] = Math.sin(angle);
+		}
+		splitCos = new double[half / 2 + 1];
+		splitSin = new double[half / 2 + 1];
+		for (int k = 0; k <= half / 2; k++) {
+			double angle = Math.PI * k / half;
+			splitCos[k] = Math.cos(angle);
+			splitSin[k] = Math.sin(angle);
+		}
+		int bits = Integer.numberOfTrailingZeros(half);
+		reversed = new int[half];
+		for (int i = 0; i < half; i++) reversed[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+		radix2First = (bits & 1) == 1;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	* Заменяет size отсчетов data спектром: data[0] — X[0], data[1] — X[N/2] (оба
+	* вещественные), далее data[2k], data[2k + 1] — действительная и мнимая части X[k].
+	*/
+	public void forward(double[] data) {
+		if (data.length < size) throw new IllegalArgumentException("Need " + size + " samples, got " + data.length);
+		complexForward(data);
+
+		double z0 = data[0];
+		data[0] = z0 + data[1];
+		data[1] = z0 - data[1];
+		for (int k = 1; k <= half / 2; k++) {
+			int a = 2 * k;
+			int b = 2 * (half - k);
+			double ar = data[a];
+			double ai = data[a + 1];
+			double br = data[b];
+			double bi = data[b + 1];
+			// Спектры четных (even) и нечетных (odd) отсчетов
+			double evenRe = 0.5 * (ar + br);
+			double evenIm = 0.5 * (ai - bi);
+			double oddRe = 0.5 * (ai + bi);
+			double oddIm = -0.5 * (ar - br);
+			double c = splitCos[k];
+			double s = splitSin[k];
+			double twRe = c * oddRe + s * oddIm;
+			double twIm = c * oddIm - s * oddRe;
+			data[a] = evenRe + twRe;
+			data[a + 1] = evenIm + twIm;
+			data[b] = evenRe - twRe;
+			data[b + 1] = twIm - evenIm;
+		}
+	}
+
+	/**
+	* Мощность бинов 0..N/2 после forward(): out[k] = |X[k]|², out.length >= N/2 + 1.
+	*/
+	public void power(double[] spectrum, double[] out) {
+		out[0] = spectrum[0] * spectrum[0];
+		out[half] = spectrum[1] * spectrum[1];
+		for (int k = 1; k < half; k++) {
+			double re = spectrum[2 * k];
+			double im = spectrum[2 * k + 1];
+			out[k] = re * re + im * im;
+		}
+	}
+
+	/**
+	* Комплексное БПФ длины half над чередующимися (re, im) в data.
+	*/
+	private void complexForward(double[] data) {
+		for (int i = 0; i < half; i++) {
+			int j = reversed[i];
+			if (j <= i) continue;
+			double re = data[2 * i];
+			double im = data[2 * i + 1];
+			data[2 * i] = data[2 * j];
+			data[2 * i + 1] = data[2 * j + 1];
+			data[2 * j] = re;
+			data[2 * j + 1] = im;
+		}
+
+		int quarter = 1;
+		if (radix2First) {
+			for (int i = 0; i < 2 * half; i += 4) {
+				double re = data[i + 2];
+				double im = data[i + 3];
+				data[i + 2] = data[i] - re;
+				data[i + 3] = data[i + 1] - im;
+				data[i] += re;
+				data[i + 1] += im;
+			}
+			quarter = 2;
+		}
+		// Бабочка по основанию 4 объединяет четыре соседних ДПФ длины quarter; после
+		// перестановки они лежат в порядке остатков 0, 2, 1, 3
+		for (; quarter < half; quarter *= 4) {
+			int stride = half / (4 * quarter);
+			for (int block = 0; block < half; block += 4 * quarter) {
+				for (int j = 0; j < quarter; j++) {
+					int t = j * stride;
+					int i0 = 2 * (block + j);
+					int i1 = i0 + 2 * quarter;
+					int i2 = i1 + 2 * quarter;
+					int i3 = i2 + 2 * quarter;
+					double w1r = cos[t];
+					double w1i = -sin[t];
+					double w2r = cos[2 * t];
+					double w2i = -sin[2 * t];
+					double w3r = cos[3 * t];
+					double w3i = -sin[3 * t];
+
+					double x = data[i2];
+					double y = data[i2 + 1];
+					double t1r = x * w1r - y * w1i;
+					double t1i = x * w1i + y * w1r;
+					x = data[i1];
+					y = data[i1 + 1];
+					double t2r = x * w2r - y * w2i;
+					double t2i = x * w2i + y * w2r;
+					x = data[i3];
+					y = data[i3 + 1];
+					double t3r = x * w3r - y * w3i;
+					double t3i = x * w3i + y * w3r;
+
+					double sum02r = data[i0] + t2r;
+					double sum02i = data[i0 + 1] + t2i;
+					double diff02r = data[i0] - t2r;
+					double diff02i = data[i0 + 1] - t2i;
+					double sum13r = t1r + t3r;
+					double sum13i = t1i + t3i;
+					double diff13r = t1r - t3r;
+					double diff13i = t1i - t3i;
+
+					data[i0] = sum02r + sum13r;
+					data[i0 + 1] = sum02i + sum13i;
+					data[i2] = sum02r - sum13r;
+					data[i2 + 1] = sum02i - sum13i;
+					// X1 = diff02 - i * diff13, X3 = diff02 + i * diff13
+					data[i1] = diff02r + diff13i;
+					data[i1 + 1] = diff02i - diff13r;
+					data[i3] = diff02r - diff13i;
+					data[i3 + 1] = diff02i + diff13r;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,432 @@
+package com.gignorie.fldist;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+* Кеш готовых рендеров по ключу (хеш звука, хеш цепочки).
+* Одинаковые записи (копии сэмпла в разных папках, дубли после импорта) рендерятся
+* один раз, остальные получают копию результата. Повторный предпросмотр и
+* APPLY после предпросмотра с той же цепочкой тоже берутся из кеша.
+*
+* Кеш лежит в кеш-каталоге приложения, а записи — в чужой папке на /sdcard:
+* это разные файловые системы, поэтому результат копируется, а не жестко связывается.
+* Размер ограничен; при переполнении удаляются давно не использованные записи.
+*
+* Рядом лежат анализы громкости (LoudnessMeter) исходников и выходов цепочек —
+* однострочные файлы, по ним AutoGain выравнивает уровень без повторного декодирования,
+* огибающие (WaveformPyramid) и спектры (SpectrumAnalyzer.Track) исходников и выходов
+* цепочек для WaveformView и SpectrumView, а также хеши звука файлов по их `stat`.
+*/
+public final class RenderCache {
+
+	public static final String DIR_NAME = "renders";
+
+	private static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+	private static final String ENTRY_SUFFIX = ".wav";
+	private static final String PART_SUFFIX = ".part";
+	private static final String ANALYSIS_SUFFIX = ".lufs";
+	// Анализы крошечные, но их число ограничено: старые удаляются по времени использования
+	private static final int MAX_ANALYSES = 4096;
+	private static final String WAVEFORM_SUFFIX = ".wave";
+	// Огибающие — сотни килобайт на длинную запись: лимит по размеру, как у рендеров
+	private static final long MAX_WAVEFORM_BYTES = 32L * 1024 * 1024;
+	private static final String SPECTRUM_SUFFIX = ".spec";
+	private static final long MAX_SPECTRUM_BYTES = 32L * 1024 * 1024;
+	private static final String CONTENT_HASH_SUFFIX = ".hash";
+	private static final int MAX_CONTENT_HASHES = 4096;
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+	private static RenderCache instance;
+
+	private final File dir;
+	private final long maxBytes;
+	// Ключи, которые сейчас рендерит какой-то поток
+	private final Map<String, CountDownLatch> inFlight = new HashMap<>();
+
+	public RenderCache(File dir, long maxBytes) {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		// Недописанные записи остались от прерванного процесса
+		File[] parts = dir.listFiles((d, name) -> name.endsWith(PART_SUFFIX));
+		if (parts != null) {
+			for (File part : parts) part.delete();
+		}
+	}
+
+	public static synchronized RenderCache getInstance(File dir) {
+		if (instance == null) instance = new RenderCache(dir, DEFAULT_MAX_BYTES);
+		return instance;
+	}
+
+	/**
+	* Ключ по звуку, цепочке, режиму подмешивания OutputStage и AutoGain: от них зависят байты результата.
+	*/
+	public static String keyOf(long contentHash, EffectChain chain, OutputStage.Dither dither, AutoGain gain) {
+		return ContentHash.toHex(contentHash) + "_" + ContentHash.toHex(XxHash64.hash(chain.toSignature() + "|out:" + dither + gain.signature()));
+	}
+
+	/**
+	* Ключ анализа выхода цепочки до усиления и квантования: подмешивание и AutoGain на него не влияют.
+	*/
+	public static String analysisKeyOf(long contentHash, EffectChain chain) {
+		return ContentHash.toHex(contentHash) + "_" + ContentHash.toHex(XxHash64.hash(chain.toSignature()));
+	}
+
+	/**
+	* Ключ анализа самого исходника.
+	*/
+	public static String sourceKeyOf(long contentHash) {
+		return ContentHash.toHex(contentHash) + "_source";
+	}
+
+	/**
+	* Ключ файла по пути, размеру и времени изменения (`stat`): огибающую исходника и хеш
+	* его звука можно найти, не читая файл. Перезапись файла меняет ключ.
+	*/
+	public static String fileKeyOf(ProjectIndex.FileStat stat) {
+		return ContentHash.toHex(XxHash64.hash(stat.path + "|" + stat.size + "|" + stat.mtime)) + "_file";
+	}
+
+	/**
+	* Анализ громкости или null. Попадание обновляет время использования.
+	*/
+	public LoudnessMeter.Result lookupAnalysis(String key) {
+		File file = new File(dir, key + ANALYSIS_SUFFIX);
+		if (!file.isFile()) return null;
+		try {
+			byte[] bytes = Files.readAllBytes(file.toPath());
+			file.setLastModified(System.currentTimeMillis());
+			return LoudnessMeter.Result.parse(new String(bytes, StandardCharsets.US_ASCII));
+			} catch (IOException | IllegalArgumentException e) {
+			// Поврежденная запись: анализ просто пересчитается
+			file.delete();
+			return null;
+		}
+	}
+
+	/**
+	* Сохраняет анализ (атомарно: через временный файл). Ошибки записи не мешают рендеру.
+	*/
+	public void storeAnalysis(String key, LoudnessMeter.Result result) {
+		if (storeSidecar(key + ANALYSIS_SUFFIX, result.serialize().getBytes(StandardCharsets.US_ASCII))) {
+			trimByCount(ANALYSIS_SUFFIX, MAX_ANALYSES);
+		}
+	}
+
+	/**
+	* Хеш звука файла (ключ fileKeyOf) или null: с ним ключи рендера известны до чтения через root.
+	*/
+	public Long lookupContentHash(String key) {
+		return lookupSidecar(key + CONTENT_HASH_SUFFIX, in -> {
+			try {
+				return Long.parseUnsignedLong(new String(readAll(in), StandardCharsets.US_ASCII).trim(), 16);
+				} catch (NumberFormatException e) {
+				throw new IOException("Bad content hash", e);
+			}
+		});
+	}
+
+	public void storeContentHash(String key, long contentHash) {
+		if (storeSidecar(key + CONTENT_HASH_SUFFIX, ContentHash.toHex(contentHash).getBytes(StandardCharsets.US_ASCII))) {
+			trimByCount(CONTENT_HASH_SUFFIX, MAX_CONTENT_HASHES);
+		}
+	}
+
+	/**
+	* Огибающая (ключ fileKeyOf для исходника, analysisKeyOf для выхода цепочки) или null.
+	*/
+	public WaveformPyramid lookupWaveform(String key) {
+		return lookupSidecar(key + WAVEFORM_SUFFIX, WaveformPyramid::readFrom);
+	}
+
+	/**
+	* Сохраняет огибающую так же атомарно; старые удаляются сверх MAX_WAVEFORM_BYTES.
+	*/
+	public void storeWaveform(String key, WaveformPyramid waveform) {
+		if (storeSidecar(key + WAVEFORM_SUFFIX, waveform::writeTo)) trimBySize(WAVEFORM_SUFFIX, MAX_WAVEFORM_BYTES);
+	}
+
+	/**
+	* Спектры (ключ sourceKeyOf для исходника, analysisKeyOf для выхода цепочки) или null.
+	*/
+	public SpectrumAnalyzer.Track lookupSpectrum(String key) {
+		return lookupSidecar(key + SPECTRUM_SUFFIX, SpectrumAnalyzer.Track::readFrom);
+	}
+
+	public void storeSpectrum(String key, SpectrumAnalyzer.Track track) {
+		if (storeSidecar(key + SPECTRUM_SUFFIX, track::writeTo)) trimBySize(SPECTRUM_SUFFIX, MAX_SPECTRUM_BYTES);
+	}
+
+	private interface SidecarReader<T> {
+		T read(InputStream in) throws IOException;
+	}
+
+	private interface SidecarWriter {
+		void write(OutputStream out) throws IOException;
+	}
+
+	/**
+	* Бинарная запись рядом с рендерами или null. Поврежденная удаляется и будет пересчитана.
+	*/
+	private <T> T lookupSidecar(String name, SidecarReader<T> reader) {
+		File file = new File(dir, name);
+		if (!file.isFile()) return null;
+		try (InputStream in = new FileInputStream(file)) {
+			T value = reader.read(in);
+			file.setLastModified(System.currentTimeMillis());
+			return value;
+			} catch (IOException | IllegalArgumentException e) {
+			file.delete();
+			return null;
+		}
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[256];
+		int read;
+		while ((read = in.read(buffer)) != -1) bytes.write(buffer, 0, read);
+		return bytes.toByteArray();
+	}
+
+	private boolean storeSidecar(String name, SidecarWriter writer) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			writer.write(bytes);
+			} catch (IOException e) {
+			return false;
+		}
+		return storeSidecar(name, bytes.toByteArray());
+	}
+
+	private boolean storeSidecar(String name, byte[] bytes) {
+		if (!dir.isDirectory() && !dir.mkdirs()) return false;
+		File part = new File(dir, name + "." + Long.toHexString(System.nanoTime()) + PART_SUFFIX);
+		try {
+			Files.write(part.toPath(), bytes);
+			if (part.renameTo(new File(dir, name))) return true;
+			} catch (IOException e) {
+			// Ошибка записи не мешает рендеру
+		}
+		part.delete();
+		return false;
+	}
+
+	/**
+	* Готовый рендер или null. Попадание обновляет время использования записи.
+	*/
+	public File lookup(String key) {
+		File entry = entryFile(key);
+		if (!entry.isFile()) return null;
+		entry.setLastModified(System.currentTimeMillis());
+		return entry;
+	}
+
+	/**
+	* Занимает ключ для рендера. Если ключ уже рендерит другой поток, ждет его
+	* и возвращает null — тогда нужно снова вызвать lookup(): результат либо
+	* уже в кеше, либо тот рендер не удался и ключ свободен.
+	*/
+	public Entry begin(String key) throws InterruptedException {
+		CountDownLatch other;
+		synchronized (inFlight) {
+			other = inFlight.get(key);
+			if (other == null) {
+				if (entryFile(key).isFile()) return null;
+				inFlight.put(key, new CountDownLatch(1));
+				return new Entry(key);
+			}
+		}
+		other.await();
+		return null;
+	}
+
+	/**
+	* Запись, ключ которой станет известен только к концу рендера (хеш звука считается
+	* попутно с чтением через root): ключ не занимается, результат сохраняется под
+	* ключом из Entry.setKey() при закрытии потока. Параллельный рендер того же файла
+	* просто запишет такой же результат.
+	*/
+	public Entry beginUnkeyed() {
+		return new Entry(null);
+	}
+
+	/**
+	* Копирует готовый рендер в поток и закрывает его.
+	*/
+	public static void copyTo(File entry, OutputStream out) throws IOException {
+		try (InputStream in = new FileInputStream(entry); OutputStream target = out) {
+			byte[] buffer = new byte[COPY_BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) != -1) target.write(buffer, 0, read);
+		}
+	}
+
+	private File entryFile(String key) {
+		return new File(dir, key + ENTRY_SUFFIX);
+	}
+
+	private void release(String key) {
+		CountDownLatch latch;
+		synchronized (inFlight) {
+			latch = inFlight.remove(key);
+		}
+		if (latch != null) latch.countDown();
+	}
+
+	/**
+	* Удаляет самые старые записи, пока кеш больше лимита.
+	*/
+	private void trim() {
+		trimBySize(ENTRY_SUFFIX, maxBytes);
+	}
+
+	private synchronized void trimBySize(String suffix, long maxBytes) {
+		File[] entries = dir.listFiles((d, name) -> name.endsWith(suffix));
+		if (entries == null) return;
+		long total = 0;
+		for (File entry : entries) total += entry.length();
+		if (total <= maxBytes) return;
+
+		Arrays.sort(entries, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+		for (File entry : entries) {
+			if (total <= maxBytes) break;
+			long length = entry.length();
+			if (entry.delete()) total -= length;
+		}
+	}
+
+	private synchronized void trimByCount(String suffix, int maxCount) {
+		File[] files = dir.listFiles((d, name) -> name.endsWith(suffix));
+		if (files == null || files.length <= maxCount) return;
+		Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+		for (int i = 0; i < files.length - maxCount; i++) files[i].delete();
+	}
+
+	/**
+	* Запись, которую рендерит текущий поток. Результат пишется одновременно
+	* в основной поток и в кеш (tee). Ошибка записи в кеш не мешает основному
+	* результату; запись попадает в кеш только при успешном закрытии обоих.
+	*/
+	public final class Entry {
+		private String key;
+		// Ключ занят в begin() (у beginUnkeyed() — нет)
+		private final boolean claimed;
+		private final File part;
+		private TeeOutputStream teeStream;
+		private boolean finished = false;
+
+		private Entry(String key) {
+			this.key = key;
+			this.claimed = key != null;
+			this.part = new File(dir, (key != null ? key : "unkeyed") + "." + Long.toHexString(System.nanoTime()) + PART_SUFFIX);
+		}
+
+		/**
+		* Ключ записи из beginUnkeyed(); задается до закрытия потока, иначе результат не сохраняется.
+		*/
+		public void setKey(String key) {
+			if (this.key != null) throw new IllegalStateException("Entry already has a key");
+			this.key = key;
+		}
+
+		public OutputStream tee(OutputStream out) {
+			OutputStream cacheStream = null;
+			if (dir.isDirectory() || dir.mkdirs()) {
+				try {
+					cacheStream = new FileOutputStream(part);
+					} catch (IOException e) {
+					// Без кеша: просто рендер
+				}
+			}
+			teeStream = new TeeOutputStream(out, cacheStream);
+			return teeStream;
+		}
+
+		/**
+		* Освобождает ключ; если запись не была сохранена — удаляет недописанный файл.
+		*/
+		public void release() {
+			if (!finished) {
+				finished = true;
+				if (teeStream != null) teeStream.dropCache();
+				part.delete();
+			}
+			if (claimed) RenderCache.this.release(key);
+		}
+
+		private void commit() {
+			finished = true;
+			if (key != null && part.renameTo(entryFile(key))) {
+				trim();
+				} else {
+				part.delete();
+			}
+		}
+
+		private final class TeeOutputStream extends FilterOutputStream {
+			private OutputStream cacheStream;
+
+			TeeOutputStream(OutputStream out, OutputStream cacheStream) {
+				super(out);
+				this.cacheStream = cacheStream;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				if (cacheStream == null) return;
+				try {
+					cacheStream.write(b, off, len);
+					} catch (IOException e) {
+					dropCache();
+				}
+			}
+
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void close() throws IOException {
+				try {
+					out.close();
+					} catch (IOException e) {
+					dropCache();
+					throw e;
+				}
+				if (cacheStream == null) return;
+				try {
+					cacheStream.close();
+					cacheStream = null;
+					commit();
+					} catch (IOException e) {
+					dropCache();
+				}
+			}
+
+			private void dropCache() {
+				if (cacheStream == null) return;
+				try {
+					cacheStream.close();
+					} catch (IOException ignored) { /* Файл все равно удаляется */ }
+				cacheStream = null;
+				part.delete();
+			}
+		}
+	}
+}
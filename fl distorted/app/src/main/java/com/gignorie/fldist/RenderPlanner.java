@@ -0,0 +1,207 @@
+package com.gignorie.fldist;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+* Выбор стратегии рендера по размеру сигнала, цепочке и свободной памяти:
+*
+* STREAMING  — блоки идут через всю цепочку прямо из декодера в кодировщик; память — пара блоков.
+*              Самый быстрый вариант: блок остается в кеше процессора на всех шагах.
+* IN_MEMORY  — весь сигнал в куче. Нужен, когда сигнал требуется целиком до начала записи
+*              (усиление AutoGain без сохраненного анализа известно только после обработки
+*              всего сигнала, или цепочка не потоковая). Только для коротких сигналов: большие массивы
+*              упираются в лимит кучи Android и удлиняют паузы сборщика.
+* OFF_HEAP   — то же в прямых буферах вне кучи (настольная JVM).
+* MMAP_SPILL — то же в отображенном в память файле: в лимит кучи не входит, страницы
+*              вытесняет ядро. На Android это единственная память вне кучи.
+*
+* Если не хватает ни кучи, ни диска, потоковой цепочке остается STREAMING без AutoGain;
+* иначе рендер отказывается заранее, а не падает с OutOfMemoryError посередине.
+*/
+public final class RenderPlanner {
+
+	public enum Strategy { IN_MEMORY, STREAMING, OFF_HEAP, MMAP_SPILL }
+
+	// Блок ~256 КБ double: все шаги цепочки проходят по нему, пока он в кеше процессора
+	static final int BLOCK_SAMPLES = 32768;
+	static final int LOW_RAM_BLOCK_SAMPLES = 8192;
+	static final int MIN_BLOCK_FRAMES = 256;
+	// Доля свободной кучи, которую может занять один рендер (остальное — UI, другие задачи)
+	static final double HEAP_FRACTION = 0.5;
+	static final double LOW_RAM_HEAP_FRACTION = 0.25;
+	// Запас свободного места на диске при выгрузке
+	static final double DISK_FRACTION = 0.8;
+	// Предел длины массива Java
+	static final long MAX_ARRAY_SAMPLES = Integer.MAX_VALUE - 8;
+	// Сигнал длиннее (~24 с стерео 44.1 кГц) держится вне кучи, если есть куда
+	static final long HEAP_SIGNAL_BYTES = 16L * 1024 * 1024;
+	// ART выделяет прямые буферы в управляемой куче: вне кучи там только отображенные файлы
+	static final boolean DIRECT_IN_HEAP = System.getProperty("java.vm.name", "").startsWith("Dalvik");
+
+	public static final String SPILL_PREFIX = "render_spill_";
+	public static final String SPILL_SUFFIX = ".f64";
+
+	private static final Logger LOG = Logger.getLogger("RenderPlanner");
+
+	private static volatile File spillDir = new File(System.getProperty("java.io.tmpdir", "."));
+	private static volatile boolean lowRamDevice;
+	private static boolean staleSpillsDeleted;
+
+	private RenderPlanner() { }
+
+	/**
+	* Настройка под устройство: каталог для выгрузки (кеш приложения) и класс памяти
+	* (ActivityManager.isLowRamDevice). Первый вызов в процессе удаляет выгрузки,
+	* оставшиеся от убитого процесса: рендеров этого процесса еще нет.
+	*/
+	public static synchronized void configure(File spillDirectory, boolean lowRam) {
+		spillDir = spillDirectory;
+		lowRamDevice = lowRam;
+		if (staleSpillsDeleted) return;
+		staleSpillsDeleted = true;
+		File[] stale = spillDirectory.listFiles((dir, name) -> name.startsWith(SPILL_PREFIX) && name.endsWith(SPILL_SUFFIX));
+		if (stale == null) return;
+		for (File file : stale) file.delete();
+	}
+
+	public static File getSpillDir() {
+		return spillDir;
+	}
+
+	/**
+	* Решение для одного рендера.
+	*/
+	public static final class Plan {
+		public final Strategy strategy;
+		public final int blockFrames;
+		public final long totalSamples;
+		// Сигнал целиком до записи (SampleBuffer); false у STREAMING — усиление по всему сигналу невозможно
+		public final boolean wholeSignal;
+		public final long heapBytes;
+		public final long heapBudget;
+		public final String reason;
+
+		Plan(Strategy strategy, int blockFrames, long totalSamples, long heapBytes, long heapBudget, String reason) {
+			this.strategy = strategy;
+			this.blockFrames = blockFrames;
+			this.totalSamples = totalSamples;
+			this.wholeSignal = strategy != Strategy.STREAMING;
+			this.heapBytes = heapBytes;
+			this.heapBudget = heapBudget;
+			this.reason = reason;
+		}
+
+		public int getBlockSamples(int numChannels) {
+			return blockFrames * numChannels;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "%s, block %d frames, %d samples, heap %.1f of %.1f MB: %s",
+			strategy, blockFrames, totalSamples, heapBytes / 1e6, heapBudget / 1e6, reason);
+		}
+	}
+
+	/**
+	* План по заголовку WAV и текущему состоянию кучи; решение пишется в лог.
+	* @param wholeSignalFirst вызывающему нужен весь сигнал до записи (AutoGain без сохраненного анализа).
+	* @throws IOException если сигнал не помещается ни в память, ни на диск.
+	*/
+	public static Plan plan(long numFrames, int numChannels, int validBits,
+	EffectChain chain, boolean wholeSignalFirst) throws IOException {
+		Runtime runtime = Runtime.getRuntime();
+		long freeHeap = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+		// Лимит прямой памяти по умолчанию равен -Xmx
+		long freeDirect = DIRECT_IN_HEAP ? 0 : runtime.maxMemory() - SampleBuffer.getDirectBytes();
+		File dir = spillDir;
+		Plan plan = plan(numFrames, numChannels, validBits, chain.isStreamable(), wholeSignalFirst,
+		freeHeap, freeDirect, dir.getUsableSpace(), lowRamDevice);
+		LOG.info("Render plan: " + plan);
+		return plan;
+	}
+
+	/**
+	* Чистое решение (без обращения к Runtime и диску).
+	*/
+	static Plan plan(long numFrames, int numChannels, int validBits, boolean streamable,
+	boolean wholeSignalFirst, long freeHeap, long freeDirect, long freeDisk, boolean lowRam) throws IOException {
+		long totalSamples = numFrames * numChannels;
+		long sourceBytes = totalSamples * ((validBits + 7) / 8);
+		double fraction = lowRam ? LOW_RAM_HEAP_FRACTION : HEAP_FRACTION;
+		long budget = (long) (Math.max(0, freeHeap) * fraction);
+		long directBudget = (long) (Math.max(0, freeDirect) * fraction);
+
+		int blockFrames = (int) Math.max(1, Math.min(numFrames,
+		Math.max(MIN_BLOCK_FRAMES, (lowRam ? LOW_RAM_BLOCK_SAMPLES : BLOCK_SAMPLES) / Math.max(1, numChannels))));
+		// Блок и сухая копия шага; в крайне тесной куче блок уменьшается
+		while (blockFrames > MIN_BLOCK_FRAMES && blockBytes(blockFrames, numChannels) > budget) blockFrames /= 2;
+		long streamingBytes = blockBytes(blockFrames, numChannels);
+		long inMemoryBytes = totalSamples * 8 + streamingBytes / 2;
+		String size = String.format(Locale.US, "%d frames x %d ch x %d bit (%.1f MB source)",
+		numFrames, numChannels, validBits, sourceBytes / 1e6);
+
+		if (streamable && !wholeSignalFirst) {
+			return new Plan(Strategy.STREAMING, blockFrames, totalSamples, streamingBytes, budget,
+			size + "; chain is block-streamable");
+		}
+		String need = streamable ? "auto gain needs the whole signal" : "chain needs the whole signal";
+		boolean fitsHeap = inMemoryBytes <= budget && totalSamples <= MAX_ARRAY_SAMPLES;
+		if (fitsHeap && totalSamples * 8 <= HEAP_SIGNAL_BYTES) {
+			return new Plan(Strategy.IN_MEMORY, blockFrames, totalSamples, inMemoryBytes, budget,
+			size + "; " + need + ", short enough for the heap");
+		}
+		if (totalSamples * 8 <= directBudget) {
+			return new Plan(Strategy.OFF_HEAP, blockFrames, totalSamples, streamingBytes, budget,
+			size + "; " + need + ", kept in direct memory");
+		}
+		if (totalSamples * 8 <= freeDisk * DISK_FRACTION) {
+			return new Plan(Strategy.MMAP_SPILL, blockFrames, totalSamples, streamingBytes, budget,
+			size + "; " + need + ", spilled to a mapped file");
+		}
+		if (fitsHeap) {
+			return new Plan(Strategy.IN_MEMORY, blockFrames, totalSamples, inMemoryBytes, budget,
+			size + "; " + need + ", no room off the heap");
+		}
+		if (streamable) {
+			return new Plan(Strategy.STREAMING, blockFrames, totalSamples, streamingBytes, budget,
+			size + "; no room in heap or on disk for the whole signal, rendering block by block");
+		}
+		throw new IOException("Not enough memory or disk to render " + size
+		+ ": needs " + inMemoryBytes / 1000000 + " MB");
+	}
+
+	/**
+	* Запасной план, если выделение всего буфера в куче или прямой памяти все же не удалось
+	* (память заняли параллельно).
+	*/
+	public static Plan afterOutOfMemory(Plan failed, int numChannels, boolean streamable) throws IOException {
+		File dir = spillDir;
+		Plan plan;
+		if (failed.strategy != Strategy.MMAP_SPILL && failed.totalSamples * 8 <= dir.getUsableSpace() * DISK_FRACTION) {
+			plan = new Plan(Strategy.MMAP_SPILL, failed.blockFrames, failed.totalSamples,
+			blockBytes(failed.blockFrames, numChannels), failed.heapBudget, failed.strategy + " allocation failed, spilling to disk");
+			} else if (streamable) {
+			plan = new Plan(Strategy.STREAMING, failed.blockFrames, failed.totalSamples,
+			blockBytes(failed.blockFrames, numChannels), failed.heapBudget, failed.strategy + " allocation failed, rendering block by block");
+			} else {
+			throw new IOException("Not enough memory or disk to render " + failed.totalSamples + " samples");
+		}
+		LOG.warning("Render plan: " + plan);
+		return plan;
+	}
+
+	/**
+	* Пиковая куча на рендер: сигнал в куче, только если он короткий, плюс блок и сухой блок шага.
+	*/
+	public static long heapBytes(long totalSamples) {
+		long signal = totalSamples * 8;
+		return (signal <= HEAP_SIGNAL_BYTES ? signal : 0) + (long) BLOCK_SAMPLES * 8 * 2;
+	}
+
+	private static long blockBytes(int blockFrames, int numChannels) {
+		return (long) blockFrames * numChannels * 8 * 2;
+	}
+}
@@ -0,0 +1,527 @@
+package com.gignorie.fldist;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* Замеры конвейера рендера по этапам: время, отсчеты в секунду и выделенная память.
+* Для каждого этапа (и каждого эффекта по его ID) хранится скользящее окно
+* из последних WINDOW замеров, по которому считаются перцентили и гистограмма.
+*
+* Накладные расходы — пара вызовов System.nanoTime() на этап, поэтому замеры
+* включены всегда; счетчик выделенной памяти подключается отдельно (setAllocationMeter).
+*/
+public final class RenderStats {
+
+	public static final String STAGE_HASH = "hash";
+	public static final String STAGE_CACHE_COPY = "cache_copy";
+	// Ожидание root-канала (запуск su и чтение), без разбора WAV
+	public static final String STAGE_READ_IO = "read_io";
+	// Разбор WAV в double, без ожидания канала
+	public static final String STAGE_DECODE = "decode";
+	// Копия блока из сигнала вне кучи (SampleBuffer.direct/mapped) в рабочий блок
+	public static final String STAGE_OFF_HEAP = "offheap_read";
+	// Анализ громкости исходника и выхода (LoudnessMeter)
+	public static final String STAGE_LOUDNESS = "loudness";
+	// Огибающая выхода для WaveformView (WaveformPyramid)
+	public static final String STAGE_WAVEFORM = "waveform";
+	// Спектры (SpectrumAnalyzer): копирование окон в потоке рендера и БПФ в фоновом потоке
+	public static final String STAGE_SPECTRUM = "spectrum";
+	public static final String STAGE_SPECTRUM_FFT = "spectrum_fft";
+	// Запись WAV из double, без ожидания приемника (файла или root-канала)
+	public static final String STAGE_ENCODE = "encode";
+	public static final String STAGE_WRITE_IO = "write_io";
+	public static final String STAGE_PLAYER_PREPARE = "player_prepare";
+	public static final String STAGE_TOTAL = "total";
+
+	private static final String[] EFFECT_STAGES = new String[EffectChain.NUM_EFFECTS];
+	static {
+		EFFECT_STAGES[EffectChain.FX_LPF_CUTOFF] = "fx.lpf_cutoff";
+		EFFECT_STAGES[EffectChain.FX_RING_MOD] = "fx.ring_mod";
+		EFFECT_STAGES[EffectChain.FX_CLIP_DECAY] = "fx.clip_decay";
+		EFFECT_STAGES[EffectChain.FX_REAL_BITCRUSH] = "fx.bitcrush";
+		EFFECT_STAGES[EffectChain.FX_REAL_DRIVE] = "fx.drive";
+		EFFECT_STAGES[EffectChain.FX_REAL_SATURATION] = "fx.saturation";
+	}
+
+	// Порядок строк в отчете — порядок этапов в конвейере
+	private static final List<String> STAGE_ORDER = new ArrayList<>();
+	static {
+		Collections.addAll(STAGE_ORDER, STAGE_HASH, STAGE_CACHE_COPY, STAGE_READ_IO, STAGE_DECODE, STAGE_OFF_HEAP);
+		Collections.addAll(STAGE_ORDER, EFFECT_STAGES);
+		Collections.addAll(STAGE_ORDER, STAGE_LOUDNESS, STAGE_WAVEFORM, STAGE_SPECTRUM, STAGE_SPECTRUM_FFT);
+		Collections.addAll(STAGE_ORDER, STAGE_ENCODE, STAGE_WRITE_IO, STAGE_PLAYER_PREPARE, STAGE_TOTAL);
+	}
+
+	// Сколько последних замеров каждого этапа учитывается
+	public static final int WINDOW = 256;
+	// Гистограмма: корзина i — длительности [2^i, 2^(i+1)) мкс, последняя — все длиннее
+	public static final int HISTOGRAM_BUCKETS = 24;
+
+	/**
+	* Счетчик памяти, выделенной текущим потоком (нарастающим итогом).
+	* -1 — подсчет недоступен.
+	*/
+	public interface AllocationMeter {
+		long currentThreadAllocatedBytes();
+	}
+
+	public static final AllocationMeter NO_ALLOCATION_METER = () -> -1;
+
+	private static final RenderStats instance = new RenderStats();
+
+	private final ConcurrentHashMap<String, Stage> stages = new ConcurrentHashMap<>();
+	private volatile AllocationMeter allocationMeter = jvmAllocationMeter();
+	// Выход OutputStage: отсчеты, упершиеся в границу шкалы, и рендеры, где это было
+	private final AtomicLong outputSamples = new AtomicLong();
+	private final AtomicLong clippedSamples = new AtomicLong();
+	private final AtomicLong clippedRenders = new AtomicLong();
+
+	public static RenderStats get() {
+		return instance;
+	}
+
+	RenderStats() { }
+
+	public static String effectStage(int effectId) {
+		if (effectId >= 0 && effectId < EFFECT_STAGES.length) return EFFECT_STAGES[effectId];
+		return "fx." + effectId;
+	}
+
+	/**
+	* Подключает счетчик памяти (например, android.os.Debug на устройстве).
+	* null возвращает счетчик по умолчанию.
+	*/
+	public void setAllocationMeter(AllocationMeter meter) {
+		allocationMeter = meter != null ? meter : jvmAllocationMeter();
+	}
+
+	/**
+	* Счетчик HotSpot (com.sun.management.ThreadMXBean) для бенчмарков и CLI.
+	* Через рефлексию: на Android этих классов нет.
+	*/
+	private static AllocationMeter jvmAllocationMeter() {
+		try {
+			Object bean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+			Class<?> hotspotBean = Class.forName("com.sun.management.ThreadMXBean");
+			if (!hotspotBean.isInstance(bean)) return NO_ALLOCATION_METER;
+			Method allocatedBytes = hotspotBean.getMethod("getThreadAllocatedBytes", long.class);
+			return () -> {
+				try {
+					return (Long) allocatedBytes.invoke(bean, Thread.currentThread().getId());
+					} catch (Exception e) {
+					return -1;
+				}
+			};
+			} catch (Throwable e) {
+			return NO_ALLOCATION_METER;
+		}
+	}
+
+	/**
+	* Один замер этапа. samples — обработанные отсчеты (0, если не применимо),
+	* allocatedBytes — -1, если неизвестно.
+	*/
+	public void record(String stage, long nanos, long samples, long allocatedBytes) {
+		Stage target = stages.get(stage);
+		if (target == null) {
+			stages.putIfAbsent(stage, new Stage(stage));
+			target = stages.get(stage);
+		}
+		target.add(nanos, samples, allocatedBytes);
+	}
+
+	/**
+	* Итог записи одного рендера: всего отсчетов и сколько из них обрезано насыщением.
+	*/
+	public void recordOutput(long samples, long clipped) {
+		outputSamples.addAndGet(samples);
+		if (clipped <= 0) return;
+		clippedSamples.addAndGet(clipped);
+		clippedRenders.incrementAndGet();
+	}
+
+	public long getClippedSamples() {
+		return clippedSamples.get();
+	}
+
+	public void reset() {
+		stages.clear();
+		outputSamples.set(0);
+		clippedSamples.set(0);
+		clippedRenders.set(0);
+	}
+
+	/**
+	* Замеры одного рендера. Не потокобезопасен: один Trace на задачу.
+	*/
+	public Trace startTrace() {
+		return new Trace(allocationMeter);
+	}
+
+	public final class Trace {
+		private final AllocationMeter meter;
+		private final long traceStart;
+		private final long traceBytes;
+		private long stageStart;
+		private long stageBytes;
+		// Этапы, идущие по блокам: [наносекунды, байты] копятся до flushLaps
+		private final Map<String, long[]> laps = new LinkedHashMap<>();
+
+		private Trace(AllocationMeter meter) {
+			this.meter = meter;
+			traceStart = System.nanoTime();
+			traceBytes = meter.currentThreadAllocatedBytes();
+			stageStart = traceStart;
+			stageBytes = traceBytes;
+		}
+
+		/**
+		* Начало этапа.
+		*/
+		public void begin() {
+			stageStart = System.nanoTime();
+			stageBytes = meter.currentThreadAllocatedBytes();
+		}
+
+		public void end(String stage, long samples) {
+			end(stage, samples, 0);
+		}
+
+		/**
+		* Конец этапа. excludedNanos — ожидание ввода-вывода внутри этапа,
+		* которое записывается отдельным этапом и здесь вычитается.
+		*/
+		public void end(String stage, long samples, long excludedNanos) {
+			long nanos = System.nanoTime() - stageStart - excludedNanos;
+			record(stage, Math.max(nanos, 0), samples, allocatedSince(stageBytes));
+		}
+
+		/**
+		* Конец очередного блока этапа при поблочном рендере; тут же начинается следующий этап.
+		* В статистику этап попадает один раз за рендер — в flushLaps, а не на каждый блок.
+		*/
+		public void lap(String stage) {
+			long now = System.nanoTime();
+			long bytes = allocatedSince(stageBytes);
+			long[] total = laps.get(stage);
+			if (total == null) {
+				total = new long[2];
+				laps.put(stage, total);
+			}
+			total[0] += now - stageStart;
+			total[1] = bytes < 0 || total[1] < 0 ? -1 : total[1] + bytes;
+			stageStart = now;
+			stageBytes = bytes < 0 ? -1 : stageBytes + bytes;
+		}
+
+		/**
+		* Вычесть из накопленного этапа ожидание ввода-вывода, записанное отдельным этапом.
+		*/
+		public void exclude(String stage, long nanos) {
+			long[] total = laps.get(stage);
+			if (total != null) total[0] -= nanos;
+		}
+
+		public void flushLaps(long samples) {
+			for (Map.Entry<String, long[]> lap : laps.entrySet()) {
+				record(lap.getKey(), Math.max(lap.getValue()[0], 0), samples, lap.getValue()[1]);
+			}
+			laps.clear();
+		}
+
+		/**
+		* Весь рендер целиком; вызывается только после успешного завершения.
+		*/
+		public void finish(long samples) {
+			record(STAGE_TOTAL, System.nanoTime() - traceStart, samples, allocatedSince(traceBytes));
+		}
+
+		private long allocatedSince(long start) {
+			if (start < 0) return -1;
+			long now = meter.currentThreadAllocatedBytes();
+			return now < 0 ? -1 : now - start;
+		}
+	}
+
+	/**
+	* Поток-обертка, суммирующий время, проведенное в ожидании источника.
+	*/
+	public static final class TimedInputStream extends FilterInputStream {
+		private long nanos;
+
+		/**
+		* @param openNanos время открытия источника (например, запуска su), уже потраченное.
+		*/
+		public TimedInputStream(InputStream in, long openNanos) {
+			super(in);
+			nanos = openNanos;
+		}
+
+		public long getNanos() {
+			return nanos;
+		}
+
+		@Override
+		public int read() throws IOException {
+			long start = System.nanoTime();
+			try {
+				return in.read();
+				} finally {
+				nanos += System.nanoTime() - start;
+			}
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			long start = System.nanoTime();
+			try {
+				return in.read(b, off, len);
+				} finally {
+				nanos += System.nanoTime() - start;
+			}
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long start = System.nanoTime();
+			try {
+				return in.skip(n);
+				} finally {
+				nanos += System.nanoTime() - start;
+			}
+		}
+	}
+
+	/**
+	* То же для приемника; close() тоже учитывается — root-канал дожидается в нем su.
+	*/
+	public static final class TimedOutputStream extends FilterOutputStream {
+		private long nanos;
+
+		public TimedOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		public long getNanos() {
+			return nanos;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			long start = System.nanoTime();
+			try {
+				out.write(b);
+				} finally {
+				nanos += System.nanoTime() - start;
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			long start = System.nanoTime();
+			try {
+				out.write(b, off, len);
+				} finally {
+				nanos += System.nanoTime() - start;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			long start = System.nanoTime();
+			try {
+				out.flush();
+				} finally {
+				nanos += System.nanoTime() - start;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			long start = System.nanoTime();
+			try {
+				out.close();
+				} finally {
+				nanos += System.nanoTime() - start;
+			}
+		}
+	}
+
+	/**
+	* Сводка по окну одного этапа.
+	*/
+	public static final class Summary {
+		public final String stage;
+		// Замеров за все время и в окне
+		public final long count;
+		public final int windowCount;
+		public final long p50Nanos;
+		public final long p90Nanos;
+		public final long p99Nanos;
+		public final long maxNanos;
+		// Отсчеты в секунду по замерам с отсчетами; NaN, если таких нет
+		public final double samplesPerSecond;
+		// Среднее на замер; -1, если счетчик памяти недоступен
+		public final long meanAllocatedBytes;
+		public final int[] histogram;
+
+		Summary(String stage, long count, long[] nanos, long[] samples, long[] bytes) {
+			this.stage = stage;
+			this.count = count;
+			windowCount = nanos.length;
+
+			long sampledNanos = 0;
+			long sampleTotal = 0;
+			long byteTotal = 0;
+			int byteCount = 0;
+			histogram = new int[HISTOGRAM_BUCKETS];
+			for (int i = 0; i < nanos.length; i++) {
+				if (samples[i] > 0) {
+					sampledNanos += nanos[i];
+					sampleTotal += samples[i];
+				}
+				if (bytes[i] >= 0) {
+					byteTotal += bytes[i];
+					byteCount++;
+				}
+				long micros = nanos[i] / 1000;
+				int bucket = micros <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(micros);
+				histogram[Math.min(bucket, HISTOGRAM_BUCKETS - 1)]++;
+			}
+			samplesPerSecond = sampledNanos > 0 ? sampleTotal * 1e9 / sampledNanos : Double.NaN;
+			meanAllocatedBytes = byteCount > 0 ? byteTotal / byteCount : -1;
+
+			long[] sorted = nanos.clone();
+			Arrays.sort(sorted);
+			p50Nanos = percentile(sorted, 50);
+			p90Nanos = percentile(sorted, 90);
+			p99Nanos = percentile(sorted, 99);
+			maxNanos = sorted.length > 0 ? sorted[sorted.length - 1] : 0;
+		}
+
+		private static long percentile(long[] sorted, int percent) {
+			if (sorted.length == 0) return 0;
+			int index = (int) Math.ceil(sorted.length * percent / 100.0) - 1;
+			return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+		}
+	}
+
+	private static final class Stage {
+		private final String name;
+		private final long[] nanos = new long[WINDOW];
+		private final long[] samples = new long[WINDOW];
+		private final long[] bytes = new long[WINDOW];
+		private long count;
+
+		Stage(String name) {
+			this.name = name;
+		}
+
+		synchronized void add(long stageNanos, long stageSamples, long stageBytes) {
+			int slot = (int) (count % WINDOW);
+			nanos[slot] = stageNanos;
+			samples[slot] = stageSamples;
+			bytes[slot] = stageBytes;
+			count++;
+		}
+
+		synchronized Summary summarize() {
+			int size = (int) Math.min(count, WINDOW);
+			return new Summary(name, count,
+			Arrays.copyOf(nanos, size), Arrays.copyOf(samples, size), Arrays.copyOf(bytes, size));
+		}
+	}
+
+	/**
+	* Сводки всех этапов в порядке конвейера.
+	*/
+	public List<Summary> summarize() {
+		List<Summary> result = new ArrayList<>();
+		for (Stage stage : stages.values()) result.add(stage.summarize());
+		Collections.sort(result, (a, b) -> {
+			int byOrder = Integer.compare(orderOf(a.stage), orderOf(b.stage));
+			return byOrder != 0 ? byOrder : a.stage.compareTo(b.stage);
+		});
+		return result;
+	}
+
+	private static int orderOf(String stage) {
+		int index = STAGE_ORDER.indexOf(stage);
+		return index >= 0 ? index : STAGE_ORDER.size();
+	}
+
+	/**
+	* Таблица для отладочного оверлея: перцентили в миллисекундах,
+	* миллионы отсчетов в секунду и килобайты на замер.
+	*/
+	public String formatTable() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.US, "%-15s %5s %7s %7s %7s %7s %8s%n",
+		"stage", "n", "p50ms", "p90ms", "maxms", "Msmp/s", "KB/op"));
+		for (Summary s : summarize()) {
+			sb.append(String.format(Locale.US, "%-15s %5d %7.2f %7.2f %7.2f %7s %8s%n",
+			s.stage, s.count, s.p50Nanos / 1e6, s.p90Nanos / 1e6, s.maxNanos / 1e6,
+			Double.isNaN(s.samplesPerSecond) ? "-" : String.format(Locale.US, "%.2f", s.samplesPerSecond / 1e6),
+			s.meanAllocatedBytes < 0 ? "-" : Long.toString(s.meanAllocatedBytes / 1024)));
+		}
+		if (clippedSamples.get() > 0) {
+			sb.append(String.format(Locale.US, "clipped: %d of %d samples in %d renders%n",
+			clippedSamples.get(), outputSamples.get(), clippedRenders.get()));
+		}
+		return sb.toString();
+	}
+
+	/**
+	* Машиночитаемый снимок (JSON): для сравнения между сборками и устройствами.
+	*/
+	public String toJson() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"window\":").append(WINDOW);
+		sb.append(",\"histogramBucketsMicros\":\"[2^i,2^(i+1))\"");
+		sb.append(",\"stages\":[");
+		boolean first = true;
+		for (Summary s : summarize()) {
+			if (!first) sb.append(',');
+			first = false;
+			sb.append("{\"stage\":\"").append(s.stage).append('"');
+			sb.append(",\"count\":").append(s.count);
+			sb.append(",\"windowCount\":").append(s.windowCount);
+			sb.append(",\"p50Nanos\":").append(s.p50Nanos);
+			sb.append(",\"p90Nanos\":").append(s.p90Nanos);
+			sb.append(",\"p99Nanos\":").append(s.p99Nanos);
+			sb.append(",\"maxNanos\":").append(s.maxNanos);
+			sb.append(",\"samplesPerSecond\":");
+			if (Double.isNaN(s.samplesPerSecond)) sb.append("null");
+			else sb.append(String.format(Locale.US, "%.1f", s.samplesPerSecond));
+			sb.append(",\"meanAllocatedBytes\":");
+			if (s.meanAllocatedBytes < 0) sb.append("null");
+			else sb.append(s.meanAllocatedBytes);
+			sb.append(",\"histogram\":[");
+			for (int i = 0; i < s.histogram.length; i++) {
+				if (i > 0) sb.append(',');
+				sb.append(s.histogram[i]);
+			}
+			sb.append("]}");
+		}
+		sb.append("]");
+		sb.append(",\"output\":{\"samples\":").append(outputSamples.get());
+		sb.append(",\"clippedSamples\":").append(clippedSamples.get());
+		sb.append(",\"clippedRenders\":").append(clippedRenders.get()).append('}');
+		sb.append('}');
+		return sb.toString();
+	}
+}
@@ -0,0 +1,113 @@
+package com.gignorie.fldist;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+* Запись файла через root (`cat > файл`) без промежуточной копии в кеше.
+* Пара к RootFileStream: данные идут в stdin отдельного процесса, stderr читается
+* своим потоком, а close() дожидается cat и бросает IOException при ошибке —
+* недописанный файл не должен выглядеть как успешно записанный.
+*/
+public final class RootFileSink extends FilterOutputStream {
+
+	private static final int MAX_ERROR_CHARS = 4096;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Process process;
+	private final String path;
+	private final StringBuilder errorOutput = new StringBuilder();
+	private final Thread errorDrainer;
+	private boolean closed = false;
+
+	private RootFileSink(Process process, String path) {
+		super(new BufferedOutputStream(process.getOutputStream(), BUFFER_SIZE));
+		this.process = process;
+		this.path = path;
+		this.errorDrainer = new Thread(this::drainErrors, "fldist-sink-stderr");
+		this.errorDrainer.setDaemon(true);
+		this.errorDrainer.start();
+	}
+
+	/**
+	* Создает (или усекает) файл и открывает его на запись.
+	*/
+	public static RootFileSink open(ShellLauncher launcher, String path) throws IOException {
+		Process process = launcher.startCommand("cat > " + ShellLauncher.quote(path));
+		return new RootFileSink(process, path);
+	}
+
+	private void drainErrors() {
+		try {
+			InputStream err = process.getErrorStream();
+			byte[] chunk = new byte[512];
+			int read;
+			while ((read = err.read(chunk)) != -1) {
+				synchronized (errorOutput) {
+					if (errorOutput.length() < MAX_ERROR_CHARS) {
+						errorOutput.append(new String(chunk, 0, read, StandardCharsets.UTF_8));
+					}
+				}
+			}
+			} catch (IOException e) {
+			// Процесс уничтожен — ошибки больше не нужны
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		// FilterOutputStream пишет по байту; буферизованный поток принимает блок целиком
+		try {
+			out.write(b, off, len);
+			} catch (IOException e) {
+			// Канал закрылся посреди записи: cat упал, причина — в его stderr
+			closed = true;
+			throw waitForExit(e);
+		}
+	}
+
+	/**
+	* Закрывает stdin и ждет cat. Код выхода не 0 — IOException.
+	*/
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+		closed = true;
+		// Если cat упал, закрытие канала даст EPIPE — но причину лучше взять из stderr
+		IOException pipeError = null;
+		try {
+			out.close();
+			} catch (IOException e) {
+			pipeError = e;
+		}
+		IOException failure = waitForExit(pipeError);
+		if (failure != null) throw failure;
+	}
+
+	/**
+	* Ждет завершения cat. Возвращает ошибку с его stderr, если код выхода не 0,
+	* иначе pipeError (может быть null).
+	*/
+	private IOException waitForExit(IOException pipeError) {
+		try {
+			int exitCode = process.waitFor();
+			errorDrainer.join(1000);
+			if (exitCode != 0) {
+				String message;
+				synchronized (errorOutput) {
+					message = errorOutput.toString().trim();
+				}
+				return new IOException("Root write to " + path + " failed with code " + exitCode + ": " + message);
+			}
+			return pipeError;
+			} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return new IOException("Interrupted while waiting for root write", e);
+			} finally {
+			process.destroy();
+		}
+	}
+}
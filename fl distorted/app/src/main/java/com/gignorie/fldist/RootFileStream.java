@@ -0,0 +1,106 @@
+package com.gignorie.fldist;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+* Поток байтов файла, прочитанного через root-оболочку (`cat`), без копирования в кеш.
+* stderr читается отдельным потоком, чтобы процесс не блокировался на заполненном канале.
+* Если cat завершился с ошибкой, вместо тихого конца потока бросается IOException.
+*/
+public final class RootFileStream extends FilterInputStream {
+
+	private static final int MAX_ERROR_CHARS = 4096;
+
+	private final Process process;
+	private final StringBuilder errorOutput = new StringBuilder();
+	private final Thread errorDrainer;
+	private boolean exitChecked = false;
+
+	private RootFileStream(Process process) {
+		super(process.getInputStream());
+		this.process = process;
+		this.errorDrainer = new Thread(this::drainErrors, "fldist-pipe-stderr");
+		this.errorDrainer.setDaemon(true);
+		this.errorDrainer.start();
+	}
+
+	/**
+	* Открывает файл через оболочку, созданную launcher'ом.
+	*/
+	public static RootFileStream open(ShellLauncher launcher, String path) throws IOException {
+		Process process = launcher.startShell();
+		OutputStream os = process.getOutputStream();
+		// exec заменяет оболочку на cat: код выхода процесса = код выхода cat
+		os.write(("exec cat " + ShellLauncher.quote(path) + "\n").getBytes(StandardCharsets.UTF_8));
+		os.flush();
+		os.close();
+		return new RootFileStream(process);
+	}
+
+	private void drainErrors() {
+		try {
+			InputStream err = process.getErrorStream();
+			byte[] chunk = new byte[512];
+			int read;
+			while ((read = err.read(chunk)) != -1) {
+				synchronized (errorOutput) {
+					if (errorOutput.length() < MAX_ERROR_CHARS) {
+						errorOutput.append(new String(chunk, 0, read, StandardCharsets.UTF_8));
+					}
+				}
+			}
+			} catch (IOException e) {
+			// Процесс уничтожен — ошибки больше не нужны
+		}
+	}
+
+	/**
+	* На конце потока проверяет код выхода: пустой вывод cat при ошибке
+	* не должен выглядеть как пустой файл.
+	*/
+	private void checkExit() throws IOException {
+		if (exitChecked) return;
+		exitChecked = true;
+		try {
+			int exitCode = process.waitFor();
+			errorDrainer.join(1000);
+			if (exitCode != 0) {
+				String message;
+				synchronized (errorOutput) {
+					message = errorOutput.toString().trim();
+				}
+				throw new IOException("Root read failed with code " + exitCode + ": " + message);
+			}
+			} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for root read", e);
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		int value = super.read();
+		if (value == -1) checkExit();
+		return value;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int read = super.read(b, off, len);
+		if (read == -1) checkExit();
+		return read;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			super.close();
+			} finally {
+			process.destroy();
+		}
+	}
+}
@@ -0,0 +1,325 @@
+package com.gignorie.fldist;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+* Одна долгоживущая root-оболочка на всё приложение.
+* Каждая команда обрамляется маркером с кодом выхода, поэтому команды можно
+* отправлять подряд (конвейером) без запуска нового процесса `su` на каждую.
+* stdout и stderr читаются двумя отдельными потоками одновременно — большой вывод
+* (например, `cat` .flm-файла) не может заблокировать оболочку.
+*/
+public final class RootShell implements Closeable {
+
+	/**
+	* Результат команды, собранный целиком в память.
+	*/
+	public static final class Result {
+		public final int exitCode;
+		public final String stdout;
+		public final String stderr;
+
+		Result(int exitCode, String stdout, String stderr) {
+			this.exitCode = exitCode;
+			this.stdout = stdout;
+			this.stderr = stderr;
+		}
+
+		public boolean isSuccess() {
+			return exitCode == 0;
+		}
+	}
+
+	/**
+	* Команда в очереди оболочки. Вывод передается в sink'и по мере поступления.
+	*/
+	public static final class Command {
+		private final OutputStream stdoutSink;
+		private final OutputStream stderrSink;
+		// Команда завершена, когда получены маркеры и из stdout, и из stderr
+		private final CountDownLatch done = new CountDownLatch(2);
+		private volatile int exitCode = -1;
+		private volatile IOException failure;
+
+		Command(OutputStream stdoutSink, OutputStream stderrSink) {
+			this.stdoutSink = stdoutSink;
+			this.stderrSink = stderrSink;
+		}
+
+		/**
+		* Ждет завершения команды и возвращает ее код выхода.
+		*/
+		public int waitFor() throws IOException, InterruptedException {
+			done.await();
+			if (failure != null) throw failure;
+			return exitCode;
+		}
+
+		void fail(IOException e) {
+			if (failure == null) failure = e;
+			while (done.getCount() > 0) done.countDown();
+		}
+	}
+
+	// Дополнительные оболочки для параллельного чтения файлов при сканировании
+	public static final int MAX_WORKERS = 4;
+
+	private static RootShell instance;
+	private static final RootShell[] workers = new RootShell[MAX_WORKERS];
+
+	private final ShellLauncher launcher;
+	// Маркер конца команды: 0x01 + случайная строка, 0x01 больше нигде в маркере не встречается
+	private final byte[] marker;
+	private final String markerText;
+
+	private Process process;
+	private OutputStream stdin;
+	private LinkedBlockingQueue<Command> pendingStdout;
+	private LinkedBlockingQueue<Command> pendingStderr;
+	// Все незавершенные команды (в том числе уже взятые читателями из очередей)
+	private final Set<Command> inFlight = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+	public static synchronized RootShell getInstance() {
+		if (instance == null) {
+			instance = new RootShell(ShellLauncher.SU);
+		}
+		return instance;
+	}
+
+	/**
+	* Отдельная оболочка для рабочего потока сканирования: одна оболочка выполняет
+	* команды строго по очереди, поэтому параллельное чтение требует нескольких.
+	*/
+	public static synchronized RootShell getWorker(int slot) {
+		if (workers[slot] == null) {
+			workers[slot] = new RootShell(ShellLauncher.SU);
+		}
+		return workers[slot];
+	}
+
+	/**
+	* Закрывает рабочие оболочки, чтобы не держать лишние root-процессы между сканированиями.
+	*/
+	public static synchronized void closeWorkers() {
+		for (int i = 0; i < workers.length; i++) {
+			if (workers[i] != null) {
+				workers[i].close();
+				workers[i] = null;
+			}
+		}
+	}
+
+	/**
+	* @param launcher ShellLauncher.SU на устройстве или ShellLauncher.LOCAL для проверки без root.
+	*/
+	public RootShell(ShellLauncher launcher) {
+		this.launcher = launcher;
+		byte[] random = new byte[8];
+		new SecureRandom().nextBytes(random);
+		StringBuilder sb = new StringBuilder("\u0001FLDIST_");
+		for (byte b : random) sb.append(String.format("%02x", b & 0xFF));
+		sb.append(':');
+		this.markerText = sb.toString();
+		this.marker = markerText.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	* Выполняет команду и собирает ее вывод в строки.
+	*/
+	public Result run(String command) throws IOException, InterruptedException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ByteArrayOutputStream err = new ByteArrayOutputStream();
+		int exitCode = submit(command, out, err).waitFor();
+		return new Result(exitCode,
+		new String(out.toByteArray(), StandardCharsets.UTF_8),
+		new String(err.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	/**
+	* Ставит команду в очередь оболочки и сразу возвращается.
+	* Sink'и вызываются из потоков-читателей, поэтому медленный sink задерживает следующие команды.
+	*/
+	public synchronized Command submit(String command, OutputStream stdoutSink, OutputStream stderrSink) throws IOException {
+		ensureStarted();
+		Command cmd = new Command(stdoutSink, stderrSink);
+		// Сначала в очередь, потом в stdin: вывод не может прийти раньше, чем читатель узнает о команде
+		inFlight.add(cmd);
+		pendingStdout.add(cmd);
+		pendingStderr.add(cmd);
+		String framed = "{ " + command + "\n} </dev/null; __fldist_rc=$?; "
+		+ "printf '%s\\n' '" + markerText + "' >&2; "
+		+ "printf '%s%d\\n' '" + markerText + "' $__fldist_rc\n";
+		try {
+			stdin.write(framed.getBytes(StandardCharsets.UTF_8));
+			stdin.flush();
+			} catch (IOException e) {
+			handleShellDeath(process, e);
+			throw e;
+		}
+		return cmd;
+	}
+
+	private void ensureStarted() throws IOException {
+		if (process != null) return;
+		Process p = launcher.startShell();
+		process = p;
+		stdin = p.getOutputStream();
+		pendingStdout = new LinkedBlockingQueue<>();
+		pendingStderr = new LinkedBlockingQueue<>();
+		startReader(p, p.getInputStream(), pendingStdout, true);
+		startReader(p, p.getErrorStream(), pendingStderr, false);
+	}
+
+	private void startReader(Process p, InputStream stream, LinkedBlockingQueue<Command> queue, boolean isStdout) {
+		Thread reader = new Thread(() -> {
+			try {
+				new Demultiplexer(queue, isStdout).pump(stream);
+				handleShellDeath(p, new IOException("Root shell exited"));
+				} catch (IOException e) {
+				handleShellDeath(p, e);
+			}
+		}, isStdout ? "fldist-shell-out" : "fldist-shell-err");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	* Оболочка умерла: все ожидающие команды завершаются ошибкой,
+	* следующая команда запустит новую оболочку.
+	*/
+	private synchronized void handleShellDeath(Process dead, IOException cause) {
+		if (process != dead) return;
+		process = null;
+		for (Command cmd : inFlight) cmd.fail(cause);
+		inFlight.clear();
+		pendingStdout.clear();
+		pendingStderr.clear();
+		try {
+			stdin.close();
+			} catch (IOException e) { /* Ignored */ }
+		dead.destroy();
+	}
+
+	@Override
+	public synchronized void close() {
+		if (process != null) handleShellDeath(process, new IOException("Root shell closed"));
+	}
+
+	/**
+	* Разбирает один поток оболочки на куски по командам.
+	*/
+	private final class Demultiplexer {
+		private final LinkedBlockingQueue<Command> queue;
+		private final boolean isStdout;
+		private Command current;
+		private int matched = 0;          // Сколько байт маркера уже совпало
+		private boolean readingTrailer = false; // После маркера: код выхода до '\n'
+		private final StringBuilder trailer = new StringBuilder();
+
+		Demultiplexer(LinkedBlockingQueue<Command> queue, boolean isStdout) {
+			this.queue = queue;
+			this.isStdout = isStdout;
+		}
+
+		void pump(InputStream stream) throws IOException {
+			byte[] chunk = new byte[16384];
+			int read;
+			while ((read = stream.read(chunk)) != -1) {
+				feed(chunk, read);
+			}
+		}
+
+		private void feed(byte[] chunk, int length) throws IOException {
+			int spanStart = 0;
+			for (int i = 0; i < length; i++) {
+				byte b = chunk[i];
+				if (readingTrailer) {
+					spanStart = i + 1;
+					if (b == '\n') {
+						finishCommand();
+						} else {
+						trailer.append((char) b);
+					}
+					continue;
+				}
+				if (matched > 0) {
+					if (b == marker[matched]) {
+						matched++;
+						spanStart = i + 1;
+						if (matched == marker.length) {
+							matched = 0;
+							readingTrailer = true;
+						}
+						continue;
+					}
+					// Ложное начало маркера: отдаем придержанные байты как обычный вывод
+					write(marker, 0, matched);
+					matched = 0;
+					spanStart = i;
+				}
+				if (b == marker[0]) {
+					write(chunk, spanStart, i - spanStart);
+					matched = 1;
+					spanStart = i + 1;
+				}
+			}
+			if (!readingTrailer && matched == 0) {
+				write(chunk, spanStart, length - spanStart);
+			}
+		}
+
+		private Command current() {
+			if (current == null) {
+				try {
+					current = queue.take();
+					} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return current;
+		}
+
+		private void write(byte[] data, int off, int len) throws IOException {
+			if (len <= 0) return;
+			Command cmd = current();
+			if (cmd == null) return;
+			OutputStream sink = isStdout ? cmd.stdoutSink : cmd.stderrSink;
+			if (sink != null) {
+				try {
+					sink.write(data, off, len);
+					} catch (IOException e) {
+					// Ошибка получателя не должна ломать разбор общей оболочки
+					cmd.fail(e);
+				}
+			}
+		}
+
+		private void finishCommand() {
+			Command cmd = current();
+			readingTrailer = false;
+			current = null;
+			if (cmd == null) return;
+			if (isStdout) {
+				try {
+					cmd.exitCode = Integer.parseInt(trailer.toString().trim());
+					} catch (NumberFormatException e) {
+					cmd.exitCode = -1;
+				}
+			}
+			trailer.setLength(0);
+			cmd.done.countDown();
+			if (cmd.done.getCount() == 0) inFlight.remove(cmd);
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package com.gignorie.fldist;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+* Безопасная перезапись файла на месте: результат пишется во временный файл рядом
+* с оригиналом (тот же каталог — та же файловая система), сбрасывается на диск
+* и атомарно переименовывается поверх оригинала. Оригинал в любой момент либо
+* старый, либо новый целиком, и нет второго полного копирования между ФС.
+*
+* Перед записью в журнал заносится пара "временный файл -> цель". После сбоя
+* recover() удаляет оставшиеся временные файлы: раз переименование атомарно,
+* больше восстанавливать нечего.
+*
+* Если каталог доступен приложению на запись, используется обычный Java IO
+* (FileChannel.force + ATOMIC_MOVE); иначе — root (`cat >`, `fsync`, `mv`).
+*/
+public final class SafeOverwrite {
+
+	/**
+	* Содержимое нового файла. Поток нужно закрыть (WavFile.close() делает это сам).
+	*/
+	public interface Content {
+		void writeTo(OutputStream out) throws Exception;
+	}
+
+	private static final String TEMP_SUFFIX = ".fldist-tmp";
+	private static final String JOURNAL_SUFFIX = ".pending";
+
+	private final File journalDir;
+	private final ShellLauncher launcher;
+	private final RootShell shell;
+
+	public SafeOverwrite(File journalDir, ShellLauncher launcher, RootShell shell) {
+		this.journalDir = journalDir;
+		this.launcher = launcher;
+		this.shell = shell;
+	}
+
+	/**
+	* Перезапись через общую root-оболочку приложения.
+	*/
+	public static SafeOverwrite withRoot(File journalDir) {
+		return new SafeOverwrite(journalDir, ShellLauncher.SU, RootShell.getInstance());
+	}
+
+	/**
+	* Скрытый временный файл в каталоге цели. tag делает имя уникальным
+	* (или, для пакета, детерминированным — чтобы найти его при продолжении).
+	*/
+	public static String siblingTempPath(String targetPath, String tag) {
+		File target = new File(targetPath);
+		return new File(target.getParentFile(), "." + target.getName() + "." + tag + TEMP_SUFFIX).getPath();
+	}
+
+	/**
+	* Полный цикл: запись во временный файл, fsync, атомарная замена.
+	* При любой ошибке временный файл удаляется, оригинал не тронут.
+	*/
+	public void overwrite(String targetPath, Content content) throws Exception {
+		String tempPath = siblingTempPath(targetPath, Long.toHexString(System.nanoTime()));
+		File entry = beginJournal(tempPath, targetPath);
+		try {
+			writeTemp(tempPath, content);
+			commit(tempPath, targetPath);
+			} catch (Exception e) {
+			try {
+				discard(tempPath);
+				} catch (Exception ignored) { /* Останется в журнале до recover() */ }
+			throw e;
+		}
+		entry.delete();
+	}
+
+	/**
+	* Пишет временный файл и сбрасывает его на диск (в режиме root — в commit()).
+	*/
+	public void writeTemp(String tempPath, Content content) throws Exception {
+		if (isDirectlyWritable(tempPath)) {
+			content.writeTo(new SyncingOutputStream(new FileOutputStream(tempPath)));
+			} else {
+			content.writeTo(RootFileSink.open(launcher, tempPath));
+		}
+	}
+
+	/**
+	* Заменяет цель готовым временным файлом одним rename в пределах каталога.
+	*/
+	public void commit(String tempPath, String targetPath) throws Exception {
+		if (isDirectlyWritable(targetPath)) {
+			Files.move(new File(tempPath).toPath(), new File(targetPath).toPath(),
+			StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			return;
+		}
+		String temp = ShellLauncher.quote(tempPath);
+		String target = ShellLauncher.quote(targetPath);
+		// fsync до rename, иначе после сбоя питания имя может указывать на пустой файл.
+		// Владелец копируется с оригинала, права как и раньше 666, чтобы FLM мог писать.
+		run("(fsync " + temp + " 2>/dev/null || sync)"
+		+ " && { chown $(stat -c %u:%g " + target + ") " + temp + " 2>/dev/null;"
+		+ " chmod 666 " + temp + " && mv -f " + temp + " " + target + "; }");
+	}
+
+	public boolean exists(String path) throws Exception {
+		File file = new File(path);
+		if (file.getParentFile() != null && file.getParentFile().canRead()) return file.exists();
+		return shell.run("[ -e " + ShellLauncher.quote(path) + " ]").isSuccess();
+	}
+
+	public void discard(String tempPath) throws Exception {
+		if (isDirectlyWritable(tempPath)) {
+			Files.deleteIfExists(new File(tempPath).toPath());
+			} else {
+			run("rm -f " + ShellLauncher.quote(tempPath));
+		}
+	}
+
+	/**
+	* Разбирает журнал после сбоя: удаляет недописанные временные файлы.
+	* Возвращает число восстановленных записей.
+	*/
+	public int recover() {
+		File[] entries = journalDir.listFiles((dir, name) -> name.endsWith(JOURNAL_SUFFIX));
+		if (entries == null) return 0;
+		int recovered = 0;
+		for (File entry : entries) {
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(entry), StandardCharsets.UTF_8))) {
+				String tempPath = reader.readLine();
+				if (tempPath != null && tempPath.endsWith(TEMP_SUFFIX) && exists(tempPath)) discard(tempPath);
+				entry.delete();
+				recovered++;
+				} catch (Exception e) {
+				// Оставляем запись: попробуем при следующем запуске
+			}
+		}
+		return recovered;
+	}
+
+	private File beginJournal(String tempPath, String targetPath) throws IOException {
+		if (!journalDir.isDirectory() && !journalDir.mkdirs()) {
+			throw new IOException("Could not create overwrite journal " + journalDir);
+		}
+		File entry = new File(journalDir, Long.toHexString(System.nanoTime()) + JOURNAL_SUFFIX);
+		try (FileOutputStream out = new FileOutputStream(entry)) {
+			out.write((tempPath + "\n" + targetPath + "\n").getBytes(StandardCharsets.UTF_8));
+			out.getFD().sync();
+		}
+		return entry;
+	}
+
+	private void run(String command) throws IOException, InterruptedException {
+		RootShell.Result result = shell.run(command);
+		if (!result.isSuccess()) {
+			throw new IOException("Root command failed with code " + result.exitCode + ": " + result.stderr.trim());
+		}
+	}
+
+	private static boolean isDirectlyWritable(String path) {
+		File file = new File(path);
+		File dir = file.getParentFile();
+		return dir != null && dir.canWrite() && (!file.exists() || file.canWrite());
+	}
+
+	/**
+	* Поток файла, который при закрытии дожидается записи данных на носитель.
+	*/
+	private static final class SyncingOutputStream extends FilterOutputStream {
+		private final FileOutputStream file;
+
+		SyncingOutputStream(FileOutputStream file) {
+			super(file);
+			this.file = file;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				file.getChannel().force(true);
+				} finally {
+				file.close();
+			}
+		}
+	}
+}
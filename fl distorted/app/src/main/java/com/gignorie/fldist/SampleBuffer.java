@@ -0,0 +1,189 @@
+package com.gignorie.fldist;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* Весь сигнал рендера (отсчеты double всех каналов подряд, как в буфере WavFile),
+* доступный окнами DoubleBuffer: WavFile читает и пишет их напрямую, BlockProcessor
+* обрабатывает на месте. Три вида хранения (выбирает RenderPlanner):
+*
+* onHeap — массив из BufferPool в куче: короткие сигналы, без копий;
+* direct — прямые буферы вне кучи Java (на настольной JVM); сборщик их не сканирует;
+* mapped — временный файл, отображенный в память: страницы вытесняет ядро,
+*          в лимит кучи Android не входит. Файл удаляется в close().
+*/
+public abstract class SampleBuffer implements Closeable {
+
+	// Окно в отсчетах (64 МБ): предел размера одного буфера NIO и адресное пространство 32-битного процесса
+	static final int WINDOW_SAMPLES = 8 * 1024 * 1024;
+
+	// Живые прямые буферы: их лимит (MaxDirectMemorySize) общий для процесса
+	private static final AtomicLong directBytes = new AtomicLong();
+
+	protected final long length;
+	// Окно — целое число кадров, поэтому срез никогда не режет кадр пополам
+	protected final int windowSamples;
+
+	private SampleBuffer(long length, int windowSamples) {
+		this.length = length;
+		this.windowSamples = windowSamples;
+	}
+
+	private static int windowFor(int frameSize) {
+		return Math.max(frameSize, WINDOW_SAMPLES / frameSize * frameSize);
+	}
+
+	/**
+	* Массив берется из пула и возвращается в него в close().
+	*/
+	public static SampleBuffer onHeap(BufferPool pool, int length) {
+		return new Heap(pool.lease(length), length);
+	}
+
+	/**
+	* @throws OutOfMemoryError если лимит прямой памяти исчерпан.
+	*/
+	public static SampleBuffer direct(long length, int frameSize) {
+		return new Direct(length, frameSize);
+	}
+
+	public static SampleBuffer mapped(File directory, long length, int frameSize) throws IOException {
+		return new Mapped(directory, length, frameSize);
+	}
+
+	public static long getDirectBytes() {
+		return directBytes.get();
+	}
+
+	public final long length() {
+		return length;
+	}
+
+	/**
+	* Окно на отсчеты с position: не длиннее maxLength и не дальше границы окна хранения
+	* (на ней срез короче — вызывающий просто продолжает со следующей позиции).
+	* Позиция среза 0, предел — его длина; срезы разделяют память с буфером.
+	*/
+	public final DoubleBuffer slice(long position, int maxLength) throws IOException {
+		if (position < 0 || position >= length || maxLength <= 0) throw new IndexOutOfBoundsException("Slice " + position + " outside " + length);
+		long window = position / windowSamples;
+		int start = (int) (position - window * windowSamples);
+		int count = (int) Math.min(Math.min(maxLength, length - position), windowSamples - start);
+		DoubleBuffer view = window(window).duplicate();
+		view.limit(start + count).position(start);
+		return view.slice();
+	}
+
+	protected abstract DoubleBuffer window(long index) throws IOException;
+
+	@Override
+	public void close() throws IOException { }
+
+	private static final class Heap extends SampleBuffer {
+		private final BufferPool.Lease lease;
+		private final DoubleBuffer buffer;
+
+		Heap(BufferPool.Lease lease, int length) {
+			// Массив — одно окно; из пула он бывает длиннее сигнала
+			super(length, Math.max(length, 1));
+			this.lease = lease;
+			buffer = DoubleBuffer.wrap(lease.array(), 0, length).slice();
+		}
+
+		@Override
+		protected DoubleBuffer window(long index) {
+			return buffer;
+		}
+
+		@Override
+		public void close() {
+			lease.close();
+		}
+	}
+
+	private static final class Direct extends SampleBuffer {
+		private DoubleBuffer[] windows;
+		private final long bytes;
+
+		Direct(long length, int frameSize) {
+			super(length, windowFor(frameSize));
+			int count = (int) ((length + windowSamples - 1) / windowSamples);
+			windows = new DoubleBuffer[count];
+			bytes = length * 8;
+			directBytes.addAndGet(bytes);
+			try {
+				// Все окна сразу: нехватка памяти видна при выделении, а не посреди рендера
+				for (int i = 0; i < count; i++) {
+					int size = (int) Math.min(windowSamples, length - (long) i * windowSamples);
+					windows[i] = ByteBuffer.allocateDirect(size * 8).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+				}
+				} catch (OutOfMemoryError e) {
+				windows = null;
+				directBytes.addAndGet(-bytes);
+				throw e;
+			}
+		}
+
+		@Override
+		protected DoubleBuffer window(long index) {
+			return windows[(int) index];
+		}
+
+		@Override
+		public void close() {
+			// Память освобождается сборщиком вместе с объектами буферов
+			if (windows == null) return;
+			windows = null;
+			directBytes.addAndGet(-bytes);
+		}
+	}
+
+	private static final class Mapped extends SampleBuffer {
+		private final File file;
+		private final FileChannel channel;
+		private DoubleBuffer window;
+		private long windowIndex = -1;
+
+		Mapped(File directory, long length, int frameSize) throws IOException {
+			super(length, windowFor(frameSize));
+			file = File.createTempFile(RenderPlanner.SPILL_PREFIX, RenderPlanner.SPILL_SUFFIX, directory);
+			try {
+				channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+				} catch (IOException e) {
+				file.delete();
+				throw e;
+			}
+		}
+
+		@Override
+		protected DoubleBuffer window(long index) throws IOException {
+			if (index != windowIndex) {
+				long start = index * windowSamples;
+				long size = Math.min(windowSamples, length - start);
+				// Одно окно за раз; старое освобождается сборщиком. Порядок байт родной — без перестановки
+				window = channel.map(FileChannel.MapMode.READ_WRITE, start * 8, size * 8)
+				.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+				windowIndex = index;
+			}
+			return window;
+		}
+
+		@Override
+		public void close() throws IOException {
+			window = null;
+			try {
+				channel.close();
+				} finally {
+				file.delete();
+			}
+		}
+	}
+}
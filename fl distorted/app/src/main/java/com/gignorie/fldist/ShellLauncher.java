@@ -0,0 +1,43 @@
+package com.gignorie.fldist;
+
+import java.io.IOException;
+
+/**
+* Запускает командную оболочку, которой затем передаются команды через stdin.
+* SU — root-оболочка на устройстве, LOCAL — обычный /bin/sh для проверки на JVM без root (ShellHarness в модуле regression).
+*/
+public interface ShellLauncher {
+
+	Process startShell() throws IOException;
+
+	/**
+	* Запускает одну команду (`-c`). В отличие от startShell, stdin процесса целиком
+	* принадлежит команде, поэтому через него можно передавать данные (`cat > файл`).
+	*/
+	Process startCommand(String command) throws IOException;
+
+	ShellLauncher SU = forBinary("su");
+
+	ShellLauncher LOCAL = forBinary("/bin/sh");
+
+	static ShellLauncher forBinary(String binary) {
+		return new ShellLauncher() {
+			@Override
+			public Process startShell() throws IOException {
+				return Runtime.getRuntime().exec(binary);
+			}
+
+			@Override
+			public Process startCommand(String command) throws IOException {
+				return Runtime.getRuntime().exec(new String[] { binary, "-c", command });
+			}
+		};
+	}
+
+	/**
+	* Экранирует строку для shell в одинарных кавычках.
+	*/
+	static String quote(String value) {
+		return "'" + value.replace("'", "'\\''") + "'";
+	}
+}
@@ -0,0 +1,290 @@
+package com.gignorie.fldist;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+* Спектр сигнала по ходу рендера для SpectrumView: раз в 1/SPECTRA_PER_SECOND секунды звука
+* окно из FFT_SIZE кадров (каналы сведены) уходит в фоновый поток, где считается
+* RealFft и сворачивается в BANDS полос с логарифмическим шагом частоты.
+*
+* Поток рендера только копирует кадры окна (около четверти сигнала при 44,1 кГц) и отдает
+* окна пачками по BATCH — примерно секунда звука на одно пробуждение фонового потока:
+* переключение потоков на одном ядре обходится дороже самого БПФ окна.
+* Если фон не успевает, окно пропускается, а не задерживает рендер: пропуски
+* заполняются соседними спектрами.
+*/
+public final class SpectrumAnalyzer {
+
+	static final int FFT_SIZE = 1024;
+	static final int SPECTRA_PER_SECOND = 12;
+	static final int BANDS = 64;
+	static final double MIN_FREQUENCY = 30;
+	// Окна копятся, пока предыдущая пачка считается в фоне
+	private static final int BATCH = SPECTRA_PER_SECOND;
+	private static final int WORK_BUFFERS = 2 * BATCH;
+
+	// Один фоновый поток на все рендеры: анализ не отнимает ядра у DSP
+	private static final ExecutorService WORKER = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "spectrum");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		return thread;
+	});
+
+	private final int numChannels;
+	private final int hopFrames;
+	private final Track track;
+	// Окна во float: вдвое меньше памяти и копирования, точности для индикатора хватает
+	private final ArrayBlockingQueue<float[]> free = new ArrayBlockingQueue<>(WORK_BUFFERS);
+	// Поток рендера: копящееся окно и кадры до начала следующего
+	private float[] window;
+	private float[][] batch = new float[BATCH][];
+	private int[] batchIndexes = new int[BATCH];
+	private int batched = 0;
+	private int filled = 0;
+	private int skip = 0;
+	private int nextIndex = 0;
+	private int dropped = 0;
+
+	// Фоновый поток
+	private final RealFft fft = new RealFft(FFT_SIZE);
+	private final double[] samples = new double[FFT_SIZE];
+	private final double[] hann = new double[FFT_SIZE];
+	private final double[] power = new double[FFT_SIZE / 2 + 1];
+	private final int[] bandFirst = new int[BANDS];
+	private final int[] bandLast = new int[BANDS];
+	private final boolean[] present;
+	private long backgroundNanos = 0;
+
+	public SpectrumAnalyzer(int numChannels, long numFrames, long sampleRate) {
+		this.numChannels = numChannels;
+		this.hopFrames = (int) Math.max(FFT_SIZE, sampleRate / SPECTRA_PER_SECOND);
+		int count = numFrames < FFT_SIZE ? 0 : (int) Math.min(Integer.MAX_VALUE / BANDS, (numFrames - FFT_SIZE) / hopFrames + 1);
+		byte[] levels = new byte[count * BANDS];
+		// Пока ни одного окна — тишина
+		Arrays.fill(levels, Track.quantize(Double.NEGATIVE_INFINITY));
+		track = new Track(sampleRate, hopFrames, count, levels);
+		present = new boolean[count];
+		for (int i = 0; i < WORK_BUFFERS; i++) free.add(new float[FFT_SIZE]);
+
+		for (int i = 0; i < FFT_SIZE; i++) hann[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / FFT_SIZE);
+		double binHz = (double) sampleRate / FFT_SIZE;
+		for (int band = 0; band < BANDS; band++) {
+			int first = (int) Math.ceil(Track.bandEdge(band, sampleRate) / binHz);
+			int last = (int) Math.ceil(Track.bandEdge(band + 1, sampleRate) / binHz) - 1;
+			if (last < first) {
+				// Полоса уже бина (низкие частоты): ближайший бин к ее центру
+				first = (int) Math.round(Track.bandFrequency(band, sampleRate) / binHz);
+				last = first;
+			}
+			bandFirst[band] = Math.min(first, FFT_SIZE / 2);
+			bandLast[band] = Math.min(last, FFT_SIZE / 2);
+		}
+	}
+
+	/**
+	* Чередующиеся отсчеты целыми кадрами, в порядке сигнала.
+	*/
+	public void process(double[] data, int offset, int length) {
+		int frames = length / numChannels;
+		int frame = 0;
+		while (frame < frames && nextIndex < track.count) {
+			if (skip > 0) {
+				int n = Math.min(skip, frames - frame);
+				skip -= n;
+				frame += n;
+				continue;
+			}
+			if (window == null) {
+				window = free.poll();
+				if (window == null) {
+					// Фон занят: окно пропускается целиком
+					dropped++;
+					nextIndex++;
+					skip = hopFrames;
+					continue;
+				}
+			}
+			int n = Math.min(FFT_SIZE - filled, frames - frame);
+			int in = offset + frame * numChannels;
+			if (numChannels == 2) {
+				for (int i = 0; i < n; i++, in += 2) window[filled + i] = (float) (0.5 * (data[in] + data[in + 1]));
+				} else {
+				double scale = 1.0 / numChannels;
+				for (int i = 0; i < n; i++) {
+					double sum = 0;
+					for (int c = 0; c < numChannels; c++) sum += data[in++];
+					window[filled + i] = (float) (sum * scale);
+				}
+			}
+			filled += n;
+			frame += n;
+			if (filled == FFT_SIZE) {
+				batch[batched] = window;
+				batchIndexes[batched] = nextIndex;
+				if (++batched == BATCH) submitBatch();
+				window = null;
+				filled = 0;
+				nextIndex++;
+				skip = hopFrames - FFT_SIZE;
+			}
+		}
+	}
+
+	/**
+	* Дожидается фоновых окон; пропущенные спектры заполняются предыдущими.
+	*/
+	public Track finish() throws InterruptedException {
+		if (batched > 0) submitBatch();
+		CountDownLatch done = new CountDownLatch(1);
+		WORKER.execute(done::countDown);
+		done.await();
+		for (int i = 1; i < track.count; i++) {
+			if (!present[i]) System.arraycopy(track.levels, (i - 1) * BANDS, track.levels, i * BANDS, BANDS);
+		}
+		return track;
+	}
+
+	/**
+	* Время фонового потока; читать после finish().
+	*/
+	public long getBackgroundNanos() {
+		return backgroundNanos;
+	}
+
+	public int getDroppedWindows() {
+		return dropped;
+	}
+
+	private void submitBatch() {
+		float[][] windows = batch;
+		int[] indexes = batchIndexes;
+		int count = batched;
+		WORKER.execute(() -> {
+			for (int i = 0; i < count; i++) analyze(windows[i], indexes[i]);
+		});
+		batch = new float[BATCH][];
+		batchIndexes = new int[BATCH];
+		batched = 0;
+	}
+
+	private void analyze(float[] window, int index) {
+		long start = System.nanoTime();
+		for (int i = 0; i < FFT_SIZE; i++) samples[i] = window[i] * hann[i];
+		free.offer(window);
+		fft.forward(samples);
+		fft.power(samples, power);
+		// Синус полной шкалы с окном Ханна дает |X| = N/4: он и есть 0 дБ
+		double reference = 16.0 / ((double) FFT_SIZE * FFT_SIZE);
+		int out = index * BANDS;
+		for (int band = 0; band < BANDS; band++) {
+			// Пик в полосе: тон читается своим уровнем, а не размазанным по ширине полосы
+			double peak = 0;
+			for (int k = bandFirst[band]; k <= bandLast[band]; k++) peak = Math.max(peak, power[k]);
+			track.levels[out + band] = Track.quantize(10 * Math.log10(peak * reference + 1e-30));
+		}
+		present[index] = true;
+		backgroundNanos += System.nanoTime() - start;
+	}
+
+	/**
+	* Готовые спектры: BANDS уровней на каждый шаг hopFrames, в байтах по 0,5 дБ.
+	*/
+	public static final class Track {
+		private static final int MAGIC = 0x464C5350; // "FLSP"
+		private static final int VERSION = 1;
+		// Байт 0 — TOP_DB, каждый следующий на 0,5 дБ ниже
+		static final double TOP_DB = 12;
+
+		public final long sampleRate;
+		public final int hopFrames;
+		private final int count;
+		private final byte[] levels;
+
+		private Track(long sampleRate, int hopFrames, int count, byte[] levels) {
+			this.sampleRate = sampleRate;
+			this.hopFrames = hopFrames;
+			this.count = count;
+			this.levels = levels;
+		}
+
+		public int getCount() {
+			return count;
+		}
+
+		/**
+		* Нижняя граница полосы (band == BANDS — верхняя граница последней).
+		*/
+		public static double bandEdge(int band, long sampleRate) {
+			double nyquist = sampleRate / 2.0;
+			return MIN_FREQUENCY * Math.pow(nyquist / MIN_FREQUENCY, (double) band / BANDS);
+		}
+
+		public static double bandFrequency(int band, long sampleRate) {
+			return Math.sqrt(bandEdge(band, sampleRate) * bandEdge(band + 1, sampleRate));
+		}
+
+		static byte quantize(double db) {
+			return (byte) Math.max(0, Math.min(255, Math.round((TOP_DB - db) * 2)));
+		}
+
+		/**
+		* Уровни полос в дБ в момент timeMs от начала, между соседними спектрами — линейно.
+		* @return false, если спектров нет.
+		*/
+		public boolean levelsAt(long timeMs, float[] outDb) {
+			if (count == 0) return false;
+			// Спектр i описывает окно с центром в кадре i * hopFrames + FFT_SIZE / 2
+			double position = (timeMs * sampleRate / 1000.0 - FFT_SIZE / 2.0) / hopFrames;
+			position = Math.max(0, Math.min(count - 1, position));
+			int first = (int) position;
+			int second = Math.min(count - 1, first + 1);
+			float fraction = (float) (position - first);
+			for (int band = 0; band < BANDS; band++) {
+				int a = levels[first * BANDS + band] & 0xFF;
+				int b = levels[second * BANDS + band] & 0xFF;
+				outDb[band] = (float) (TOP_DB - 0.5 * (a + (b - a) * fraction));
+			}
+			return true;
+		}
+
+		public void writeTo(OutputStream stream) throws IOException {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(sampleRate);
+			out.writeInt(hopFrames);
+			out.writeInt(count);
+			out.write(levels);
+			out.flush();
+		}
+
+		/**
+		* @throws IOException для чужого или усеченного файла.
+		*/
+		public static Track readFrom(InputStream stream) throws IOException {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("Not a spectrum file");
+			long sampleRate = in.readLong();
+			int hopFrames = in.readInt();
+			int count = in.readInt();
+			if (sampleRate <= 0 || hopFrames <= 0 || count < 0 || count > Integer.MAX_VALUE / BANDS) {
+				throw new IOException("Bad spectrum header");
+			}
+			byte[] levels = new byte[count * BANDS];
+			in.readFully(levels);
+			return new Track(sampleRate, hopFrames, count, levels);
+		}
+	}
+}
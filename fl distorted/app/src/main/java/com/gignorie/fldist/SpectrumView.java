@@ -0,0 +1,111 @@
+package com.gignorie.fldist;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+* Спектр в текущий момент воспроизведения: серым — исходник, оранжевым — результат
+* предпросмотра (с усилением AutoGain). Частоты по горизонтали в логарифмическом масштабе
+* (полосы SpectrumAnalyzer), уровни — от FLOOR_DB до CEILING_DB. Кадр — это интерполяция
+* двух готовых спектров из SpectrumAnalyzer.Track: во время воспроизведения ничего не считается.
+*/
+public class SpectrumView extends View {
+
+	private static final float FLOOR_DB = -90;
+	private static final float CEILING_DB = 6;
+	private static final int[] GRID_HZ = {100, 1000, 10000};
+
+	private final Paint beforePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final Paint afterPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final Paint gridPaint = new Paint();
+	private final Path path = new Path();
+
+	private SpectrumAnalyzer.Track before;
+	private SpectrumAnalyzer.Track after;
+	private float afterGainDb = 0;
+	private long timeMs = 0;
+	private final float[] levels = new float[SpectrumAnalyzer.BANDS];
+
+	public SpectrumView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+		beforePaint.setColor(Color.rgb(0x90, 0x90, 0x90));
+		beforePaint.setStyle(Paint.Style.STROKE);
+		beforePaint.setStrokeWidth(2);
+		afterPaint.setColor(Color.rgb(0xFF, 0x98, 0x00));
+		afterPaint.setStyle(Paint.Style.STROKE);
+		afterPaint.setStrokeWidth(3);
+		gridPaint.setColor(Color.LTGRAY);
+	}
+
+	/**
+	* Спектры исходника и выхода цепочки до AutoGain (любой может быть null) и само усиление.
+	*/
+	public void setTracks(SpectrumAnalyzer.Track source, SpectrumAnalyzer.Track output, double gainDb) {
+		before = source;
+		after = output;
+		afterGainDb = (float) gainDb;
+		invalidate();
+	}
+
+	/**
+	* Позиция воспроизведения в миллисекундах от начала файла.
+	*/
+	public void setTime(long timeMs) {
+		if (this.timeMs == timeMs) return;
+		this.timeMs = timeMs;
+		invalidate();
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		super.onDraw(canvas);
+		SpectrumAnalyzer.Track any = after != null ? after : before;
+		if (any == null || getWidth() == 0) return;
+
+		int width = getWidth();
+		int height = getHeight();
+		for (int hz : GRID_HZ) {
+			float x = frequencyToX(hz, any.sampleRate, width);
+			if (x > 0 && x < width) canvas.drawLine(x, 0, x, height, gridPaint);
+		}
+		float zeroDb = levelToY(0, height);
+		canvas.drawLine(0, zeroDb, width, zeroDb, gridPaint);
+
+		if (before != null) drawSpectrum(canvas, before, 0, beforePaint);
+		if (after != null) drawSpectrum(canvas, after, afterGainDb, afterPaint);
+	}
+
+	private void drawSpectrum(Canvas canvas, SpectrumAnalyzer.Track track, float gainDb, Paint paint) {
+		if (!track.levelsAt(timeMs, levels)) return;
+		int width = getWidth();
+		int height = getHeight();
+		path.reset();
+		for (int band = 0; band < SpectrumAnalyzer.BANDS; band++) {
+			// Точка полосы — ее середина по логарифмической оси
+			float x = (band + 0.5f) * width / SpectrumAnalyzer.BANDS;
+			float y = levelToY(levels[band] + gainDb, height);
+			if (band == 0) {
+				path.moveTo(x, y);
+				} else {
+				path.lineTo(x, y);
+			}
+		}
+		canvas.drawPath(path, paint);
+	}
+
+	private static float levelToY(float db, int height) {
+		float clamped = Math.max(FLOOR_DB, Math.min(CEILING_DB, db));
+		return (CEILING_DB - clamped) / (CEILING_DB - FLOOR_DB) * height;
+	}
+
+	private static float frequencyToX(double hz, long sampleRate, int width) {
+		double nyquist = sampleRate / 2.0;
+		double position = Math.log(hz / SpectrumAnalyzer.MIN_FREQUENCY) / Math.log(nyquist / SpectrumAnalyzer.MIN_FREQUENCY);
+		return (float) (position * width);
+	}
+}
@@ -10,6 +10,7 @@
 
 package com.gignorie.fldist;
 import java.io.*;
+import java.nio.DoubleBuffer;
 
 public class WavFile
 {
@@ -25,8 +26,8 @@ public class WavFile
 	private IOState ioState;				// Specifies the IO State of the Wav File (used for snaity checking)
 	private int bytesPerSample;			// Number of bytes required to store a single sample
 	private long numFrames;					// Number of frames within the data section
-	private FileOutputStream oStream;	// Output stream used for writting data
-	private FileInputStream iStream;		// Input stream used for reading data
+	private OutputStream oStream;		// Output stream used for writting data (file or pipe)
+	private InputStream iStream;			// Input stream used for reading data (file or pipe)
 	private double floatScale;				// Scaling factor used for int <-> float conversion				
 	private double floatOffset;			// Offset factor used for int <-> float conversion				
 	private boolean wordAlignAdjust;		// Specify if an extra byte at the end of the data chunk is required for word alignment
@@ -76,6 +77,17 @@ public class WavFile
 	}
 
 	public static WavFile newWavFile(File file, int numChannels, long numFrames, int validBits, long sampleRate) throws IOException, WavFileException
+	{
+		return newWavFile(file, null, numChannels, numFrames, validBits, sampleRate);
+	}
+
+	// Write to an arbitrary stream (e.g. a root write pipe); the stream is closed by close()
+	public static WavFile newWavFile(OutputStream stream, int numChannels, long numFrames, int validBits, long sampleRate) throws IOException, WavFileException
+	{
+		return newWavFile(null, stream, numChannels, numFrames, validBits, sampleRate);
+	}
+
+	private static WavFile newWavFile(File file, OutputStream stream, int numChannels, long numFrames, int validBits, long sampleRate) throws IOException, WavFileException
 	{
 		// Instantiate new Wavfile and initialise
 		WavFile wavFile = new WavFile();
@@ -94,7 +106,7 @@ public class WavFile
 		if (sampleRate < 0) throw new WavFileException("Sample rate must be positive");
 
 		// Create output stream for writing data
-		wavFile.oStream = new FileOutputStream(file);
+		wavFile.oStream = (stream != null) ? stream : new FileOutputStream(file);
 
 		// Calculate the chunk sizes
 		long dataChunkSize = wavFile.blockAlign * numFrames;
@@ -170,16 +182,26 @@ public class WavFile
 	}
 
 	public static WavFile openWavFile(File file) throws IOException, WavFileException
+	{
+		return openWavFile(file, new FileInputStream(file));
+	}
+
+	// Open a wav stream that has no backing file (e.g. a pipe from a root shell).
+	// The header chunk size cannot be checked against the file length.
+	public static WavFile openWavFile(InputStream stream) throws IOException, WavFileException
+	{
+		return openWavFile(null, stream);
+	}
+
+	private static WavFile openWavFile(File file, InputStream stream) throws IOException, WavFileException
 	{
 		// Instantiate new Wavfile and store the file reference
 		WavFile wavFile = new WavFile();
 		wavFile.file = file;
-
-		// Create a new file input stream for reading file data
-		wavFile.iStream = new FileInputStream(file);
+		wavFile.iStream = stream;
 
 		// Read the first 12 bytes of the file
-		int bytesRead = wavFile.iStream.read(wavFile.buffer, 0, 12);
+		int bytesRead = readFully(wavFile.iStream, wavFile.buffer, 12);
 		if (bytesRead != 12) throw new WavFileException("Not enough wav file bytes for header");
 
 		// Extract parts from the header
@@ -192,7 +214,7 @@ public class WavFile
 		if (riffTypeID != RIFF_TYPE_ID) throw new WavFileException("Invalid Wav Header data, incorrect riff type ID");
 
 		// Check that the file size matches the number of bytes listed in header
-		if (file.length() != chunkSize+8) {
+		if (file != null && file.length() != chunkSize+8) {
 			throw new WavFileException("Header chunk size (" + chunkSize + ") does not match file size (" + file.length() + ")");
 		}
 
@@ -203,8 +225,8 @@ public class WavFile
 		while (true)
 		{
 			// Read the first 8 bytes of the chunk (ID and chunk size)
-			bytesRead = wavFile.iStream.read(wavFile.buffer, 0, 8);
-			if (bytesRead == -1) throw new WavFileException("Reached end of file without finding format chunk");
+			bytesRead = readFully(wavFile.iStream, wavFile.buffer, 8);
+			if (bytesRead == 0) throw new WavFileException("Reached end of file without finding format chunk");
 			if (bytesRead != 8) throw new WavFileException("Could not read chunk header");
 
 			// Extract the chunk ID and Size
@@ -223,7 +245,8 @@ public class WavFile
 				foundFormat = true;
 
 				// Read in the header info
-				bytesRead = wavFile.iStream.read(wavFile.buffer, 0, 16);
+				bytesRead = readFully(wavFile.iStream, wavFile.buffer, 16);
+				if (bytesRead != 16) throw new WavFileException("Could not read format chunk");
 
 				// Check this is uncompressed data
 				int compressionCode = (int) getLE(wavFile.buffer, 0, 2);
@@ -248,7 +271,7 @@ public class WavFile
 				// Account for number of format bytes and then skip over
 				// any extra format bytes
 				numChunkBytes -= 16;
-				if (numChunkBytes > 0) wavFile.iStream.skip(numChunkBytes);
+				if (numChunkBytes > 0) skipFully(wavFile.iStream, numChunkBytes);
 			}
 			else if (chunkID == DATA_CHUNK_ID)
 			{
@@ -272,7 +295,7 @@ public class WavFile
 			else
 			{
 				// If an unknown chunk ID is found, just skip over the chunk data
-				wavFile.iStream.skip(numChunkBytes);
+				skipFully(wavFile.iStream, numChunkBytes);
 			}
 		}
 
@@ -303,6 +326,35 @@ public class WavFile
 		return wavFile;
 	}
 
+	// Pipes may return fewer bytes than requested, so keep reading
+	// until the requested amount is available or the stream ends
+	private static int readFully(InputStream stream, byte[] buffer, int numBytes) throws IOException
+	{
+		int total = 0;
+		while (total < numBytes)
+		{
+			int read = stream.read(buffer, total, numBytes - total);
+			if (read == -1) break;
+			total += read;
+		}
+		return total;
+	}
+
+	private static void skipFully(InputStream stream, long numBytes) throws IOException, WavFileException
+	{
+		while (numBytes > 0)
+		{
+			long skipped = stream.skip(numBytes);
+			if (skipped <= 0)
+			{
+				// skip() may return 0 on a pipe, fall back to reading
+				if (stream.read() == -1) throw new WavFileException("Reached end of file while skipping chunk");
+				skipped = 1;
+			}
+			numBytes -= skipped;
+		}
+	}
+
 	// Get and Put little endian data from local buffer
 	// ------------------------------------------------
 	private static long getLE(byte[] buffer, int pos, int numBytes)
@@ -657,6 +709,166 @@ public class WavFile
 	}
 
 
+	// DoubleBuffer (direct or memory-mapped buffer off the heap, see SampleBuffer)
+	// Samples are put and got relative to the buffer's position, which advances
+	// ------------
+	public int readFrames(DoubleBuffer sampleBuffer, int numFramesToRead) throws IOException, WavFileException
+	{
+		if (ioState != IOState.READING) throw new IOException("Cannot read from WavFile instance");
+
+		for (int f=0 ; f<numFramesToRead ; f++)
+		{
+			if (frameCounter == numFrames) return f;
+
+			for (int c=0 ; c<numChannels ; c++) sampleBuffer.put(floatOffset + (double) readSample() / floatScale);
+
+			frameCounter ++;
+		}
+
+		return numFramesToRead;
+	}
+
+	public int writeFrames(DoubleBuffer sampleBuffer, int numFramesToWrite) throws IOException, WavFileException
+	{
+		if (ioState != IOState.WRITING) throw new IOException("Cannot write to WavFile instance");
+
+		for (int f=0 ; f<numFramesToWrite ; f++)
+		{
+			if (frameCounter == numFrames) return f;
+
+			for (int c=0 ; c<numChannels ; c++) writeSample((long) (floatScale * (floatOffset + sampleBuffer.get())));
+
+			frameCounter ++;
+		}
+
+		return numFramesToWrite;
+	}
+
+
+	// Ready-made little-endian PCM frames (see OutputStage), no per-sample writeSample
+	// ------------
+	public int writeRawFrames(byte[] frameBytes, int offset, int numFramesToWrite) throws IOException, WavFileException
+	{
+		if (ioState != IOState.WRITING) throw new IOException("Cannot write to WavFile instance");
+
+		int frames = (int) Math.min(numFramesToWrite, numFrames - frameCounter);
+		int length = frames * blockAlign;
+
+		if (bufferPointer + length <= BUFFER_SIZE)
+		{
+			System.arraycopy(frameBytes, offset, buffer, bufferPointer, length);
+			bufferPointer += length;
+		}
+		else
+		{
+			// Large chunk: bypass the local buffer, keeping the byte order of the stream
+			if (bufferPointer > 0) oStream.write(buffer, 0, bufferPointer);
+			bufferPointer = 0;
+			oStream.write(frameBytes, offset, length);
+		}
+
+		frameCounter += frames;
+		return frames;
+	}
+
+
+	// Float
+	// -----
+	public int readFrames(float[] sampleBuffer, int numFramesToRead) throws IOException, WavFileException
+	{
+		return readFrames(sampleBuffer, 0, numFramesToRead);
+	}
+
+	public int readFrames(float[] sampleBuffer, int offset, int numFramesToRead) throws IOException, WavFileException
+	{
+		if (ioState != IOState.READING) throw new IOException("Cannot read from WavFile instance");
+
+		for (int f=0 ; f<numFramesToRead ; f++)
+		{
+			if (frameCounter == numFrames) return f;
+
+			for (int c=0 ; c<numChannels ; c++)
+			{
+				sampleBuffer[offset] = (float) (floatOffset + (double) readSample() / floatScale);
+				offset ++;
+			}
+
+			frameCounter ++;
+		}
+
+		return numFramesToRead;
+	}
+
+	public int readFrames(float[][] sampleBuffer, int numFramesToRead) throws IOException, WavFileException
+	{
+		return readFrames(sampleBuffer, 0, numFramesToRead);
+	}
+
+	public int readFrames(float[][] sampleBuffer, int offset, int numFramesToRead) throws IOException, WavFileException
+	{
+		if (ioState != IOState.READING) throw new IOException("Cannot read from WavFile instance");
+
+		for (int f=0 ; f<numFramesToRead ; f++)
+		{
+			if (frameCounter == numFrames) return f;
+
+			for (int c=0 ; c<numChannels ; c++) sampleBuffer[c][offset] = (float) (floatOffset + (double) readSample() / floatScale);
+
+			offset ++;
+			frameCounter ++;
+		}
+
+		return numFramesToRead;
+	}
+
+	public int writeFrames(float[] sampleBuffer, int numFramesToWrite) throws IOException, WavFileException
+	{
+		return writeFrames(sampleBuffer, 0, numFramesToWrite);
+	}
+
+	public int writeFrames(float[] sampleBuffer, int offset, int numFramesToWrite) throws IOException, WavFileException
+	{
+		if (ioState != IOState.WRITING) throw new IOException("Cannot write to WavFile instance");
+
+		for (int f=0 ; f<numFramesToWrite ; f++)
+		{
+			if (frameCounter == numFrames) return f;
+
+			for (int c=0 ; c<numChannels ; c++)
+			{
+				writeSample((long) (floatScale * (floatOffset + sampleBuffer[offset])));
+				offset ++;
+			}
+
+			frameCounter ++;
+		}
+
+		return numFramesToWrite;
+	}
+
+	public int writeFrames(float[][] sampleBuffer, int numFramesToWrite) throws IOException, WavFileException
+	{
+		return writeFrames(sampleBuffer, 0, numFramesToWrite);
+	}
+
+	public int writeFrames(float[][] sampleBuffer, int offset, int numFramesToWrite) throws IOException, WavFileException
+	{
+		if (ioState != IOState.WRITING) throw new IOException("Cannot write to WavFile instance");
+
+		for (int f=0 ; f<numFramesToWrite ; f++)
+		{
+			if (frameCounter == numFrames) return f;
+
+			for (int c=0 ; c<numChannels ; c++) writeSample((long) (floatScale * (floatOffset + sampleBuffer[c][offset])));
+
+			offset ++;
+			frameCounter ++;
+		}
+
+		return numFramesToWrite;
+	}
+
+
 	public void close() throws IOException
 	{
 		// Close the input stream and set to null
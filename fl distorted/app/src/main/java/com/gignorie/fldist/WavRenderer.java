@@ -0,0 +1,738 @@
+package com.gignorie.fldist;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.DoubleBuffer;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+* Общий конвейер рендера: чтение оригинала через root, цепочка эффектов, запись WAV.
+* Используется предпросмотром, перезаписью из редактора и пакетной обработкой.
+*/
+public final class WavRenderer {
+
+	// Оболочка для чтения исходных файлов из чужой папки Android/data
+	private static final ShellLauncher ROOT_LAUNCHER = ShellLauncher.SU;
+
+	// Буферы рендеров: блоки, сухие копии шагов и короткие сигналы переходят от рендера к рендеру
+	private static final BufferPool BUFFERS = new BufferPool(Math.min(Runtime.getRuntime().maxMemory() / 8, 48L * 1024 * 1024));
+
+	private static final Logger LOG = Logger.getLogger("WavRenderer");
+
+	private WavRenderer() { }
+
+	public static BufferPool getBufferPool() {
+		return BUFFERS;
+	}
+
+	/**
+	* Рендер в файл приложения (предпросмотр).
+	*/
+	public static Analysis renderToFile(String originalPath, File outFile,
+	EffectChain chain, PriorityScheduler.Handle handle) throws Exception {
+		return renderToFile(originalPath, outFile, chain, handle, null);
+	}
+
+	public static Analysis renderToFile(String originalPath, File outFile,
+	EffectChain chain, PriorityScheduler.Handle handle, RenderCache cache) throws Exception {
+		return renderToFile(originalPath, outFile, chain, handle, cache, AutoGain.OFF);
+	}
+
+	public static Analysis renderToFile(String originalPath, File outFile,
+	EffectChain chain, PriorityScheduler.Handle handle, RenderCache cache, AutoGain gain) throws Exception {
+		return renderToStream(originalPath, new FileOutputStream(outFile), chain, handle, cache, gain);
+	}
+
+	public static Analysis renderToStream(String originalPath, OutputStream out,
+	EffectChain chain, PriorityScheduler.Handle handle) throws Exception {
+		return renderToStream(originalPath, out, chain, handle, null);
+	}
+
+	public static Analysis renderToStream(String originalPath, OutputStream out,
+	EffectChain chain, PriorityScheduler.Handle handle, RenderCache cache) throws Exception {
+		return renderToStream(originalPath, out, chain, handle, cache, AutoGain.OFF);
+	}
+
+	/**
+	* Читает оригинал потоком через root-оболочку (без копии в кеш) или напрямую, если файл
+	* доступен приложению, применяет цепочку и записывает результат в out (файл,
+	* root-канал во временный файл рядом с оригиналом).
+	* Поток закрывается в любом случае.
+	* Между этапами и блоками проверяет отмену, чтобы устаревшая задача не доделывала полный рендер.
+	*
+	* Как держать сигнал — целиком в куче, поблочно из декодера в кодировщик или
+	* в выгрузке на диск — решает RenderPlanner по размеру файла и свободной памяти.
+	*
+	* С cache результат ищется по хешу звука и цепочке: при попадании DSP не выполняется,
+	* готовый файл просто копируется в out. При чтении через root хеш считается попутно,
+	* результат сохраняется под ключом в конце записи, а хеш запоминается по `stat` файла:
+	* следующий рендер того же файла находит свой результат, не читая файл.
+	*
+	* Время, отсчеты и память каждого этапа пишутся в RenderStats.
+	* Запись в PCM — через OutputStage (округление, подмешивание, насыщение);
+	* число отсчетов, упершихся в границу шкалы, тоже попадает в RenderStats и лог.
+	*
+	* Громкость исходника и выхода цепочки измеряется попутно (LoudnessMeter) и с cache
+	* сохраняется рядом с рендерами. С включенным gain выход приводится к цели AutoGain:
+	* по сохраненным анализам — сразу при записи; без них сигнал целиком обрабатывается,
+	* измеряется и только потом записывается (тот же один проход декодирования).
+	*
+	* С cache попутно строятся и сохраняются огибающая выхода цепочки (WaveformPyramid)
+	* и спектры исходника и выхода (SpectrumAnalyzer, в фоновом потоке).
+	*
+	* @return анализ громкости, огибающая и спектры; их поля null, если анализ недоступен.
+	*/
+	public static Analysis renderToStream(String originalPath, OutputStream out,
+	EffectChain chain, PriorityScheduler.Handle handle, RenderCache cache, AutoGain gain) throws Exception {
+		return renderInto(new Render(originalPath, chain, handle, cache, gain), out);
+	}
+
+	/**
+	* Рендер из уже открытого WAV-потока с известным хешем звука (оригинал, распаковываемый
+	* из EditStore): ключ кеша известен сразу, и при попадании source не читается.
+	* name — для сообщений в логе. Оба потока закрываются в любом случае.
+	*/
+	public static Analysis renderToStream(InputStream source, long contentHash, String name, OutputStream out,
+	EffectChain chain, PriorityScheduler.Handle handle, RenderCache cache) throws Exception {
+		try {
+			return renderInto(new Render(source, contentHash, name, chain, handle, cache), out);
+			} finally {
+			source.close();
+		}
+	}
+
+	/**
+	* Громкость рендера: исходник, выход цепочки до усиления и усиление AutoGain в дБ;
+	* огибающая выхода и спектры исходника и выхода цепочки до усиления (только с кешем).
+	*/
+	public static final class Analysis {
+		public final LoudnessMeter.Result source;
+		public final LoudnessMeter.Result output;
+		public final double gainDb;
+		public final WaveformPyramid waveform;
+		public final SpectrumAnalyzer.Track sourceSpectrum;
+		public final SpectrumAnalyzer.Track spectrum;
+
+		Analysis(LoudnessMeter.Result source, LoudnessMeter.Result output, double gainDb, WaveformPyramid waveform,
+		SpectrumAnalyzer.Track sourceSpectrum, SpectrumAnalyzer.Track spectrum) {
+			this.source = source;
+			this.output = output;
+			this.gainDb = gainDb;
+			this.waveform = waveform;
+			this.sourceSpectrum = sourceSpectrum;
+			this.spectrum = spectrum;
+		}
+
+		/**
+		* Записанный результат (с усилением) или null.
+		*/
+		public LoudnessMeter.Result getRendered() {
+			return output != null ? output.withGain(gainDb) : null;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "source: %s; output: %s; gain %+.1f dB", source, getRendered(), gainDb);
+		}
+	}
+
+	private static Analysis renderInto(Render render, OutputStream out) throws Exception {
+		try {
+			return render.run(out);
+			} catch (Exception e) {
+			try {
+				out.close();
+				} catch (IOException ignored) { /* Первая ошибка важнее */ }
+			throw e;
+			} finally {
+			render.close();
+		}
+	}
+
+	/**
+	* Один рендер по шагам: probeCache (готовый результат из кеша), open (заголовок, план,
+	* анализаторы), стратегия — весь сигнал (readWholeSignal и renderWholeSignal) или поблочно
+	* (renderStreaming) — и finish (статистика и анализы в кеш).
+	* Обе стратегии проходят сигнал одним циклом pass; новый анализ подключается
+	* отводом в tapSource или tapOutput.
+	*/
+	private static final class Render {
+		// Путь исходника; null, если он передан уже открытым потоком sourceInput
+		private final String originalPath;
+		private final File original;
+		private final InputStream sourceInput;
+		private final String name;
+		// Файл, доступный напрямую (настольный CLI, общие папки), читается без запуска su
+		private final boolean direct;
+		private final EffectChain chain;
+		private final PriorityScheduler.Handle handle;
+		private final RenderCache cache;
+		private final RenderStats.Trace trace;
+		private AutoGain gain;
+
+		// Ключи кеша: известны вместе с хешем звука
+		private Long contentHash;
+		private String key;
+		private String sourceKey;
+		private String analysisKey;
+		// Ключ файла по stat, под которым запоминается хеш звука при чтении через root
+		private String fileKey;
+
+		// Анализы из кеша или посчитанные этим рендером
+		private LoudnessMeter.Result source;
+		private LoudnessMeter.Result output;
+		private WaveformPyramid waveform;
+		private SpectrumAnalyzer.Track sourceSpectrum;
+		private SpectrumAnalyzer.Track spectrum;
+
+		private RenderStats.TimedInputStream sourceStream;
+		private ContentHash.HashingInputStream hashing;
+		private WavFile wav;
+		private long numFrames;
+		private long sampleRate;
+		private int numChannels;
+		private int validBits;
+		private long totalSamples;
+		private int blockSamples;
+		private SampleBuffer signal;
+		private BufferPool.Lease blockLease;
+		private double[] block;
+		private EffectChain.BlockProcessor processor;
+		private OutputStage stage;
+		private RenderCache.Entry entry;
+		// Усиление без готовых анализов известно только после обработки всего сигнала
+		private boolean gainPending;
+		private double gainDb;
+
+		// Отводы; null — анализ уже есть или не нужен
+		private LoudnessMeter sourceMeter;
+		private LoudnessMeter outputMeter;
+		private WaveformPyramid.Builder waveformBuilder;
+		private SpectrumAnalyzer sourceAnalyzer;
+		private SpectrumAnalyzer outputAnalyzer;
+
+		Render(String originalPath, EffectChain chain, PriorityScheduler.Handle handle, RenderCache cache, AutoGain gain) {
+			this.originalPath = originalPath;
+			this.original = new File(originalPath);
+			this.sourceInput = null;
+			this.name = original.getName();
+			this.direct = original.canRead();
+			this.chain = chain;
+			this.handle = handle;
+			this.cache = cache;
+			this.gain = gain;
+			this.trace = RenderStats.get().startTrace();
+		}
+
+		Render(InputStream sourceInput, long contentHash, String name,
+		EffectChain chain, PriorityScheduler.Handle handle, RenderCache cache) {
+			this.originalPath = null;
+			this.original = null;
+			this.sourceInput = sourceInput;
+			this.name = name;
+			this.direct = false;
+			this.contentHash = contentHash;
+			this.chain = chain;
+			this.handle = handle;
+			this.cache = cache;
+			this.gain = AutoGain.OFF;
+			this.trace = RenderStats.get().startTrace();
+		}
+
+		Analysis run(OutputStream out) throws Exception {
+			if (probeCache(out)) return cachedAnalysis();
+			open();
+			if (signal != null) readWholeSignal();
+			if (claimEntry(out)) {
+				storeAnalyses(cache, sourceKey, source, analysisKey, null);
+				waveform = cache.lookupWaveform(analysisKey);
+				sourceSpectrum = cache.lookupSpectrum(sourceKey);
+				spectrum = cache.lookupSpectrum(analysisKey);
+				return cachedAnalysis();
+			}
+			// Ожидание приемника меряется до тройника: запись в кеш относится к кодированию
+			RenderStats.TimedOutputStream sink = new RenderStats.TimedOutputStream(out);
+			OutputStream target = entry != null ? entry.tee(sink) : sink;
+			if (signal != null) {
+				renderWholeSignal(target);
+				} else {
+				renderStreaming(target);
+			}
+			return finish(sink);
+		}
+
+		/**
+		* Хеш звука без декодирования (если он не передан): напрямую — по содержимому файла,
+		* через root — запомненный прошлым рендером по stat. С хешем — ключи и готовые анализы.
+		* true — результат уже в кеше и скопирован в out.
+		*/
+		private boolean probeCache(OutputStream out) throws Exception {
+			if (cache == null) return false;
+			if (contentHash == null) {
+				trace.begin();
+				if (direct) {
+					// Хеш из отображенной памяти, до всякого декодирования
+					contentHash = ContentHash.ofFile(original);
+					} else {
+					fileKey = RenderCache.fileKeyOf(ProjectIndex.statFile(RootShell.getInstance(), originalPath));
+					contentHash = cache.lookupContentHash(fileKey);
+				}
+				trace.end(RenderStats.STAGE_HASH, 0);
+			}
+			if (contentHash == null) return false;
+			setKeys();
+			source = cache.lookupAnalysis(sourceKey);
+			output = cache.lookupAnalysis(analysisKey);
+			waveform = cache.lookupWaveform(analysisKey);
+			sourceSpectrum = cache.lookupSpectrum(sourceKey);
+			spectrum = cache.lookupSpectrum(analysisKey);
+			return copyFromCache(cache, key, out, trace);
+		}
+
+		/**
+		* Заголовок WAV (через root — прямо из канала `cat`, с хешем попутно, если он
+		* неизвестен), план рендера, сигнал, обработчик и недостающие анализаторы.
+		*/
+		private void open() throws Exception {
+			trace.begin();
+			if (sourceInput != null) {
+				// Ожидание открытого потока (распаковки) — тоже чтение источника, а не декодирование WAV
+				sourceStream = new RenderStats.TimedInputStream(sourceInput, 0);
+				wav = WavFile.openWavFile(sourceStream);
+				} else if (direct) {
+				wav = WavFile.openWavFile(original);
+				} else {
+				long opening = System.nanoTime();
+				InputStream in = RootFileStream.open(ROOT_LAUNCHER, originalPath);
+				sourceStream = new RenderStats.TimedInputStream(in, System.nanoTime() - opening);
+				if (cache != null && contentHash == null) {
+					// Хеш считается попутно с чтением: второго прохода по каналу нет
+					hashing = new ContentHash.HashingInputStream(sourceStream);
+					wav = WavFile.openWavFile(hashing);
+					hashing.begin(wav);
+					} else {
+					wav = WavFile.openWavFile(sourceStream);
+				}
+			}
+			numFrames = wav.getNumFrames();
+			sampleRate = wav.getSampleRate();
+			numChannels = wav.getNumChannels();
+			validBits = wav.getValidBits();
+			totalSamples = numFrames * numChannels;
+
+			gainPending = gain.isEnabled() && (output == null || (gain.needsSource() && source == null));
+			RenderPlanner.Plan plan = RenderPlanner.plan(numFrames, numChannels, validBits, chain, gainPending);
+			if (plan.wholeSignal) {
+				try {
+					signal = allocateSignal(plan, numChannels);
+					} catch (OutOfMemoryError e) {
+					// Память заняли между планом и выделением (параллельный рендер)
+					plan = RenderPlanner.afterOutOfMemory(plan, numChannels, chain.isStreamable());
+					if (plan.wholeSignal) signal = allocateSignal(plan, numChannels);
+				}
+			}
+			if (gainPending && signal == null) {
+				gainPending = false;
+				gain = AutoGain.OFF;
+				// Ключ был посчитан с усилением
+				if (contentHash != null) setKeys();
+				LOG.warning(name + ": no room to hold the whole signal, rendering without auto gain");
+			}
+			blockSamples = plan.getBlockSamples(numChannels);
+			// Блок в куче: для потока и для копии из сигнала вне кучи
+			if (plan.strategy != RenderPlanner.Strategy.IN_MEMORY) {
+				blockLease = BUFFERS.lease(blockSamples);
+				block = blockLease.array();
+			}
+			processor = chain.newBlockProcessor(totalSamples, sampleRate, BUFFERS);
+			stage = new OutputStage(numChannels, validBits, OutputStage.getDither());
+
+			// Анализ уже сохранен — второй раз не считается
+			if (source == null) sourceMeter = new LoudnessMeter(numChannels, sampleRate, false);
+			if (output == null) outputMeter = new LoudnessMeter(numChannels, sampleRate, true);
+			// Огибающая и спектры нужны только редактору, а он всегда рендерит с кешем
+			if (cache != null && waveform == null) waveformBuilder = new WaveformPyramid.Builder(numChannels, numFrames, sampleRate);
+			if (cache != null && sourceSpectrum == null) sourceAnalyzer = new SpectrumAnalyzer(numChannels, numFrames, sampleRate);
+			if (cache != null && spectrum == null) outputAnalyzer = new SpectrumAnalyzer(numChannels, numFrames, sampleRate);
+			// Разбор заголовка относится к декодированию
+			trace.lap(RenderStats.STAGE_DECODE);
+		}
+
+		/**
+		* Весь сигнал в SampleBuffer (куча, прямая память или файл) с отводами исходника.
+		* При чтении через root здесь же становится известен хеш, а с ним — готовые анализы выхода.
+		*/
+		private void readWholeSignal() throws Exception {
+			pass(true, 0, 0, false, null);
+			closeSource();
+			if (sourceMeter != null) {
+				source = sourceMeter.getResult();
+				sourceMeter = null;
+			}
+			if (hashing == null) return;
+			digestContentHash();
+			if (output == null) output = cache.lookupAnalysis(analysisKey);
+			if (output != null) {
+				outputMeter = null;
+				gainPending = false;
+			}
+			waveform = cache.lookupWaveform(analysisKey);
+			if (waveform != null) waveformBuilder = null;
+			spectrum = cache.lookupSpectrum(analysisKey);
+			if (spectrum != null) outputAnalyzer = null;
+		}
+
+		/**
+		* Занимает запись кеша под результат. true — такой же файл отрендерился параллельно,
+		* и его результат уже скопирован в out.
+		*/
+		private boolean claimEntry(OutputStream out) throws IOException, InterruptedException {
+			if (cache == null) return false;
+			if (key != null) {
+				// Такой же файл, рендерящийся параллельно, дождется нас и возьмет копию
+				while ((entry = cache.begin(key)) == null) {
+					if (copyFromCache(cache, key, out, trace)) return true;
+				}
+				} else if (hashing != null) {
+				// Поток через root: ключ станет известен, когда декодер дочитает сигнал
+				entry = cache.beginUnkeyed();
+			}
+			return false;
+		}
+
+		/**
+		* Сигнал целиком: потоковая цепочка — все шаги за проход, иначе — шаг за проход.
+		* Последний проход по шагам снимает отводы выхода и пишет результат; если усиление
+		* зависит от громкости выхода, запись идет отдельным проходом после измерения.
+		*/
+		private void renderWholeSignal(OutputStream out) throws Exception {
+			int stages = chain.getStageCount();
+			int stepsPerPass = chain.isStreamable() ? Math.max(1, stages) : 1;
+			int step = 0;
+			for (; stages - step > stepsPerPass; step += stepsPerPass) {
+				trace.begin();
+				pass(false, step, step + stepsPerPass, false, null);
+			}
+			boolean tapped = false;
+			if (gainPending) {
+				trace.begin();
+				pass(false, step, stages, true, null);
+				step = stages;
+				tapped = true;
+				if (outputMeter != null) {
+					output = outputMeter.getResult();
+					outputMeter = null;
+				}
+			}
+			gainDb = gain.gainDb(source, output);
+			stage.setGain(Math.pow(10, gainDb / 20));
+			trace.begin();
+			WavFile outWav = WavFile.newWavFile(out, numChannels, numFrames, validBits, sampleRate);
+			trace.lap(RenderStats.STAGE_ENCODE);
+			pass(false, step, stages, !tapped, outWav);
+			outWav.close();
+			trace.lap(RenderStats.STAGE_ENCODE);
+		}
+
+		/**
+		* Поблочно: декодер -> вся цепочка -> кодировщик; блок проходит все шаги, пока лежит
+		* в кеше процессора. При чтении через root ключ записи кеша назначается, когда
+		* декодер дочитал сигнал, до закрытия результата.
+		*/
+		private void renderStreaming(OutputStream out) throws Exception {
+			gainDb = gain.gainDb(source, output);
+			stage.setGain(Math.pow(10, gainDb / 20));
+			trace.begin();
+			WavFile outWav = WavFile.newWavFile(out, numChannels, numFrames, validBits, sampleRate);
+			trace.lap(RenderStats.STAGE_ENCODE);
+			pass(true, 0, chain.getStageCount(), true, outWav);
+			if (hashing != null) {
+				// Все кадры прочитаны: результат сохранится под ключом при закрытии записи
+				digestContentHash();
+				entry.setKey(key);
+			}
+			outWav.close();
+			trace.lap(RenderStats.STAGE_ENCODE);
+			closeSource();
+		}
+
+		/**
+		* Один проход по сигналу блоками — общий цикл обеих стратегий. Для каждого блока:
+		* чтение из декодера (read: в сигнал, если он есть, иначе в блок) с отводами исходника,
+		* шаги цепочки [fromStep, toStep), отводы выхода (tapOutput) и запись в outWav.
+		* Сигнал в куче обрабатывается на месте, вне кучи — в копии, которая возвращается
+		* в сигнал, если шаги обработали блок для следующего прохода.
+		*/
+		private void pass(boolean read, int fromStep, int toStep, boolean tapOutput, WavFile outWav) throws Exception {
+			boolean tapSource = read && (sourceMeter != null || sourceAnalyzer != null);
+			boolean usesData = tapSource || fromStep < toStep || tapOutput || outWav != null;
+			boolean storeBack = signal != null && fromStep < toStep && outWav == null;
+			for (long position = 0; position < totalSamples; ) {
+				handle.throwIfCancelled();
+				double[] data = block;
+				int offset = 0;
+				int samples;
+				DoubleBuffer part = null;
+				if (signal != null) {
+					part = signal.slice(position, blockSamples);
+					samples = part.remaining();
+					if (read) {
+						wav.readFrames(part, samples / numChannels);
+						part.rewind();
+						trace.lap(RenderStats.STAGE_DECODE);
+					}
+					if (part.hasArray()) {
+						data = part.array();
+						offset = part.arrayOffset() + part.position();
+						part = null;
+						} else if (usesData) {
+						part.duplicate().get(block, 0, samples);
+						trace.lap(RenderStats.STAGE_OFF_HEAP);
+					}
+					} else {
+					samples = (int) Math.min(blockSamples, totalSamples - position);
+					wav.readFrames(block, samples / numChannels);
+					trace.lap(RenderStats.STAGE_DECODE);
+				}
+				if (tapSource) tapSource(data, offset, samples);
+				for (int step = fromStep; step < toStep; step++) {
+					processor.processStage(step, data, offset, samples);
+					trace.lap(RenderStats.effectStage(chain.getEffectId(step)));
+				}
+				if (tapOutput) tapOutput(data, offset, samples);
+				if (outWav != null) {
+					stage.write(outWav, data, offset, samples);
+					trace.lap(RenderStats.STAGE_ENCODE);
+				}
+				if (part != null && storeBack) {
+					part.duplicate().put(block, 0, samples);
+					trace.lap(RenderStats.STAGE_OFF_HEAP);
+				}
+				position += samples;
+			}
+		}
+
+		/**
+		* Анализаторы исходника: блок только что прочитан из декодера.
+		*/
+		private void tapSource(double[] data, int offset, int samples) {
+			if (sourceMeter != null) {
+				sourceMeter.process(data, offset, samples);
+				trace.lap(RenderStats.STAGE_LOUDNESS);
+			}
+			if (sourceAnalyzer != null) {
+				sourceAnalyzer.process(data, offset, samples);
+				trace.lap(RenderStats.STAGE_SPECTRUM);
+			}
+		}
+
+		/**
+		* Анализаторы выхода цепочки до усиления AutoGain.
+		*/
+		private void tapOutput(double[] data, int offset, int samples) {
+			if (outputMeter != null) {
+				outputMeter.process(data, offset, samples);
+				trace.lap(RenderStats.STAGE_LOUDNESS);
+			}
+			if (waveformBuilder != null) {
+				waveformBuilder.process(data, offset, samples);
+				trace.lap(RenderStats.STAGE_WAVEFORM);
+			}
+			if (outputAnalyzer != null) {
+				outputAnalyzer.process(data, offset, samples);
+				trace.lap(RenderStats.STAGE_SPECTRUM);
+			}
+		}
+
+		/**
+		* Закрывает декодер; ожидание канала root — отдельным этапом, а не декодированием.
+		*/
+		private void closeSource() throws IOException {
+			wav.close();
+			wav = null;
+			trace.lap(RenderStats.STAGE_DECODE);
+			if (sourceStream == null) return;
+			long readNanos = sourceStream.getNanos();
+			trace.exclude(RenderStats.STAGE_DECODE, readNanos);
+			RenderStats.get().record(RenderStats.STAGE_READ_IO, readNanos, totalSamples, -1);
+		}
+
+		private void digestContentHash() throws IOException {
+			contentHash = hashing.digest();
+			hashing = null;
+			cache.storeContentHash(fileKey, contentHash);
+			setKeys();
+		}
+
+		private void setKeys() {
+			key = RenderCache.keyOf(contentHash, chain, OutputStage.getDither(), gain);
+			sourceKey = RenderCache.sourceKeyOf(contentHash);
+			analysisKey = RenderCache.analysisKeyOf(contentHash, chain);
+		}
+
+		/**
+		* Статистика записи и насыщения; новые анализы, огибающая и спектры — в кеш.
+		*/
+		private Analysis finish(RenderStats.TimedOutputStream sink) throws InterruptedException {
+			trace.exclude(RenderStats.STAGE_ENCODE, sink.getNanos());
+			trace.flushLaps(totalSamples);
+			if (sourceMeter != null) source = sourceMeter.getResult();
+			if (outputMeter != null) output = outputMeter.getResult();
+			RenderStats.get().record(RenderStats.STAGE_WRITE_IO, sink.getNanos(), totalSamples, -1);
+			RenderStats.get().recordOutput(totalSamples, stage.getClippedSamples());
+			if (stage.getClippedSamples() > 0) {
+				LOG.warning(String.format(Locale.US, "%s: %d of %d samples clipped (peak %.2f dBFS, dither %s, gain %+.1f dB)",
+				name, stage.getClippedSamples(), totalSamples,
+				20 * Math.log10(stage.getPeak()), stage.getResolvedDither(), gainDb));
+			}
+			if (cache != null) storeAnalyses(cache, sourceKey, source, analysisKey, output);
+			if (waveformBuilder != null) {
+				waveform = waveformBuilder.build();
+				if (analysisKey != null) cache.storeWaveform(analysisKey, waveform);
+			}
+			if (sourceAnalyzer != null) {
+				sourceSpectrum = finishSpectrum(sourceAnalyzer, totalSamples);
+				if (sourceKey != null && cache.lookupSpectrum(sourceKey) == null) cache.storeSpectrum(sourceKey, sourceSpectrum);
+			}
+			if (outputAnalyzer != null) {
+				spectrum = finishSpectrum(outputAnalyzer, totalSamples);
+				if (analysisKey != null) cache.storeSpectrum(analysisKey, spectrum);
+			}
+			trace.finish(totalSamples);
+			return new Analysis(source, output, gainDb, waveform, sourceSpectrum, spectrum);
+		}
+
+		private Analysis cachedAnalysis() {
+			return analysisOf(gain, source, output, waveform, sourceSpectrum, spectrum);
+		}
+
+		/**
+		* Буферы возвращаются в пул и при ошибке, и при отмене.
+		*/
+		void close() throws IOException {
+			if (processor != null) processor.close();
+			if (blockLease != null) blockLease.close();
+			try {
+				if (signal != null) signal.close();
+				if (wav != null) wav.close();
+				} finally {
+				if (entry != null) entry.release();
+			}
+		}
+	}
+
+	/**
+	* Дожидается фоновых окон спектра; их время — отдельная строка RenderStats.
+	*/
+	private static SpectrumAnalyzer.Track finishSpectrum(SpectrumAnalyzer analyzer, long totalSamples) throws InterruptedException {
+		SpectrumAnalyzer.Track track = analyzer.finish();
+		RenderStats.get().record(RenderStats.STAGE_SPECTRUM_FFT, analyzer.getBackgroundNanos(), totalSamples, -1);
+		if (analyzer.getDroppedWindows() > 0) {
+			LOG.fine(analyzer.getDroppedWindows() + " of " + track.getCount() + " spectrum windows skipped");
+		}
+		return track;
+	}
+
+	private static Analysis analysisOf(AutoGain gain, LoudnessMeter.Result source, LoudnessMeter.Result output,
+	WaveformPyramid waveform, SpectrumAnalyzer.Track sourceSpectrum, SpectrumAnalyzer.Track spectrum) {
+		boolean known = output != null && (source != null || !gain.needsSource());
+		return new Analysis(source, output, known ? gain.gainDb(source, output) : 0, waveform, sourceSpectrum, spectrum);
+	}
+
+	/**
+	* Огибающая исходника для WaveformView: из cache по `stat` файла (без чтения) или
+	* одним потоковым проходом декодирования без DSP; построенная сохраняется в cache.
+	*/
+	public static WaveformPyramid sourceWaveform(String originalPath, PriorityScheduler.Handle handle,
+	RenderCache cache) throws Exception {
+		File original = new File(originalPath);
+		boolean direct = original.canRead();
+		ProjectIndex.FileStat stat = direct
+		? new ProjectIndex.FileStat(originalPath, original.length(), original.lastModified() / 1000)
+		: ProjectIndex.statFile(RootShell.getInstance(), originalPath);
+		String key = RenderCache.fileKeyOf(stat);
+		WaveformPyramid cached = cache.lookupWaveform(key);
+		if (cached != null) return cached;
+
+		RenderStats.Trace trace = RenderStats.get().startTrace();
+		trace.begin();
+		WavFile wav = direct ? WavFile.openWavFile(original) : WavFile.openWavFile(RootFileStream.open(ROOT_LAUNCHER, originalPath));
+		int numChannels = wav.getNumChannels();
+		long totalSamples = wav.getNumFrames() * numChannels;
+		// Без DSP сигнал не держится: только блок декодера
+		try (BufferPool.Lease lease = BUFFERS.lease(RenderPlanner.BLOCK_SAMPLES)) {
+			double[] block = lease.array();
+			int blockFrames = RenderPlanner.BLOCK_SAMPLES / numChannels;
+			WaveformPyramid.Builder builder = new WaveformPyramid.Builder(numChannels, wav.getNumFrames(), wav.getSampleRate());
+			for (long position = 0; position < totalSamples; ) {
+				handle.throwIfCancelled();
+				int samples = (int) Math.min((long) blockFrames * numChannels, totalSamples - position);
+				wav.readFrames(block, samples / numChannels);
+				trace.lap(RenderStats.STAGE_DECODE);
+				builder.process(block, 0, samples);
+				trace.lap(RenderStats.STAGE_WAVEFORM);
+				position += samples;
+			}
+			trace.flushLaps(totalSamples);
+			WaveformPyramid waveform = builder.build();
+			cache.storeWaveform(key, waveform);
+			trace.finish(totalSamples);
+			return waveform;
+			} finally {
+			wav.close();
+		}
+	}
+
+	/**
+	* Новые анализы — в кеш (ключи известны только при известном хеше звука).
+	*/
+	private static void storeAnalyses(RenderCache cache, String sourceKey, LoudnessMeter.Result source,
+	String analysisKey, LoudnessMeter.Result output) {
+		if (sourceKey != null && source != null && cache.lookupAnalysis(sourceKey) == null) cache.storeAnalysis(sourceKey, source);
+		if (analysisKey != null && output != null && cache.lookupAnalysis(analysisKey) == null) cache.storeAnalysis(analysisKey, output);
+	}
+
+	private static SampleBuffer allocateSignal(RenderPlanner.Plan plan, int numChannels) throws IOException {
+		switch (plan.strategy) {
+			case IN_MEMORY:
+			return SampleBuffer.onHeap(BUFFERS, (int) plan.totalSamples);
+			case OFF_HEAP:
+			return SampleBuffer.direct(plan.totalSamples, numChannels);
+			default:
+			return SampleBuffer.mapped(RenderPlanner.getSpillDir(), plan.totalSamples, numChannels);
+		}
+	}
+
+	private static boolean copyFromCache(RenderCache cache, String key, OutputStream out,
+	RenderStats.Trace trace) throws IOException {
+		File cached = cache.lookup(key);
+		if (cached == null) return false;
+		trace.begin();
+		try {
+			RenderCache.copyTo(cached, out);
+			} catch (FileNotFoundException e) {
+			// Запись вытеснена между lookup и открытием; out еще не тронут
+			return false;
+		}
+		trace.end(RenderStats.STAGE_CACHE_COPY, 0);
+		return true;
+	}
+
+	/**
+	* Оценка пикового расхода кучи на рендер файла данного размера (каждый байт 16-битного
+	* PCM дает 4 байта double): длинный сигнал держится вне кучи, в ней остаются блоки.
+	*/
+	public static long estimateRenderMemory(long wavFileBytes) {
+		return RenderPlanner.heapBytes(wavFileBytes / 2);
+	}
+
+	public static String newTempName(String prefix) {
+		String timestamp = new java.text.SimpleDateFormat("yyyyMMdd_HHmmss", java.util.Locale.US).format(new java.util.Date());
+		return prefix + timestamp + "_" + System.nanoTime() + ".wav";
+	}
+}
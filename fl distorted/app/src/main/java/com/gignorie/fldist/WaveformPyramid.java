@@ -0,0 +1,282 @@
+package com.gignorie.fldist;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+* Многоуровневая огибающая сигнала для WaveformView: min, max и RMS по ячейкам.
+* Нижний уровень — ячейки по BASE_FRAMES кадров, каждый следующий в FANOUT раз крупнее,
+* поэтому участок любой длины в любом числе столбцов собирается из нескольких ячеек
+* подходящего уровня за микросекунды, без декодирования.
+*
+* Строится за один потоковый проход (Builder) — отдельным чтением исходника или попутно
+* с рендером. Каналы сводятся в одну дорожку. Значения хранятся в байтах относительно
+* пика сигнала: 3 байта на ячейку, со всеми уровнями — около 4 байт на 256 кадров.
+*/
+public final class WaveformPyramid {
+
+	// Кадров в ячейке нижнего уровня и во сколько раз крупнее каждый следующий уровень
+	static final int BASE_FRAMES = 256;
+	static final int FANOUT = 4;
+
+	private static final int MAGIC = 0x464C5746; // "FLWF"
+	private static final int VERSION = 1;
+
+	private final long numFrames;
+	private final long sampleRate;
+	// Значение, которому соответствует байт 127 (пик сигнала)
+	private final float scale;
+	// [уровень][ячейка]; min и max со знаком, RMS без знака
+	private final byte[][] min;
+	private final byte[][] max;
+	private final byte[][] rms;
+
+	private WaveformPyramid(long numFrames, long sampleRate, float scale, byte[][] min, byte[][] max, byte[][] rms) {
+		this.numFrames = numFrames;
+		this.sampleRate = sampleRate;
+		this.scale = scale;
+		this.min = min;
+		this.max = max;
+		this.rms = rms;
+	}
+
+	public long getNumFrames() {
+		return numFrames;
+	}
+
+	public long getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	* Пик сигнала (1.0 — полная шкала).
+	*/
+	public float getPeak() {
+		return scale;
+	}
+
+	public int getLevelCount() {
+		return min.length;
+	}
+
+	/**
+	* Огибающая кадров [start, end) в columns столбцах (в долях полной шкалы).
+	* Столбец уже ячейки нижнего уровня получает ее значения; вне сигнала — нули.
+	*/
+	public void query(long start, long end, int columns, float[] outMin, float[] outMax, float[] outRms) {
+		double framesPerColumn = (double) (end - start) / columns;
+		// Самый крупный уровень, ячейка которого не шире столбца
+		int level = 0;
+		long bucketFrames = BASE_FRAMES;
+		while (level + 1 < min.length && bucketFrames * FANOUT <= framesPerColumn) {
+			level++;
+			bucketFrames *= FANOUT;
+		}
+		byte[] levelMin = min[level];
+		byte[] levelMax = max[level];
+		byte[] levelRms = rms[level];
+		float valueScale = scale / 127f;
+		float rmsScale = scale / 255f;
+		for (int c = 0; c < columns; c++) {
+			long from = start + (long) Math.floor(c * framesPerColumn);
+			long to = Math.max(from + 1, start + (long) Math.floor((c + 1) * framesPerColumn));
+			if (from < 0) from = 0;
+			if (to > numFrames) to = numFrames;
+			if (from >= to) {
+				outMin[c] = 0;
+				outMax[c] = 0;
+				outRms[c] = 0;
+				continue;
+			}
+			int first = (int) (from / bucketFrames);
+			int last = (int) ((to - 1) / bucketFrames);
+			int low = Byte.MAX_VALUE;
+			int high = Byte.MIN_VALUE;
+			long squares = 0;
+			for (int b = first; b <= last; b++) {
+				low = Math.min(low, levelMin[b]);
+				high = Math.max(high, levelMax[b]);
+				int r = levelRms[b] & 0xFF;
+				squares += r * r;
+			}
+			outMin[c] = low * valueScale;
+			outMax[c] = high * valueScale;
+			outRms[c] = (float) Math.sqrt((double) squares / (last - first + 1)) * rmsScale;
+		}
+	}
+
+	public void writeTo(OutputStream stream) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(numFrames);
+		out.writeLong(sampleRate);
+		out.writeFloat(scale);
+		for (int level = 0; level < min.length; level++) {
+			out.write(min[level]);
+			out.write(max[level]);
+			out.write(rms[level]);
+		}
+		out.flush();
+	}
+
+	/**
+	* @throws IOException для чужого или усеченного файла.
+	*/
+	public static WaveformPyramid readFrom(InputStream stream) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+		if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("Not a waveform file");
+		long numFrames = in.readLong();
+		long sampleRate = in.readLong();
+		float scale = in.readFloat();
+		if (numFrames < 0 || !(scale > 0)) throw new IOException("Bad waveform header");
+		int[] counts = bucketCounts(numFrames);
+		byte[][] min = new byte[counts.length][];
+		byte[][] max = new byte[counts.length][];
+		byte[][] rms = new byte[counts.length][];
+		for (int level = 0; level < counts.length; level++) {
+			min[level] = new byte[counts[level]];
+			max[level] = new byte[counts[level]];
+			rms[level] = new byte[counts[level]];
+			in.readFully(min[level]);
+			in.readFully(max[level]);
+			in.readFully(rms[level]);
+		}
+		return new WaveformPyramid(numFrames, sampleRate, scale, min, max, rms);
+	}
+
+	/**
+	* Число ячеек на каждом уровне: до единственной ячейки на весь сигнал.
+	*/
+	private static int[] bucketCounts(long numFrames) {
+		long base = Math.max(1, (numFrames + BASE_FRAMES - 1) / BASE_FRAMES);
+		if (base > Integer.MAX_VALUE) throw new IllegalArgumentException("Signal too long for a waveform: " + numFrames);
+		int levels = 1;
+		for (long count = base; count > 1; count = (count + FANOUT - 1) / FANOUT) levels++;
+		int[] counts = new int[levels];
+		counts[0] = (int) base;
+		for (int level = 1; level < levels; level++) counts[level] = (counts[level - 1] + FANOUT - 1) / FANOUT;
+		return counts;
+	}
+
+	/**
+	* Потоковое построение: чередующиеся отсчеты блоками любой длины, затем build().
+	* Отсчеты сверх числа кадров из заголовка не учитываются.
+	*/
+	public static final class Builder {
+		private final long numFrames;
+		private final long sampleRate;
+		private final int bucketSamples;
+		// Ячейки нижнего уровня до квантования
+		private final float[] bucketMin;
+		private final float[] bucketMax;
+		private final float[] bucketMeanSquare;
+		private int bucket = 0;
+		private int filled = 0;
+		private double low = 0;
+		private double high = 0;
+		private double squares = 0;
+
+		public Builder(int numChannels, long numFrames, long sampleRate) {
+			this.numFrames = numFrames;
+			this.sampleRate = sampleRate;
+			this.bucketSamples = BASE_FRAMES * numChannels;
+			int count = bucketCounts(numFrames)[0];
+			bucketMin = new float[count];
+			bucketMax = new float[count];
+			bucketMeanSquare = new float[count];
+		}
+
+		public void process(double[] data, int offset, int length) {
+			int end = offset + length;
+			int i = offset;
+			while (i < end && bucket < bucketMin.length) {
+				// До конца ячейки или блока: во внутреннем цикле нет проверок границы ячейки
+				int stop = Math.min(end, i + bucketSamples - filled);
+				double lo = low;
+				double hi = high;
+				double sq = squares;
+				filled += stop - i;
+				for (; i < stop; i++) {
+					double value = data[i];
+					if (value < lo) lo = value;
+					if (value > hi) hi = value;
+					sq += value * value;
+				}
+				low = lo;
+				high = hi;
+				squares = sq;
+				if (filled == bucketSamples) flush();
+			}
+		}
+
+		private void flush() {
+			bucketMin[bucket] = (float) low;
+			bucketMax[bucket] = (float) high;
+			bucketMeanSquare[bucket] = (float) (squares / filled);
+			bucket++;
+			filled = 0;
+			low = 0;
+			high = 0;
+			squares = 0;
+		}
+
+		public WaveformPyramid build() {
+			if (filled > 0 && bucket < bucketMin.length) flush();
+			float peak = 0;
+			for (int b = 0; b < bucketMin.length; b++) peak = Math.max(peak, Math.max(-bucketMin[b], bucketMax[b]));
+			float scale = peak > 0 ? peak : 1;
+
+			int[] counts = bucketCounts(numFrames);
+			byte[][] min = new byte[counts.length][];
+			byte[][] max = new byte[counts.length][];
+			byte[][] rms = new byte[counts.length][];
+			float[] lo = bucketMin;
+			float[] hi = bucketMax;
+			float[] meanSquare = bucketMeanSquare;
+			for (int level = 0; level < counts.length; level++) {
+				int count = counts[level];
+				min[level] = new byte[count];
+				max[level] = new byte[count];
+				rms[level] = new byte[count];
+				// Округление наружу: огибающая не бывает уже сигнала
+				for (int b = 0; b < count; b++) {
+					min[level][b] = (byte) Math.max(-127, Math.floor(lo[b] / scale * 127));
+					max[level][b] = (byte) Math.min(127, Math.ceil(hi[b] / scale * 127));
+					rms[level][b] = (byte) Math.min(255, Math.round(Math.sqrt(meanSquare[b]) / scale * 255));
+				}
+				if (level + 1 == counts.length) break;
+
+				// Следующий уровень — из несжатых значений этого
+				int parents = counts[level + 1];
+				float[] parentLo = new float[parents];
+				float[] parentHi = new float[parents];
+				float[] parentMeanSquare = new float[parents];
+				for (int p = 0; p < parents; p++) {
+					int first = p * FANOUT;
+					int last = Math.min(count, first + FANOUT);
+					float l = lo[first];
+					float h = hi[first];
+					float sum = 0;
+					for (int b = first; b < last; b++) {
+						l = Math.min(l, lo[b]);
+						h = Math.max(h, hi[b]);
+						sum += meanSquare[b];
+					}
+					parentLo[p] = l;
+					parentHi[p] = h;
+					parentMeanSquare[p] = sum / (last - first);
+				}
+				lo = parentLo;
+				hi = parentHi;
+				meanSquare = parentMeanSquare;
+			}
+			return new WaveformPyramid(numFrames, sampleRate, scale, min, max, rms);
+		}
+	}
+}
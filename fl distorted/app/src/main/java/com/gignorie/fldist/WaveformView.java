@@ -0,0 +1,184 @@
+package com.gignorie.fldist;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+/**
+* Огибающие до и после цепочки: серым — исходник, поверх оранжевым — результат предпросмотра
+* (с усилением AutoGain). Щипок масштабирует, перетаскивание листает. Кадр рисуется запросом
+* к WaveformPyramid на ширину вида — без декодирования, при любом масштабе.
+*/
+public class WaveformView extends View {
+
+	// Предел увеличения: мельче ячейки нижнего уровня пирамида деталей не хранит
+	private static final double MIN_FRAMES_PER_PIXEL = WaveformPyramid.BASE_FRAMES / 8.0;
+
+	private final Paint beforePeakPaint = new Paint();
+	private final Paint beforeRmsPaint = new Paint();
+	private final Paint afterPeakPaint = new Paint();
+	private final Paint afterRmsPaint = new Paint();
+	private final Paint centerPaint = new Paint();
+	private final ScaleGestureDetector scaleDetector;
+
+	private WaveformPyramid before;
+	private WaveformPyramid after;
+	private float afterGain = 1;
+	// Видимый участок: первый кадр и кадров на пиксель (0 — весь сигнал по ширине)
+	private double startFrame = 0;
+	private double framesPerPixel = 0;
+	private float lastTouchX = Float.NaN;
+
+	// Столбцы запроса и отрезки для drawLines: переиспользуются между кадрами
+	private float[] columnMin = new float[0];
+	private float[] columnMax = new float[0];
+	private float[] columnRms = new float[0];
+	private float[] lines = new float[0];
+
+	public WaveformView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+		beforePeakPaint.setColor(Color.rgb(0xB0, 0xB0, 0xB0));
+		beforeRmsPaint.setColor(Color.rgb(0x80, 0x80, 0x80));
+		afterPeakPaint.setColor(Color.argb(0xA0, 0xFF, 0x98, 0x00));
+		afterRmsPaint.setColor(Color.argb(0xC0, 0xE6, 0x51, 0x00));
+		centerPaint.setColor(Color.LTGRAY);
+		scaleDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+			@Override
+			public boolean onScale(ScaleGestureDetector detector) {
+				zoom(detector.getScaleFactor(), detector.getFocusX());
+				return true;
+			}
+		});
+	}
+
+	/**
+	* Огибающая исходника; null — убрать.
+	*/
+	public void setBefore(WaveformPyramid waveform) {
+		before = waveform;
+		invalidate();
+	}
+
+	/**
+	* Огибающая выхода цепочки до AutoGain и само усиление; null — убрать.
+	*/
+	public void setAfter(WaveformPyramid waveform, double gainDb) {
+		after = waveform;
+		afterGain = (float) Math.pow(10, gainDb / 20);
+		invalidate();
+	}
+
+	private long getTotalFrames() {
+		if (before != null) return before.getNumFrames();
+		return after != null ? after.getNumFrames() : 0;
+	}
+
+	private double getFitFramesPerPixel() {
+		return Math.max(MIN_FRAMES_PER_PIXEL, (double) getTotalFrames() / Math.max(1, getWidth()));
+	}
+
+	private double getFramesPerPixel() {
+		return framesPerPixel > 0 ? framesPerPixel : getFitFramesPerPixel();
+	}
+
+	private void zoom(float factor, float focusX) {
+		double fit = getFitFramesPerPixel();
+		double current = getFramesPerPixel();
+		double focusFrame = startFrame + focusX * current;
+		double next = Math.max(MIN_FRAMES_PER_PIXEL, Math.min(fit, current / factor));
+		framesPerPixel = next >= fit ? 0 : next;
+		startFrame = focusFrame - focusX * next;
+		clampStart();
+		invalidate();
+	}
+
+	private void clampStart() {
+		double maxStart = Math.max(0, getTotalFrames() - getFramesPerPixel() * getWidth());
+		startFrame = Math.max(0, Math.min(maxStart, startFrame));
+	}
+
+	@Override
+	public boolean onTouchEvent(MotionEvent event) {
+		scaleDetector.onTouchEvent(event);
+		switch (event.getActionMasked()) {
+			case MotionEvent.ACTION_DOWN:
+			lastTouchX = event.getX();
+			// Жесты внутри ScrollView остаются у вида
+			getParent().requestDisallowInterceptTouchEvent(true);
+			return true;
+			case MotionEvent.ACTION_MOVE:
+			if (!scaleDetector.isInProgress() && event.getPointerCount() == 1) {
+				if (!Float.isNaN(lastTouchX)) {
+					startFrame -= (event.getX() - lastTouchX) * getFramesPerPixel();
+					clampStart();
+					invalidate();
+				}
+				lastTouchX = event.getX();
+			}
+			return true;
+			case MotionEvent.ACTION_POINTER_UP:
+			// Оставшийся палец задаст новую точку отсчета при следующем движении
+			lastTouchX = Float.NaN;
+			return true;
+			default:
+			return true;
+		}
+	}
+
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+		if (w != columnMin.length) {
+			columnMin = new float[w];
+			columnMax = new float[w];
+			columnRms = new float[w];
+			lines = new float[w * 4];
+		}
+		clampStart();
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		super.onDraw(canvas);
+		int width = columnMin.length;
+		float middle = getHeight() / 2f;
+		canvas.drawLine(0, middle, width, middle, centerPaint);
+		if (width == 0 || getTotalFrames() == 0) return;
+
+		long start = (long) startFrame;
+		long end = start + (long) Math.ceil(getFramesPerPixel() * width);
+		if (before != null) drawWaveform(canvas, before, 1, start, end, beforePeakPaint, beforeRmsPaint);
+		if (after != null) drawWaveform(canvas, after, afterGain, start, end, afterPeakPaint, afterRmsPaint);
+	}
+
+	private void drawWaveform(Canvas canvas, WaveformPyramid waveform, float gain, long start, long end,
+	Paint peakPaint, Paint rmsPaint) {
+		int width = columnMin.length;
+		int height = getHeight();
+		float middle = height / 2f;
+		float amplitude = middle * gain;
+		waveform.query(start, end, width, columnMin, columnMax, columnRms);
+		for (int x = 0; x < width; x++) {
+			lines[4 * x] = x;
+			lines[4 * x + 1] = clamp(middle - columnMax[x] * amplitude, height);
+			lines[4 * x + 2] = x;
+			// Отрезок хотя бы в пиксель: тишина видна линией
+			lines[4 * x + 3] = clamp(middle - columnMin[x] * amplitude, height) + 1;
+		}
+		canvas.drawLines(lines, 0, width * 4, peakPaint);
+		for (int x = 0; x < width; x++) {
+			lines[4 * x + 1] = clamp(middle - columnRms[x] * amplitude, height);
+			lines[4 * x + 3] = clamp(middle + columnRms[x] * amplitude, height);
+		}
+		canvas.drawLines(lines, 0, width * 4, rmsPaint);
+	}
+
+	private static float clamp(float y, int height) {
+		return Math.max(0, Math.min(height, y));
+	}
+}
@@ -0,0 +1,173 @@
+package com.gignorie.fldist;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+* Потоковый 64-битный хеш xxHash64 (некриптографический, несколько ГБ/с на ядро).
+* Данные можно подавать кусками любого размера — результат тот же, что и для
+* всего массива сразу. Используется как ключ содержимого для кеша рендеров.
+*/
+public final class XxHash64 {
+
+	private static final long P1 = 0x9E3779B185EBCA87L;
+	private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long P3 = 0x165667B19E3779F9L;
+	private static final long P4 = 0x85EBCA77C2B2AE63L;
+	private static final long P5 = 0x27D4EB2F165667C5L;
+
+	private final long seed;
+	private long v1, v2, v3, v4;
+	private long totalLength;
+	// Хвост меньше 32 байт, ждущий следующего куска
+	private final byte[] pending = new byte[32];
+	private int pendingSize;
+
+	public XxHash64() {
+		this(0);
+	}
+
+	public XxHash64(long seed) {
+		this.seed = seed;
+		v1 = seed + P1 + P2;
+		v2 = seed + P2;
+		v3 = seed;
+		v4 = seed - P1;
+	}
+
+	public static long hash(byte[] data) {
+		XxHash64 hash = new XxHash64();
+		hash.update(data, 0, data.length);
+		return hash.digest();
+	}
+
+	public static long hash(String text) {
+		return hash(text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public void update(byte[] data, int offset, int length) {
+		totalLength += length;
+		int end = offset + length;
+
+		if (pendingSize > 0) {
+			int take = Math.min(32 - pendingSize, length);
+			System.arraycopy(data, offset, pending, pendingSize, take);
+			pendingSize += take;
+			offset += take;
+			if (pendingSize < 32) return;
+			consumeStripe(pending, 0);
+			pendingSize = 0;
+		}
+
+		while (end - offset >= 32) {
+			consumeStripe(data, offset);
+			offset += 32;
+		}
+
+		pendingSize = end - offset;
+		System.arraycopy(data, offset, pending, 0, pendingSize);
+	}
+
+	/**
+	* Хеширует оставшиеся байты буфера (например, отображенного в память файла)
+	* без копирования в массив; позиция буфера сдвигается в конец.
+	*/
+	public void update(ByteBuffer buffer) {
+		ByteBuffer data = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+		int length = data.remaining();
+		buffer.position(buffer.limit());
+
+		// Сначала добиваем хвост прошлого куска, чтобы дальше идти полосами по 32 байта
+		int head = pendingSize > 0 ? Math.min(32 - pendingSize, length) : 0;
+		if (head > 0) {
+			byte[] bytes = new byte[head];
+			data.get(bytes);
+			update(bytes, 0, head);
+			length -= head;
+		}
+		if (pendingSize > 0) return;
+
+		totalLength += length;
+		while (data.remaining() >= 32) {
+			v1 = round(v1, data.getLong());
+			v2 = round(v2, data.getLong());
+			v3 = round(v3, data.getLong());
+			v4 = round(v4, data.getLong());
+		}
+		pendingSize = data.remaining();
+		data.get(pending, 0, pendingSize);
+	}
+
+	public long digest() {
+		long h;
+		if (totalLength >= 32) {
+			h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			h = mergeRound(h, v1);
+			h = mergeRound(h, v2);
+			h = mergeRound(h, v3);
+			h = mergeRound(h, v4);
+			} else {
+			h = seed + P5;
+		}
+		h += totalLength;
+
+		int i = 0;
+		for (; i + 8 <= pendingSize; i += 8) {
+			h ^= round(0, getLong(pending, i));
+			h = Long.rotateLeft(h, 27) * P1 + P4;
+		}
+		if (i + 4 <= pendingSize) {
+			h ^= (getInt(pending, i) & 0xFFFFFFFFL) * P1;
+			h = Long.rotateLeft(h, 23) * P2 + P3;
+			i += 4;
+		}
+		for (; i < pendingSize; i++) {
+			h ^= (pending[i] & 0xFFL) * P5;
+			h = Long.rotateLeft(h, 11) * P1;
+		}
+
+		h ^= h >>> 33;
+		h *= P2;
+		h ^= h >>> 29;
+		h *= P3;
+		h ^= h >>> 32;
+		return h;
+	}
+
+	private void consumeStripe(byte[] data, int offset) {
+		v1 = round(v1, getLong(data, offset));
+		v2 = round(v2, getLong(data, offset + 8));
+		v3 = round(v3, getLong(data, offset + 16));
+		v4 = round(v4, getLong(data, offset + 24));
+	}
+
+	private static long round(long acc, long input) {
+		acc += input * P2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * P1;
+	}
+
+	private static long mergeRound(long acc, long value) {
+		acc ^= round(0, value);
+		return acc * P1 + P4;
+	}
+
+	private static long getLong(byte[] b, int i) {
+		return (b[i] & 0xFFL)
+		| (b[i + 1] & 0xFFL) << 8
+		| (b[i + 2] & 0xFFL) << 16
+		| (b[i + 3] & 0xFFL) << 24
+		| (b[i + 4] & 0xFFL) << 32
+		| (b[i + 5] & 0xFFL) << 40
+		| (b[i + 6] & 0xFFL) << 48
+		| (b[i + 7] & 0xFFL) << 56;
+	}
+
+	private static int getInt(byte[] b, int i) {
+		return (b[i] & 0xFF)
+		| (b[i + 1] & 0xFF) << 8
+		| (b[i + 2] & 0xFF) << 16
+		| (b[i + 3] & 0xFF) << 24;
+	}
+}
@@ -0,0 +1,65 @@
+package com.gignorie.fldist;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+* Полная цепочка из шести эффектов в разном порядке и на сигналах разной длины.
+* Все эффекты включены (параметр 50, микс 100), чтобы порядок влиял только на то,
+* какой сигнал получает каждое ядро. Одна операция — один отсчет, как в EffectKernelBenchmark.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EffectChainBenchmark {
+
+	static final int SAMPLES_PER_INVOCATION = EffectKernelBenchmark.SAMPLES_PER_INVOCATION;
+
+	// Порядок по умолчанию, обратный и два перемешанных (id эффектов через запятую)
+	@Param({ "0,1,2,3,4,5", "5,4,3,2,1,0", "4,5,3,0,1,2", "3,0,4,2,5,1" })
+	public String effectOrder;
+
+	// Короткий кусок предпросмотра, типичный файл, длинная запись (~24 с при 44.1 кГц)
+	@Param({ "4096", "262144", "1048576" })
+	public int signalLength;
+
+	private EffectChain chain;
+	private double[] input;
+	private double[] buffer;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		String[] ids = effectOrder.split(",");
+		int[] order = new int[ids.length];
+		for (int i = 0; i < ids.length; i++) order[i] = Integer.parseInt(ids[i].trim());
+		int[] paramLevels = new int[EffectChain.NUM_EFFECTS];
+		int[] mixLevels = new int[EffectChain.NUM_EFFECTS];
+		for (int i = 0; i < EffectChain.NUM_EFFECTS; i++) {
+			paramLevels[i] = 50;
+			mixLevels[i] = 100;
+		}
+		chain = new EffectChain(order, paramLevels, mixLevels);
+		input = WavFixtures.signal(signalLength);
+		buffer = new double[signalLength];
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES_PER_INVOCATION)
+	public double[] chain() {
+		for (int done = 0; done < SAMPLES_PER_INVOCATION; done += signalLength) {
+			System.arraycopy(input, 0, buffer, 0, signalLength);
+			chain.process(buffer, WavFixtures.SAMPLE_RATE);
+		}
+		return buffer;
+	}
+}
@@ -0,0 +1,84 @@
+package com.gignorie.fldist;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+* Отдельные DSP-ядра EffectChain: одноэффектная цепочка, как ее шаг выполняет рендер
+* (processStage вместе с сухой копией блока при частичном mix). Одна операция — один отсчет: за вызов
+* обрабатывается SAMPLES_PER_INVOCATION отсчетов буферами по bufferSize,
+* поэтому время и gc.alloc.rate.norm сравнимы между любыми размерами буфера.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EffectKernelBenchmark {
+
+	static final int SAMPLES_PER_INVOCATION = 1 << 20;
+
+	public enum Effect {
+		LPF_CUTOFF(EffectChain.FX_LPF_CUTOFF),
+		RING_MOD(EffectChain.FX_RING_MOD),
+		CLIP_DECAY(EffectChain.FX_CLIP_DECAY),
+		REAL_BITCRUSH(EffectChain.FX_REAL_BITCRUSH),
+		REAL_DRIVE(EffectChain.FX_REAL_DRIVE),
+		REAL_SATURATION(EffectChain.FX_REAL_SATURATION);
+
+		final int id;
+
+		Effect(int id) {
+			this.id = id;
+		}
+	}
+
+	@Param({ "LPF_CUTOFF", "RING_MOD", "CLIP_DECAY", "REAL_BITCRUSH", "REAL_DRIVE", "REAL_SATURATION" })
+	public Effect effect;
+
+	// 0 и 100 — края диапазона ползунка: 100 у сатурации — самый сильный драйв,
+	// у биткраша — 1 бит, у фильтра — самый высокий срез
+	@Param({ "0", "50", "100" })
+	public int paramLevel;
+
+	// 100 — чистый wet, 50 — дополнительно проход смешивания
+	@Param({ "100", "50" })
+	public int mixLevel;
+
+	@Param({ "4096", "65536" })
+	public int bufferSize;
+
+	private EffectChain chain;
+	private double[] input;
+	private double[] buffer;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		int[] paramLevels = new int[EffectChain.NUM_EFFECTS];
+		int[] mixLevels = new int[EffectChain.NUM_EFFECTS];
+		paramLevels[effect.id] = paramLevel;
+		mixLevels[effect.id] = mixLevel;
+		chain = new EffectChain(new int[] { effect.id }, paramLevels, mixLevels);
+		input = WavFixtures.signal(bufferSize);
+		buffer = new double[bufferSize];
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES_PER_INVOCATION)
+	public double[] kernel() {
+		for (int done = 0; done < SAMPLES_PER_INVOCATION; done += bufferSize) {
+			// Ядро работает на месте: каждый буфер начинается с одного и того же сигнала
+			System.arraycopy(input, 0, buffer, 0, bufferSize);
+			chain.processStage(0, buffer, WavFixtures.SAMPLE_RATE);
+		}
+		return buffer;
+	}
+}
@@ -0,0 +1,30 @@
+package com.gignorie.fldist;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+* Дополнительные счетчики пропускной способности: JMH выводит их рядом с ops/s
+* как bytes/s (байты PCM, без заголовка) и frames/s.
+*/
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class IoCounters {
+
+	public long bytes;
+	public long frames;
+
+	@Setup(Level.Iteration)
+	public void reset() {
+		bytes = 0;
+		frames = 0;
+	}
+
+	void add(long frameCount, int bytesPerFrame) {
+		frames += frameCount;
+		bytes += frameCount * bytesPerFrame;
+	}
+}
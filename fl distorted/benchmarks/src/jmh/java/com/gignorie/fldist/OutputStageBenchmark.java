@@ -0,0 +1,82 @@
+package com.gignorie.fldist;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+* Перевод double -> PCM в OutputStage (округление, подмешивание, насыщение) против
+* прежнего приведения (long) без насыщения. Одна операция — один отсчет; запись в файл
+* не входит (она одинакова, см. WavFileWriteBenchmark).
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class OutputStageBenchmark {
+
+	static final int SAMPLES_PER_INVOCATION = 1 << 20;
+	static final int BUFFER_SAMPLES = 8192;
+
+	@Param({ "8", "16", "24", "32" })
+	public int bits;
+
+	@Param({ "NONE", "TPDF", "SHAPED" })
+	public OutputStage.Dither dither;
+
+	// 4 — перегруженный сигнал: насыщение срабатывает на большей части отсчетов
+	@Param({ "1", "4" })
+	public int gain;
+
+	private OutputStage stage;
+	private double[] input;
+	private byte[] output;
+	private int bytesPerSample;
+	private double scale;
+	private double offset;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		stage = new OutputStage(2, bits, dither);
+		input = WavFixtures.signal(BUFFER_SAMPLES);
+		for (int i = 0; i < input.length; i++) input[i] *= gain;
+		bytesPerSample = (bits + 7) / 8;
+		output = new byte[BUFFER_SAMPLES * bytesPerSample];
+		// Как в WavFile.newWavFile
+		scale = bits > 8 ? Long.MAX_VALUE >> (64 - bits) : 0.5 * ((1 << bits) - 1);
+		offset = bits > 8 ? 0 : 1;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES_PER_INVOCATION)
+	public byte[] outputStage() {
+		for (int done = 0; done < SAMPLES_PER_INVOCATION; done += BUFFER_SAMPLES) {
+			stage.convert(input, 0, BUFFER_SAMPLES, output, 0);
+		}
+		return output;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES_PER_INVOCATION)
+	public byte[] legacyCast() {
+		for (int done = 0; done < SAMPLES_PER_INVOCATION; done += BUFFER_SAMPLES) {
+			int o = 0;
+			for (int i = 0; i < BUFFER_SAMPLES; i++) {
+				long value = (long) (scale * (offset + input[i]));
+				for (int b = 0; b < bytesPerSample; b++) {
+					output[o++] = (byte) value;
+					value >>= 8;
+				}
+			}
+		}
+		return output;
+	}
+}
@@ -0,0 +1,114 @@
+package com.gignorie.fldist;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+* Чтение WavFile: одна операция — весь файл-фикстура буферами по bufferFrames кадров.
+* Пропускная способность — в счетчиках IoCounters (bytes/s, frames/s).
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class WavFileReadBenchmark {
+
+	public enum Layout { INTERLEAVED, PLANAR }
+
+	@Param({ "8", "16", "24", "32" })
+	public int bits;
+
+	@Param({ "1", "2" })
+	public int channels;
+
+	@Param({ "256", "4096", "65536" })
+	public int bufferFrames;
+
+	@Param({ "INTERLEAVED", "PLANAR" })
+	public Layout layout;
+
+	private File fixture;
+	private int bytesPerFrame;
+
+	private int[] intBuffer;
+	private int[][] intPlanar;
+	private long[] longBuffer;
+	private long[][] longPlanar;
+	private double[] doubleBuffer;
+	private double[][] doublePlanar;
+	private float[] floatBuffer;
+	private float[][] floatPlanar;
+
+	private interface FrameReader {
+		int read(WavFile wav) throws Exception;
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		fixture = WavFixtures.ensure(bits, channels);
+		bytesPerFrame = channels * ((bits + 7) / 8);
+		intBuffer = new int[bufferFrames * channels];
+		intPlanar = new int[channels][bufferFrames];
+		longBuffer = new long[bufferFrames * channels];
+		longPlanar = new long[channels][bufferFrames];
+		doubleBuffer = new double[bufferFrames * channels];
+		doublePlanar = new double[channels][bufferFrames];
+		floatBuffer = new float[bufferFrames * channels];
+		floatPlanar = new float[channels][bufferFrames];
+	}
+
+	@Benchmark
+	public void readInt(Blackhole blackhole, IoCounters counters) throws Exception {
+		readAll(counters, layout == Layout.INTERLEAVED
+		? wav -> consume(blackhole, intBuffer, wav.readFrames(intBuffer, bufferFrames))
+		: wav -> consume(blackhole, intPlanar, wav.readFrames(intPlanar, bufferFrames)));
+	}
+
+	@Benchmark
+	public void readLong(Blackhole blackhole, IoCounters counters) throws Exception {
+		readAll(counters, layout == Layout.INTERLEAVED
+		? wav -> consume(blackhole, longBuffer, wav.readFrames(longBuffer, bufferFrames))
+		: wav -> consume(blackhole, longPlanar, wav.readFrames(longPlanar, bufferFrames)));
+	}
+
+	@Benchmark
+	public void readDouble(Blackhole blackhole, IoCounters counters) throws Exception {
+		readAll(counters, layout == Layout.INTERLEAVED
+		? wav -> consume(blackhole, doubleBuffer, wav.readFrames(doubleBuffer, bufferFrames))
+		: wav -> consume(blackhole, doublePlanar, wav.readFrames(doublePlanar, bufferFrames)));
+	}
+
+	@Benchmark
+	public void readFloat(Blackhole blackhole, IoCounters counters) throws Exception {
+		readAll(counters, layout == Layout.INTERLEAVED
+		? wav -> consume(blackhole, floatBuffer, wav.readFrames(floatBuffer, bufferFrames))
+		: wav -> consume(blackhole, floatPlanar, wav.readFrames(floatPlanar, bufferFrames)));
+	}
+
+	private void readAll(IoCounters counters, FrameReader reader) throws Exception {
+		WavFile wav = WavFile.openWavFile(fixture);
+		long total = 0;
+		try {
+			int read;
+			while ((read = reader.read(wav)) > 0) total += read;
+			} finally {
+			wav.close();
+		}
+		counters.add(total, bytesPerFrame);
+	}
+
+	private static int consume(Blackhole blackhole, Object buffer, int framesRead) {
+		blackhole.consume(buffer);
+		return framesRead;
+	}
+}
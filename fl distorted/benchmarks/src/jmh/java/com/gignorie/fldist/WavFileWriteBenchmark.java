@@ -0,0 +1,132 @@
+package com.gignorie.fldist;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+* Запись WavFile: одна операция — файл размером с фикстуру (WavFixtures.FRAMES кадров),
+* записанный буферами по bufferFrames кадров. Данные — начало фикстуры того же формата.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class WavFileWriteBenchmark {
+
+	@Param({ "8", "16", "24", "32" })
+	public int bits;
+
+	@Param({ "1", "2" })
+	public int channels;
+
+	@Param({ "256", "4096", "65536" })
+	public int bufferFrames;
+
+	@Param({ "INTERLEAVED", "PLANAR" })
+	public WavFileReadBenchmark.Layout layout;
+
+	private File output;
+	private int bytesPerFrame;
+
+	private int[] intBuffer;
+	private int[][] intPlanar;
+	private long[] longBuffer;
+	private long[][] longPlanar;
+	private double[] doubleBuffer;
+	private double[][] doublePlanar;
+	private float[] floatBuffer;
+	private float[][] floatPlanar;
+
+	private interface FrameWriter {
+		int write(WavFile wav, int frames) throws Exception;
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		output = new File(WavFixtures.dir(), "write_" + bits + "bit_" + channels + "ch.wav");
+		output.getParentFile().mkdirs();
+		bytesPerFrame = channels * ((bits + 7) / 8);
+
+		long[] samples = WavFixtures.samples(bits, channels, bufferFrames);
+		// Для double/float — те же отсчеты в диапазоне [-1, 1]
+		double offset = bits == 8 ? 128 : 0;
+		double scale = bits == 8 ? 127.5 : (double) (1L << (bits - 1));
+		intBuffer = new int[samples.length];
+		intPlanar = new int[channels][bufferFrames];
+		longBuffer = samples;
+		longPlanar = new long[channels][bufferFrames];
+		doubleBuffer = new double[samples.length];
+		doublePlanar = new double[channels][bufferFrames];
+		floatBuffer = new float[samples.length];
+		floatPlanar = new float[channels][bufferFrames];
+		for (int i = 0; i < samples.length; i++) {
+			int f = i / channels;
+			int c = i % channels;
+			double normalized = (samples[i] - offset) / scale;
+			intBuffer[i] = (int) samples[i];
+			intPlanar[c][f] = (int) samples[i];
+			longPlanar[c][f] = samples[i];
+			doubleBuffer[i] = normalized;
+			doublePlanar[c][f] = normalized;
+			floatBuffer[i] = (float) normalized;
+			floatPlanar[c][f] = (float) normalized;
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		output.delete();
+	}
+
+	@Benchmark
+	public void writeInt(IoCounters counters) throws Exception {
+		writeAll(counters, layout == WavFileReadBenchmark.Layout.INTERLEAVED
+		? (wav, frames) -> wav.writeFrames(intBuffer, frames)
+		: (wav, frames) -> wav.writeFrames(intPlanar, frames));
+	}
+
+	@Benchmark
+	public void writeLong(IoCounters counters) throws Exception {
+		writeAll(counters, layout == WavFileReadBenchmark.Layout.INTERLEAVED
+		? (wav, frames) -> wav.writeFrames(longBuffer, frames)
+		: (wav, frames) -> wav.writeFrames(longPlanar, frames));
+	}
+
+	@Benchmark
+	public void writeDouble(IoCounters counters) throws Exception {
+		writeAll(counters, layout == WavFileReadBenchmark.Layout.INTERLEAVED
+		? (wav, frames) -> wav.writeFrames(doubleBuffer, frames)
+		: (wav, frames) -> wav.writeFrames(doublePlanar, frames));
+	}
+
+	@Benchmark
+	public void writeFloat(IoCounters counters) throws Exception {
+		writeAll(counters, layout == WavFileReadBenchmark.Layout.INTERLEAVED
+		? (wav, frames) -> wav.writeFrames(floatBuffer, frames)
+		: (wav, frames) -> wav.writeFrames(floatPlanar, frames));
+	}
+
+	private void writeAll(IoCounters counters, FrameWriter writer) throws Exception {
+		WavFile wav = WavFile.newWavFile(output, channels, WavFixtures.FRAMES, bits, WavFixtures.SAMPLE_RATE);
+		long total = 0;
+		try {
+			while (total < WavFixtures.FRAMES) {
+				int frames = (int) Math.min(bufferFrames, WavFixtures.FRAMES - total);
+				total += writer.write(wav, frames);
+			}
+			} finally {
+			wav.close();
+		}
+		counters.add(total, bytesPerFrame);
+	}
+}
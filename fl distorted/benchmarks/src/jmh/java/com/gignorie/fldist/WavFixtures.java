@@ -0,0 +1,109 @@
+package com.gignorie.fldist;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+* Тестовые WAV-файлы для бенчмарков. Содержимое зависит только от формата:
+* фиксированное зерно Random (алгоритм задан спецификацией Java) и StrictMath,
+* поэтому на любой машине получаются одни и те же байты.
+*
+* Каталог задается свойством fldist.fixtures (его выставляет сборка);
+* файлы создаются при первом обращении или задачей generateFixtures.
+*/
+public final class WavFixtures {
+
+	public static final String DIR_PROPERTY = "fldist.fixtures";
+
+	public static final int[] BITS = { 8, 16, 24, 32 };
+	public static final int[] CHANNELS = { 1, 2 };
+	// ~6 секунд при 44.1 кГц: больше любого буфера в бенчмарках
+	public static final int FRAMES = 1 << 18;
+	public static final long SAMPLE_RATE = 44100;
+
+	private static final long SEED = 0x464C44495354L;
+
+	private WavFixtures() { }
+
+	public static File dir() {
+		String path = System.getProperty(DIR_PROPERTY);
+		return new File(path != null ? path : "build/fixtures");
+	}
+
+	public static File file(int bits, int channels) {
+		return new File(dir(), "fixture_" + bits + "bit_" + channels + "ch.wav");
+	}
+
+	/**
+	* Файл нужного формата; создается заново, если его нет или размер не тот.
+	*/
+	public static synchronized File ensure(int bits, int channels) throws IOException, WavFileException {
+		File file = file(bits, channels);
+		if (file.length() != expectedLength(bits, channels)) write(file, bits, channels);
+		return file;
+	}
+
+	public static long expectedLength(int bits, int channels) {
+		// Заголовок WavFile: RIFF (12) + fmt (8 + 16) + заголовок data (8)
+		long data = (long) FRAMES * channels * ((bits + 7) / 8);
+		return 44 + data + (data % 2);
+	}
+
+	/**
+	* Отсчеты в виде, который принимает writeFrames(long[]): для 8 бит беззнаковые
+	* 0..255, иначе знаковые. Три синуса с разной фазой по каналам плюс шум.
+	*/
+	public static long[] samples(int bits, int channels, int frames) {
+		Random random = new Random(SEED + bits * 16L + channels);
+		long amplitude = (1L << (bits - 1)) - 1;
+		long[] samples = new long[frames * channels];
+		for (int f = 0; f < frames; f++) {
+			double t = f / (double) SAMPLE_RATE;
+			for (int c = 0; c < channels; c++) {
+				double value = 0.35 * StrictMath.sin(2 * Math.PI * 220 * t + c)
+				+ 0.2 * StrictMath.sin(2 * Math.PI * 660 * t + 2 * c)
+				+ 0.1 * StrictMath.sin(2 * Math.PI * 1870 * t)
+				+ 0.05 * (random.nextDouble() * 2 - 1);
+				long sample = Math.round(value * amplitude);
+				samples[f * channels + c] = bits == 8 ? sample + 128 : sample;
+			}
+		}
+		return samples;
+	}
+
+	/**
+	* Моно-сигнал в том виде, в каком его получает EffectChain: double в [-1, 1],
+	* как после WavFile.readFrames(double[]) из 16-битного файла.
+	*/
+	public static double[] signal(int length) {
+		long[] samples = samples(16, 1, length);
+		double[] signal = new double[length];
+		for (int i = 0; i < length; i++) signal[i] = samples[i] / 32768.0;
+		return signal;
+	}
+
+	private static void write(File file, int bits, int channels) throws IOException, WavFileException {
+		File dir = file.getParentFile();
+		if (dir != null && !dir.isDirectory() && !dir.mkdirs()) throw new IOException("Could not create " + dir);
+		WavFile wav = WavFile.newWavFile(file, channels, FRAMES, bits, SAMPLE_RATE);
+		try {
+			wav.writeFrames(samples(bits, channels, FRAMES), FRAMES);
+			} finally {
+			wav.close();
+		}
+	}
+
+	/**
+	* Создает все файлы в каталоге args[0] (задача generateFixtures).
+	*/
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0) System.setProperty(DIR_PROPERTY, args[0]);
+		for (int bits : BITS) {
+			for (int channels : CHANNELS) {
+				File file = ensure(bits, channels);
+				System.out.println(file + " " + file.length() + " bytes");
+			}
+		}
+	}
+}
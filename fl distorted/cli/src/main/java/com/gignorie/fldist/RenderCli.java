@@ -0,0 +1,436 @@
+package com.gignorie.fldist;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+* Настольный пакетный рендер: тот же EffectChain, WavRenderer и BatchApply, что и
+* в приложении, но над локальными файлами и с результатом в отдельном каталоге.
+* Оригиналы не изменяются. Журнал пакета лежит в каталоге результата, поэтому
+* прерванный запуск с теми же аргументами продолжается с того же места.
+*/
+public final class RenderCli {
+
+	private static final String USAGE =
+	"Usage: fldist [options] <input>...\n"
+	+ "\n"
+	+ "Inputs are WAV files, directories (searched recursively for *.wav) or glob\n"
+	+ "patterns such as 'stems/**/*.wav' (quote them so the shell leaves them alone).\n"
+	+ "\n"
+	+ "Options:\n"
+	+ "  -o, --output DIR        output directory (required; originals are never modified)\n"
+	+ "  -p, --preset CHAIN      chain as 'order;param;mix', e.g. '0,1,2,3,4,5;50,50,50,0,0,0;100,100,100,0,0,0'\n"
+	+ "  -f, --preset-file FILE  file with a CHAIN line or ORDER=, PARAM=, MIX= lines\n"
+	+ "      --order LIST        effect order, overrides the preset\n"
+	+ "      --param LIST        effect parameters 0..100, overrides the preset\n"
+	+ "      --mix LIST          effect mix levels 0..100, overrides the preset\n"
+	+ "  -j, --threads N         files rendered in parallel (default: CPU cores)\n"
+	+ "      --dither MODE       auto, none, tpdf or shaped (default auto: tpdf at 16 bits and below)\n"
+	+ "      --normalize TARGET  final gain to TARGET LUFS (e.g. -14) or 'source' to match each input's loudness\n"
+	+ "  -h, --help              show this help\n"
+	+ "\n"
+	+ "Effect IDs: 0 low-pass, 1 ring mod, 2 clip/decay, 3 bitcrush, 4 drive, 5 saturation.\n";
+
+	private static final String JOURNAL_NAME = ".fldist-batch.journal";
+	private static final String PART_SUFFIX = ".part";
+
+	// Значения по умолчанию — как у редактора без сохраненного пресета
+	private static final String DEFAULT_ORDER = "0,1,2,3,4,5";
+	private static final String DEFAULT_PARAM = "0,0,0,0,0,0";
+	private static final String DEFAULT_MIX = "100,100,100,0,0,0";
+
+	private static final int EXIT_OK = 0;
+	private static final int EXIT_FAILED_FILES = 1;
+	private static final int EXIT_USAGE = 2;
+
+	/**
+	* Ошибка в аргументах: печатается вместе с подсказкой, код выхода EXIT_USAGE.
+	*/
+	static final class UsageException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		UsageException(String message) {
+			super(message);
+		}
+	}
+
+	private RenderCli() { }
+
+	public static void main(String[] args) {
+		int code;
+		try {
+			code = run(args);
+			} catch (UsageException e) {
+			System.err.println("fldist: " + e.getMessage());
+			System.err.println("Try 'fldist --help'.");
+			code = EXIT_USAGE;
+			} catch (Exception e) {
+			System.err.println("fldist: " + e);
+			code = EXIT_FAILED_FILES;
+		}
+		System.exit(code);
+	}
+
+	static int run(String[] args) throws Exception {
+		String output = null;
+		String preset = null;
+		String presetFile = null;
+		String order = null;
+		String param = null;
+		String mix = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		AutoGain gain = AutoGain.OFF;
+		List<String> inputs = new ArrayList<>();
+
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("-h") || arg.equals("--help")) {
+				System.out.print(USAGE);
+				return EXIT_OK;
+				} else if (arg.equals("-o") || arg.equals("--output")) {
+				output = value(args, ++i, arg);
+				} else if (arg.equals("-p") || arg.equals("--preset")) {
+				preset = value(args, ++i, arg);
+				} else if (arg.equals("-f") || arg.equals("--preset-file")) {
+				presetFile = value(args, ++i, arg);
+				} else if (arg.equals("--order")) {
+				order = value(args, ++i, arg);
+				} else if (arg.equals("--param")) {
+				param = value(args, ++i, arg);
+				} else if (arg.equals("--mix")) {
+				mix = value(args, ++i, arg);
+				} else if (arg.equals("-j") || arg.equals("--threads")) {
+				try {
+					threads = Integer.parseInt(value(args, ++i, arg));
+					} catch (NumberFormatException e) {
+					throw new UsageException("--threads needs a number");
+				}
+				if (threads < 1) throw new UsageException("--threads must be at least 1");
+				} else if (arg.equals("--dither")) {
+				String mode = value(args, ++i, arg);
+				try {
+					OutputStage.setDither(OutputStage.Dither.valueOf(mode.toUpperCase(Locale.US)));
+					} catch (IllegalArgumentException e) {
+					throw new UsageException("--dither must be auto, none, tpdf or shaped: " + mode);
+				}
+				} else if (arg.equals("--normalize")) {
+				String target = value(args, ++i, arg);
+				try {
+					gain = AutoGain.parse(target);
+					} catch (IllegalArgumentException e) {
+					throw new UsageException("--normalize needs a LUFS value or 'source': " + target);
+				}
+				} else if (arg.startsWith("-") && arg.length() > 1) {
+				throw new UsageException("unknown option " + arg);
+				} else {
+				inputs.add(arg);
+			}
+		}
+		if (output == null) throw new UsageException("--output is required");
+		if (inputs.isEmpty()) throw new UsageException("no input files");
+
+		EffectChain chain = buildChain(preset, presetFile, order, param, mix);
+		File outDir = new File(output).getAbsoluteFile();
+		if (!outDir.isDirectory() && !outDir.mkdirs()) throw new IOException("Could not create " + outDir);
+		Map<String, File> outputs = planOutputs(inputs, outDir);
+		if (outputs.isEmpty()) throw new UsageException("no WAV files matched the inputs");
+		return render(chain, outputs, outDir, threads, gain);
+	}
+
+	private static String value(String[] args, int index, String option) throws UsageException {
+		if (index >= args.length) throw new UsageException(option + " needs a value");
+		return args[index];
+	}
+
+	// =====================================================================
+	// ЦЕПОЧКА
+	// =====================================================================
+
+	/**
+	* Цепочка из пресета (строкой или файлом) с переопределением отдельных списков.
+	* Списки — те же, что хранит редактор: через запятую, по значению на эффект.
+	*/
+	static EffectChain buildChain(String preset, String presetFile,
+	String order, String param, String mix) throws UsageException, IOException {
+		if (preset != null && presetFile != null) throw new UsageException("use either --preset or --preset-file");
+		String[] lists = { DEFAULT_ORDER, DEFAULT_PARAM, DEFAULT_MIX };
+		if (presetFile != null) preset = readPresetFile(new File(presetFile));
+		if (preset != null) {
+			String[] parts = preset.split(";", -1);
+			if (parts.length != 3) throw new UsageException("preset must look like 'order;param;mix'");
+			lists = parts;
+		}
+		if (order != null) lists[0] = order;
+		if (param != null) lists[1] = param;
+		if (mix != null) lists[2] = mix;
+
+		EffectChain chain;
+		try {
+			chain = EffectChain.fromSignature(lists[0] + ";" + lists[1] + ";" + lists[2]);
+			} catch (IllegalArgumentException e) {
+			throw new UsageException("bad preset: " + e.getMessage());
+		}
+		boolean[] seen = new boolean[EffectChain.NUM_EFFECTS];
+		for (int stage = 0; stage < chain.getStageCount(); stage++) {
+			int effectId = chain.getEffectId(stage);
+			if (effectId < 0 || effectId >= EffectChain.NUM_EFFECTS || seen[effectId]) {
+				throw new UsageException("effect order must list each effect ID 0.."
+				+ (EffectChain.NUM_EFFECTS - 1) + " once: " + lists[0]);
+			}
+			seen[effectId] = true;
+		}
+		return chain;
+	}
+
+	/**
+	* Файл пресета: строка CHAIN (формат журнала пакета) или строки ORDER=, PARAM=, MIX=
+	* (те же списки, что сохраняет редактор). Пустые строки и # — комментарии.
+	*/
+	private static String readPresetFile(File file) throws IOException, UsageException {
+		String[] lists = { DEFAULT_ORDER, DEFAULT_PARAM, DEFAULT_MIX };
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) continue;
+				if (line.startsWith("CHAIN ")) return line.substring("CHAIN ".length()).trim();
+				int equals = line.indexOf('=');
+				String key = equals < 0 ? "" : line.substring(0, equals).trim().toUpperCase(Locale.US);
+				String list = line.substring(equals + 1).trim();
+				if (key.equals("ORDER")) {
+					lists[0] = list;
+					} else if (key.equals("PARAM")) {
+					lists[1] = list;
+					} else if (key.equals("MIX")) {
+					lists[2] = list;
+					} else {
+					throw new UsageException(file + ": unrecognized line '" + line + "'");
+				}
+			}
+		}
+		return lists[0] + ";" + lists[1] + ";" + lists[2];
+	}
+
+	// =====================================================================
+	// ВХОДНЫЕ ФАЙЛЫ
+	// =====================================================================
+
+	/**
+	* Раскрывает аргументы в пары "исходный файл -> файл результата".
+	* Из каталогов и шаблонов сохраняется относительный путь, одиночные файлы
+	* кладутся в корень каталога результата. Совпадающие имена результатов — ошибка.
+	*/
+	static Map<String, File> planOutputs(List<String> inputs, File outDir) throws IOException, UsageException {
+		Map<String, File> outputs = new LinkedHashMap<>();
+		Map<String, String> sourceByOutput = new HashMap<>();
+		for (String input : inputs) {
+			Map<Path, String> found = expand(input);
+			if (found.isEmpty()) System.err.println("fldist: warning: nothing matched " + input);
+			for (Map.Entry<Path, String> entry : found.entrySet()) {
+				String source = entry.getKey().toAbsolutePath().normalize().toString();
+				if (outputs.containsKey(source)) continue;
+				File target = new File(outDir, entry.getValue());
+				String targetPath = target.getCanonicalPath();
+				if (targetPath.equals(new File(source).getCanonicalPath())) {
+					throw new UsageException("output would overwrite the input " + source);
+				}
+				String other = sourceByOutput.put(targetPath, source);
+				if (other != null) {
+					throw new UsageException("both " + other + " and " + source + " would be written to " + target);
+				}
+				outputs.put(source, target);
+			}
+		}
+		return outputs;
+	}
+
+	/**
+	* Файлы одного аргумента (в порядке путей) с относительным путем результата.
+	*/
+	private static Map<Path, String> expand(String input) throws IOException, UsageException {
+		Map<Path, String> found = new LinkedHashMap<>();
+		if (isGlob(input)) {
+			// База — начало пути до первого сегмента с метасимволами
+			String normalized = input.replace(File.separatorChar, '/');
+			List<String> segments = new ArrayList<>();
+			Collections.addAll(segments, normalized.split("/", -1));
+			int firstGlob = 0;
+			while (firstGlob < segments.size() && !isGlob(segments.get(firstGlob))) firstGlob++;
+			String basePath = String.join("/", segments.subList(0, firstGlob));
+			Path base = Paths.get(basePath.isEmpty() ? "." : basePath);
+			if (normalized.startsWith("/") && basePath.isEmpty()) base = Paths.get("/");
+			String pattern = String.join("/", segments.subList(firstGlob, segments.size()));
+			PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+			// Как в shell: ведущий **/ совпадает и с нулем каталогов (файлы прямо в базе)
+			PathMatcher topLevel = pattern.startsWith("**/")
+			? FileSystems.getDefault().getPathMatcher("glob:" + pattern.substring(3)) : matcher;
+			if (!Files.isDirectory(base)) return found;
+			for (Path path : walk(base)) {
+				Path relative = base.relativize(path);
+				if (matcher.matches(relative) || topLevel.matches(relative)) found.put(path, relative.toString());
+			}
+			} else {
+			Path path = Paths.get(input);
+			if (Files.isDirectory(path)) {
+				for (Path file : walk(path)) {
+					if (isWav(file)) found.put(file, path.relativize(file).toString());
+				}
+				} else if (Files.isRegularFile(path)) {
+				found.put(path, path.getFileName().toString());
+				} else {
+				throw new UsageException("no such file or directory: " + input);
+			}
+		}
+		return found;
+	}
+
+	private static List<Path> walk(Path dir) throws IOException {
+		try (Stream<Path> paths = Files.walk(dir)) {
+			return paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+		}
+	}
+
+	private static boolean isGlob(String path) {
+		return path.indexOf('*') >= 0 || path.indexOf('?') >= 0 || path.indexOf('[') >= 0 || path.indexOf('{') >= 0;
+	}
+
+	private static boolean isWav(Path path) {
+		return path.getFileName().toString().toLowerCase(Locale.US).endsWith(".wav");
+	}
+
+	// =====================================================================
+	// РЕНДЕР
+	// =====================================================================
+
+	private static int render(EffectChain chain, Map<String, File> outputs, File outDir, int threads, AutoGain gain) throws Exception {
+		List<String> sources = new ArrayList<>(outputs.keySet());
+		File journalFile = new File(outDir, JOURNAL_NAME);
+		BatchJournal journal = BatchJournal.load(journalFile);
+		if (journal != null && journal.getChain().toSignature().equals(chain.toSignature())
+		&& journal.getFiles().equals(sources)) {
+			System.out.println("Resuming: " + journal.getDoneCount() + " of " + sources.size() + " files already done");
+			} else {
+			if (journal != null) journal.close();
+			journal = BatchJournal.create(journalFile, chain, sources);
+		}
+		int alreadyDone = journal.getDoneCount();
+
+		System.out.println("Chain: " + chain.toSignature());
+		System.out.println("Rendering " + (sources.size() - alreadyDone) + " files to " + outDir + " with up to " + threads + " threads");
+
+		ExecutorService helpers = Executors.newFixedThreadPool(Math.max(1, threads - 1), runnable -> {
+			Thread thread = new Thread(runnable, "fldist-render");
+			thread.setDaemon(true);
+			return thread;
+		});
+		BatchApply.Progress progress;
+		try {
+			// Громкость каждого файла — из прохода рендера, печатается вместе с итогом файла
+			Map<String, WavRenderer.Analysis> analyses = new ConcurrentHashMap<>();
+			BatchApply batch = new BatchApply(journal, localProcessor(outputs, gain, analyses), helpers, threads, new BatchApply.Listener() {
+				@Override
+				public void onFileStarted(String wavPath) { }
+
+				@Override
+				public void onFileFinished(String wavPath, boolean success, long fileNanos, BatchApply.Progress progress) {
+					System.out.println(String.format(Locale.US, "[%d/%d] %s %s (%.2f MB, %d ms)",
+					progress.done + progress.failed, progress.total, success ? "OK  " : "FAIL",
+					wavPath, new File(wavPath).length() / 1e6, fileNanos / 1000000));
+					WavRenderer.Analysis analysis = analyses.remove(wavPath);
+					if (analysis != null) System.out.println("       " + analysis);
+				}
+			});
+			progress = batch.run(new PriorityScheduler.Handle() {
+				@Override
+				public boolean isCancelled() {
+					return false;
+				}
+
+				@Override
+				public void cancel() { }
+			});
+			} finally {
+			helpers.shutdownNow();
+		}
+
+		printSummary(progress, alreadyDone, threads);
+		return progress.failed > 0 ? EXIT_FAILED_FILES : EXIT_OK;
+	}
+
+	/**
+	* Локальные файлы: результат сначала пишется в .part рядом с итоговым файлом
+	* и переименовывается целиком, так что в каталоге результата не бывает обрывков.
+	* Исходник не меняется, поэтому повтор после сбоя просто рендерит файл заново.
+	*/
+	static BatchApply.FileProcessor localProcessor(Map<String, File> outputs,
+	AutoGain gain, Map<String, WavRenderer.Analysis> analyses) {
+		return new BatchApply.FileProcessor() {
+			@Override
+			public Map<String, Long> fileSizes(List<String> wavPaths) {
+				Map<String, Long> sizes = new HashMap<>();
+				for (String path : wavPaths) sizes.put(path, new File(path).length());
+				return sizes;
+			}
+
+			@Override
+			public void process(String wavPath, int index, EffectChain chain, PriorityScheduler.Handle handle) throws Exception {
+				File output = outputs.get(wavPath);
+				File temp = new File(output.getPath() + PART_SUFFIX);
+				File dir = temp.getParentFile();
+				try {
+					if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Could not create " + dir);
+					WavRenderer.Analysis analysis = WavRenderer.renderToFile(wavPath, temp, chain, handle, null, gain);
+					Files.move(temp.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					analyses.put(wavPath, analysis);
+					} catch (CancellationException e) {
+					Files.deleteIfExists(temp.toPath());
+					throw e;
+					} catch (Exception e) {
+					Files.deleteIfExists(temp.toPath());
+					// BatchApply отмечает только сам факт ошибки; причину показываем здесь
+					System.err.println("fldist: " + wavPath + ": " + e);
+					throw e;
+				}
+			}
+		};
+	}
+
+	private static void printSummary(BatchApply.Progress progress, int alreadyDone, int threads) {
+		int rendered = progress.done - alreadyDone;
+		System.out.println();
+		System.out.println(String.format(Locale.US, "Files: %d rendered, %d failed%s in %.2f s with %d workers",
+		rendered, progress.failed, alreadyDone > 0 ? " (" + alreadyDone + " done earlier)" : "",
+		progress.elapsedNanos / 1e9, progress.workers));
+		System.out.println(String.format(Locale.US, "Throughput: %.2f MB/s, %.2f files/s",
+		progress.getMegabytesPerSecond(), progress.getFilesPerSecond()));
+		if (progress.workers < Math.min(threads, progress.total - alreadyDone)) {
+			// Рабочих меньше и потоков, и файлов: их урезал запас кучи (BatchApply.workerCount)
+			System.out.println("Parallelism was limited by the heap; raise it with JAVA_OPTS=-Xmx...");
+		}
+		System.out.println();
+		System.out.print(RenderStats.get().formatTable());
+	}
+}
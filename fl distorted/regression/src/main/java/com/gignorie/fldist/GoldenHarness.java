@@ -0,0 +1,308 @@
+package com.gignorie.fldist;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+* Регрессионная проверка DSP: тестовые сигналы проходят через каждый эффект и несколько
+* цепочек, результат сравнивается с сохраненными эталонами с явными допусками.
+* Заодно меряется скорость каждого ядра: ниже бюджета из файла — провал.
+* Запускается задачей verifyGolden (входит в check); updateGolden переписывает эталоны.
+*
+* Аргументы: verify|update каталог_эталонов файл_бюджетов [--skip-throughput]
+*/
+public final class GoldenHarness {
+
+	// Низкая частота: на коротком сигнале видны и атака, и спад CLIP_DECAY
+	static final long SAMPLE_RATE = 8000;
+	static final int LENGTH = 2048;
+
+	// Эталоны хранятся во float: допуски покрывают его округление и разницу Math.* между JVM
+	static final Tolerance EFFECT_TOLERANCE = new Tolerance(1e-6, 1e-7);
+	// В цепочке ошибка копится (фильтр с обратной связью), поэтому допуск шире
+	static final Tolerance CHAIN_TOLERANCE = new Tolerance(1e-5, 1e-6);
+
+	static final int[] PARAM_LEVELS = { 0, 50, 100 };
+
+	// Замер скорости: сигнал длиной с типичный кусок записи, лучший из нескольких прогонов
+	static final int THROUGHPUT_LENGTH = 1 << 18;
+	static final long THROUGHPUT_SAMPLE_RATE = 44100;
+	static final int WARMUP_ROUNDS = 5;
+	static final int MEASURE_ROUNDS = 7;
+
+	private static final String GOLDEN_SUFFIX = ".golden";
+	private static final int MAGIC = 0x464C4447; // "FLDG"
+	private static final int VERSION = 1;
+
+	private static final int EXIT_OK = 0;
+	private static final int EXIT_FAILED = 1;
+	private static final int EXIT_USAGE = 2;
+
+	/**
+	* Допуск: максимальная и среднеквадратичная разница с эталоном.
+	*/
+	static final class Tolerance {
+		final double maxAbsError;
+		final double maxRmsError;
+
+		Tolerance(double maxAbsError, double maxRmsError) {
+			this.maxAbsError = maxAbsError;
+			this.maxRmsError = maxRmsError;
+		}
+	}
+
+	/**
+	* Проверяемая цепочка; name — имя эталона или ключ бюджета скорости.
+	*/
+	static final class Case {
+		final String name;
+		final EffectChain chain;
+		final Tolerance tolerance;
+
+		Case(String name, EffectChain chain, Tolerance tolerance) {
+			this.name = name;
+			this.chain = chain;
+			this.tolerance = tolerance;
+		}
+	}
+
+	private GoldenHarness() { }
+
+	/**
+	* Эталоны: каждый эффект отдельно (параметр 0/50/100 и половинный микс) и набор цепочек.
+	*/
+	static List<Case> goldenCases() {
+		List<Case> cases = new ArrayList<>();
+		for (int effectId = 0; effectId < EffectChain.NUM_EFFECTS; effectId++) {
+			String effect = RenderStats.effectStage(effectId);
+			for (int param : PARAM_LEVELS) {
+				cases.add(new Case(effect + "_p" + param, single(effectId, param, 100), EFFECT_TOLERANCE));
+			}
+			cases.add(new Case(effect + "_p50_mix50", single(effectId, 50, 50), EFFECT_TOLERANCE));
+		}
+		cases.add(new Case("chain.all50", allAt50(), CHAIN_TOLERANCE));
+		cases.add(new Case("chain.reversed", new EffectChain(
+		new int[] { 5, 4, 3, 2, 1, 0 }, levels(50), levels(100)), CHAIN_TOLERANCE));
+		cases.add(new Case("chain.drive_first", new EffectChain(
+		new int[] { 4, 5, 3, 0, 1, 2 }, new int[] { 20, 70, 40, 90, 100, 60 },
+		new int[] { 100, 50, 80, 30, 100, 70 }), CHAIN_TOLERANCE));
+		// Редактор без пресета
+		cases.add(new Case("chain.app_default", new EffectChain(
+		new int[] { 0, 1, 2, 3, 4, 5 }, levels(0), new int[] { 100, 100, 100, 0, 0, 0 }), CHAIN_TOLERANCE));
+		return cases;
+	}
+
+	/**
+	* Скорость: каждое ядро при параметре 50 (имя — как этап в RenderStats) и полная цепочка.
+	*/
+	static List<Case> throughputCases() {
+		List<Case> cases = new ArrayList<>();
+		for (int effectId = 0; effectId < EffectChain.NUM_EFFECTS; effectId++) {
+			cases.add(new Case(RenderStats.effectStage(effectId), single(effectId, 50, 100), null));
+		}
+		cases.add(new Case("chain.all50", allAt50(), null));
+		return cases;
+	}
+
+	private static EffectChain allAt50() {
+		return new EffectChain(new int[] { 0, 1, 2, 3, 4, 5 }, levels(50), levels(100));
+	}
+
+	private static EffectChain single(int effectId, int param, int mix) {
+		int[] params = new int[EffectChain.NUM_EFFECTS];
+		int[] mixes = new int[EffectChain.NUM_EFFECTS];
+		params[effectId] = param;
+		mixes[effectId] = mix;
+		return new EffectChain(new int[] { effectId }, params, mixes);
+	}
+
+	private static int[] levels(int level) {
+		int[] levels = new int[EffectChain.NUM_EFFECTS];
+		for (int i = 0; i < levels.length; i++) levels[i] = level;
+		return levels;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3 || !(args[0].equals("verify") || args[0].equals("update"))) {
+			System.err.println("Usage: GoldenHarness verify|update <golden dir> <budgets file> [--skip-throughput]");
+			System.exit(EXIT_USAGE);
+		}
+		boolean update = args[0].equals("update");
+		File goldenDir = new File(args[1]);
+		File budgetsFile = new File(args[2]);
+		boolean skipThroughput = args.length > 3 && args[3].equals("--skip-throughput");
+
+		List<Case> cases = goldenCases();
+		int failures = update ? updateGolden(cases, goldenDir) : verifyGolden(cases, goldenDir);
+		if (!skipThroughput) failures += checkThroughput(throughputCases(), update ? null : loadBudgets(budgetsFile));
+
+		System.out.println();
+		if (failures > 0) {
+			System.out.println(failures + " check(s) FAILED");
+			System.exit(EXIT_FAILED);
+		}
+		System.out.println(update ? "Golden files updated in " + goldenDir : "All checks passed");
+		System.exit(EXIT_OK);
+	}
+
+	// =====================================================================
+	// ЭТАЛОНЫ
+	// =====================================================================
+
+	static double[][] render(EffectChain chain) {
+		double[][] outputs = new double[TestSignals.ALL.length][];
+		for (int s = 0; s < TestSignals.ALL.length; s++) {
+			double[] buffer = TestSignals.generate(TestSignals.ALL[s], LENGTH, SAMPLE_RATE);
+			chain.process(buffer, SAMPLE_RATE);
+			outputs[s] = buffer;
+		}
+		return outputs;
+	}
+
+	private static int updateGolden(List<Case> cases, File goldenDir) throws IOException {
+		if (!goldenDir.isDirectory() && !goldenDir.mkdirs()) throw new IOException("Could not create " + goldenDir);
+		for (Case c : cases) {
+			writeGolden(new File(goldenDir, c.name + GOLDEN_SUFFIX), render(c.chain));
+			System.out.println("WROTE " + c.name);
+		}
+		return 0;
+	}
+
+	private static int verifyGolden(List<Case> cases, File goldenDir) throws IOException {
+		int failures = 0;
+		for (Case c : cases) {
+			File file = new File(goldenDir, c.name + GOLDEN_SUFFIX);
+			if (!file.isFile()) {
+				System.out.println("FAIL " + c.name + ": no golden file " + file + " (run updateGolden)");
+				failures++;
+				continue;
+			}
+			float[][] golden = readGolden(file);
+			double[][] actual = render(c.chain);
+			if (golden == null || golden.length != actual.length) {
+				System.out.println("FAIL " + c.name + ": golden file has a different layout (run updateGolden)");
+				failures++;
+				continue;
+			}
+			for (int s = 0; s < actual.length; s++) {
+				String label = c.name + " / " + TestSignals.ALL[s];
+				double maxError = 0;
+				double sumSquares = 0;
+				for (int i = 0; i < LENGTH; i++) {
+					double error = Math.abs(actual[s][i] - golden[s][i]);
+					// NaN в выходе — всегда провал
+					if (Double.isNaN(error)) error = Double.POSITIVE_INFINITY;
+					maxError = Math.max(maxError, error);
+					sumSquares += error * error;
+				}
+				double rmsError = Math.sqrt(sumSquares / LENGTH);
+				boolean ok = maxError <= c.tolerance.maxAbsError && rmsError <= c.tolerance.maxRmsError;
+				if (!ok) failures++;
+				System.out.println(String.format(Locale.US, "%s %-34s max %.2e (<= %.0e)  rms %.2e (<= %.0e)",
+				ok ? "PASS" : "FAIL", label, maxError, c.tolerance.maxAbsError, rmsError, c.tolerance.maxRmsError));
+			}
+		}
+		return failures;
+	}
+
+	/**
+	* GZIP: "FLDG", версия, частота, длина, число сигналов, затем по сигналу имя и float-отсчеты.
+	*/
+	private static void writeGolden(File file, double[][] outputs) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+		new GZIPOutputStream(new FileOutputStream(file))))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(SAMPLE_RATE);
+			out.writeInt(LENGTH);
+			out.writeInt(outputs.length);
+			for (int s = 0; s < outputs.length; s++) {
+				out.writeUTF(TestSignals.ALL[s]);
+				for (double sample : outputs[s]) out.writeFloat((float) sample);
+			}
+		}
+	}
+
+	/**
+	* Отсчеты эталона или null, если он снят с другими сигналами, частотой или длиной.
+	*/
+	private static float[][] readGolden(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+		new GZIPInputStream(new FileInputStream(file))))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+			if (in.readLong() != SAMPLE_RATE || in.readInt() != LENGTH) return null;
+			int signals = in.readInt();
+			if (signals != TestSignals.ALL.length) return null;
+			float[][] golden = new float[signals][LENGTH];
+			for (int s = 0; s < signals; s++) {
+				if (!in.readUTF().equals(TestSignals.ALL[s])) return null;
+				for (int i = 0; i < LENGTH; i++) golden[s][i] = in.readFloat();
+			}
+			return golden;
+		}
+	}
+
+	// =====================================================================
+	// СКОРОСТЬ
+	// =====================================================================
+
+	/**
+	* Файл бюджетов: имя -> минимум миллионов отсчетов в секунду.
+	*/
+	private static Properties loadBudgets(File file) throws IOException {
+		Properties budgets = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			budgets.load(in);
+		}
+		return budgets;
+	}
+
+	/**
+	* Без budgets (режим update) только печатает замеры — по ним выставляются бюджеты.
+	*/
+	private static int checkThroughput(List<Case> cases, Properties budgets) {
+		int failures = 0;
+		double[] input = TestSignals.generate(TestSignals.NOISE, THROUGHPUT_LENGTH, THROUGHPUT_SAMPLE_RATE);
+		double[] buffer = new double[THROUGHPUT_LENGTH];
+		for (Case c : cases) {
+			double best = 0;
+			for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+				System.arraycopy(input, 0, buffer, 0, THROUGHPUT_LENGTH);
+				long start = System.nanoTime();
+				c.chain.process(buffer, THROUGHPUT_SAMPLE_RATE);
+				long nanos = System.nanoTime() - start;
+				if (round >= WARMUP_ROUNDS) best = Math.max(best, THROUGHPUT_LENGTH * 1e3 / Math.max(nanos, 1));
+			}
+
+			if (budgets == null) {
+				System.out.println(String.format(Locale.US, "SPEED %-20s %8.2f Msamples/s", c.name, best));
+				continue;
+			}
+			String budgetValue = budgets.getProperty(c.name);
+			if (budgetValue == null) {
+				System.out.println("FAIL " + c.name + ": no throughput budget");
+				failures++;
+				continue;
+			}
+			double budget = Double.parseDouble(budgetValue.trim());
+			boolean ok = best >= budget;
+			if (!ok) failures++;
+			System.out.println(String.format(Locale.US, "%s %-20s %8.2f Msamples/s (>= %.2f)",
+			ok ? "PASS" : "FAIL", c.name, best, budget));
+		}
+		return failures;
+	}
+}
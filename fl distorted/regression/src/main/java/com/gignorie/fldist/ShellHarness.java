@@ -0,0 +1,199 @@
+package com.gignorie.fldist;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+* Проверка root-ввода/вывода без root: RootShell, RootFileStream и RootFileSink работают
+* через ShellLauncher.LOCAL (обычный /bin/sh) так же, как на устройстве через su.
+* Проверяются разбор вывода по маркерам (очередь команд, stderr отдельно, коды выхода,
+* двоичный вывод с началом маркера) и ошибки чтения и записи файлов.
+* Запускается задачей verifyShell (входит в check).
+*
+* Аргументы: рабочий каталог (временные файлы удаляются после проверки).
+*/
+public final class ShellHarness {
+
+	private static final int QUEUED_COMMANDS = 50;
+
+	private static final int EXIT_OK = 0;
+	private static final int EXIT_FAILED = 1;
+	private static final int EXIT_USAGE = 2;
+
+	private int failures = 0;
+
+	private ShellHarness() { }
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: ShellHarness <work dir>");
+			System.exit(EXIT_USAGE);
+		}
+		if (!new File("/bin/sh").canExecute()) {
+			System.out.println("SKIP no /bin/sh on this machine");
+			System.exit(EXIT_OK);
+		}
+		File dir = new File(args[0]);
+		if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Could not create " + dir);
+
+		ShellHarness harness = new ShellHarness();
+		try (RootShell shell = new RootShell(ShellLauncher.LOCAL)) {
+			harness.checkShell(shell, dir);
+		}
+		harness.checkFileStream(dir);
+		harness.checkFileSink(dir);
+
+		System.out.println();
+		if (harness.failures > 0) {
+			System.out.println(harness.failures + " check(s) FAILED");
+			System.exit(EXIT_FAILED);
+		}
+		System.out.println("All checks passed");
+		System.exit(EXIT_OK);
+	}
+
+	// =====================================================================
+	// ROOTSHELL
+	// =====================================================================
+
+	private void checkShell(RootShell shell, File dir) throws Exception {
+		RootShell.Result result = shell.run("echo out; echo err >&2");
+		check("shell.stderr_separate", result.isSuccess() && result.stdout.equals("out\n") && result.stderr.equals("err\n"),
+		"stdout '" + result.stdout + "', stderr '" + result.stderr + "'");
+
+		result = shell.run("echo partial; false");
+		check("shell.exit_code", result.exitCode == 1 && result.stdout.equals("partial\n"), "code " + result.exitCode);
+		result = shell.run("(exit 42)");
+		check("shell.exit_code_42", result.exitCode == 42, "code " + result.exitCode);
+
+		// Все команды в очереди до первого ответа: вывод каждой должен достаться ей
+		List<RootShell.Command> commands = new ArrayList<>();
+		List<ByteArrayOutputStream> outputs = new ArrayList<>();
+		for (int i = 0; i < QUEUED_COMMANDS; i++) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			outputs.add(out);
+			commands.add(shell.submit("echo " + i + "; (exit " + (i % 3) + ")", out, new ByteArrayOutputStream()));
+		}
+		boolean queuedOk = true;
+		String queuedDetail = QUEUED_COMMANDS + " commands";
+		for (int i = 0; i < QUEUED_COMMANDS; i++) {
+			int code = commands.get(i).waitFor();
+			String text = new String(outputs.get(i).toByteArray(), StandardCharsets.UTF_8);
+			if (code != i % 3 || !text.equals(i + "\n")) {
+				queuedOk = false;
+				queuedDetail = "command " + i + ": code " + code + ", output '" + text + "'";
+				break;
+			}
+		}
+		check("shell.queued", queuedOk, queuedDetail);
+
+		// Двоичный вывод, похожий на начало маркера, не должен обрывать команду
+		byte[] binary = binaryPayload();
+		File file = new File(dir, "shell_binary.bin");
+		Files.write(file.toPath(), binary);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			int code = shell.submit("cat " + ShellLauncher.quote(file.getPath()), out, new ByteArrayOutputStream()).waitFor();
+			check("shell.binary_output", code == 0 && Arrays.equals(out.toByteArray(), binary),
+			out.size() + " of " + binary.length + " bytes");
+			} finally {
+			file.delete();
+		}
+		result = shell.run("echo after");
+		check("shell.after_binary", result.isSuccess() && result.stdout.equals("after\n"), "stdout '" + result.stdout + "'");
+	}
+
+	// =====================================================================
+	// ROOTFILESTREAM / ROOTFILESINK
+	// =====================================================================
+
+	private void checkFileStream(File dir) throws Exception {
+		byte[] binary = binaryPayload();
+		File file = new File(dir, "stream_source.bin");
+		Files.write(file.toPath(), binary);
+		try (InputStream in = RootFileStream.open(ShellLauncher.LOCAL, file.getPath())) {
+			byte[] read = readAll(in);
+			check("stream.read", Arrays.equals(read, binary), read.length + " of " + binary.length + " bytes");
+			} finally {
+			file.delete();
+		}
+
+		// Ошибка cat — исключение, а не тихий пустой поток
+		String missing = new File(dir, "no_such_file.wav").getPath();
+		try (InputStream in = RootFileStream.open(ShellLauncher.LOCAL, missing)) {
+			byte[] read = readAll(in);
+			check("stream.missing_file", false, "read " + read.length + " bytes without an error");
+			} catch (IOException e) {
+			check("stream.missing_file", true, e.getMessage());
+		}
+	}
+
+	private void checkFileSink(File dir) throws Exception {
+		byte[] binary = binaryPayload();
+		File file = new File(dir, "sink_target.bin");
+		try {
+			try (OutputStream out = RootFileSink.open(ShellLauncher.LOCAL, file.getPath())) {
+				out.write(binary);
+			}
+			byte[] written = Files.readAllBytes(file.toPath());
+			check("sink.write", Arrays.equals(written, binary), written.length + " of " + binary.length + " bytes");
+			} finally {
+			file.delete();
+		}
+
+		// Запись в несуществующий каталог: close() обязан сообщить об ошибке
+		String unwritable = new File(new File(dir, "no_such_dir"), "target.bin").getPath();
+		try {
+			OutputStream out = RootFileSink.open(ShellLauncher.LOCAL, unwritable);
+			try {
+				out.write(binary);
+				} catch (IOException e) {
+				// cat уже завершился и закрыл канал: ошибку все равно должен дать close()
+			}
+			out.close();
+			check("sink.failure", false, "close() succeeded");
+			} catch (IOException e) {
+			check("sink.failure", true, e.getMessage());
+		}
+	}
+
+	// =====================================================================
+	// ОБЩЕЕ
+	// =====================================================================
+
+	/**
+	* Все значения байта, перевод строки посреди данных и начало маркера RootShell.
+	*/
+	private static byte[] binaryPayload() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (int round = 0; round < 64; round++) {
+			for (int b = 0; b < 256; b++) bytes.write(b);
+			byte[] prefix = "\u0001FLDIST_".getBytes(StandardCharsets.US_ASCII);
+			bytes.write(prefix, 0, prefix.length);
+			bytes.write('\n');
+		}
+		return bytes.toByteArray();
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+		return out.toByteArray();
+	}
+
+	private void check(String name, boolean ok, String detail) {
+		if (!ok) failures++;
+		// Вывод команд — одной строкой
+		System.out.println((ok ? "PASS " : "FAIL ") + String.format("%-22s %s", name, detail.replace("\n", "\\n")));
+	}
+}
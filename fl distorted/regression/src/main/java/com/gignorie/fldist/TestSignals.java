@@ -0,0 +1,49 @@
+package com.gignorie.fldist;
+
+import java.util.Random;
+
+/**
+* Детерминированные тестовые сигналы (моно, double как после WavFile.readFrames).
+* Только StrictMath и Random с фиксированным зерном: одинаковые значения на любой JVM.
+*/
+public final class TestSignals {
+
+	public static final String SINE = "sine";
+	public static final String SWEEP = "sweep";
+	public static final String NOISE = "noise";
+	public static final String IMPULSE = "impulse";
+
+	public static final String[] ALL = { SINE, SWEEP, NOISE, IMPULSE };
+
+	private static final long NOISE_SEED = 0x474F4C44L;
+
+	private TestSignals() { }
+
+	public static double[] generate(String name, int length, long sampleRate) {
+		double[] signal = new double[length];
+		if (name.equals(SINE)) {
+			// 440 Гц, запас до полной шкалы
+			for (int i = 0; i < length; i++) signal[i] = 0.8 * StrictMath.sin(2 * Math.PI * 440 * i / sampleRate);
+			} else if (name.equals(SWEEP)) {
+			// Логарифмический свип 20 Гц .. 0.45 частоты дискретизации
+			double f0 = 20;
+			double f1 = 0.45 * sampleRate;
+			double duration = (double) length / sampleRate;
+			double k = StrictMath.log(f1 / f0) / duration;
+			for (int i = 0; i < length; i++) {
+				double t = (double) i / sampleRate;
+				signal[i] = 0.8 * StrictMath.sin(2 * Math.PI * f0 * (StrictMath.exp(k * t) - 1) / k);
+			}
+			} else if (name.equals(NOISE)) {
+			Random random = new Random(NOISE_SEED);
+			for (int i = 0; i < length; i++) signal[i] = random.nextDouble() * 1.6 - 0.8;
+			} else if (name.equals(IMPULSE)) {
+			// Полный и половинный импульсы: отклик фильтров и поведение на пиках
+			signal[0] = 1.0;
+			if (length > 1) signal[length / 2] = -0.5;
+			} else {
+			throw new IllegalArgumentException("Unknown test signal: " + name);
+		}
+		return signal;
+	}
+}